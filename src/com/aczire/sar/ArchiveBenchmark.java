@@ -0,0 +1,411 @@
+package com.aczire.sar;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+
+import com.aczire.sar.bench.CorpusGenerator;
+import com.aczire.sar.manifest.ArchiveManifest;
+import com.aczire.sar.metrics.SarCounter;
+import com.aczire.sar.metrics.Stage;
+
+/**
+ * Measures an archive build and a keyword search end to end, in process on
+ * the local job runner and the local filesystem.
+ *
+ * <p>The corpus is generated by {@link CorpusGenerator} into
+ * <code>&lt;work_dir&gt;/corpus</code>, unless <code>-corpus</code> names an
+ * existing one, then archived into <code>&lt;work_dir&gt;/archive</code>
+ * with the builder options of <code>-build_args</code> and searched for the
+ * keyword the generator planted. The report holds, for each phase, the
+ * seconds taken, files and MB per second, the peak heap, the time in each
+ * stage summed over tasks and the archive counters, and for the build the
+ * archive size against the corpus size. It is written as sorted
+ * <code>name=value</code> lines, so reports of two runs can be diffed.</p>
+ *
+ * <p>The search is checked as well as timed: the files found are reported
+ * as <code>search.actual_hits</code> beside <code>search.expected_hits</code>,
+ * the files the generator planted the keyword in or the count given with
+ * <code>-expected_hits</code>, and a mismatch fails the run after the report
+ * is written. An existing corpus without <code>-expected_hits</code> is not
+ * checked.</p>
+ */
+public class ArchiveBenchmark {
+	private static final Log LOG = LogFactory.getLog(ArchiveBenchmark.class);
+	// How often the heap is sampled for its peak.
+	private static final long HEAP_SAMPLE_MS = 10;
+	private static final double MB = 1024.0 * 1024;
+
+	private String workDir = "";
+	private String corpusPath = "";
+	private String reportPath = "";
+	private String unlockKey = "bench";
+	private String[] buildArgs = new String[0];
+	private String[] searchArgs = new String[0];
+	private boolean generateOnly = false;
+	// Files the search should find, -1 if not known.
+	private long expectedHits = -1;
+	private CorpusGenerator generator = new CorpusGenerator();
+
+	private final Map<String, String> report = new TreeMap<String, String>();
+
+	Configuration conf = new Configuration();
+
+	private void printUsage(Options opts) {
+		new HelpFormatter().printHelp("ArchiveBenchmark", opts);
+	}
+
+	public boolean init(String[] args) throws ParseException {
+		LOG.info("Initializing archive benchmark.");
+		Options opts = new Options();
+		opts.addOption("work_dir", true, "Local directory for the corpus, archive and search output.");
+		opts.addOption("corpus", true, "Benchmark this local directory of files instead of a generated corpus.");
+		opts.addOption("report", true, "File to write the report to. (default <work_dir>/report.txt)");
+		opts.addOption("key", true, "Password to build and search with. (default bench)");
+		opts.addOption("build_args", true, "Further ArchiveBuilder options, such as \"-compress -encrypt -threads 4\".");
+		opts.addOption("search_args", true, "Further ArchiveSearcher options.");
+		opts.addOption("generate_only", false, "Only generate the corpus.");
+		opts.addOption("expected_hits", true, "Number of files the search should find. (default the files the keyword was planted in, unchecked with -corpus)");
+		opts.addOption("files", true, "Number of files to generate. (default 1000)");
+		opts.addOption("size_distribution", true, "Distribution of file sizes: fixed, uniform or lognormal. (default lognormal)");
+		opts.addOption("mean_size", true, "Mean file size in bytes, the size of every file if fixed. (default 65536)");
+		opts.addOption("min_size", true, "Smallest file size in bytes. (default 0)");
+		opts.addOption("max_size", true, "Largest file size in bytes. (default 16777216)");
+		opts.addOption("compressibility", true, "Share of file contents that is text rather than random bytes, 0 to 1. (default 0.5)");
+		opts.addOption("duplicates", true, "Share of files that copy an earlier file, 0 to 1. (default 0)");
+		opts.addOption("keyword_rate", true, "Share of files that hold the searched keyword, 0 to 1. (default 0.01)");
+		opts.addOption("keyword", true, "Keyword planted in files and searched for. (default sar-needle)");
+		opts.addOption("seed", true, "Seed of the generated corpus. (default 1)");
+		opts.addOption("help", false, "Print usage information.");
+
+		CommandLine cliParser = new GnuParser().parse(opts, args);
+
+		if (args.length == 0) {
+			printUsage(opts);
+			throw new IllegalArgumentException("No args specified for archive benchmark to initialize");
+		}
+
+		if (cliParser.hasOption("help")) {
+			printUsage(opts);
+			return false;
+		}
+
+		if (!cliParser.hasOption("work_dir")) {
+			throw new IllegalArgumentException("No work directory specified.");
+		}
+		workDir = cliParser.getOptionValue("work_dir");
+		reportPath = cliParser.getOptionValue("report", new Path(workDir, "report.txt").toString());
+		if (cliParser.hasOption("corpus")) {
+			corpusPath = cliParser.getOptionValue("corpus");
+		}
+		if (cliParser.hasOption("key")) {
+			unlockKey = cliParser.getOptionValue("key");
+		}
+		if (cliParser.hasOption("build_args")) {
+			buildArgs = splitArgs(cliParser.getOptionValue("build_args"));
+		}
+		if (cliParser.hasOption("search_args")) {
+			searchArgs = splitArgs(cliParser.getOptionValue("search_args"));
+		}
+		generateOnly = cliParser.hasOption("generate_only");
+		if (cliParser.hasOption("expected_hits")) {
+			expectedHits = Long.parseLong(cliParser.getOptionValue("expected_hits"));
+			if (expectedHits < 0) {
+				throw new IllegalArgumentException("Expected hits must not be negative.");
+			}
+		}
+
+		if (cliParser.hasOption("files")) {
+			generator.setFiles(Integer.parseInt(cliParser.getOptionValue("files")));
+		}
+		if (cliParser.hasOption("size_distribution")) {
+			generator.setDistribution(cliParser.getOptionValue("size_distribution"));
+		}
+		if (cliParser.hasOption("mean_size")) {
+			generator.setMeanSize(Long.parseLong(cliParser.getOptionValue("mean_size")));
+		}
+		if (cliParser.hasOption("min_size")) {
+			generator.setMinSize(Long.parseLong(cliParser.getOptionValue("min_size")));
+		}
+		if (cliParser.hasOption("max_size")) {
+			generator.setMaxSize(Long.parseLong(cliParser.getOptionValue("max_size")));
+		}
+		if (cliParser.hasOption("compressibility")) {
+			generator.setCompressibility(Double.parseDouble(cliParser.getOptionValue("compressibility")));
+		}
+		if (cliParser.hasOption("duplicates")) {
+			generator.setDuplicates(Double.parseDouble(cliParser.getOptionValue("duplicates")));
+		}
+		if (cliParser.hasOption("keyword_rate")) {
+			generator.setKeywordRate(Double.parseDouble(cliParser.getOptionValue("keyword_rate")));
+		}
+		if (cliParser.hasOption("keyword")) {
+			generator.setKeyword(cliParser.getOptionValue("keyword"));
+		}
+		if (cliParser.hasOption("seed")) {
+			generator.setSeed(Long.parseLong(cliParser.getOptionValue("seed")));
+		}
+
+		// Everything runs in this JVM, on the local filesystem.
+		conf.set("mapreduce.framework.name", "local");
+		conf.set("fs.defaultFS", "file:///");
+		return true;
+	}
+
+	private static String[] splitArgs(String args) {
+		String trimmed = args.trim();
+		return trimmed.equals("") ? new String[0] : trimmed.split("\\s+");
+	}
+
+	public boolean run() throws Exception {
+		FileSystem fs = FileSystem.getLocal(conf);
+		Path work = fs.makeQualified(new Path(workDir));
+		Path corpus = new Path(work, "corpus");
+		Path archive = new Path(work, "archive");
+		Path searchOut = new Path(work, "search");
+
+		if (corpusPath.equals("")) {
+			long start = System.currentTimeMillis();
+			// Through the raw filesystem, so no checksum files sit among the inputs.
+			CorpusGenerator.Summary summary = generator.generate(FileSystem.getLocal(conf).getRaw(), corpus);
+			for (Map.Entry<String, String> setting : generator.describe().entrySet()) {
+				report.put("corpus." + setting.getKey(), setting.getValue());
+			}
+			report.put("corpus.duplicate_files", Integer.toString(summary.duplicates));
+			report.put("corpus.keyword_files", Integer.toString(summary.keywordFiles));
+			if (expectedHits < 0) {
+				expectedHits = summary.keywordFiles;
+			}
+			LOG.info("Generated " + summary.files + " files, " + summary.bytes + " bytes, in "
+					+ (System.currentTimeMillis() - start) + " ms.");
+		}
+		else {
+			corpus = fs.makeQualified(new Path(corpusPath));
+			report.put("corpus.path", corpus.toString());
+		}
+		List<FileStatus> inputs = ArchiveManifest.listInputs(fs, corpus);
+		long corpusBytes = 0;
+		for (FileStatus input : inputs) {
+			corpusBytes += input.getLen();
+		}
+		report.put("corpus.bytes", Long.toString(corpusBytes));
+		report.put("corpus.files", Integer.toString(inputs.size()));
+		if (generateOnly) {
+			writeReport(fs);
+			return true;
+		}
+
+		List<String> args = new ArrayList<String>(Arrays.asList("-in_path", corpus.toString(), "-in_path_local",
+				"-out_path", archive.toString(), "-out_path_local", "-key", unlockKey));
+		args.addAll(Arrays.asList(buildArgs));
+		ArchiveBuilder builder = new ArchiveBuilder();
+		builder.conf = new Configuration(conf);
+		builder.init(args.toArray(new String[args.size()]));
+		HeapSampler heap = new HeapSampler();
+		long start = System.nanoTime();
+		boolean built = builder.run();
+		double seconds = (System.nanoTime() - start) / 1e9;
+		long peakHeap = heap.finish();
+		if (!built) {
+			LOG.error("Build failed.");
+			return false;
+		}
+		long archiveBytes = sizeOf(fs, archive);
+		Counters counters = builder.getCounters();
+		report.put("build.args", join(buildArgs));
+		report.put("build.archive_bytes", Long.toString(archiveBytes));
+		report.put("build.size_ratio", format(corpusBytes == 0 ? 0 : archiveBytes / (double) corpusBytes));
+		reportPhase("build", seconds, counters.findCounter(SarCounter.FILES_READ).getValue(),
+				counters.findCounter(SarCounter.BYTES_READ).getValue(), peakHeap, counters);
+
+		// Local output is written through java.io, which takes a plain path rather than a URI.
+		args = new ArrayList<String>(Arrays.asList("-in_path", archive.toString(), "-out_path",
+				searchOut.toUri().getPath() + Path.SEPARATOR, "-out_path_local", "-search_keyword", generator.getKeyword(),
+				"-key", unlockKey));
+		args.addAll(Arrays.asList(searchArgs));
+		fs.delete(searchOut, true);
+		ArchiveSearcher searcher = new ArchiveSearcher();
+		searcher.conf = new Configuration(conf);
+		searcher.init(args.toArray(new String[args.size()]));
+		heap = new HeapSampler();
+		start = System.nanoTime();
+		boolean searched = searcher.run();
+		seconds = (System.nanoTime() - start) / 1e9;
+		peakHeap = heap.finish();
+		if (!searched) {
+			LOG.error("Search failed.");
+			return false;
+		}
+		counters = searcher.getCounters();
+		report.put("search.args", join(searchArgs));
+		reportPhase("search", seconds, counters.findCounter(SarCounter.RECORDS_SCANNED).getValue(),
+				archiveBytes, peakHeap, counters);
+		boolean hitsMatch = checkHits(counters.findCounter(SarCounter.SEARCH_HITS).getValue());
+
+		writeReport(fs);
+		return hitsMatch;
+	}
+
+	/*
+	 * Report the hits of the search against the expected ones.
+	 * @return false if they differ.
+	 */
+	private boolean checkHits(long actualHits) {
+		report.put("search.actual_hits", Long.toString(actualHits));
+		if (expectedHits < 0) {
+			LOG.warn("No expected hits for corpus " + corpusPath + "; pass -expected_hits to check the search.");
+			return true;
+		}
+		report.put("search.expected_hits", Long.toString(expectedHits));
+		report.put("search.hits_match", Boolean.toString(actualHits == expectedHits));
+		if (actualHits != expectedHits) {
+			LOG.error("Search found " + actualHits + " files with keyword " + generator.getKeyword() + ", expected "
+					+ expectedHits + ".");
+			return false;
+		}
+		return true;
+	}
+
+	/*
+	 * Rates, heap, stage times and non-zero counters of one phase.
+	 */
+	private void reportPhase(String phase, double seconds, long files, long bytes, long peakHeap, Counters counters) {
+		report.put(phase + ".seconds", format(seconds));
+		report.put(phase + ".files", Long.toString(files));
+		report.put(phase + ".files_per_sec", format(seconds > 0 ? files / seconds : 0));
+		report.put(phase + ".mb_per_sec", format(seconds > 0 ? bytes / MB / seconds : 0));
+		report.put(phase + ".peak_heap_bytes", Long.toString(peakHeap));
+		for (Stage stage : Stage.values()) {
+			long nanos = counters.findCounter(stage).getValue();
+			report.put(phase + ".stage." + stage.name().toLowerCase() + "_ms", Long.toString(nanos / 1000000L));
+		}
+		for (Counter counter : counters.getGroup(SarCounter.class.getName())) {
+			if (counter.getValue() != 0) {
+				report.put(phase + ".counter." + counter.getName().toLowerCase(), Long.toString(counter.getValue()));
+			}
+		}
+	}
+
+	/*
+	 * @return the bytes of the files under the path, leaving out the
+	 * checksum files of the local filesystem.
+	 */
+	private static long sizeOf(FileSystem fs, Path path) throws IOException {
+		long bytes = 0;
+		for (FileStatus status : fs.listStatus(path)) {
+			if (status.isDirectory()) {
+				bytes += sizeOf(fs, status.getPath());
+			}
+			else if (!status.getPath().getName().endsWith(".crc")) {
+				bytes += status.getLen();
+			}
+		}
+		return bytes;
+	}
+
+	private void writeReport(FileSystem fs) throws IOException {
+		StringBuilder text = new StringBuilder();
+		for (Map.Entry<String, String> entry : report.entrySet()) {
+			text.append(entry.getKey()).append('=').append(entry.getValue()).append('\n');
+		}
+		PrintWriter out = new PrintWriter(new OutputStreamWriter(fs.create(new Path(reportPath), true), "utf-8"));
+		try {
+			out.print(text);
+		} finally {
+			out.close();
+		}
+		LOG.info("Report written to " + reportPath + ":\n" + text);
+	}
+
+	private static String format(double value) {
+		return String.format("%.3f", value);
+	}
+
+	private static String join(String[] args) {
+		StringBuilder joined = new StringBuilder();
+		for (String arg : args) {
+			joined.append((joined.length() > 0) ? " " : "").append(arg);
+		}
+		return joined.toString();
+	}
+
+	/*
+	 * Samples the used heap on a daemon thread until finished. Tasks of the
+	 * local job runner share this JVM, so this is the heap of the whole
+	 * phase. Garbage not yet collected counts too, so compare peaks of runs
+	 * with the same heap settings.
+	 */
+	private static class HeapSampler extends Thread {
+		private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		private volatile boolean running = true;
+		private volatile long peak;
+
+		HeapSampler() {
+			super("sar-heap-sampler");
+			setDaemon(true);
+			System.gc();
+			peak = memory.getHeapMemoryUsage().getUsed();
+			start();
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				peak = Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+				try {
+					Thread.sleep(HEAP_SAMPLE_MS);
+				} catch (InterruptedException e) {
+					return;
+				}
+			}
+		}
+
+		long finish() throws InterruptedException {
+			running = false;
+			join();
+			return Math.max(peak, memory.getHeapMemoryUsage().getUsed());
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean result = false;
+		try {
+			ArchiveBenchmark benchmark = new ArchiveBenchmark();
+			boolean doRun = benchmark.init(args);
+			if (!doRun) {
+				System.exit(0);
+			}
+			result = benchmark.run();
+		} catch (Throwable t) {
+			LOG.fatal("Error running Client", t);
+			System.exit(1);
+		}
+		if (result) {
+			LOG.info("Archive benchmark completed successfully");
+			System.exit(0);
+		}
+		LOG.error("Archive benchmark failed");
+		System.exit(2);
+	}
+}
@@ -1,29 +1,90 @@
 package com.aczire.sar;
 
+import java.io.BufferedReader;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.security.DigestInputStream;
+import java.security.GeneralSecurityException;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CheckedOutputStream;
+
+import javax.crypto.Mac;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
 import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.CountingOutputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.MRJobConfig;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
 import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
-import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.MultipleOutputs;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.security.Credentials;
+import org.apache.hadoop.util.PureJavaCrc32C;
 
+import com.aczire.sar.catalog.ArchiveCatalog;
+import com.aczire.sar.compression.ArchiveDictionary;
+import com.aczire.sar.compression.Codec;
 import com.aczire.sar.compression.GZipLib;
+import com.aczire.sar.compression.ParallelGZipOutputStream;
+import com.aczire.sar.dedup.ChunkRecipe;
+import com.aczire.sar.dedup.ChunkSplitter;
+import com.aczire.sar.dedup.ChunkStore;
 import com.aczire.sar.inputformats.*;
+import com.aczire.sar.recordreaders.PrefetchingBulkFileRecordReader;
+import com.aczire.sar.io.BlockedRecord;
+import com.aczire.sar.io.BufferPool;
+import com.aczire.sar.io.RecordChecksum;
+import com.aczire.sar.io.SpillableBuffer;
+import com.aczire.sar.io.StreamingBytesWritable;
+import com.aczire.sar.manifest.ArchiveManifest;
+import com.aczire.sar.metrics.CounterSummary;
+import com.aczire.sar.metrics.RecordTracer;
+import com.aczire.sar.metrics.SarCounter;
+import com.aczire.sar.metrics.Stage;
+import com.aczire.sar.metrics.StageTimer;
+import com.aczire.sar.outputformats.ArchiveOutputFormat;
+import com.aczire.sar.partition.ArchiveDescriptor;
+import com.aczire.sar.partition.FilenamePartitioner;
 import com.aczire.sar.security.AESCrypter;
+import com.aczire.sar.security.ArchiveKeys;
 
 
 /**
@@ -32,58 +93,790 @@ import com.aczire.sar.security.AESCrypter;
  */
 public class ArchiveBuilder {
 	private static final Log LOG = LogFactory.getLog(ArchiveBuilder.class);
+	// Named output the mappers of an incremental run record content hashes in.
+	static final String MANIFEST_OUTPUT = "manifest";
+	// Codec and cipher workers of each map task.
+	static final String BUILD_THREADS = "sar.build.threads";
+	static final String CODEC = "sar.codec";
+	// Input bytes archived per checkpoint of a -resume build.
+	static final long DEFAULT_CHECKPOINT_SIZE = 1024L * 1024 * 1024;
+
 	private String inPath = "";
 	private String outPath = "";
 	private String unlockKey = "KEY"; // Shell password to encrypt the blocks.
+	private String dataKey; // Key the blocks are encrypted with: the archive's data key, or the password for archives without one.
+	private String catalogPath = ""; // Catalog to add the archive to, if any.
 	private boolean compress = false;
 	private boolean encrypt = false;
+	private boolean dedup = false;
+	private int chunkSize = ChunkSplitter.DEFAULT_AVG_SIZE;
+	private boolean incremental = false;
+	private boolean resume = false;
+	private long checkpointSize = Long.MAX_VALUE; // Input bytes per generation committed, unbounded unless checkpointing.
+	private boolean useDictionary = false;
+	private int dictionarySamples = 1000;
+	private int blockSize = 0;
+	private int bucketPrefixLength = 0;
+	private long combineSize = 0; // Bytes of input packed into one split, 0 for one file per split.
 
 	private boolean inPathTypeLocal = false; // input path is hdfs.
 	private boolean outPathTypeLocal = false; // output path is hdfs.
 
 	Configuration conf = new Configuration();
+	// Of every job run, for callers such as ArchiveBenchmark.
+	private Counters counters = new Counters();
+
+	/*
+	 * One input file passing through the pipeline of a builder task, with the
+	 * records it maps to.
+	 */
+	static class Batch {
+		final long sequence;
+		boolean end = false; // Marks the end of the input for the writer.
+		SarKey key;
+		BytesWritable value;
+		String path;
+		List<SarKey> keys = new ArrayList<SarKey>();
+		List<BytesWritable> values = new ArrayList<BytesWritable>();
+		String contentHash;
+		boolean archived; // Counted as archived once the writer has written it.
+
+		Batch(long sequence) {
+			this.sequence = sequence;
+		}
+	}
+
+	/**
+	 * Bounded reorder buffer between the workers of a pipeline and its writer:
+	 * items are put in any order and taken in sequence order. A sequence
+	 * number can only be put once the writer is less than a ring behind it.
+	 */
+	static class OrderedRing<T> {
+		private final Object[] slots;
+		private long next = 0; // Sequence number of the next item to take.
+		private long written = 0; // Items the writer is done with.
+		private boolean aborted = false;
+
+		OrderedRing(int capacity) {
+			this.slots = new Object[capacity];
+		}
+
+		synchronized void reserve(long sequence) throws InterruptedException {
+			while (!aborted && sequence >= written + slots.length) {
+				wait();
+			}
+		}
+
+		synchronized void put(long sequence, T item) {
+			slots[(int) (sequence % slots.length)] = item;
+			notifyAll();
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized T take() throws InterruptedException {
+			int slot = (int) (next % slots.length);
+			while (slots[slot] == null) {
+				wait();
+			}
+			T item = (T) slots[slot];
+			slots[slot] = null;
+			next++;
+			return item;
+		}
+
+		synchronized void written() {
+			written++;
+			notifyAll();
+		}
+
+		synchronized void awaitWritten(long sequence) throws InterruptedException {
+			while (!aborted && written < sequence) {
+				wait();
+			}
+		}
+
+		/**
+		 * Release everyone waiting on a writer that has failed.
+		 */
+		synchronized void abort() {
+			aborted = true;
+			notifyAll();
+		}
+	}
 
 	static class SequenceFileMapper
 	extends Mapper<SarKey, BytesWritable, SarKey, BytesWritable> {
+		// Bound on the chunk names remembered per task to skip re-emitting repeats.
+		private static final int MAX_EMITTED_CHUNKS = 100000;
+
+		private StageTimer timer;
+
+		// Key the records are encrypted with, from the credentials of the job.
+		private String dataKey;
+
+		private ChunkSplitter splitter;
+		private MessageDigest chunkDigest;
+		// Encrypted archives key chunk fingerprints with the data key, so chunk names reveal nothing of the plaintext.
+		private Mac chunkMac;
+		// Shared by the workers of a pipelined task, so a chunk is emitted once per task.
+		private Set<String> emittedChunks = new HashSet<String>();
+		private SarKey chunkKey = new SarKey();
+		private StreamingBytesWritable chunkValue = new StreamingBytesWritable();
+
+		// Preset compression dictionary, when the archive uses one.
+		private byte[] dictionary;
+		// Codec of records compressed without the dictionary.
+		private byte codec;
+		// Plaintext block size of blocked records, 0 to store files whole.
+		private int blockSize;
+		// Holds the ciphertext of a streamed file until it is written.
+		private SpillableBuffer cipherBuffer;
+		// Parallel gzip: threads compressing the blocks of one file, null to compress on the mapper thread.
+		private ExecutorService compressPool;
+		private int compressThreads;
+		private int compressBlockSize;
+
+		// Incremental runs: the generation being written and the manifest side output.
+		private int generation;
+		private MessageDigest contentDigest;
+		// Keys the content hash of an encrypted archive, null if not encrypted.
+		private Mac contentMac;
+		private MultipleOutputs<SarKey, BytesWritable> manifestOutput;
+
+		// Pipelined tasks: the record being mapped by this worker, collecting its outputs.
+		private Batch batch;
+
+		@Override
+		protected void setup(Context context) throws IOException {
+			timer = new StageTimer(context);
+			dataKey = ArchiveKeys.getJobKey(context, ArchiveKeys.JOB_KEY);
+			blockSize = context.getConfiguration().getInt("sar.block.size", 0);
+			codec = Codec.forName(context.getConfiguration().get(CODEC, Codec.name(Codec.GZIP)));
+			String dictionaryPath = context.getConfiguration().get("sar.dictionary.path");
+			if (dictionaryPath != null) {
+				Path path = new Path(dictionaryPath);
+				try {
+					dictionary = ArchiveDictionary.read(path.getFileSystem(context.getConfiguration()), path, dataKey);
+				} catch (IOException e) {
+					throw e;
+				} catch (Exception e) {
+					throw new IOException("Failed to load compression dictionary " + path, e);
+				}
+			}
+			compressThreads = context.getConfiguration().getInt("sar.compress.threads", 1);
+			compressBlockSize = context.getConfiguration().getInt("sar.compress.block.size",
+					ParallelGZipOutputStream.DEFAULT_BLOCK_SIZE);
+			if (compressThreads > 1) {
+				compressPool = Executors.newFixedThreadPool(compressThreads);
+			}
+			generation = context.getConfiguration().getInt("sar.generation", 0);
+			if (generation > 0) {
+				manifestOutput = new MultipleOutputs<SarKey, BytesWritable>(context);
+				try {
+					contentDigest = MessageDigest.getInstance("sha-256");
+					if (context.getConfiguration().getBoolean("sar.encrypt", false)) {
+						contentMac = ChunkRecipe.fingerprintMac(dataKey);
+					}
+				} catch (GeneralSecurityException e) {
+					throw new IOException(e);
+				}
+			}
+			if (context.getConfiguration().getBoolean("sar.dedup", false)) {
+				splitter = new ChunkSplitter(context.getConfiguration().getInt("sar.dedup.chunk.size",
+						ChunkSplitter.DEFAULT_AVG_SIZE));
+				try {
+					chunkDigest = MessageDigest.getInstance("sha-256");
+					if (context.getConfiguration().getBoolean("sar.encrypt", false)) {
+						chunkMac = ChunkRecipe.fingerprintMac(dataKey);
+					}
+				} catch (GeneralSecurityException e) {
+					throw new IOException(e);
+				}
+			}
+		}
+
+		/*
+		 * Set up a worker of a pipelined task. It shares the settings,
+		 * dictionary, compression pool, chunk set and manifest output of the
+		 * task's mapper, so the task runs one compression pool of
+		 * compress_threads threads whatever the number of workers. Digests
+		 * hold state and are its own.
+		 */
+		private void setup(Context context, SequenceFileMapper task) throws IOException {
+			timer = new StageTimer(context);
+			dataKey = task.dataKey;
+			blockSize = task.blockSize;
+			codec = task.codec;
+			dictionary = task.dictionary;
+			compressThreads = task.compressThreads;
+			compressBlockSize = task.compressBlockSize;
+			compressPool = task.compressPool;
+			generation = task.generation;
+			manifestOutput = task.manifestOutput;
+			splitter = task.splitter;
+			emittedChunks = task.emittedChunks;
+			try {
+				if (task.contentDigest != null) {
+					contentDigest = MessageDigest.getInstance("sha-256");
+				}
+				if (task.contentMac != null) {
+					contentMac = ChunkRecipe.fingerprintMac(dataKey);
+				}
+				if (task.chunkDigest != null) {
+					chunkDigest = MessageDigest.getInstance("sha-256");
+				}
+				if (task.chunkMac != null) {
+					chunkMac = ChunkRecipe.fingerprintMac(dataKey);
+				}
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e);
+			}
+		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException, InterruptedException {
+			if (manifestOutput != null) {
+				manifestOutput.close();
+			}
+			if (compressPool != null) {
+				compressPool.shutdownNow();
+			}
+		}
+
+		@Override
+		public void run(Context context) throws IOException, InterruptedException {
+			int threads = context.getConfiguration().getInt(BUILD_THREADS, 1);
+			if (threads <= 1) {
+				super.run(context);
+				return;
+			}
+			setup(context);
+			try {
+				runPipeline(context, threads);
+			} finally {
+				cleanup(context);
+			}
+		}
+
+		/*
+		 * Map the records of the task in three stages: this thread reads them,
+		 * a pool of workers, each with a mapper of its own, compresses and
+		 * encrypts them, and a single writer thread writes their outputs in
+		 * input order. The stages are joined by a ring of twice as many slots
+		 * as workers, which bounds the records held in memory. Streamed files
+		 * are too large to queue; the pipeline is drained and they are mapped
+		 * here, in order, with their outputs written straight through.
+		 */
+		private void runPipeline(final Context context, int threads) throws IOException, InterruptedException {
+			final Configuration conf = context.getConfiguration();
+			final OrderedRing<Batch> ring = new OrderedRing<Batch>(2 * threads);
+			final BlockingQueue<SequenceFileMapper> idle = new ArrayBlockingQueue<SequenceFileMapper>(threads);
+			List<SequenceFileMapper> workers = new ArrayList<SequenceFileMapper>();
+			emittedChunks = Collections.synchronizedSet(emittedChunks);
+			for (int i = 0; i < threads; i++) {
+				SequenceFileMapper worker = new SequenceFileMapper();
+				worker.setup(context, this);
+				workers.add(worker);
+				idle.add(worker);
+			}
+			final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+
+			Thread writer = new Thread(new Runnable() {
+				public void run() {
+					try {
+						Batch next;
+						while (!(next = ring.take()).end) {
+							writeBatch(context, next);
+							ring.written();
+						}
+					} catch (Throwable t) {
+						failure.compareAndSet(null, t);
+						ring.abort();
+					}
+				}
+			}, "sar-build-writer");
+			writer.setDaemon(true);
+			writer.start();
+
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			long sequence = 0;
+			try {
+				while (failure.get() == null && context.nextKeyValue()) {
+					BytesWritable value = context.getCurrentValue();
+					if (value instanceof StreamingBytesWritable && ((StreamingBytesWritable) value).isStreaming()) {
+						ring.awaitWritten(sequence);
+						map(context.getCurrentKey(), value, context);
+						continue;
+					}
+					final Batch next = new Batch(sequence++);
+					next.key = WritableUtils.clone(context.getCurrentKey(), conf);
+					next.value = new BytesWritable(value.copyBytes());
+					next.path = getInputPath(context);
+					ring.reserve(next.sequence);
+					final SequenceFileMapper worker = idle.take();
+					pool.execute(new Runnable() {
+						public void run() {
+							worker.batch = next;
+							try {
+								worker.map(next.key, next.value, context);
+							} catch (Throwable t) {
+								failure.compareAndSet(null, t);
+							} finally {
+								worker.batch = null;
+								next.value = null;
+								ring.put(next.sequence, next);
+								idle.add(worker);
+							}
+						}
+					});
+				}
+			} finally {
+				pool.shutdown();
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+				Batch end = new Batch(sequence);
+				end.end = true;
+				ring.reserve(sequence);
+				ring.put(sequence, end);
+				writer.join();
+				// Workers hold nothing of their own to close; the task's cleanup closes what they share.
+			}
+			if (failure.get() != null) {
+				throw new IOException("Archive pipeline failed", failure.get());
+			}
+		}
+
+		/*
+		 * Writer stage: the records and manifest entry one input file produced.
+		 */
+		private void writeBatch(Context context, Batch batch) throws IOException, InterruptedException {
+			for (int i = 0; i < batch.keys.size(); i++) {
+				write(context, batch.keys.get(i), batch.values.get(i));
+			}
+			if (batch.contentHash != null) {
+				manifestOutput.write(MANIFEST_OUTPUT, new Text(batch.path), new Text(batch.contentHash),
+						MANIFEST_OUTPUT);
+			}
+			if (batch.archived) {
+				context.getCounter(SarCounter.FILES_ARCHIVED).increment(1);
+			}
+		}
+
+		private void write(Context context, SarKey key, BytesWritable value) throws IOException, InterruptedException {
+			long start = timer.start();
+			context.write(key, value);
+			timer.stop(Stage.WRITE, start, key.Filename, value.getLength(), value.getLength(), null);
+		}
+
+		/*
+		 * Write a record to the map output, or hold a copy of it for the writer
+		 * stage when pipelined.
+		 */
+		private void emit(Context context, SarKey key, BytesWritable value) throws IOException, InterruptedException {
+			if (batch != null) {
+				batch.keys.add(WritableUtils.clone(key, context.getConfiguration()));
+				StreamingBytesWritable copy = new StreamingBytesWritable();
+				copy.set(value.getBytes(), 0, value.getLength());
+				batch.values.add(copy);
+				return;
+			}
+			write(context, key, value);
+		}
+
+		/*
+		 * Count the file as archived, or have the writer stage count it once written.
+		 */
+		private void archived(Context context) {
+			if (batch != null) {
+				batch.archived = true;
+				return;
+			}
+			context.getCounter(SarCounter.FILES_ARCHIVED).increment(1);
+		}
+
+		private void emitManifest(Context context, String contentHash) throws IOException, InterruptedException {
+			if (batch != null) {
+				batch.contentHash = contentHash;
+				return;
+			}
+			manifestOutput.write(MANIFEST_OUTPUT, new Text(getInputPath(context)), new Text(contentHash),
+					MANIFEST_OUTPUT);
+		}
+
+		/*
+		 * Split the plaintext into content-defined chunks and emit each chunk not
+		 * yet seen by this task, keyed by its fingerprint, followed by the recipe
+		 * of the file. Chunks go through the shuffle as plaintext; the reducer
+		 * compresses and encrypts each unique chunk exactly once.
+		 */
+		private void mapDedup(SarKey key, byte[] plainText, Context context,
+				String sarKey, boolean encryptFiles) throws Exception {
+			String filename = key.Filename;
+			int[] ends = splitter.split(plainText, 0, plainText.length);
+			ChunkRecipe recipe = new ChunkRecipe();
+			int begin = 0;
+			for (int end : ends) {
+				byte[] fingerprint;
+				if (chunkMac != null) {
+					chunkMac.update(plainText, begin, end - begin);
+					fingerprint = chunkMac.doFinal();
+				}
+				else {
+					chunkDigest.update(plainText, begin, end - begin);
+					fingerprint = chunkDigest.digest();
+				}
+				recipe.add(fingerprint, end - begin);
+
+				String name = ChunkRecipe.toHex(fingerprint);
+				boolean first;
+				synchronized (emittedChunks) {
+					if (emittedChunks.size() >= MAX_EMITTED_CHUNKS) {
+						emittedChunks.clear();
+					}
+					first = emittedChunks.add(name);
+				}
+				if (first) {
+					chunkKey.Type = SarKey.TYPE_CHUNK;
+					chunkKey.Filename = name;
+					chunkKey.FileSize = end - begin;
+					chunkValue.set(plainText, begin, end - begin);
+					emit(context, chunkKey, chunkValue);
+					context.getCounter(SarCounter.CHUNKS_EMITTED).increment(1);
+				}
+				begin = end;
+			}
+
+			byte[] recipeBytes = recipe.toBytes();
+			byte[] stored = recipeBytes;
+			key.Type = SarKey.TYPE_RECIPE;
+			key.Compressed = false;
+			key.Locked = encryptFiles;
+			if (encryptFiles) {
+				long start = timer.start();
+				stored = AESCrypter.encrypt(recipeBytes, sarKey);
+				timer.stop(Stage.ENCRYPT, start, filename, recipeBytes.length, stored.length, "aes");
+			}
+			key.Key = AESCrypter.keyDigest(sarKey);
+
+			key.Checksum = RecordChecksum.compute(stored);
+
+			StreamingBytesWritable value = new StreamingBytesWritable();
+			value.set(stored, 0, stored.length);
+			emit(context, key, value);
+			archived(context);
+		}
+
+		/*
+		 * The path of the file being archived. Combined splits hold several
+		 * files; their reader publishes the current one in the configuration.
+		 */
+		private static String getInputPath(Context context) {
+			if (context.getInputSplit() instanceof FileSplit) {
+				return ((FileSplit) context.getInputSplit()).getPath().toString();
+			}
+			return context.getConfiguration().get(MRJobConfig.MAP_INPUT_FILE);
+		}
+
 		public void map(SarKey key, BytesWritable value, Context context)
 				throws IOException, InterruptedException {
 			String filename = key.Filename.toString();
 			
-			String sarKey = context.getConfiguration().get("sar.encrypt.key");			
+			String sarKey = dataKey;
 			boolean compressFiles = Boolean.parseBoolean(context.getConfiguration().get("sar.compress"));
 			boolean encryptFiles = Boolean.parseBoolean(context.getConfiguration().get("sar.encrypt"));
+			boolean dedupFiles = context.getConfiguration().getBoolean("sar.dedup", false);
 			
 //			String sarOutputPath = context.getConfiguration().get("sar.out.path");
 //			boolean sarOutPathLocal = Boolean.parseBoolean(context.getConfiguration().get("sar.out.path.local"));
 			
-			byte[] plainText = value.copyBytes();// getBytes() wont work, it seems there is a bug in the implementation.
-			LOG.info("File " + filename + " plaintext Length: " + plainText.length);
 			try {
-				byte[] compressed;
-				key.Compressed = compressFiles;
-				compressed = (compressFiles) ? GZipLib.compress(plainText) : plainText;
-				
-				byte[] cipherText;
-				key.Locked = encryptFiles;
-				cipherText = (encryptFiles) ? AESCrypter.encrypt(compressed, sarKey) : compressed;
-				
-				LOG.info("File " + filename + " compressed. Length: " + compressed.length);
-				LOG.info("File " + filename + " encrypted. Length: " + cipherText.length);
+				key.Generation = generation;
+				if (!dedupFiles && blockSize == 0 && value instanceof StreamingBytesWritable
+						&& ((StreamingBytesWritable) value).isStreaming()) {
+					mapStream(key, (StreamingBytesWritable) value, context, sarKey, compressFiles, encryptFiles);
+				}
+				else {
+					// Blocked and deduplicated records are still cut from the whole plaintext in memory.
+					byte[] plainText = value.copyBytes();// getBytes() wont work, it seems there is a bug in the implementation.
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("File " + filename + " plaintext Length: " + plainText.length);
+					}
+					if (generation > 0) {
+						key.ContentHash = contentHash(contentDigest.digest(plainText));
+					}
+
+					if (dedupFiles) {
+						mapDedup(key, plainText, context, sarKey, encryptFiles);
+					}
+					else {
+						mapFile(key, value, plainText, context, sarKey, compressFiles, encryptFiles);
+					}
+				}
+
+				if (manifestOutput != null) {
+					emitManifest(context, key.ContentHash);
+				}
+			} catch (Exception e) {
+				context.getCounter(SarCounter.FILES_FAILED).increment(1);
+				LOG.error("Failed to archive " + filename + " " +  e.toString());
+			}
+		}
+
+		/*
+		 * @return the hex content hash of a file from the SHA-256 of its
+		 * plaintext. Encrypted archives keep the hash in clear text in record
+		 * keys and the manifest, so there it is an HMAC under the data key of
+		 * the digest; a plain hash would confirm a guessed file without the
+		 * password. Streamed and in-memory files hash alike either way.
+		 */
+		private String contentHash(byte[] digest) {
+			return ChunkRecipe.toHex((contentMac != null) ? contentMac.doFinal(digest) : digest);
+		}
+
+		/*
+		 * Compress and encrypt a file too large to hold in one streaming pass
+		 * from its source into a pooled buffer that spills to local disk past
+		 * the memory budget. No stage holds the file or its ciphertext whole.
+		 */
+		private void mapStream(SarKey key, StreamingBytesWritable value, Context context,
+				String sarKey, boolean compressFiles, boolean encryptFiles) throws Exception {
+			String filename = key.Filename;
+			key.Compressed = compressFiles;
+			key.Codec = (dictionary != null) ? Codec.DEFLATE_DICT : codec;
+			key.Locked = encryptFiles;
+			key.BlockSize = 0;
+
+			if (cipherBuffer == null) {
+				cipherBuffer = new SpillableBuffer(BufferPool.get(context.getConfiguration()));
+			}
+			try {
+				CheckedOutputStream checked = new CheckedOutputStream(cipherBuffer, new PureJavaCrc32C());
+				CountingOutputStream compressedOut = new CountingOutputStream(
+						encryptFiles ? AESCrypter.encryptingStream(checked, sarKey) : checked);
+				OutputStream sink;
+				if (compressFiles && key.Codec == Codec.GZIP && compressPool != null) {
+					sink = new ParallelGZipOutputStream(compressedOut, compressPool, compressThreads, compressBlockSize);
+				}
+				else {
+					sink = compressFiles ? Codec.compressingStream(key.Codec, compressedOut, dictionary) : compressedOut;
+				}
+				InputStream in = value.getInputStream();
+				if (generation > 0) {
+					contentDigest.reset();
+					in = new DigestInputStream(in, contentDigest);
+				}
 
-				MessageDigest md = MessageDigest.getInstance("sha-256");
-				byte[] digestOfPassword = md.digest(sarKey.getBytes("utf-8"));
+				long start = timer.start();
+				long plainLength;
+				try {
+					plainLength = IOUtils.copyLarge(in, sink);
+					sink.close();
+				} finally {
+					in.close();
+				}
+				String stages = (compressFiles ? Codec.name(key.Codec) : "") + (compressFiles && encryptFiles ? "+" : "")
+						+ (encryptFiles ? "aes" : "");
+				timer.stop(compressFiles ? Stage.COMPRESS : Stage.ENCRYPT, start, filename, plainLength,
+						cipherBuffer.length(), stages);
+				if (compressFiles) {
+					context.getCounter(SarCounter.BYTES_COMPRESSED).increment(compressedOut.getByteCount());
+				}
+				if (encryptFiles) {
+					context.getCounter(SarCounter.BYTES_ENCRYPTED).increment(cipherBuffer.length());
+				}
+				context.getCounter(SarCounter.RECORDS_STREAMED).increment(1);
+				if (cipherBuffer.isSpilled()) {
+					context.getCounter(SarCounter.RECORDS_SPILLED).increment(1);
+				}
 
-				key.Key = new String(digestOfPassword);
+				if (generation > 0) {
+					key.ContentHash = contentHash(contentDigest.digest());
+				}
+				key.Key = AESCrypter.keyDigest(sarKey);
+				key.Checksum = checked.getChecksum().getValue();
 
-				value.setSize(cipherText.length);
-				value.set(cipherText, 0, cipherText.length);
+				value.setSource(cipherBuffer);
+				start = timer.start();
 				context.write(key, value);
+				timer.stop(Stage.WRITE, start, filename, cipherBuffer.length(), cipherBuffer.length(), null);
+				context.getCounter(SarCounter.FILES_ARCHIVED).increment(1);
+			} finally {
+				value.set(new byte[0], 0, 0);
+				cipherBuffer.release();
+			}
+		}
+
+		private void mapFile(SarKey key, BytesWritable value, byte[] plainText, Context context,
+				String sarKey, boolean compressFiles, boolean encryptFiles) throws Exception {
+			String filename = key.Filename;
+			key.Compressed = compressFiles;
+			key.Codec = (dictionary != null) ? Codec.DEFLATE_DICT : codec;
+			key.Locked = encryptFiles;
+			key.BlockSize = blockSize;
+
+			byte[] cipherText;
+			if (blockSize > 0) {
+				// Encode every block on its own so a range of the file can be read back alone.
+				BlockedRecord.Writer writer = new BlockedRecord.Writer(plainText.length, blockSize);
+				for (int begin = 0; begin < plainText.length; begin += blockSize) {
+					int end = Math.min(plainText.length, begin + blockSize);
+					writer.add(encode(key, Arrays.copyOfRange(plainText, begin, end), context, sarKey));
+				}
+				cipherText = writer.toByteArray();
+			}
+			else {
+				cipherText = encode(key, plainText, context, sarKey);
+			}
+			
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("File " + filename + " encoded. Length: " + cipherText.length);
+			}
+
+			key.Key = AESCrypter.keyDigest(sarKey);
+			key.Checksum = RecordChecksum.compute(cipherText);
+
+			value.setSize(cipherText.length);
+			value.set(cipherText, 0, cipherText.length);
+			emit(context, key, value);
+			archived(context);
+		}
+
+		/*
+		 * Compress and encrypt the plaintext as the key says.
+		 */
+		private byte[] encode(SarKey key, byte[] plainText, Context context, String sarKey) throws Exception {
+			String filename = key.Filename;
+			long start;
+			byte[] compressed;
+			if (key.Compressed) {
+				start = timer.start();
+				if (key.Codec == Codec.GZIP && compressPool != null && plainText.length > compressBlockSize) {
+					compressed = GZipLib.compress(plainText, compressPool, compressThreads, compressBlockSize);
+				}
+				else {
+					compressed = Codec.compress(key.Codec, plainText, dictionary);
+				}
+				timer.stop(Stage.COMPRESS, start, filename, plainText.length, compressed.length, Codec.name(key.Codec));
+				context.getCounter(SarCounter.BYTES_COMPRESSED).increment(compressed.length);
+			}
+			else {
+				compressed = plainText;
+			}
+			
+			byte[] cipherText;
+			if (key.Locked) {
+				start = timer.start();
+				cipherText = AESCrypter.encrypt(compressed, sarKey);
+				timer.stop(Stage.ENCRYPT, start, filename, compressed.length, cipherText.length, "aes");
+				context.getCounter(SarCounter.BYTES_ENCRYPTED).increment(cipherText.length);
+			}
+			else {
+				cipherText = compressed;
+			}
+			return cipherText;
+		}
+	}
+
+	/**
+	 * Stores every unique chunk of a deduplicated archive once, compressed
+	 * and encrypted, in the chunk store. All other records pass through.
+	 */
+	static class DedupReducer
+	extends Reducer<SarKey, BytesWritable, SarKey, BytesWritable> {
+		private StageTimer timer;
+		private MultipleOutputs<SarKey, BytesWritable> chunkOutput;
+		private BytesWritable chunkValue = new BytesWritable();
+		private String sarKey;
+		private boolean compressFiles;
+		private boolean encryptFiles;
+		private byte codec;
+
+		@Override
+		protected void setup(Context context) throws IOException {
+			timer = new StageTimer(context);
+			chunkOutput = new MultipleOutputs<SarKey, BytesWritable>(context);
+			codec = Codec.forName(context.getConfiguration().get(CODEC, Codec.name(Codec.GZIP)));
+			sarKey = ArchiveKeys.getJobKey(context, ArchiveKeys.JOB_KEY);
+			compressFiles = Boolean.parseBoolean(context.getConfiguration().get("sar.compress"));
+			encryptFiles = Boolean.parseBoolean(context.getConfiguration().get("sar.encrypt"));
+		}
+
+		@Override
+		protected void reduce(SarKey key, Iterable<BytesWritable> values, Context context)
+				throws IOException, InterruptedException {
+			if (key.Type != SarKey.TYPE_CHUNK) {
+				for (BytesWritable value : values) {
+					context.write(key, value);
+				}
+				return;
+			}
+
+			Iterator<BytesWritable> it = values.iterator();
+			BytesWritable value = it.next();
+			while (it.hasNext()) {
+				BytesWritable duplicate = it.next();
+				context.getCounter(SarCounter.CHUNKS_DEDUPLICATED).increment(1);
+				context.getCounter(SarCounter.BYTES_DEDUPLICATED).increment(duplicate.getLength());
+			}
+
+			String name = key.Filename;
+			byte[] plainText = value.copyBytes();
+			try {
+				long start;
+				byte[] compressed = plainText;
+				key.Compressed = compressFiles;
+				key.Codec = codec;
+				if (compressFiles) {
+					start = timer.start();
+					compressed = Codec.compress(codec, plainText, null);
+					timer.stop(Stage.COMPRESS, start, name, plainText.length, compressed.length, Codec.name(codec));
+					context.getCounter(SarCounter.BYTES_COMPRESSED).increment(compressed.length);
+				}
+
+				byte[] cipherText = compressed;
+				key.Locked = encryptFiles;
+				if (encryptFiles) {
+					start = timer.start();
+					cipherText = AESCrypter.encrypt(compressed, sarKey);
+					timer.stop(Stage.ENCRYPT, start, name, compressed.length, cipherText.length, "aes");
+					context.getCounter(SarCounter.BYTES_ENCRYPTED).increment(cipherText.length);
+				}
+				key.Key = AESCrypter.keyDigest(sarKey);
+				key.Checksum = RecordChecksum.compute(cipherText);
+
+				chunkValue.set(cipherText, 0, cipherText.length);
+				start = timer.start();
+				chunkOutput.write(ChunkStore.NAMED_OUTPUT, key, chunkValue, ChunkStore.CHUNK_DIR + "/part");
+				timer.stop(Stage.WRITE, start, name, cipherText.length, cipherText.length, null);
+				context.getCounter(SarCounter.CHUNKS_STORED).increment(1);
+			} catch (IOException e) {
+				throw e;
 			} catch (Exception e) {
-				LOG.error("Failed to archive " + filename + " " +  e.toString());
+				throw new IOException("Failed to store chunk " + name, e);
 			}
 		}
+
+		@Override
+		protected void cleanup(Context context) throws IOException, InterruptedException {
+			chunkOutput.close();
+		}
 	}
 
+	/**
+	 * Drops repeated chunks on the map side so each task ships a chunk once.
+	 */
+	static class ChunkCombiner
+	extends Reducer<SarKey, BytesWritable, SarKey, BytesWritable> {
+		@Override
+		protected void reduce(SarKey key, Iterable<BytesWritable> values, Context context)
+				throws IOException, InterruptedException {
+			for (BytesWritable value : values) {
+				context.write(key, value);
+				if (key.Type == SarKey.TYPE_CHUNK) {
+					return;
+				}
+			}
+		}
+	}
 	
 	/**
 	 * @param opts
@@ -109,6 +902,25 @@ public class ArchiveBuilder {
 		opts.addOption("key", true, "Password used to encrypt files.");
 		opts.addOption("compress", false, "Search for the file <filename>. (case sensitive)");
 		opts.addOption("encrypt", false, "Search for the keyword <keyword>.");
+		opts.addOption("dedup", false, "Store files as chunk recipes and every unique chunk once.");
+		opts.addOption("chunk_size", true, "Average deduplication chunk size in bytes. (default 8192)");
+		opts.addOption("codec", true, "Codec of compressed records: gzip, deflate-fast or deflate-max. (default gzip) Recompress later with ArchiveRecompressor.");
+		opts.addOption("dictionary", false, "Compress records against a preset dictionary trained from a sample of the input.");
+		opts.addOption("dictionary_samples", true, "Number of input files to train the dictionary from. (default 1000)");
+		opts.addOption("block_size", true, "Store files as independently encoded blocks of this many bytes, so ranges can be read without decoding the whole file.");
+		opts.addOption("buckets", true, "Number of buckets, and reducers, the records are hashed into by file name.");
+		opts.addOption("bucket_prefix_length", true, "Hash only the first <n> characters of file names, so names sharing a prefix share a bucket. (default 0, the whole name)");
+		opts.addOption("threads", true, "Number of files each map task compresses and encrypts at once. (default 1)");
+		opts.addOption("compress_threads", true, "Number of threads gzip compressing the blocks of each large file. (default 1)");
+		opts.addOption("compress_block_size", true, "Size in bytes of the blocks compressed in parallel with -compress_threads. (default 1048576)");
+		opts.addOption("combine_size", true, "Pack files into splits of up to <bytes>, so each task reads several files and prefetches the next ones while encoding.");
+		opts.addOption("read_ahead", true, "Number of files a task prefetches ahead of the one being encoded, with -combine_size. (default 4)");
+		opts.addOption("incremental", false, "Archive only new or changed files into a new generation of the output archive.");
+		opts.addOption("checkpoint_size", true, "Commit the archive every <bytes> of input, so a failed run can be carried on with -resume. (default 1073741824 with -resume)");
+		opts.addOption("resume", false, "Keep what an earlier checkpointed run of the same archive committed, and archive only the rest.");
+		opts.addOption("catalog", true, "Add the archive to the catalog <catalog>, or refresh its entry, once built.");
+		opts.addOption("trace", false, "Log a trace event for every record stage slower than the trace threshold.");
+		opts.addOption("trace_threshold_ms", true, "Minimum stage time in milliseconds to trace. (default 0)");
 		opts.addOption("help", false, "Print usage information.");
 
 		CommandLine cliParser = new GnuParser().parse(opts, args);
@@ -141,11 +953,45 @@ public class ArchiveBuilder {
 		}
 		else {
 			outPath = cliParser.getOptionValue("out_path");
+			incremental = cliParser.hasOption("incremental");
+			resume = cliParser.hasOption("resume");
+			if (cliParser.hasOption("checkpoint_size")) {
+				checkpointSize = Long.parseLong(cliParser.getOptionValue("checkpoint_size"));
+				if (checkpointSize <= 0) {
+					throw new IllegalArgumentException("Checkpoint size must be positive.");
+				}
+			}
+			else if (resume) {
+				checkpointSize = DEFAULT_CHECKPOINT_SIZE;
+			}
 			FileSystem fs = FileSystem.get(conf);
 			Path outDirectory = new Path(outPath);
-			if(fs.exists(outDirectory)){
+			if (resume && fs.exists(outDirectory) && !ArchiveManifest.exists(fs, outDirectory)) {
+				FileStatus[] parts = fs.globStatus(new Path(outDirectory, "part-*"));
+				if (parts != null && parts.length > 0) {
+					throw new IllegalArgumentException("Archive " + outPath + " was not built with checkpoints; rebuild it without -resume.");
+				}
+				// Generations without a manifest were archived but never committed; keep them for the user to inspect.
+				FileStatus[] generations = fs.globStatus(new Path(outDirectory, ArchiveManifest.GENERATION_PREFIX + "*"));
+				if (generations != null && generations.length > 0) {
+					throw new IllegalArgumentException("Archive " + outPath + " holds " + generations.length
+							+ " generations but no manifest, so nothing can be resumed; remove it or rebuild it without -resume.");
+				}
+				// Nothing was committed; start over.
+				resume = false;
+			}
+			if (incremental && fs.exists(outDirectory) && !ArchiveManifest.exists(fs, outDirectory)) {
+				FileStatus[] parts = fs.globStatus(new Path(outDirectory, "part-*"));
+				if (parts != null && parts.length > 0) {
+					throw new IllegalArgumentException("Archive " + outPath + " was not built with -incremental; "
+							+ "its files would be hidden by the first generation. Rebuild it with -incremental.");
+				}
+			}
+			if(!incremental && !resume && fs.exists(outDirectory)){
 				fs.delete(outDirectory, true);
 			}
+			// Checkpoints are generations, each committed to the manifest, the journal of archived inputs.
+			incremental = incremental || resume || checkpointSize < Long.MAX_VALUE;
 			
 			if (cliParser.hasOption("out_path_local")) {
 				outPathTypeLocal = true;
@@ -158,52 +1004,483 @@ public class ArchiveBuilder {
 		if (cliParser.hasOption("encrypt")) {
 			encrypt = true;
 		}
+		if (cliParser.hasOption("dedup")) {
+			dedup = true;
+		}
+		if (cliParser.hasOption("chunk_size")) {
+			chunkSize = Integer.parseInt(cliParser.getOptionValue("chunk_size"));
+		}
+		if (cliParser.hasOption("dictionary")) {
+			if (!compress) {
+				throw new IllegalArgumentException("A compression dictionary needs -compress.");
+			}
+			if (dedup) {
+				throw new IllegalArgumentException("Deduplicated chunks are not compressed against a dictionary.");
+			}
+			useDictionary = true;
+		}
+		if (cliParser.hasOption("block_size")) {
+			if (dedup) {
+				throw new IllegalArgumentException("Deduplicated files are stored as recipes, not blocks.");
+			}
+			blockSize = Integer.parseInt(cliParser.getOptionValue("block_size"));
+			if (blockSize <= 0) {
+				throw new IllegalArgumentException("Block size must be positive.");
+			}
+		}
+		if (cliParser.hasOption("buckets")) {
+			int buckets = Integer.parseInt(cliParser.getOptionValue("buckets"));
+			if (buckets <= 0) {
+				throw new IllegalArgumentException("Number of buckets must be positive.");
+			}
+			conf.setInt("mapreduce.job.reduces", buckets);
+		}
+		if (cliParser.hasOption("combine_size")) {
+			if (inPathTypeLocal) {
+				throw new IllegalArgumentException("Files can only be combined into splits from hdfs input.");
+			}
+			combineSize = Long.parseLong(cliParser.getOptionValue("combine_size"));
+			if (combineSize <= 0) {
+				throw new IllegalArgumentException("Combined split size must be positive.");
+			}
+		}
+		if (cliParser.hasOption("compress_threads")) {
+			int compressThreads = Integer.parseInt(cliParser.getOptionValue("compress_threads"));
+			if (compressThreads <= 0) {
+				throw new IllegalArgumentException("Number of compression threads must be positive.");
+			}
+			conf.setInt("sar.compress.threads", compressThreads);
+		}
+		if (cliParser.hasOption("compress_block_size")) {
+			int compressBlockSize = Integer.parseInt(cliParser.getOptionValue("compress_block_size"));
+			if (compressBlockSize <= 0) {
+				throw new IllegalArgumentException("Compression block size must be positive.");
+			}
+			conf.setInt("sar.compress.block.size", compressBlockSize);
+		}
+		if (cliParser.hasOption("threads")) {
+			int threads = Integer.parseInt(cliParser.getOptionValue("threads"));
+			if (threads <= 0) {
+				throw new IllegalArgumentException("Number of threads must be positive.");
+			}
+			conf.setInt(BUILD_THREADS, threads);
+		}
+		if (cliParser.hasOption("read_ahead")) {
+			conf.setInt(PrefetchingBulkFileRecordReader.DEPTH, Integer.parseInt(cliParser.getOptionValue("read_ahead")));
+		}
+		if (cliParser.hasOption("bucket_prefix_length")) {
+			bucketPrefixLength = Integer.parseInt(cliParser.getOptionValue("bucket_prefix_length"));
+		}
+		if (cliParser.hasOption("codec")) {
+			byte codec = Codec.forName(cliParser.getOptionValue("codec"));
+			if (codec == Codec.DEFLATE_DICT) {
+				throw new IllegalArgumentException("Compress against a dictionary with -dictionary.");
+			}
+			conf.set(CODEC, Codec.name(codec));
+		}
+		if (cliParser.hasOption("dictionary_samples")) {
+			dictionarySamples = Integer.parseInt(cliParser.getOptionValue("dictionary_samples"));
+		}
 		/*if (!cliParser.hasOption("search_file") && !cliParser.hasOption("search_keyword")) {
 			throw new IllegalArgumentException("Please specify either search keyword or file to search for.");
 		}*/
 		if (cliParser.hasOption("key")) {
 			unlockKey = cliParser.getOptionValue("key");
 		}
+		if (cliParser.hasOption("catalog")) {
+			catalogPath = cliParser.getOptionValue("catalog");
+		}
 
 		conf.set("sar.out.path.local", Boolean.toString(outPathTypeLocal));
 		conf.set("sar.out.path", outPath);		
 		conf.set("sar.in.path.local", Boolean.toString(inPathTypeLocal));
-		conf.set("sar.in.path", inPath);
+		conf.set(ArchiveManifest.INPUT_ROOT, inPath);
 		conf.set("sar.encrypt", Boolean.toString(encrypt));
 		conf.set("sar.compress", Boolean.toString(compress));
-		conf.set("sar.encrypt.key", unlockKey);		
+		dataKey = unlockKey;
+		conf.set("sar.dedup", Boolean.toString(dedup));
+		conf.set("sar.dedup.chunk.size", Integer.toString(chunkSize));
+		conf.set("sar.block.size", Integer.toString(blockSize));
+		conf.set(FilenamePartitioner.PREFIX_LENGTH, Integer.toString(bucketPrefixLength));
+		conf.set(RecordTracer.TRACE_ENABLED, Boolean.toString(cliParser.hasOption("trace")));
+		if (cliParser.hasOption("trace_threshold_ms")) {
+			conf.set(RecordTracer.TRACE_THRESHOLD_MS, cliParser.getOptionValue("trace_threshold_ms"));
+		}
 		return true;
 	}
 
 	public boolean run() throws IOException, InterruptedException, ClassNotFoundException {
 		LOG.info("Starting Client");	
+		boolean success = incremental ? runIncremental() : runFull();
+		if (success && !catalogPath.equals("")) {
+			Path catalogDir = new Path(catalogPath);
+			ArchiveCataloger.add(conf, new ArchiveCatalog(catalogDir.getFileSystem(conf), catalogDir), new Path(outPath));
+		}
+		return success;
+	}
+
+	private boolean runFull() throws IOException, InterruptedException, ClassNotFoundException {
+		Path output = new Path(outPath);
+		Path keys = null;
+		if (encrypt) {
+			// Like the dictionary, the key header is staged beside the output directory.
+			keys = new Path(output.getParent(), "." + output.getName() + ArchiveKeys.KEYS_FILE);
+			useDataKey(ArchiveKeys.getPath(output), keys, true);
+		}
+		Path dictionary = null;
+		if (useDictionary) {
+			// The output directory must not exist before the job, so stage the dictionary beside it.
+			FileSystem inFs = getInputFileSystem();
+			dictionary = new Path(output.getParent(), "." + output.getName() + ArchiveDictionary.DICTIONARY_FILE);
+			writeDictionary(ArchiveManifest.listInputs(inFs, inFs.makeQualified(new Path(inPath))), inFs, dictionary);
+		}
+		boolean success = runJob(new Path[] { new Path(inPath) }, output);
+		if (success) {
+			FileSystem fs = output.getFileSystem(conf);
+			getDescriptor(fs, output).save(fs, output);
+		}
+		if (dictionary != null) {
+			FileSystem fs = output.getFileSystem(conf);
+			if (!success || !fs.rename(dictionary, ArchiveDictionary.getPath(output))) {
+				fs.delete(dictionary, false);
+				success = false;
+			}
+		}
+		if (keys != null) {
+			FileSystem fs = output.getFileSystem(conf);
+			if (!success || !fs.rename(keys, ArchiveKeys.getPath(output))) {
+				fs.delete(keys, false);
+				return false;
+			}
+		}
+		return success;
+	}
+
+	/*
+	 * Encrypt with the data key of the archive, unwrapped from its key
+	 * header, or from a new header written to <code>staged</code> if the
+	 * archive is new. An archive that predates key headers keeps being
+	 * encrypted with the password.
+	 */
+	private void useDataKey(Path header, Path staged, boolean newArchive) throws IOException {
+		FileSystem fs = header.getFileSystem(conf);
+		try {
+			if (fs.exists(header)) {
+				dataKey = ArchiveKeys.unwrap(fs, header, unlockKey);
+			}
+			else if (newArchive) {
+				dataKey = ArchiveKeys.create(fs, staged, unlockKey);
+				LOG.info("Created a new data key for archive " + outPath);
+			}
+			else {
+				LOG.info("Archive " + outPath + " has no key header; encrypting with the password.");
+				return;
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Failed to set up the data key of archive " + outPath, e);
+		}
+	}
+
+	/*
+	 * Describe the layout from the parts the job actually wrote; the local
+	 * job runner, for one, runs a single reducer whatever was asked for.
+	 */
+	private ArchiveDescriptor getDescriptor(FileSystem fs, Path output) throws IOException {
+		FileStatus[] parts = fs.globStatus(new Path(output, "part-r-*"));
+		int buckets = (parts == null || parts.length == 0) ? conf.getInt("mapreduce.job.reduces", 1) : parts.length;
+		return new ArchiveDescriptor(buckets, conf.getInt(FilenamePartitioner.PREFIX_LENGTH, 0));
+	}
+
+	private FileSystem getInputFileSystem() throws IOException {
+		return inPathTypeLocal ? FileSystem.getLocal(conf) : FileSystem.get(conf);
+	}
+
+	/*
+	 * Train a compression dictionary from the input and store it, encrypted
+	 * like the records, where the mappers will load it from.
+	 */
+	private void writeDictionary(List<FileStatus> inputs, FileSystem inFs, Path dictionary) throws IOException {
+		byte[] trained = ArchiveDictionary.train(inFs, inputs, dictionarySamples, 16 * 1024);
+		LOG.info("Trained a " + trained.length + " byte compression dictionary.");
+		try {
+			ArchiveDictionary.write(dictionary.getFileSystem(conf), dictionary, trained, encrypt ? dataKey : null);
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Failed to write compression dictionary " + dictionary, e);
+		}
+		conf.set("sar.dictionary.path", dictionary.toString());
+	}
+
+	/*
+	 * Archive the files that changed since the last run, or that an
+	 * interrupted run did not get to, into new generations: one, or one per
+	 * checkpoint. A failure loses only the generation in progress.
+	 */
+	private boolean runIncremental() throws IOException, InterruptedException, ClassNotFoundException {
+		Path outDirectory = new Path(outPath);
+		FileSystem outFs = outDirectory.getFileSystem(conf);
+		FileSystem inFs = getInputFileSystem();
+
+		ArchiveManifest manifest = ArchiveManifest.load(outFs, outDirectory);
+		manifest.relativize(conf);
+		List<FileStatus> inputs = ArchiveManifest.listInputs(inFs, inFs.makeQualified(new Path(inPath)));
+		List<FileStatus> changed = new ArrayList<FileStatus>();
+		Set<String> present = new HashSet<String>();
+		for (FileStatus status : inputs) {
+			String name = ArchiveManifest.getArchivedName(conf, status.getPath());
+			present.add(name);
+			if (manifest.isChanged(name, status)) {
+				changed.add(status);
+			}
+		}
+		List<ArchiveManifest.Entry> deleted = manifest.findDeleted(present);
+		LOG.info("Incremental run: " + changed.size() + " new or changed, " + deleted.size()
+				+ " deleted, " + (inputs.size() - changed.size()) + " unchanged files.");
+		if (changed.isEmpty() && deleted.isEmpty()) {
+			LOG.info("Archive " + outPath + " is up to date.");
+			return true;
+		}
+
+		if (resume) {
+			LOG.info("Resuming " + outPath + " after generation " + manifest.getGeneration());
+		}
+		if (encrypt) {
+			Path keys = ArchiveKeys.getPath(outDirectory);
+			useDataKey(keys, keys, manifest.getGeneration() == 0);
+		}
+		ArchiveDescriptor descriptor = ArchiveDescriptor.load(outFs, outDirectory);
+		if (descriptor != null) {
+			// Every generation has to share the bucket layout the searcher prunes by.
+			if (descriptor.getBuckets() != conf.getInt("mapreduce.job.reduces", 1)
+					|| descriptor.getPrefixLength() != bucketPrefixLength) {
+				LOG.info("Keeping the archive layout of " + descriptor.getBuckets() + " buckets, prefix length "
+						+ descriptor.getPrefixLength());
+			}
+			conf.setInt("mapreduce.job.reduces", descriptor.getBuckets());
+			conf.setInt(FilenamePartitioner.PREFIX_LENGTH, descriptor.getPrefixLength());
+		}
+		if (useDictionary) {
+			// Earlier generations were compressed against the existing dictionary, so keep it.
+			Path dictionary = ArchiveDictionary.getPath(outDirectory);
+			if (outFs.exists(dictionary)) {
+				conf.set("sar.dictionary.path", dictionary.toString());
+			}
+			else {
+				writeDictionary(changed, inFs, dictionary);
+			}
+		}
+
+		List<List<FileStatus>> checkpoints = splitCheckpoints(changed);
+		for (int i = 0; i < checkpoints.size(); i++) {
+			// Deletions are committed with the first checkpoint.
+			List<ArchiveManifest.Entry> checkpointDeleted = (i == 0) ? deleted : new ArrayList<ArchiveManifest.Entry>();
+			if (!runGeneration(outFs, manifest, checkpoints.get(i), checkpointDeleted, descriptor)) {
+				return false;
+			}
+			if (checkpoints.size() > 1) {
+				LOG.info("Checkpoint " + (i + 1) + " of " + checkpoints.size() + " committed.");
+			}
+		}
+		return true;
+	}
+
+	/*
+	 * Batch the files to archive into checkpoints of about checkpointSize
+	 * input bytes, in input order. There is always at least one, if empty,
+	 * to commit deletions with.
+	 */
+	private List<List<FileStatus>> splitCheckpoints(List<FileStatus> changed) {
+		List<List<FileStatus>> checkpoints = new ArrayList<List<FileStatus>>();
+		List<FileStatus> checkpoint = new ArrayList<FileStatus>();
+		long bytes = 0;
+		for (FileStatus status : changed) {
+			if (!checkpoint.isEmpty() && bytes + status.getLen() > checkpointSize) {
+				checkpoints.add(checkpoint);
+				checkpoint = new ArrayList<FileStatus>();
+				bytes = 0;
+			}
+			checkpoint.add(status);
+			bytes += status.getLen();
+		}
+		checkpoints.add(checkpoint);
+		return checkpoints;
+	}
+
+	/*
+	 * Archive the files into the next generation directory, write tombstones
+	 * for the deleted ones, and commit the manifest once the generation is
+	 * complete.
+	 */
+	private boolean runGeneration(FileSystem outFs, ArchiveManifest manifest, List<FileStatus> changed,
+			List<ArchiveManifest.Entry> deleted, ArchiveDescriptor descriptor)
+			throws IOException, InterruptedException, ClassNotFoundException {
+		Path outDirectory = new Path(outPath);
+		int generation = manifest.getGeneration() + 1;
+		Path generationDir = new Path(outDirectory, ArchiveManifest.getGenerationName(generation));
+		if (outFs.exists(generationDir)) {
+			// Left behind by a run that failed before committing the manifest.
+			LOG.info("Removing uncommitted generation " + generationDir);
+			outFs.delete(generationDir, true);
+		}
+		conf.setInt("sar.generation", generation);
+
+		if (!changed.isEmpty()) {
+			Path[] paths = new Path[changed.size()];
+			for (int i = 0; i < paths.length; i++) {
+				paths[i] = changed.get(i).getPath();
+			}
+			if (!runJob(paths, generationDir)) {
+				return false;
+			}
+		}
+		else {
+			outFs.mkdirs(generationDir);
+		}
+
+		// Collect the content hashes the mappers recorded, then drop the side files.
+		Map<String, String> hashes = new HashMap<String, String>();
+		FileStatus[] sideFiles = outFs.globStatus(new Path(generationDir, MANIFEST_OUTPUT + "-*"));
+		for (FileStatus sideFile : (sideFiles == null) ? new FileStatus[0] : sideFiles) {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(outFs.open(sideFile.getPath()), "utf-8"));
+			try {
+				String line;
+				while ((line = reader.readLine()) != null) {
+					int tab = line.lastIndexOf('\t');
+					hashes.put(line.substring(0, tab), line.substring(tab + 1));
+				}
+			} finally {
+				reader.close();
+			}
+			outFs.delete(sideFile.getPath(), false);
+		}
+
+		for (FileStatus status : changed) {
+			String hash = hashes.get(status.getPath().toString());
+			if (hash == null) {
+				// Failed to archive; it stays changed and is retried by the next run.
+				continue;
+			}
+			ArchiveManifest.Entry entry = new ArchiveManifest.Entry();
+			entry.path = ArchiveManifest.getArchivedName(conf, status.getPath());
+			entry.size = status.getLen();
+			entry.mtime = status.getModificationTime();
+			entry.hash = hash;
+			entry.generation = generation;
+			entry.deleted = false;
+			manifest.put(entry);
+		}
+
+		if (!deleted.isEmpty()) {
+			writeTombstones(outFs, generationDir, deleted, generation);
+			for (ArchiveManifest.Entry entry : deleted) {
+				entry.generation = generation;
+				entry.deleted = true;
+			}
+		}
+
+		manifest.setGeneration(generation);
+		manifest.save(outFs, outDirectory);
+		if (descriptor == null && generation == 1) {
+			// Generations of older archives were not bucketed, so only a new archive gets a layout.
+			getDescriptor(outFs, generationDir).save(outFs, outDirectory);
+		}
+		LOG.info("Committed generation " + generation + " of " + outPath);
+		return true;
+	}
+
+	private void writeTombstones(FileSystem fs, Path generationDir, List<ArchiveManifest.Entry> deleted,
+			int generation) throws IOException {
+		// Uncompressed like every archive part, so the raw scanners can read it.
+		SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf,
+				new Path(generationDir, "part-t-00000"), SarKey.class, BytesWritable.class, CompressionType.NONE);
+		try {
+			SarKey key = new SarKey();
+			BytesWritable empty = new BytesWritable();
+			for (ArchiveManifest.Entry entry : deleted) {
+				key.Type = SarKey.TYPE_TOMBSTONE;
+				key.Filename = entry.getName();
+				key.Generation = generation;
+				key.Checksum = RecordChecksum.compute(new byte[0]);
+				writer.append(key, empty);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+
+	private boolean runJob(Path[] inputs, Path output) throws IOException, InterruptedException, ClassNotFoundException {
 		Job job = new Job(conf);
+		Credentials keys = new Credentials();
+		ArchiveKeys.addJobKey(keys, ArchiveKeys.JOB_KEY, dataKey);
+		ArchiveKeys.setJobKeys(job, keys);
 		job.setJarByClass(ArchiveBuilder.class);
 		job.setJobName("SecureArchiver");
 		if(inPathTypeLocal){
-			LocalFileInputFormat.setInputPaths(job, new Path(inPath));
+			LocalFileInputFormat.setInputPaths(job, inputs);
 			job.setInputFormatClass(LocalBulkFileInputFormat.class);
 		}
+		else if (combineSize > 0) {
+			FileInputFormat.setInputPaths(job, inputs);
+			CombineBulkFileInputFormat.setMaxInputSplitSize(job, combineSize);
+			job.setInputFormatClass(CombineBulkFileInputFormat.class);
+		}
 		else{
-			FileInputFormat.setInputPaths(job, new Path(inPath));
+			FileInputFormat.setInputPaths(job, inputs);
 			job.setInputFormatClass(BulkFileInputFormat.class);			
 		}
 		
-		FileOutputFormat.setOutputPath(job, new Path(outPath));
+		FileOutputFormat.setOutputPath(job, output);
 		
-		job.setOutputFormatClass(SequenceFileOutputFormat.class);
+		job.setOutputFormatClass(ArchiveOutputFormat.class);
 		/*SequenceFileOutputFormat.setCompressOutput(job, true);
 				SequenceFileOutputFormat.setOutputCompressionType(job, CompressionType.BLOCK);
 				SequenceFileOutputFormat.setOutputCompressorClass(job, GzipCodec.class);*/
 		job.setOutputKeyClass(SarKey.class);
 		job.setOutputValueClass(BytesWritable.class);
+		// Large values travel from the mapper to the archive writer without being held whole.
+		job.setMapOutputValueClass(StreamingBytesWritable.class);
 		job.setMapperClass(SequenceFileMapper.class);
-		job.setReducerClass(Reducer.class);
+		job.setPartitionerClass(FilenamePartitioner.class);
+		if (incremental) {
+			MultipleOutputs.addNamedOutput(job, MANIFEST_OUTPUT, TextOutputFormat.class,
+					Text.class, Text.class);
+		}
+		if (dedup) {
+			// Index every chunk so the searcher can look chunks up directly.
+			job.getConfiguration().setInt("io.map.index.interval", 16);
+			MultipleOutputs.addNamedOutput(job, ChunkStore.NAMED_OUTPUT, MapFileOutputFormat.class,
+					SarKey.class, BytesWritable.class);
+			job.setCombinerClass(ChunkCombiner.class);
+			job.setReducerClass(DedupReducer.class);
+		}
+		else {
+			job.setReducerClass(Reducer.class);
+		}
 		//job.setNumReduceTasks(0);
-		return(job.waitForCompletion(true) ? true : false);
+		boolean success;
+		try {
+			success = job.waitForCompletion(true);
+		} finally {
+			ArchiveKeys.releaseJobKeys(job);
+		}
+		CounterSummary.log(job, LOG);
+		if (job.getCounters() != null) {
+			counters.incrAllCounters(job.getCounters());
+		}
+		return success;
 	}
 
 
+	/**
+	 * @return the counters of the jobs run so far, summed.
+	 */
+	public Counters getCounters() {
+		return counters;
+	}
+
 	public static void main(String[] args) throws Exception {
 		boolean result = false;
 		try {
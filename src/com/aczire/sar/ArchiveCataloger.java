@@ -0,0 +1,173 @@
+package com.aczire.sar;
+
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.aczire.sar.catalog.ArchiveCatalog;
+import com.aczire.sar.catalog.CatalogEntry;
+
+/**
+ * Maintains a catalog of archives for federated searches, see
+ * {@link ArchiveSearcher} with <code>-catalog</code>.
+ * 
+ * <p>Adding an archive that is already cataloged refreshes its entry, so
+ * re-run it after an incremental build, or build with
+ * <code>-catalog</code>.</p>
+ */
+public class ArchiveCataloger {
+	private static final Log LOG = LogFactory.getLog(ArchiveCataloger.class);
+
+	private String catalogPath = "";
+	private String addGlob = "";
+	private String removePath = "";
+	private boolean list = false;
+
+	Configuration conf = new Configuration();
+
+	private void printUsage(Options opts) {
+		new HelpFormatter().printHelp("ArchiveCataloger", opts);
+	}
+
+	public boolean init(String[] args) throws ParseException {
+		LOG.info("Initializing archive cataloger.");
+		Options opts = new Options();
+		opts.addOption("catalog", true, "Catalog directory.");
+		opts.addOption("add", true, "Add or refresh the archives matching the glob <archives>.");
+		opts.addOption("remove", true, "Remove the archive <archive> from the catalog.");
+		opts.addOption("list", false, "List the cataloged archives.");
+		opts.addOption("help", false, "Print usage information.");
+
+		CommandLine cliParser = new GnuParser().parse(opts, args);
+
+		if (args.length == 0) {
+			printUsage(opts);
+			throw new IllegalArgumentException("No args specified for archive cataloger to initialize");
+		}
+
+		if (cliParser.hasOption("help")) {
+			printUsage(opts);
+			return false;
+		}
+
+		if (!cliParser.hasOption("catalog")) {
+			throw new IllegalArgumentException("No catalog folder specified.");
+		}
+		catalogPath = cliParser.getOptionValue("catalog");
+		if (cliParser.hasOption("add")) {
+			addGlob = cliParser.getOptionValue("add");
+		}
+		if (cliParser.hasOption("remove")) {
+			removePath = cliParser.getOptionValue("remove");
+		}
+		list = cliParser.hasOption("list");
+		if (addGlob.equals("") && removePath.equals("") && !list) {
+			throw new IllegalArgumentException("Please specify archives to add or remove, or -list.");
+		}
+		return true;
+	}
+
+	public boolean run() throws IOException {
+		Path catalogDir = new Path(catalogPath);
+		ArchiveCatalog catalog = new ArchiveCatalog(catalogDir.getFileSystem(conf), catalogDir);
+
+		if (!removePath.equals("")) {
+			Path archive = new Path(removePath);
+			String qualified = archive.getFileSystem(conf).makeQualified(archive).toString();
+			if (!catalog.remove(qualified)) {
+				LOG.error("Archive " + qualified + " is not in the catalog.");
+				return false;
+			}
+			LOG.info("Removed " + qualified + " from the catalog.");
+		}
+
+		if (!addGlob.equals("")) {
+			Path glob = new Path(addGlob);
+			FileSystem fs = glob.getFileSystem(conf);
+			FileStatus[] archives = fs.globStatus(glob);
+			if (archives == null || archives.length == 0) {
+				LOG.error("No archive matches " + addGlob);
+				return false;
+			}
+			for (FileStatus archive : archives) {
+				if (archive.isDirectory()) {
+					add(conf, catalog, archive.getPath());
+				}
+			}
+		}
+
+		if (list) {
+			SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+			for (CatalogEntry entry : catalog.load()) {
+				System.out.println(entry.archive + "\t" + format.format(new Date(entry.minTime)) + "\t"
+						+ format.format(new Date(entry.maxTime)) + "\t" + entry.files + " files\t"
+						+ entry.storedBytes + " bytes\t" + entry.parts.size() + " parts\tversion "
+						+ entry.minFormatVersion + "-" + entry.maxFormatVersion
+						+ ((entry.generation < 0) ? "" : "\tgeneration " + entry.generation));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Add or refresh the entry of one archive.
+	 */
+	public static void add(Configuration conf, ArchiveCatalog catalog, Path archive) throws IOException {
+		long start = System.currentTimeMillis();
+		CatalogEntry entry = ArchiveCatalog.scan(conf, archive);
+		catalog.put(entry);
+		LOG.info("Cataloged " + entry.archive + ": " + entry.files + " files in " + entry.parts.size()
+				+ " parts in " + (System.currentTimeMillis() - start) + " ms");
+	}
+
+	/**
+	 * Refresh the entry of an archive whose parts were rewritten but whose
+	 * files did not change, as by compaction or recompression. An archive
+	 * without a manifest is dated by when its parts were written, so it
+	 * keeps the time range of its previous entry rather than taking the
+	 * time of the rewrite; searches by date would miss it otherwise.
+	 */
+	public static void refresh(Configuration conf, ArchiveCatalog catalog, Path archive) throws IOException {
+		CatalogEntry entry = ArchiveCatalog.scan(conf, archive);
+		CatalogEntry previous = catalog.get(entry.archive);
+		if (entry.generation < 0 && previous != null) {
+			entry.minTime = previous.minTime;
+			entry.maxTime = previous.maxTime;
+		}
+		catalog.put(entry);
+		LOG.info("Refreshed " + entry.archive + ": " + entry.files + " files in " + entry.parts.size() + " parts");
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean result = false;
+		try {
+			ArchiveCataloger cataloger = new ArchiveCataloger();
+			boolean doRun = cataloger.init(args);
+			if (!doRun) {
+				System.exit(0);
+			}
+			result = cataloger.run();
+		} catch (Throwable t) {
+			LOG.fatal("Error running Client", t);
+			System.exit(1);
+		}
+		if (result) {
+			LOG.info("Archive catalog updated successfully");
+			System.exit(0);
+		}
+		LOG.error("Archive catalog was not updated");
+		System.exit(2);
+	}
+}
@@ -0,0 +1,450 @@
+package com.aczire.sar;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FileUtil;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+
+import com.aczire.sar.catalog.ArchiveCatalog;
+import com.aczire.sar.compression.ArchiveDictionary;
+import com.aczire.sar.dedup.ChunkStore;
+import com.aczire.sar.io.RecordScanner;
+import com.aczire.sar.manifest.ArchiveManifest;
+import com.aczire.sar.partition.ArchiveDescriptor;
+import com.aczire.sar.partition.FilenamePartitioner;
+import com.aczire.sar.security.ArchiveKeys;
+
+/**
+ * Rewrites an archive into fewer, larger part files.
+ * 
+ * <p>Records are copied as stored, never decrypted or decompressed, and
+ * rehashed by file name into as many buckets as it takes to keep parts near
+ * <code>-target_size</code>, so searches keep pruning by bucket. Of an
+ * incremental archive only the latest version of every file is kept:
+ * superseded versions, deleted files and tombstones are dropped, and the
+ * generations fold into one, whose number the manifest carries on so later
+ * incremental runs continue from it. The chunk stores of a deduplicated
+ * archive merge into one; chunks no longer referenced stay, since finding
+ * them would take decrypting every recipe. The key header and dictionary
+ * are copied, and the descriptor and manifest are rewritten.</p>
+ * 
+ * <p>Without <code>-out_path</code> the compacted archive is written to
+ * <code>&lt;archive&gt;.compacting</code> and replaces the original, which
+ * is renamed to <code>&lt;archive&gt;.precompact</code> until the new one is
+ * in place; do not search or build the archive meanwhile. The swap only
+ * starts once the compacted copy is complete, so a rerun after a swap that
+ * was cut short finishes it, or restores the original if the compacted copy
+ * is gone, before it looks at the archive.</p>
+ */
+public class ArchiveCompactor {
+	private static final Log LOG = LogFactory.getLog(ArchiveCompactor.class);
+
+	// Output parts written at once; more buckets take more passes over the input.
+	private static final int MAX_OPEN_PARTS = 64;
+	private static final String TOMBSTONE_PART_PREFIX = "part-t-";
+	private static final String TMP_SUFFIX = ".compacting";
+	private static final String ASIDE_SUFFIX = ".precompact";
+
+	private String inPath = "";
+	private String outPath = "";
+	private String catalogPath = "";
+	private long targetSize = 1024L * 1024 * 1024;
+	private int buckets = 0; // Number of output buckets, 0 to size them by -target_size.
+
+	private long recordsCopied;
+	private long recordsDropped;
+
+	Configuration conf = new Configuration();
+
+	private void printUsage(Options opts) {
+		new HelpFormatter().printHelp("ArchiveCompactor", opts);
+	}
+
+	public boolean init(String[] args) throws ParseException {
+		LOG.info("Initializing archive compactor.");
+		Options opts = new Options();
+		opts.addOption("in_path", true, "Archive directory to compact.");
+		opts.addOption("out_path", true, "Directory to write the compacted archive to. (default: replace the input)");
+		opts.addOption("target_size", true, "Target size in bytes of the compacted parts. (default 1073741824)");
+		opts.addOption("buckets", true, "Number of compacted parts, instead of sizing them by -target_size.");
+		opts.addOption("catalog", true, "Refresh the entry of the compacted archive in the catalog <catalog>.");
+		opts.addOption("help", false, "Print usage information.");
+
+		CommandLine cliParser = new GnuParser().parse(opts, args);
+
+		if (args.length == 0) {
+			printUsage(opts);
+			throw new IllegalArgumentException("No args specified for archive compactor to initialize");
+		}
+
+		if (cliParser.hasOption("help")) {
+			printUsage(opts);
+			return false;
+		}
+
+		if (!cliParser.hasOption("in_path")) {
+			throw new IllegalArgumentException("No input folder specified.");
+		}
+		inPath = cliParser.getOptionValue("in_path");
+		if (cliParser.hasOption("out_path")) {
+			outPath = cliParser.getOptionValue("out_path");
+		}
+		if (cliParser.hasOption("target_size")) {
+			targetSize = Long.parseLong(cliParser.getOptionValue("target_size"));
+			if (targetSize <= 0) {
+				throw new IllegalArgumentException("Target size must be positive.");
+			}
+		}
+		if (cliParser.hasOption("buckets")) {
+			buckets = Integer.parseInt(cliParser.getOptionValue("buckets"));
+			if (buckets <= 0) {
+				throw new IllegalArgumentException("Number of buckets must be positive.");
+			}
+		}
+		if (cliParser.hasOption("catalog")) {
+			catalogPath = cliParser.getOptionValue("catalog");
+		}
+		return true;
+	}
+
+	public boolean run() throws IOException {
+		Path archive = new Path(inPath);
+		FileSystem fs = archive.getFileSystem(conf);
+		archive = fs.makeQualified(archive);
+		recover(fs, archive);
+		if (!fs.exists(archive)) {
+			LOG.error("Archive " + inPath + " does not exist.");
+			return false;
+		}
+		boolean replace = outPath.equals("");
+		Path output = replace ? getTmpPath(archive) : fs.makeQualified(new Path(outPath));
+		if (fs.exists(output)) {
+			if (!replace) {
+				LOG.error("Output directory " + output + " already exists.");
+				return false;
+			}
+			// Left behind by a compaction that failed.
+			fs.delete(output, true);
+		}
+
+		ArchiveManifest manifest = ArchiveManifest.exists(fs, archive) ? ArchiveManifest.load(fs, archive) : null;
+		Map<String, Integer> latest = (manifest == null) ? null : manifest.resolveLatest();
+		List<Path> dirs = new ArrayList<Path>();
+		if (manifest != null) {
+			FileStatus[] generations = fs.globStatus(new Path(archive, ArchiveManifest.GENERATION_PREFIX + "*"));
+			for (FileStatus generation : (generations == null) ? new FileStatus[0] : generations) {
+				dirs.add(generation.getPath());
+			}
+		}
+		else {
+			dirs.add(archive);
+		}
+		List<Path> parts = new ArrayList<Path>();
+		for (Path dir : dirs) {
+			FileStatus[] files = fs.globStatus(new Path(dir, "part-*"));
+			for (FileStatus file : (files == null) ? new FileStatus[0] : files) {
+				// Tombstone parts hold nothing that survives, and older builds wrote them compressed.
+				if (!file.getPath().getName().startsWith(TOMBSTONE_PART_PREFIX)) {
+					parts.add(file.getPath());
+				}
+			}
+		}
+
+		// Size the buckets by what survives.
+		long liveBytes = 0;
+		for (Path part : parts) {
+			RecordScanner scanner = new RecordScanner(fs, part, conf);
+			try {
+				while (scanner.next()) {
+					if (isLive(scanner.getKey(), latest)) {
+						liveBytes += scanner.getValueLength();
+					}
+				}
+			} finally {
+				scanner.close();
+			}
+		}
+		ArchiveDescriptor old = ArchiveDescriptor.load(fs, archive);
+		int count = (buckets > 0) ? buckets : (int) Math.max(1, (liveBytes + targetSize - 1) / targetSize);
+		ArchiveDescriptor descriptor = new ArchiveDescriptor(count, (old == null) ? 0 : old.getPrefixLength());
+		int generation = (manifest == null) ? 0 : manifest.getGeneration();
+		Path partDir = (manifest == null) ? output : new Path(output, ArchiveManifest.getGenerationName(generation));
+		LOG.info("Compacting " + parts.size() + " parts of " + archive + " into " + count + " parts of about "
+				+ (liveBytes / count) + " bytes.");
+
+		fs.mkdirs(partDir);
+		for (int first = 0; first < count; first += MAX_OPEN_PARTS) {
+			copyRecords(fs, parts, latest, descriptor, partDir, first, Math.min(count, first + MAX_OPEN_PARTS), generation);
+		}
+		mergeChunkStores(fs, dirs, partDir);
+
+		descriptor.save(fs, output);
+		for (String sidecar : new String[] { ArchiveKeys.KEYS_FILE, ArchiveDictionary.DICTIONARY_FILE }) {
+			Path path = new Path(archive, sidecar);
+			if (fs.exists(path)) {
+				FileUtil.copy(fs, path, fs, new Path(output, sidecar), false, conf);
+			}
+		}
+		if (manifest != null) {
+			compactManifest(manifest, latest, generation).save(fs, output);
+		}
+		LOG.info("Copied " + recordsCopied + " records, dropped " + recordsDropped
+				+ " superseded, deleted and tombstone records.");
+
+		if (replace) {
+			Path aside = getAsidePath(archive);
+			fs.delete(aside, true);
+			if (!fs.rename(archive, aside) || !fs.rename(output, archive)) {
+				throw new IOException("Failed to swap in the compacted archive " + output + "; the original is at "
+						+ aside + " and a rerun recovers it");
+			}
+			fs.delete(aside, true);
+			output = archive;
+		}
+		if (!catalogPath.equals("")) {
+			Path catalogDir = new Path(catalogPath);
+			ArchiveCatalog catalog = new ArchiveCatalog(catalogDir.getFileSystem(conf), catalogDir);
+			ArchiveCataloger.refresh(conf, catalog, output);
+		}
+		return true;
+	}
+
+	private static Path getTmpPath(Path archive) {
+		return new Path(archive.getParent(), archive.getName() + TMP_SUFFIX);
+	}
+
+	private static Path getAsidePath(Path archive) {
+		return new Path(archive.getParent(), archive.getName() + ASIDE_SUFFIX);
+	}
+
+	/*
+	 * Clean up after a swap that was cut short. The original is only moved
+	 * aside once the compacted copy is complete, so with the original aside
+	 * the copy takes its place, and with the archive back in place the aside
+	 * original is dropped. A compacted copy with the original still in place
+	 * may be partial, and is left for run to write again.
+	 */
+	private static void recover(FileSystem fs, Path archive) throws IOException {
+		Path aside = getAsidePath(archive);
+		if (!fs.exists(aside)) {
+			return;
+		}
+		if (!fs.exists(archive)) {
+			Path tmp = getTmpPath(archive);
+			boolean compacted = fs.exists(tmp);
+			if (!fs.rename(compacted ? tmp : aside, archive)) {
+				throw new IOException("Failed to recover " + archive + " from an interrupted compaction");
+			}
+			LOG.info("Recovered " + archive + " from an interrupted compaction, "
+					+ (compacted ? "finishing the swap." : "restoring the original."));
+		}
+		fs.delete(aside, true);
+	}
+
+	/*
+	 * Whether a record belongs in the compacted archive: the latest version
+	 * of a file, or anything but a tombstone of an archive without generations.
+	 */
+	private static boolean isLive(SarKey key, Map<String, Integer> latest) {
+		if (key.Type == SarKey.TYPE_TOMBSTONE) {
+			return false;
+		}
+		if (latest == null || (key.Type != SarKey.TYPE_FILE && key.Type != SarKey.TYPE_RECIPE)) {
+			return true;
+		}
+		Integer generation = latest.get(key.Filename);
+		return generation != null && generation.intValue() == key.Generation;
+	}
+
+	/*
+	 * Copy the live records of buckets [first, last) with one pass over the
+	 * parts. Values are appended raw from the source part; keys are rewritten
+	 * to the folded generation.
+	 */
+	private void copyRecords(FileSystem fs, List<Path> parts, Map<String, Integer> latest,
+			ArchiveDescriptor descriptor, Path partDir, int first, int last, int generation) throws IOException {
+		SequenceFile.Writer[] writers = new SequenceFile.Writer[last - first];
+		DataOutputBuffer keyBuffer = new DataOutputBuffer();
+		try {
+			for (int i = 0; i < writers.length; i++) {
+				writers[i] = SequenceFile.createWriter(fs, conf, new Path(partDir, ArchiveDescriptor.getPartName(first + i)),
+						SarKey.class, BytesWritable.class, CompressionType.NONE);
+			}
+			for (Path part : parts) {
+				final RecordScanner scanner = new RecordScanner(fs, part, conf);
+				try {
+					while (scanner.next()) {
+						SarKey key = scanner.getKey();
+						int bucket = FilenamePartitioner.getBucket(key.Filename, descriptor.getPrefixLength(), descriptor.getBuckets());
+						if (bucket < first || bucket >= last) {
+							continue;
+						}
+						if (!isLive(key, latest)) {
+							recordsDropped++;
+							continue;
+						}
+						if (latest != null) {
+							key.Generation = generation;
+						}
+						keyBuffer.reset();
+						key.write(keyBuffer);
+						writers[bucket - first].appendRaw(keyBuffer.getData(), 0, keyBuffer.getLength(), rawValue(scanner));
+						recordsCopied++;
+					}
+				} finally {
+					scanner.close();
+				}
+			}
+		} finally {
+			for (SequenceFile.Writer writer : writers) {
+				IOUtils.closeStream(writer);
+			}
+		}
+	}
+
+	/*
+	 * The serialized BytesWritable of the current record, streamed from the part.
+	 */
+	private static SequenceFile.ValueBytes rawValue(RecordScanner scanner) {
+		final int length = scanner.getValueLength();
+		final InputStream in = scanner.openValue();
+		return new SequenceFile.ValueBytes() {
+			public void writeUncompressedBytes(DataOutputStream outStream) throws IOException {
+				outStream.writeInt(length);
+				IOUtils.copyBytes(in, outStream, 64 * 1024, false);
+			}
+
+			public void writeCompressedBytes(DataOutputStream outStream) {
+				throw new IllegalArgumentException("Archive values are written uncompressed.");
+			}
+
+			public int getSize() {
+				return 4 + length;
+			}
+		};
+	}
+
+	/*
+	 * Merge the sorted chunk stores of every generation into one, keeping
+	 * the first copy of a chunk stored more than once.
+	 */
+	private void mergeChunkStores(FileSystem fs, List<Path> dirs, Path partDir) throws IOException {
+		List<MapFile.Reader> readers = new ArrayList<MapFile.Reader>();
+		for (Path dir : dirs) {
+			Path chunkDir = new Path(dir, ChunkStore.CHUNK_DIR);
+			if (fs.exists(chunkDir)) {
+				for (MapFile.Reader reader : MapFileOutputFormat.getReaders(chunkDir, conf)) {
+					readers.add(reader);
+				}
+			}
+		}
+		if (readers.isEmpty()) {
+			return;
+		}
+
+		int n = readers.size();
+		SarKey[] heads = new SarKey[n];
+		BytesWritable[] values = new BytesWritable[n];
+		for (int i = 0; i < n; i++) {
+			heads[i] = new SarKey();
+			values[i] = new BytesWritable();
+			if (!readers.get(i).next(heads[i], values[i])) {
+				heads[i] = null;
+			}
+		}
+		long chunks = 0;
+		MapFile.Writer writer = new MapFile.Writer(conf, fs,
+				new Path(new Path(partDir, ChunkStore.CHUNK_DIR), "part-r-00000").toString(),
+				SarKey.class, BytesWritable.class, CompressionType.NONE);
+		try {
+			SarKey previous = null;
+			while (true) {
+				int smallest = -1;
+				for (int i = 0; i < n; i++) {
+					if (heads[i] != null && (smallest < 0 || heads[i].compareTo(heads[smallest]) < 0)) {
+						smallest = i;
+					}
+				}
+				if (smallest < 0) {
+					break;
+				}
+				if (previous == null || heads[smallest].compareTo(previous) != 0) {
+					writer.append(heads[smallest], values[smallest]);
+					previous = heads[smallest];
+					heads[smallest] = new SarKey();
+					chunks++;
+				}
+				if (!readers.get(smallest).next(heads[smallest], values[smallest])) {
+					heads[smallest] = null;
+				}
+			}
+		} finally {
+			writer.close();
+			for (MapFile.Reader reader : readers) {
+				IOUtils.closeStream(reader);
+			}
+		}
+		LOG.info("Merged " + n + " chunk stores into one of " + chunks + " chunks.");
+	}
+
+	/*
+	 * The manifest of the folded archive: every live file, now in the one
+	 * generation left.
+	 */
+	private static ArchiveManifest compactManifest(ArchiveManifest manifest, Map<String, Integer> latest, int generation) {
+		ArchiveManifest compacted = new ArchiveManifest();
+		compacted.setGeneration(generation);
+		for (ArchiveManifest.Entry entry : manifest.getEntries()) {
+			Integer current = latest.get(entry.getName());
+			if (entry.deleted || current == null || current.intValue() != entry.generation) {
+				continue;
+			}
+			entry.generation = generation;
+			compacted.put(entry);
+		}
+		return compacted;
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean result = false;
+		try {
+			ArchiveCompactor compactor = new ArchiveCompactor();
+			boolean doRun = compactor.init(args);
+			if (!doRun) {
+				System.exit(0);
+			}
+			result = compactor.run();
+		} catch (Throwable t) {
+			LOG.fatal("Error running Client", t);
+			System.exit(1);
+		}
+		if (result) {
+			LOG.info("Archive compacted successfully");
+			System.exit(0);
+		}
+		LOG.error("Archive compaction failed");
+		System.exit(2);
+	}
+}
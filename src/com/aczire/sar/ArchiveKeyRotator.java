@@ -0,0 +1,100 @@
+package com.aczire.sar;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.aczire.sar.security.ArchiveKeys;
+
+/**
+ * Changes the password of an archive.
+ * 
+ * <p>Only the key header is rewritten: the data key it wraps, which the
+ * records are encrypted with, stays the same, so rotation takes the same
+ * time whatever the size of the archive. Archives built before key headers
+ * existed are encrypted with the password itself and have to be rebuilt.</p>
+ */
+public class ArchiveKeyRotator {
+	private static final Log LOG = LogFactory.getLog(ArchiveKeyRotator.class);
+
+	private String inPath = "";
+	private String oldKey = "";
+	private String newKey = "";
+
+	Configuration conf = new Configuration();
+
+	private void printUsage(Options opts) {
+		new HelpFormatter().printHelp("ArchiveKeyRotator", opts);
+	}
+
+	public boolean init(String[] args) throws ParseException {
+		LOG.info("Initializing archive key rotator.");
+		Options opts = new Options();
+		opts.addOption("in_path", true, "Archive directory.");
+		opts.addOption("key", true, "Current password of the archive.");
+		opts.addOption("new_key", true, "New password of the archive.");
+		opts.addOption("help", false, "Print usage information.");
+
+		CommandLine cliParser = new GnuParser().parse(opts, args);
+
+		if (args.length == 0) {
+			printUsage(opts);
+			throw new IllegalArgumentException("No args specified for archive key rotator to initialize");
+		}
+
+		if (cliParser.hasOption("help")) {
+			printUsage(opts);
+			return false;
+		}
+
+		if (!cliParser.hasOption("in_path")) {
+			throw new IllegalArgumentException("No input folder specified.");
+		}
+		inPath = cliParser.getOptionValue("in_path");
+		if (!cliParser.hasOption("key") || !cliParser.hasOption("new_key")) {
+			throw new IllegalArgumentException("Both the current and the new password are needed.");
+		}
+		oldKey = cliParser.getOptionValue("key");
+		newKey = cliParser.getOptionValue("new_key");
+		return true;
+	}
+
+	public boolean run() throws Exception {
+		Path archive = new Path(inPath);
+		FileSystem fs = archive.getFileSystem(conf);
+		if (!ArchiveKeys.exists(fs, archive)) {
+			LOG.error("Archive " + inPath + " has no key header; it is encrypted with the password itself and has to be rebuilt to change it.");
+			return false;
+		}
+		ArchiveKeys.rewrap(fs, archive, oldKey, newKey);
+		return true;
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean result = false;
+		try {
+			ArchiveKeyRotator rotator = new ArchiveKeyRotator();
+			boolean doRun = rotator.init(args);
+			if (!doRun) {
+				System.exit(0);
+			}
+			result = rotator.run();
+		} catch (Throwable t) {
+			LOG.fatal("Error running Client", t);
+			System.exit(1);
+		}
+		if (result) {
+			LOG.info("Archive password changed successfully");
+			System.exit(0);
+		}
+		LOG.error("Archive password was not changed");
+		System.exit(2);
+	}
+}
@@ -0,0 +1,539 @@
+package com.aczire.sar;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CheckedOutputStream;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.util.PureJavaCrc32C;
+
+import com.aczire.sar.catalog.ArchiveCatalog;
+import com.aczire.sar.catalog.CatalogEntry;
+import com.aczire.sar.compression.ArchiveDictionary;
+import com.aczire.sar.compression.Codec;
+import com.aczire.sar.dedup.ChunkStore;
+import com.aczire.sar.io.BlockedRecord;
+import com.aczire.sar.io.BufferPool;
+import com.aczire.sar.io.FileSwap;
+import com.aczire.sar.io.RecordChecksum;
+import com.aczire.sar.io.RecordScanner;
+import com.aczire.sar.io.SpillableBuffer;
+import com.aczire.sar.manifest.ArchiveManifest;
+import com.aczire.sar.security.AESCrypter;
+import com.aczire.sar.security.ArchiveKeys;
+
+/**
+ * Recompresses the records of archives with another codec, typically from
+ * the fast codec an archive was built with to a high ratio one once the
+ * archive has aged.
+ * 
+ * <p>Every file and chunk record not already in the target codec is
+ * decrypted once, decompressed, recompressed, encrypted again and written
+ * with its new codec id and checksum; records stored uncompressed are
+ * compressed. Whole records are streamed through a pooled buffer, so
+ * memory stays bounded whatever their size, and blocked records are
+ * recompressed block by block. Each part file is rewritten beside the
+ * original and renamed over it in one step, so an interrupted run leaves
+ * every part either old or new, and a rerun skips the parts already done.
+ * A chunk store is a MapFile directory, which no rename replaces whole: the
+ * original is moved aside first, and a rerun finishes or undoes a swap that
+ * was cut short before it looks at the archive.</p>
+ * 
+ * <p><code>-max_bytes_per_sec</code> caps the rate records are read at, so
+ * the job can run alongside production work.</p>
+ */
+public class ArchiveRecompressor {
+	private static final Log LOG = LogFactory.getLog(ArchiveRecompressor.class);
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final String TOMBSTONE_PART_PREFIX = "part-t-";
+	// Rewrites are hidden, so searches globbing the parts do not pick them up.
+	private static final String TMP_SUFFIX = ".recompress";
+	private static final String ASIDE_SUFFIX = ".recompress.old";
+
+	private String inPath = "";
+	private String catalogPath = "";
+	private String unlockKey = "KEY";
+	private byte codec = Codec.DEFLATE_MAX;
+	private int olderThanDays = 0;
+	private long maxBytesPerSec = 0;
+
+	private long throttleStart;
+	private long throttledBytes;
+	private long recordsRecompressed;
+	private long bytesBefore;
+	private long bytesAfter;
+
+	Configuration conf = new Configuration();
+
+	private void printUsage(Options opts) {
+		new HelpFormatter().printHelp("ArchiveRecompressor", opts);
+	}
+
+	public boolean init(String[] args) throws ParseException {
+		LOG.info("Initializing archive recompressor.");
+		Options opts = new Options();
+		opts.addOption("in_path", true, "Archive directory to recompress.");
+		opts.addOption("catalog", true, "Recompress the cataloged archives instead, see -older_than_days.");
+		opts.addOption("older_than_days", true, "Recompress only cataloged archives with no file newer than <days>. (default 0)");
+		opts.addOption("key", true, "Password the archives were encrypted with.");
+		opts.addOption("codec", true, "Codec to recompress with: deflate-max, deflate-dict, gzip or deflate-fast. (default deflate-max) deflate-dict needs an archive built with -dictionary.");
+		opts.addOption("max_bytes_per_sec", true, "Read records at no more than <bytes> per second. (default unlimited)");
+		opts.addOption("help", false, "Print usage information.");
+
+		CommandLine cliParser = new GnuParser().parse(opts, args);
+
+		if (args.length == 0) {
+			printUsage(opts);
+			throw new IllegalArgumentException("No args specified for archive recompressor to initialize");
+		}
+
+		if (cliParser.hasOption("help")) {
+			printUsage(opts);
+			return false;
+		}
+
+		if (cliParser.hasOption("in_path") == cliParser.hasOption("catalog")) {
+			throw new IllegalArgumentException("Specify either an archive with -in_path or a catalog with -catalog.");
+		}
+		if (cliParser.hasOption("in_path")) {
+			inPath = cliParser.getOptionValue("in_path");
+		}
+		if (cliParser.hasOption("catalog")) {
+			catalogPath = cliParser.getOptionValue("catalog");
+		}
+		if (cliParser.hasOption("older_than_days")) {
+			olderThanDays = Integer.parseInt(cliParser.getOptionValue("older_than_days"));
+		}
+		if (cliParser.hasOption("key")) {
+			unlockKey = cliParser.getOptionValue("key");
+		}
+		if (cliParser.hasOption("codec")) {
+			codec = Codec.forName(cliParser.getOptionValue("codec"));
+		}
+		if (cliParser.hasOption("max_bytes_per_sec")) {
+			maxBytesPerSec = Long.parseLong(cliParser.getOptionValue("max_bytes_per_sec"));
+		}
+		return true;
+	}
+
+	public boolean run() throws Exception {
+		throttleStart = System.currentTimeMillis();
+		boolean success = true;
+		if (!inPath.equals("")) {
+			success = recompress(new Path(inPath));
+		}
+		else {
+			Path catalogDir = new Path(catalogPath);
+			ArchiveCatalog catalog = new ArchiveCatalog(catalogDir.getFileSystem(conf), catalogDir);
+			long cutoff = System.currentTimeMillis() - olderThanDays * 24L * 60 * 60 * 1000;
+			for (CatalogEntry entry : catalog.load()) {
+				if (entry.maxTime > cutoff) {
+					continue;
+				}
+				Path archive = new Path(entry.archive);
+				if (recompress(archive)) {
+					// Sizes changed.
+					ArchiveCataloger.refresh(conf, catalog, archive);
+				}
+				else {
+					success = false;
+				}
+			}
+		}
+		LOG.info("Recompressed " + recordsRecompressed + " records to " + Codec.name(codec) + ": "
+				+ bytesBefore + " bytes stored before, " + bytesAfter + " after.");
+		return success;
+	}
+
+	/*
+	 * Recompress every part and chunk store of one archive.
+	 * @return false if the archive could not be recompressed.
+	 */
+	private boolean recompress(Path archive) throws Exception {
+		FileSystem fs = archive.getFileSystem(conf);
+		String dataKey;
+		try {
+			dataKey = ArchiveKeys.unlock(fs, archive, unlockKey);
+		} catch (IOException e) {
+			LOG.error("Skipping archive " + archive + ": " + e.getMessage());
+			return false;
+		}
+		byte[] dictionary = null;
+		Path dictionaryPath = ArchiveDictionary.getPath(archive);
+		if (fs.exists(dictionaryPath)) {
+			dictionary = ArchiveDictionary.read(fs, dictionaryPath, dataKey);
+		}
+		else if (codec == Codec.DEFLATE_DICT) {
+			LOG.error("Skipping archive " + archive + ": it has no dictionary to recompress against.");
+			return false;
+		}
+		LOG.info("Recompressing " + archive + " to " + Codec.name(codec));
+
+		List<Path> dirs = new ArrayList<Path>();
+		if (ArchiveManifest.exists(fs, archive)) {
+			FileStatus[] generations = fs.globStatus(new Path(archive, ArchiveManifest.GENERATION_PREFIX + "*"));
+			for (FileStatus generation : (generations == null) ? new FileStatus[0] : generations) {
+				dirs.add(generation.getPath());
+			}
+		}
+		else {
+			dirs.add(archive);
+		}
+		Recoder recoder = new Recoder(dataKey, dictionary);
+		try {
+			for (Path dir : dirs) {
+				recover(fs, dir);
+				FileStatus[] parts = fs.globStatus(new Path(dir, "part-*"));
+				for (FileStatus part : (parts == null) ? new FileStatus[0] : parts) {
+					if (!part.getPath().getName().startsWith(TOMBSTONE_PART_PREFIX)) {
+						recompressPart(fs, part.getPath(), recoder);
+					}
+				}
+				Path chunkDir = new Path(dir, ChunkStore.CHUNK_DIR);
+				if (!fs.exists(chunkDir)) {
+					continue;
+				}
+				recover(fs, chunkDir);
+				FileStatus[] chunkStores = fs.globStatus(new Path(chunkDir, "part-*"));
+				for (FileStatus chunkStore : (chunkStores == null) ? new FileStatus[0] : chunkStores) {
+					recompressChunkStore(fs, chunkStore.getPath(), recoder);
+				}
+			}
+		} finally {
+			recoder.release();
+		}
+		return true;
+	}
+
+	/*
+	 * Whether a record is to be recompressed. Recipes and tombstones are not
+	 * compressed, and records locked with another password are left alone.
+	 */
+	private boolean needsRecompression(SarKey key, Recoder recoder) throws Exception {
+		if (key.Type != SarKey.TYPE_FILE && key.Type != SarKey.TYPE_CHUNK) {
+			return false;
+		}
+		if (key.Compressed && key.Codec == codec) {
+			return false;
+		}
+		if (key.Locked && !recoder.keyDigest.equals(key.Key)) {
+			LOG.warn("Leaving " + key.Filename + " as is; it is locked with another password.");
+			return false;
+		}
+		return true;
+	}
+
+	private void recompressPart(FileSystem fs, Path part, Recoder recoder) throws Exception {
+		// A first pass over the keys skips parts with nothing to do.
+		boolean pending = false;
+		RecordScanner scanner = new RecordScanner(fs, part, conf);
+		try {
+			while (!pending && scanner.next()) {
+				pending = needsRecompression(scanner.getKey(), recoder);
+			}
+		} finally {
+			scanner.close();
+		}
+		if (!pending) {
+			LOG.info("Part " + part + " is already in " + Codec.name(codec));
+			return;
+		}
+
+		Path tmp = getTmpPath(part);
+		SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, tmp, SarKey.class, BytesWritable.class,
+				CompressionType.NONE);
+		DataOutputBuffer keyBuffer = new DataOutputBuffer();
+		scanner = new RecordScanner(fs, part, conf);
+		try {
+			while (scanner.next()) {
+				SarKey key = scanner.getKey();
+				throttle(scanner.getValueLength());
+				SequenceFile.ValueBytes value;
+				if (needsRecompression(key, recoder)) {
+					bytesBefore += scanner.getValueLength();
+					value = recoder.recode(key, scanner);
+					bytesAfter += value.getSize() - 4;
+					recordsRecompressed++;
+				}
+				else {
+					value = rawValue(scanner.getValueLength(), scanner.openValue());
+				}
+				keyBuffer.reset();
+				key.write(keyBuffer);
+				writer.appendRaw(keyBuffer.getData(), 0, keyBuffer.getLength(), value);
+			}
+		} finally {
+			scanner.close();
+			writer.close();
+		}
+		replace(fs, tmp, part);
+	}
+
+	/*
+	 * Rewrite the data file of one MapFile of a chunk store. Keys and their
+	 * order do not change, so the index is rebuilt as it was.
+	 */
+	private void recompressChunkStore(FileSystem fs, Path mapFile, Recoder recoder) throws Exception {
+		Path data = new Path(mapFile, MapFile.DATA_FILE_NAME);
+		boolean pending = false;
+		RecordScanner scanner = new RecordScanner(fs, data, conf);
+		try {
+			while (!pending && scanner.next()) {
+				pending = needsRecompression(scanner.getKey(), recoder);
+			}
+		} finally {
+			scanner.close();
+		}
+		if (!pending) {
+			return;
+		}
+
+		Path tmp = getTmpPath(mapFile);
+		MapFile.Writer writer = new MapFile.Writer(conf, fs, tmp.toString(), SarKey.class, BytesWritable.class,
+				CompressionType.NONE);
+		scanner = new RecordScanner(fs, data, conf);
+		BytesWritable value = new BytesWritable();
+		try {
+			while (scanner.next()) {
+				SarKey key = scanner.getKey();
+				throttle(scanner.getValueLength());
+				byte[] stored = scanner.readValue();
+				if (needsRecompression(key, recoder)) {
+					bytesBefore += stored.length;
+					stored = recoder.recode(key, stored);
+					bytesAfter += stored.length;
+					recordsRecompressed++;
+				}
+				value.set(stored, 0, stored.length);
+				writer.append(key, value);
+			}
+		} finally {
+			scanner.close();
+			writer.close();
+		}
+		replace(fs, tmp, mapFile);
+	}
+
+	private static Path getTmpPath(Path original) {
+		return new Path(original.getParent(), "." + original.getName() + TMP_SUFFIX);
+	}
+
+	private static Path getAsidePath(Path original) {
+		return new Path(original.getParent(), "." + original.getName() + ASIDE_SUFFIX);
+	}
+
+	/*
+	 * Swap a rewrite in. A part file is renamed over the original; a chunk
+	 * store directory takes two renames, with the original moved aside.
+	 */
+	private static void replace(FileSystem fs, Path tmp, Path original) throws IOException {
+		if (fs.isFile(tmp)) {
+			FileSwap.replace(fs, tmp, original);
+			return;
+		}
+		Path aside = getAsidePath(original);
+		if (!fs.rename(original, aside) || !fs.rename(tmp, original)) {
+			throw new IOException("Failed to replace " + original + " with " + tmp + "; a rerun recovers it");
+		}
+		fs.delete(aside, true);
+	}
+
+	/*
+	 * Clean up after an interrupted run in one directory. A rewrite is only
+	 * swapped in once complete, so one whose original is gone, or moved
+	 * aside, is complete and takes its place; one whose original is still
+	 * there was cut short and is dropped.
+	 */
+	private static void recover(FileSystem fs, Path dir) throws IOException {
+		FileStatus[] asides = fs.globStatus(new Path(dir, ".*" + ASIDE_SUFFIX));
+		for (FileStatus aside : (asides == null) ? new FileStatus[0] : asides) {
+			String name = aside.getPath().getName();
+			Path original = new Path(dir, name.substring(1, name.length() - ASIDE_SUFFIX.length()));
+			Path tmp = getTmpPath(original);
+			if (!fs.exists(original)) {
+				if (!fs.rename(fs.exists(tmp) ? tmp : aside.getPath(), original)) {
+					throw new IOException("Failed to recover " + original + " from an interrupted run");
+				}
+				LOG.info("Recovered " + original + " from an interrupted run.");
+			}
+			fs.delete(aside.getPath(), true);
+		}
+		FileStatus[] tmps = fs.globStatus(new Path(dir, ".*" + TMP_SUFFIX));
+		for (FileStatus tmp : (tmps == null) ? new FileStatus[0] : tmps) {
+			String name = tmp.getPath().getName();
+			Path original = new Path(dir, name.substring(1, name.length() - TMP_SUFFIX.length()));
+			if (fs.exists(original)) {
+				fs.delete(tmp.getPath(), true);
+			}
+			else {
+				if (!fs.rename(tmp.getPath(), original)) {
+					throw new IOException("Failed to recover " + original + " from an interrupted run");
+				}
+				LOG.info("Recovered " + original + " from an interrupted run.");
+			}
+		}
+	}
+
+	/*
+	 * Sleep as long as it takes to keep the read rate under the cap.
+	 */
+	private void throttle(long bytes) throws InterruptedException {
+		if (maxBytesPerSec <= 0) {
+			return;
+		}
+		throttledBytes += bytes;
+		long due = throttleStart + throttledBytes * 1000 / maxBytesPerSec;
+		long now = System.currentTimeMillis();
+		if (due > now) {
+			Thread.sleep(due - now);
+		}
+	}
+
+	private static SequenceFile.ValueBytes rawValue(final long length, final InputStream in) {
+		return new SequenceFile.ValueBytes() {
+			public void writeUncompressedBytes(DataOutputStream outStream) throws IOException {
+				outStream.writeInt((int) length);
+				try {
+					IOUtils.copyBytes(in, outStream, BUFFER_SIZE, false);
+				} finally {
+					in.close();
+				}
+			}
+
+			public void writeCompressedBytes(DataOutputStream outStream) {
+				throw new IllegalArgumentException("Archive values are written uncompressed.");
+			}
+
+			public int getSize() {
+				return 4 + (int) length;
+			}
+		};
+	}
+
+	/*
+	 * Decodes records and encodes them again with the target codec, updating
+	 * their keys.
+	 */
+	private class Recoder {
+		private final String dataKey;
+		private final String keyDigest;
+		private final byte[] dictionary;
+		private final SpillableBuffer buffer = new SpillableBuffer(BufferPool.get(conf));
+
+		Recoder(String dataKey, byte[] dictionary) throws Exception {
+			this.dataKey = dataKey;
+			this.keyDigest = AESCrypter.keyDigest(dataKey);
+			this.dictionary = dictionary;
+		}
+
+		/*
+		 * Recode the current record of the scanner into the pooled buffer.
+		 * @return the new value; valid until the next call.
+		 */
+		SequenceFile.ValueBytes recode(SarKey key, RecordScanner scanner) throws Exception {
+			if (key.BlockSize > 0) {
+				byte[] stored = recode(key, scanner.readValue());
+				return rawValue(stored.length, new ByteArrayInputStream(stored));
+			}
+			buffer.release();
+			CheckedOutputStream checked = new CheckedOutputStream(buffer, new PureJavaCrc32C());
+			OutputStream out = key.Locked ? AESCrypter.encryptingStream(checked, dataKey) : checked;
+			out = Codec.compressingStream(codec, out, dictionary);
+			InputStream in = scanner.openValue();
+			in = key.Locked ? AESCrypter.decryptingStream(in, dataKey) : in;
+			in = key.Compressed ? Codec.decompressingStream(key.Codec, in, dictionary) : in;
+			try {
+				IOUtils.copyBytes(in, out, BUFFER_SIZE, false);
+			} finally {
+				in.close();
+				out.close();
+			}
+			buffer.close();
+			key.Compressed = true;
+			key.Codec = codec;
+			key.Checksum = checked.getChecksum().getValue();
+			return rawValue(buffer.length(), buffer.open());
+		}
+
+		/*
+		 * Recode an in-memory record, block by block if it is blocked.
+		 */
+		byte[] recode(SarKey key, byte[] stored) throws Exception {
+			byte[] recoded;
+			if (key.BlockSize > 0) {
+				BlockedRecord.SeekTable table = BlockedRecord.readTable(stored);
+				BlockedRecord.Writer writer = new BlockedRecord.Writer(table.getPlainLength(), table.getBlockSize());
+				for (int i = 0; i < table.getBlockCount(); i++) {
+					int offset = (int) table.getOffset(i);
+					byte[] block = Arrays.copyOfRange(stored, offset, offset + table.getEncodedLength(i));
+					writer.add(encode(key, decode(key, block)));
+				}
+				recoded = writer.toByteArray();
+			}
+			else {
+				recoded = encode(key, decode(key, stored));
+			}
+			key.Compressed = true;
+			key.Codec = codec;
+			key.Checksum = RecordChecksum.compute(recoded);
+			return recoded;
+		}
+
+		private byte[] decode(SarKey key, byte[] stored) throws Exception {
+			byte[] plainText = key.Locked ? AESCrypter.decrypt(stored, dataKey) : stored;
+			return key.Compressed ? Codec.decompress(key.Codec, plainText, dictionary) : plainText;
+		}
+
+		private byte[] encode(SarKey key, byte[] plainText) throws Exception {
+			byte[] compressed = Codec.compress(codec, plainText, dictionary);
+			return key.Locked ? AESCrypter.encrypt(compressed, dataKey) : compressed;
+		}
+
+		void release() {
+			buffer.release();
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean result = false;
+		try {
+			ArchiveRecompressor recompressor = new ArchiveRecompressor();
+			boolean doRun = recompressor.init(args);
+			if (!doRun) {
+				System.exit(0);
+			}
+			result = recompressor.run();
+		} catch (Throwable t) {
+			LOG.fatal("Error running Client", t);
+			System.exit(1);
+		}
+		if (result) {
+			LOG.info("Archive recompressed successfully");
+			System.exit(0);
+		}
+		LOG.error("Archive recompression failed");
+		System.exit(2);
+	}
+}
@@ -1,10 +1,27 @@
 package com.aczire.sar;
 
+import java.io.BufferedReader;
 import java.io.EOFException;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.security.MessageDigest;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CheckedInputStream;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.GnuParser;
@@ -12,42 +29,218 @@ import org.apache.commons.cli.HelpFormatter;
 import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.PureJavaCrc32C;
+import org.apache.hadoop.mapreduce.Counters;
 import org.apache.hadoop.mapreduce.Job;
 import org.apache.hadoop.mapreduce.Mapper;
 import org.apache.hadoop.mapreduce.Reducer;
 import org.apache.hadoop.mapreduce.lib.input.*;
 import org.apache.hadoop.mapreduce.lib.output.*;
+import org.apache.hadoop.security.Credentials;
 
-import com.aczire.sar.compression.GZipLib;
+import com.aczire.sar.cache.RecordCache;
+import com.aczire.sar.catalog.ArchiveCatalog;
+import com.aczire.sar.catalog.CatalogEntry;
+import com.aczire.sar.compression.ArchiveDictionary;
+import com.aczire.sar.compression.Codec;
+import com.aczire.sar.dedup.ChunkRecipe;
+import com.aczire.sar.dedup.ChunkStore;
+import com.aczire.sar.inputformats.ResyncSequenceFileInputFormat;
+import com.aczire.sar.io.BlockedRecord;
+import com.aczire.sar.io.BufferPool;
+import com.aczire.sar.io.FileTransfer;
+import com.aczire.sar.io.RecordChecksum;
+import com.aczire.sar.io.SpillableBuffer;
+import com.aczire.sar.io.StreamingBytesWritable;
+import com.aczire.sar.manifest.ArchiveManifest;
+import com.aczire.sar.metrics.CounterSummary;
+import com.aczire.sar.metrics.RecordTracer;
+import com.aczire.sar.metrics.SarCounter;
+import com.aczire.sar.metrics.Stage;
+import com.aczire.sar.metrics.StageTimer;
+import com.aczire.sar.outputformats.ArchiveOutputFormat;
+import com.aczire.sar.partition.ArchiveDescriptor;
+import com.aczire.sar.restore.RestoreFilter;
 import com.aczire.sar.security.AESCrypter;
+import com.aczire.sar.security.ArchiveKeys;
 
 
 public class ArchiveSearcher {
 	private static final Log LOG = LogFactory.getLog(ArchiveSearcher.class);
+	// Records decoded at once by each map task.
+	static final String SEARCH_THREADS = "sar.search.threads";
+	// Federated searches: the key of each archive is in the job credentials under this prefix plus the archive path.
+	static final String ARCHIVE_KEY_PREFIX = "sar.encrypt.key.";
 
 	private String inPath = "";
 	private String outPath = "";
 	private String unlockKey = "KEY"; // Shell password to encrypt the blocks.
+	private Credentials keys = new Credentials(); // Data keys of the archives searched, for the job credentials.
 	private String searchKeyword = "";
 	private String searchFilename = "";
+	private String searchPrefix = "";
+	private String restoreList = "";
+	private String restoreGlobs = "";
+	private long rangeStart = -1; // Byte range of the searched file to read, -1 for the whole file.
+	private long rangeEnd = -1;
+	private String catalogPath = ""; // Search the archives of this catalog instead of -in_path.
+	private long fromTime = Long.MIN_VALUE; // Time range of the cataloged archives to search.
+	private long toTime = Long.MAX_VALUE;
 
 	private boolean inPathTypeLocal = false; // input path is hdfs.
 	private boolean outPathTypeLocal = false; // output path is hdfs.	
 
 	Configuration conf = new Configuration();
+	// Of every job run, for callers such as ArchiveBenchmark.
+	private Counters counters = new Counters();
 
 	static class SequenceFileMapper
 	extends Mapper<SarKey, BytesWritable, SarKey, BytesWritable> {
 		
 		// Signal the map runner to stop calling map any further.
-		private boolean finished = false;
+		private volatile boolean finished = false;
+
+		private StageTimer timer;
+
+		// Opened on the first chunk recipe of a deduplicated archive.
+		private ChunkStore chunkStore;
+
+		// Preset compression dictionary, loaded on the first record that needs it.
+		private byte[] dictionary;
+
+		// Bulk restores: the names to restore. Hits go to the job output instead of one file each.
+		private RestoreFilter restoreFilter;
+		private SarKey restoredKey = new SarKey();
+		private StreamingBytesWritable outputValue = new StreamingBytesWritable();
+
+		// Plaintext of a streamed record, pooled and spilled to local disk past the budget.
+		private SpillableBuffer plainBuffer;
+
+		// Incremental archives: archived name to the generation of its latest version.
+		private Map<String, Integer> latestGenerations;
+
+		// The archive of the part being read, and the key its records are encrypted with.
+		private Path archive;
+		private String dataKey;
+
+		// Single file searches: decoded contents, shared with range reads of the same archive.
+		private RecordCache cache;
+		private String archiveId;
+		private boolean cacheOwner = false;
+
+		@Override
+		protected void setup(Context context) throws IOException {
+			timer = new StageTimer(context);
+			Configuration conf = context.getConfiguration();
+			restoreFilter = RestoreFilter.get(conf);
+			// Parts sit in the archive directory, or in a generation directory of it.
+			archive = ((FileSplit) context.getInputSplit()).getPath().getParent();
+			if (archive.getName().startsWith(ArchiveManifest.GENERATION_PREFIX)) {
+				archive = archive.getParent();
+			}
+			dataKey = ArchiveKeys.getJobKey(context, ARCHIVE_KEY_PREFIX + archive);
+			if (dataKey == null) {
+				dataKey = ArchiveKeys.getJobKey(context, ArchiveKeys.JOB_KEY);
+			}
+			if (!conf.get("sar.search.filename", "").equals("") && !conf.get(RecordCache.DISK_DIR, "").equals("")) {
+				cache = RecordCache.create(conf, dataKey);
+				archiveId = archive.getFileSystem(conf).makeQualified(archive).toString();
+				cacheOwner = true;
+			}
+			if (conf.getBoolean("sar.manifest", false)) {
+				FileSystem fs = archive.getFileSystem(conf);
+				if (ArchiveManifest.exists(fs, archive)) {
+					latestGenerations = ArchiveManifest.load(fs, archive).resolveLatest();
+				}
+			}
+		}
+
+		/*
+		 * Set up a search thread of the task. The restore list and manifest
+		 * are read once, by the first mapper, and shared read-only.
+		 */
+		private void setup(Context context, SequenceFileMapper first) {
+			timer = new StageTimer(context);
+			restoreFilter = first.restoreFilter;
+			archive = first.archive;
+			dataKey = first.dataKey;
+			latestGenerations = first.latestGenerations;
+			cache = first.cache;
+			archiveId = first.archiveId;
+		}
+
+		@Override
+		protected void cleanup(Context context) {
+			if (chunkStore != null) {
+				chunkStore.close();
+			}
+			if (plainBuffer != null) {
+				plainBuffer.release();
+			}
+			if (cacheOwner) {
+				LOG.info("Record cache: " + cache);
+			}
+		}
+
+		/*
+		 * Cache key of the whole decoded file. A plain record is keyed as the
+		 * range reader keys it, so the two share entries; blocked records and
+		 * recipes, which the range reader caches piece by piece, get a key of
+		 * their own. Null if the record can be told apart by neither its
+		 * content hash nor its checksum.
+		 */
+		private String cacheKey(Context context, SarKey key) {
+			String recordKey;
+			if (key.ContentHash != null && !key.ContentHash.equals("")) {
+				recordKey = RecordCache.key(archiveId, key.Filename, key.ContentHash);
+			}
+			else if (key.Checksum >= 0) {
+				recordKey = RecordCache.key(archiveId, key.Filename,
+						((FileSplit) context.getInputSplit()).getPath().toString(), Long.toString(key.Checksum));
+			}
+			else {
+				return null;
+			}
+			return (key.Type == SarKey.TYPE_FILE && key.BlockSize == 0) ? recordKey : RecordCache.key(recordKey, "file");
+		}
+
+		/*
+		 * Rebuild a deduplicated file from its recipe.
+		 */
+		private byte[] rebuild(Context context, ChunkRecipe recipe, String sarKey) throws Exception {
+			if (chunkStore == null) {
+				// The chunk store sits beside the parts of the archive, or of the generation.
+				Path archive = ((FileSplit) context.getInputSplit()).getPath().getParent();
+				chunkStore = new ChunkStore(context.getConfiguration(), archive, sarKey);
+			}
+			long total = recipe.getTotalLength();
+			if (total > Integer.MAX_VALUE) {
+				throw new IOException("File of " + total + " bytes is too large to rebuild in memory.");
+			}
+			byte[] contents = new byte[(int) total];
+			int offset = 0;
+			for (int i = 0; i < recipe.size(); i++) {
+				byte[] chunk = chunkStore.get(recipe.getFingerprint(i));
+				if (chunk.length != recipe.getLength(i)) {
+					throw new IOException("Chunk " + ChunkRecipe.toHex(recipe.getFingerprint(i))
+							+ " has length " + chunk.length + ", expected " + recipe.getLength(i));
+				}
+				System.arraycopy(chunk, 0, contents, offset, chunk.length);
+				offset += chunk.length;
+			}
+			return contents;
+		}
 		
 		/*
 		 * The custom run method ensures that, when searching for only the filename,
@@ -56,6 +249,11 @@ public class ArchiveSearcher {
 		@Override
 		public void run(Context context) throws InterruptedException{
 		     try{
+		          int threads = context.getConfiguration().getInt(SEARCH_THREADS, 1);
+		          if (threads > 1) {
+		        	  runParallel(context, threads);
+		        	  return;
+		          }
 		          setup(context);
 		          while(context.nextKeyValue() && !finished){
 		                 map(context.getCurrentKey(), context.getCurrentValue(), context);
@@ -68,23 +266,104 @@ public class ArchiveSearcher {
 			}
 		}
 
-		private void WriteLocal(String outputPath, String filename, byte[] contents) throws IOException{
+		/*
+		 * Decode and match records on a pool of threads. Each thread maps with
+		 * a mapper of its own, so chunk stores, dictionaries and buffers are
+		 * never shared, and a record is handed out only when a mapper is idle:
+		 * at most one record per thread is held in memory, and the large ones
+		 * stay streamed from the part file.
+		 */
+		private void runParallel(final Context context, int threads) throws IOException, InterruptedException {
+			Configuration conf = context.getConfiguration();
+			final BlockingQueue<SequenceFileMapper> idle = new ArrayBlockingQueue<SequenceFileMapper>(threads);
+			List<SequenceFileMapper> workers = new ArrayList<SequenceFileMapper>();
+			for (int i = 0; i < threads; i++) {
+				SequenceFileMapper worker = new SequenceFileMapper();
+				if (i == 0) {
+					worker.setup(context);
+				}
+				else {
+					worker.setup(context, workers.get(0));
+				}
+				workers.add(worker);
+				idle.add(worker);
+			}
+			final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+			ExecutorService pool = Executors.newFixedThreadPool(threads);
+			try {
+				while (!finished && failure.get() == null && context.nextKeyValue()) {
+					final SequenceFileMapper worker = idle.take();
+					// Any thread may have found the file searched for, not only the one now idle.
+					for (SequenceFileMapper other : workers) {
+						finished = finished || other.finished;
+					}
+					if (finished) {
+						break;
+					}
+					final SarKey key = WritableUtils.clone(context.getCurrentKey(), conf);
+					final BytesWritable value = detach(context.getCurrentValue());
+					pool.execute(new Runnable() {
+						public void run() {
+							try {
+								worker.map(key, value, context);
+							} catch (Throwable t) {
+								failure.compareAndSet(null, t);
+							} finally {
+								idle.add(worker);
+							}
+						}
+					});
+				}
+			} finally {
+				pool.shutdown();
+				pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+			}
+			for (SequenceFileMapper worker : workers) {
+				worker.cleanup(context);
+			}
+			if (failure.get() != null) {
+				// Not an IOException: run() takes those for a corrupt part, and the attempt has to fail.
+				if (failure.get() instanceof Error) {
+					throw (Error) failure.get();
+				}
+				throw new RuntimeException("Search thread failed", failure.get());
+			}
+		}
+
+		/*
+		 * A copy of the value that outlives the reader moving on. Streamed
+		 * values only copy their source, which reads the part file by position.
+		 */
+		private static BytesWritable detach(BytesWritable value) {
+			if (value instanceof StreamingBytesWritable && ((StreamingBytesWritable) value).isStreaming()) {
+				StreamingBytesWritable streamed = new StreamingBytesWritable();
+				streamed.setSource(((StreamingBytesWritable) value).getSource());
+				return streamed;
+			}
+			return new BytesWritable(value.copyBytes());
+		}
+
+		private void WriteLocal(String outputPath, String filename, InputStream contents) throws IOException{
 			//write the file directly to local file system.
-			FileUtils.forceMkdir(new File( outputPath));
+			// Files archived from subdirectories of the input are written to the same subdirectories.
+			FileUtils.forceMkdir(new File(outputPath + filename).getAbsoluteFile().getParentFile());
 			FileUtils.deleteQuietly(new File(outputPath + filename));
 			FileOutputStream fos = new FileOutputStream(outputPath + filename);
-			fos.write(contents);
-			fos.close();	
+			try {
+				IOUtils.copyLarge(contents, fos);
+			} finally {
+				fos.close();
+			}
 		}
 
-		private void WriteHDFS(Configuration conf, String outputPath, String filename, byte[] contents) throws IOException{
+		private void WriteHDFS(Configuration conf, String outputPath, String filename, InputStream contents) throws IOException{
 			// Get the underlying HDFS filesystem and the output path.
 			
 			// TODO: Create custom output formatter for wring to HDFS than writing directly onto it.
 			
-			FileSystem fs = FileSystem.get(conf);
 			Path outDirectory = new Path(outputPath);
 			Path outFile = new Path(outputPath + filename);
+			FileSystem fs = outFile.getFileSystem(conf);
 
 			// Build the directory tree if not exists already.
 			if (fs.exists(outDirectory)){
@@ -100,99 +379,446 @@ public class ArchiveSearcher {
 
 			//write the file directly to HDFS file system.
 			FSDataOutputStream out = fs.create(outFile);
-			out.write(contents, 0, contents.length);
+			try {
+				IOUtils.copyLarge(contents, out);
+			} finally {
+				out.close();
+			}
+
+		}
+
+		private byte[] decrypt(Context context, SarKey key, byte[] cipherText, String sarKey) throws Exception {
+			if (!key.Locked) {
+				return cipherText;
+			}
+			long start = timer.start();
+			byte[] plainText = AESCrypter.decrypt(cipherText, sarKey);
+			timer.stop(Stage.DECRYPT, start, key.Filename, cipherText.length, plainText.length, "aes");
+			context.getCounter(SarCounter.BYTES_DECRYPTED).increment(plainText.length);
+			return plainText;
+		}
 
+		private byte[] getDictionary(Context context, SarKey key, String sarKey) throws Exception {
+			if (key.Codec == Codec.DEFLATE_DICT && dictionary == null) {
+				Path path = ArchiveDictionary.getPath(archive);
+				dictionary = ArchiveDictionary.read(path.getFileSystem(context.getConfiguration()), path, sarKey);
+			}
+			return dictionary;
+		}
+
+		private byte[] decompress(Context context, SarKey key, byte[] plainText, String sarKey) throws Exception {
+			if (!key.Compressed) {
+				return plainText;
+			}
+			byte[] dictionary = getDictionary(context, key, sarKey);
+			long start = timer.start();
+			byte[] decompressed = Codec.decompress(key.Codec, plainText, dictionary);
+			timer.stop(Stage.DECOMPRESS, start, key.Filename, plainText.length, decompressed.length, Codec.name(key.Codec));
+			context.getCounter(SarCounter.BYTES_DECOMPRESSED).increment(decompressed.length);
+			return decompressed;
+		}
+
+		/*
+		 * Decode every block of a blocked record back into the whole file.
+		 */
+		private byte[] decodeBlocks(Context context, SarKey key, byte[] value, String sarKey) throws Exception {
+			BlockedRecord.SeekTable table = BlockedRecord.readTable(value);
+			if (table.getPlainLength() > Integer.MAX_VALUE) {
+				throw new IOException("File of " + table.getPlainLength() + " bytes is too large to decode in memory.");
+			}
+			byte[] contents = new byte[(int) table.getPlainLength()];
+			for (int i = 0; i < table.getBlockCount(); i++) {
+				int offset = (int) table.getOffset(i);
+				byte[] encoded = Arrays.copyOfRange(value, offset, offset + table.getEncodedLength(i));
+				byte[] block = decompress(context, key, decrypt(context, key, encoded, sarKey), sarKey);
+				System.arraycopy(block, 0, contents, (int) table.getPlainOffset(i), block.length);
+			}
+			return contents;
 		}
 
 		public void map(SarKey key, BytesWritable value, Context context)
 				throws IOException, InterruptedException {
 			String filename = key.Filename.toString();
-			String sarKey = context.getConfiguration().get("sar.encrypt.key");
+			String sarKey = dataKey;
 			String searchFilename = context.getConfiguration().get("sar.search.filename");
+			String searchPrefix = context.getConfiguration().get("sar.search.prefix", "");
 			String searchKeyword = context.getConfiguration().get("sar.search.keyword");
 			String sarOutputPath = context.getConfiguration().get("sar.out.path");
 			boolean sarOutPathLocal = Boolean.parseBoolean(context.getConfiguration().get("sar.out.path.local"));
-			LOG.info("sar.out.path.local " + context.getConfiguration().get("sar.out.path.local"));
+			context.getCounter(SarCounter.RECORDS_SCANNED).increment(1);
+			if (key.Type == SarKey.TYPE_CHUNK || key.Type == SarKey.TYPE_TOMBSTONE) {
+				return;
+			}
+			if (latestGenerations != null) {
+				// Skip versions superseded or deleted by a later generation.
+				Integer latest = latestGenerations.get(filename);
+				if (latest == null || latest.intValue() != key.Generation) {
+					context.getCounter(SarCounter.RECORDS_SUPERSEDED).increment(1);
+					return;
+				}
+			}
 
 			// If we have the filename constraint, bail out immediately if condition not satisfied.
 			if( null != searchFilename && !searchFilename.equals("") )
 			{
 				if( !filename.equals(searchFilename))
 				{
+					context.getCounter(SarCounter.FILES_SKIPPED).increment(1);
 					return;
 				}
 			}
-
-			byte[] cipherText = value.copyBytes();
-			LOG.info("File " + filename + " to decrypt. Length: " + cipherText.length);
+			if (!filename.startsWith(searchPrefix)) {
+				context.getCounter(SarCounter.FILES_SKIPPED).increment(1);
+				return;
+			}
+			if (restoreFilter != null && !restoreFilter.accept(filename)) {
+				context.getCounter(SarCounter.FILES_SKIPPED).increment(1);
+				return;
+			}
 
 			try {
-				byte[] plainText = null ;
-				if(key.Locked){
-					MessageDigest md = MessageDigest.getInstance("sha-256");
-					byte[] digestOfPassword = md.digest(sarKey.getBytes("utf-8"));
-					String encryptionKey = new String(digestOfPassword);
-					if(encryptionKey.equals(key.Key)){
-						plainText = (key.Locked) ? AESCrypter.decrypt(cipherText, sarKey) : cipherText;
-					}
-					else{
-						LOG.error("Incorrect password.");
+				long start;
+				if (key.Locked && !AESCrypter.keyDigest(sarKey).equals(key.Key)) {
+					context.getCounter(SarCounter.WRONG_PASSWORD).increment(1);
+					LOG.error("Incorrect password for " + filename + ".");
+					return;
+				}
+				if (key.Type == SarKey.TYPE_FILE && key.BlockSize == 0 && !key.Locked && !key.Compressed
+						&& restoreFilter == null && (null == searchKeyword || searchKeyword.equals(""))
+						&& value instanceof StreamingBytesWritable
+						&& ((StreamingBytesWritable) value).getSource() instanceof StreamingBytesWritable.FileRegion) {
+					boolean written = transferRaw(key, (StreamingBytesWritable.FileRegion)
+							((StreamingBytesWritable) value).getSource(), context, sarOutPathLocal, sarOutputPath);
+					finished = written && searchPrefix.equals("");
+					return;
+				}
+				if (key.Type == SarKey.TYPE_FILE && key.BlockSize == 0 && value instanceof StreamingBytesWritable
+						&& ((StreamingBytesWritable) value).isStreaming()) {
+					boolean written = mapStream(key, (StreamingBytesWritable) value, context, sarKey, searchKeyword,
+							sarOutPathLocal, sarOutputPath);
+					// A single file search is done at the first hit.
+					finished = written && (null == searchKeyword || searchKeyword.equals(""))
+							&& restoreFilter == null && searchPrefix.equals("");
+					return;
+				}
+
+				String cacheKey = (cache == null) ? null : cacheKey(context, key);
+				byte[] decompressed = (cacheKey == null) ? null : cache.get(cacheKey);
+				if (decompressed != null) {
+					context.getCounter(SarCounter.RECORDS_CACHED).increment(1);
+				}
+				else {
+					decompressed = decode(context, key, value, sarKey);
+					if (decompressed == null) {
 						return;
 					}
-				}				
-
-				byte[] decompressed;
-				decompressed = (key.Compressed) ? GZipLib.decompress(plainText) : plainText;
+					if (cacheKey != null) {
+						cache.put(cacheKey, decompressed);
+					}
+				}
 
-				LOG.info("File " + filename + " decrypted. Length: " + plainText.length);
-				LOG.info("File " + filename + " decompressed. Length: " + decompressed.length);
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("File " + filename + " decoded. Length: " + decompressed.length);
+				}
 				if( null != searchKeyword && !searchKeyword.equals("") )
 				{
-					LOG.info("Searching keyword in " + filename + " for " +  searchKeyword);
-					if(new String(decompressed).contains(searchKeyword))
+					start = timer.start();
+					boolean hit = new String(decompressed).contains(searchKeyword);
+					timer.stop(Stage.MATCH, start, filename, decompressed.length, hit ? 1 : 0, null);
+					if(hit)
 					{
+						context.getCounter(SarCounter.SEARCH_HITS).increment(1);
 						LOG.info("File " + filename + " Search hit.");
-						if(sarOutPathLocal){
-							LOG.info("Writing file to local filesystem " + sarOutputPath);
-							WriteLocal(sarOutputPath, filename, decompressed);
-						}
-						else{
-							LOG.info("Writing file to hdfs " + sarOutputPath);
-							WriteHDFS(context.getConfiguration(), sarOutputPath, filename, decompressed);
-						}
-
+						writeOutput(context, sarOutPathLocal, sarOutputPath, filename, decompressed);
 						return;
 					}
 					else						
 					{
-						LOG.info("File " + filename + " Search miss.");
+						context.getCounter(SarCounter.SEARCH_MISSES).increment(1);
+						if (LOG.isDebugEnabled()) {
+							LOG.debug("File " + filename + " Search miss.");
+						}
 						return;
 					}
 				}
 				else
 				{
-					if(sarOutPathLocal == true){
-						LOG.info("Writing file to local filesystem @ " + sarOutputPath);
-						WriteLocal(sarOutputPath, filename, decompressed);
-					}
-					else{
-						LOG.info("Writing file to hdfs @ " + sarOutputPath);
-						WriteHDFS(context.getConfiguration(), sarOutputPath, filename, decompressed);
-					}
-					
-					finished = true;
+					context.getCounter(SarCounter.SEARCH_HITS).increment(1);
+					writeOutput(context, sarOutPathLocal, sarOutputPath, filename, decompressed);
+					// A single file search is done at the first hit.
+					finished = (restoreFilter == null && searchPrefix.equals(""));
 				}
 			} catch (Exception e) {
+				context.getCounter(SarCounter.FILES_FAILED).increment(1);
 				LOG.error(e.toString());
 			}
 		}
+
+		/*
+		 * Decrypt and decompress a record held in memory.
+		 * @return the contents, or null if the record fails its checksum.
+		 */
+		private byte[] decode(Context context, SarKey key, BytesWritable value, String sarKey) throws Exception {
+			String filename = key.Filename;
+			byte[] cipherText = value.copyBytes();
+			if (key.Checksum >= 0 && RecordChecksum.compute(cipherText) != key.Checksum) {
+				context.getCounter(SarCounter.RECORDS_CORRUPT).increment(1);
+				LOG.error("Checksum mismatch on " + filename + ", record skipped.");
+				return null;
+			}
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("File " + filename + " to decrypt. Length: " + cipherText.length);
+			}
+
+			byte[] decompressed;
+			if (key.BlockSize > 0) {
+				decompressed = decodeBlocks(context, key, cipherText, sarKey);
+			}
+			else if (key.Type == SarKey.TYPE_RECIPE) {
+				byte[] plainText = decrypt(context, key, cipherText, sarKey);
+				long start = timer.start();
+				decompressed = rebuild(context, ChunkRecipe.fromBytes(plainText), sarKey);
+				timer.stop(Stage.DECOMPRESS, start, filename, plainText.length, decompressed.length, "dedup");
+				context.getCounter(SarCounter.BYTES_DECOMPRESSED).increment(decompressed.length);
+			}
+			else {
+				decompressed = decompress(context, key, decrypt(context, key, cipherText, sarKey), sarKey);
+			}
+			return decompressed;
+		}
+
+		/*
+		 * Decode and match a record too large to hold in one streaming pass.
+		 * The plaintext goes into a pooled buffer that spills to local disk past
+		 * the memory budget, while the keyword is matched on the fly. The whole
+		 * record is read before anything is written, so a checksum mismatch
+		 * found at the end still keeps the file out of the output.
+		 * @return whether the file was written.
+		 */
+		private boolean mapStream(SarKey key, StreamingBytesWritable value, Context context, String sarKey,
+				String searchKeyword, boolean sarOutPathLocal, String sarOutputPath) throws Exception {
+			String filename = key.Filename;
+			if (plainBuffer == null) {
+				plainBuffer = new SpillableBuffer(BufferPool.get(context.getConfiguration()));
+			}
+			try {
+				KeywordMatcher matcher = (searchKeyword == null || searchKeyword.equals(""))
+						? null : new KeywordMatcher(searchKeyword.getBytes());
+				CheckedInputStream checked = new CheckedInputStream(value.getInputStream(), new PureJavaCrc32C());
+				CountingInputStream decrypted = new CountingInputStream(
+						key.Locked ? AESCrypter.decryptingStream(checked, sarKey) : checked);
+				InputStream plain = key.Compressed
+						? Codec.decompressingStream(key.Codec, decrypted, getDictionary(context, key, sarKey)) : decrypted;
+
+				long start = timer.start();
+				byte[] buffer = new byte[64 * 1024];
+				try {
+					int n;
+					while ((n = plain.read(buffer)) > 0) {
+						if (matcher != null) {
+							matcher.update(buffer, 0, n);
+						}
+						plainBuffer.write(buffer, 0, n);
+					}
+					// Whatever trails the encoded stream still counts towards the checksum.
+					while (checked.read(buffer) > 0) {
+					}
+				} finally {
+					plain.close();
+				}
+				plainBuffer.close();
+				String stages = (key.Locked ? "aes" : "") + (key.Locked && key.Compressed ? "+" : "")
+						+ (key.Compressed ? Codec.name(key.Codec) : "");
+				timer.stop(key.Compressed ? Stage.DECOMPRESS : Stage.DECRYPT, start, filename, value.getLength(),
+						plainBuffer.length(), stages);
+
+				if (key.Checksum >= 0 && checked.getChecksum().getValue() != key.Checksum) {
+					context.getCounter(SarCounter.RECORDS_CORRUPT).increment(1);
+					LOG.error("Checksum mismatch on " + filename + ", record skipped.");
+					return false;
+				}
+				if (key.Locked) {
+					context.getCounter(SarCounter.BYTES_DECRYPTED).increment(decrypted.getByteCount());
+				}
+				if (key.Compressed) {
+					context.getCounter(SarCounter.BYTES_DECOMPRESSED).increment(plainBuffer.length());
+				}
+				context.getCounter(SarCounter.RECORDS_STREAMED).increment(1);
+				if (plainBuffer.isSpilled()) {
+					context.getCounter(SarCounter.RECORDS_SPILLED).increment(1);
+				}
+
+				if (matcher != null && !matcher.isFound()) {
+					context.getCounter(SarCounter.SEARCH_MISSES).increment(1);
+					if (LOG.isDebugEnabled()) {
+						LOG.debug("File " + filename + " Search miss.");
+					}
+					return false;
+				}
+				context.getCounter(SarCounter.SEARCH_HITS).increment(1);
+				if (matcher != null) {
+					LOG.info("File " + filename + " Search hit.");
+				}
+				outputValue.setSource(plainBuffer);
+				writeOutput(context, sarOutPathLocal, sarOutputPath, filename, outputValue);
+				return true;
+			} finally {
+				outputValue.setSource(null);
+				plainBuffer.release();
+			}
+		}
+
+		/*
+		 * Extract a record stored as is, neither compressed nor encrypted, with
+		 * no staging: from a local part to a local output the bytes are
+		 * transferred between the files by the kernel, otherwise they are
+		 * copied from positional reads of the part. The checksum is verified
+		 * on what was written, and a corrupt file is deleted again.
+		 * @return whether the file was written.
+		 */
+		private boolean transferRaw(SarKey key, StreamingBytesWritable.FileRegion region, Context context,
+				boolean sarOutPathLocal, String sarOutputPath) throws IOException {
+			Configuration conf = context.getConfiguration();
+			String filename = key.Filename;
+			long length = region.length();
+			long start = timer.start();
+			File part = sarOutPathLocal ? FileTransfer.toLocalFile(region.getPath(), conf) : null;
+			long checksum;
+			if (part != null) {
+				File target = new File(sarOutputPath + filename);
+				FileUtils.forceMkdir(target.getAbsoluteFile().getParentFile());
+				FileTransfer.transfer(part, region.getOffset(), length, target);
+				checksum = (key.Checksum >= 0) ? FileTransfer.checksum(target) : -1;
+			}
+			else {
+				CheckedInputStream in = new CheckedInputStream(region.open(), new PureJavaCrc32C());
+				try {
+					if (sarOutPathLocal) {
+						WriteLocal(sarOutputPath, filename, in);
+					}
+					else {
+						WriteHDFS(conf, sarOutputPath, filename, in);
+					}
+				} finally {
+					in.close();
+				}
+				checksum = in.getChecksum().getValue();
+			}
+			if (key.Checksum >= 0 && checksum != key.Checksum) {
+				if (sarOutPathLocal) {
+					FileUtils.deleteQuietly(new File(sarOutputPath + filename));
+				}
+				else {
+					Path written = new Path(sarOutputPath + filename);
+					written.getFileSystem(conf).delete(written, false);
+				}
+				context.getCounter(SarCounter.RECORDS_CORRUPT).increment(1);
+				LOG.error("Checksum mismatch on " + filename + ", record skipped.");
+				return false;
+			}
+			timer.stop(Stage.WRITE, start, filename, length, length, (part != null) ? "transfer" : null);
+			context.getCounter(SarCounter.SEARCH_HITS).increment(1);
+			context.getCounter(SarCounter.RECORDS_TRANSFERRED).increment(1);
+			context.getCounter(SarCounter.FILES_WRITTEN).increment(1);
+			context.getCounter(SarCounter.BYTES_WRITTEN).increment(length);
+			return true;
+		}
+
+		private void writeOutput(Context context, boolean sarOutPathLocal, String sarOutputPath,
+				String filename, byte[] contents) throws IOException, InterruptedException {
+			outputValue.set(contents, 0, contents.length);
+			writeOutput(context, sarOutPathLocal, sarOutputPath, filename, outputValue);
+		}
+
+		private void writeOutput(Context context, boolean sarOutPathLocal, String sarOutputPath,
+				String filename, StreamingBytesWritable contents) throws IOException, InterruptedException {
+			long start = timer.start();
+			long length = contents.getLength();
+			if (restoreFilter != null) {
+				// Restored files are batched into the plain SequenceFile containers of the job output.
+				restoredKey.Filename = filename;
+				restoredKey.FileSize = length;
+				// Search threads share the task output.
+				synchronized (context) {
+					context.write(restoredKey, contents);
+				}
+			}
+			else if(sarOutPathLocal){
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Writing file to local filesystem @ " + sarOutputPath);
+				}
+				InputStream in = contents.getInputStream();
+				try {
+					WriteLocal(sarOutputPath, filename, in);
+				} finally {
+					in.close();
+				}
+			}
+			else{
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("Writing file to hdfs @ " + sarOutputPath);
+				}
+				InputStream in = contents.getInputStream();
+				try {
+					WriteHDFS(context.getConfiguration(), sarOutputPath, filename, in);
+				} finally {
+					in.close();
+				}
+			}
+			timer.stop(Stage.WRITE, start, filename, length, length, null);
+			context.getCounter(SarCounter.FILES_WRITTEN).increment(1);
+			context.getCounter(SarCounter.BYTES_WRITTEN).increment(length);
+		}
+	}
+
+	/*
+	 * Knuth-Morris-Pratt matching of the keyword bytes across the pieces of a
+	 * streamed file, so a match split between two reads is still found.
+	 */
+	static class KeywordMatcher {
+		private final byte[] pattern;
+		private final int[] fallback;
+		private int matched = 0;
+		private boolean found = false;
+
+		KeywordMatcher(byte[] pattern) {
+			this.pattern = pattern;
+			this.fallback = new int[pattern.length];
+			for (int i = 1, k = 0; i < pattern.length; i++) {
+				while (k > 0 && pattern[i] != pattern[k]) {
+					k = fallback[k - 1];
+				}
+				if (pattern[i] == pattern[k]) {
+					k++;
+				}
+				fallback[i] = k;
+			}
+		}
+
+		void update(byte[] b, int off, int len) {
+			for (int i = off; i < off + len && !found; i++) {
+				while (matched > 0 && b[i] != pattern[matched]) {
+					matched = fallback[matched - 1];
+				}
+				if (b[i] == pattern[matched]) {
+					matched++;
+				}
+				if (matched == pattern.length) {
+					found = true;
+				}
+			}
+		}
+
+		boolean isFound() {
+			return found;
+		}
 	}
 
 	private void printUsage(Options opts) {
 		new HelpFormatter().printHelp("Client", opts);
 	}	
 
-	public boolean init(String[] args) throws ParseException {
+	public boolean init(String[] args) throws ParseException, IOException {
 		LOG.info("Initializing archive search client.");
 		Options opts = new Options();
 		opts.addOption("in_path", true, "Input directory with files.");
@@ -201,7 +827,18 @@ public class ArchiveSearcher {
 		opts.addOption("out_path_local", false, "Specifies the output directory is local filesystem.");
 		opts.addOption("key", true, "Password used to encrypt files.");
 		opts.addOption("search_file", true, "Search for the file <filename>. (case sensitive)");
+		opts.addOption("threads", true, "Number of records each map task decodes and matches at once. (default 1)");
+		opts.addOption("search_prefix", true, "Search the files whose names start with <prefix>. (case sensitive)");
 		opts.addOption("search_keyword", true, "Search for the keyword <keyword>.");
+		opts.addOption("restore_list", true, "Restore every file named in <list>, one name per line, into SequenceFile containers under the output directory.");
+		opts.addOption("restore_glob", true, "Restore every file matching any of the comma separated glob <patterns>.");
+		opts.addOption("catalog", true, "Search every archive of the catalog <catalog> that can hold the files searched for, instead of -in_path.");
+		opts.addOption("from", true, "Search only cataloged archives with files from day <yyyy-MM-dd> on.");
+		opts.addOption("to", true, "Search only cataloged archives with files up to day <yyyy-MM-dd>.");
+		opts.addOption("range", true, "Read only bytes <start>-<end> of the file given by -search_file, without a MapReduce job. An empty end reads to the end of the file.");
+		opts.addOption("cache_dir", true, "Local directory caching the decoded contents of range reads and single file searches across runs, encrypted with the data key.");
+		opts.addOption("trace", false, "Log a trace event for every record stage slower than the trace threshold.");
+		opts.addOption("trace_threshold_ms", true, "Minimum stage time in milliseconds to trace. (default 0)");
 		opts.addOption("help", false, "Print usage information.");
 
 		CommandLine cliParser = new GnuParser().parse(opts, args);
@@ -220,7 +857,16 @@ public class ArchiveSearcher {
 			conf.set("mapreduce.output.fileoutputformat.compression.type", "BLOCK");
 			conf.set("mapreduce.output.fileoutputformat.compress.codec",
 		    "org.apache.hadoop.io.compress.GzipCodec");*/
-		if (!cliParser.hasOption("in_path")) {
+		if (cliParser.hasOption("catalog")) {
+			if (cliParser.hasOption("in_path") || cliParser.hasOption("range")) {
+				throw new IllegalArgumentException("A catalog search takes neither -in_path nor -range.");
+			}
+			catalogPath = cliParser.getOptionValue("catalog");
+			fromTime = cliParser.hasOption("from") ? parseDay(cliParser.getOptionValue("from")) : Long.MIN_VALUE;
+			// Up to the end of the day.
+			toTime = cliParser.hasOption("to") ? parseDay(cliParser.getOptionValue("to")) + 24L * 60 * 60 * 1000 - 1 : Long.MAX_VALUE;
+		}
+		else if (!cliParser.hasOption("in_path")) {
 			throw new IllegalArgumentException("No input folder specified.");
 		}
 		else {
@@ -242,12 +888,45 @@ public class ArchiveSearcher {
 		if (cliParser.hasOption("search_file")) {
 			searchFilename = cliParser.getOptionValue("search_file");
 		}
+		if (cliParser.hasOption("search_prefix")) {
+			searchPrefix = cliParser.getOptionValue("search_prefix");
+		}
 		if (cliParser.hasOption("search_keyword")) {
 			searchKeyword = cliParser.getOptionValue("search_keyword");
 		}
-		if (!cliParser.hasOption("search_file") && !cliParser.hasOption("search_keyword")) {
+		if (cliParser.hasOption("restore_list")) {
+			Path list = new Path(cliParser.getOptionValue("restore_list"));
+			restoreList = list.getFileSystem(conf).makeQualified(list).toString();
+		}
+		if (cliParser.hasOption("restore_glob")) {
+			restoreGlobs = cliParser.getOptionValue("restore_glob");
+		}
+		if (!cliParser.hasOption("search_file") && !cliParser.hasOption("search_keyword")
+				&& !cliParser.hasOption("search_prefix") && !cliParser.hasOption("restore_list") && !cliParser.hasOption("restore_glob")) {
 			throw new IllegalArgumentException("Please specify either search keyword or file to search for.");
 		}
+		if (cliParser.hasOption("range")) {
+			if (!cliParser.hasOption("search_file")) {
+				throw new IllegalArgumentException("A range read needs the file given by -search_file.");
+			}
+			String range = cliParser.getOptionValue("range");
+			int dash = range.indexOf('-');
+			if (dash <= 0) {
+				throw new IllegalArgumentException("Range must be given as <start>-<end>.");
+			}
+			rangeStart = Long.parseLong(range.substring(0, dash));
+			rangeEnd = (dash == range.length() - 1) ? -1 : Long.parseLong(range.substring(dash + 1));
+		}
+		if (cliParser.hasOption("threads")) {
+			int threads = Integer.parseInt(cliParser.getOptionValue("threads"));
+			if (threads <= 0) {
+				throw new IllegalArgumentException("Number of threads must be positive.");
+			}
+			conf.setInt(SEARCH_THREADS, threads);
+		}
+		if (cliParser.hasOption("cache_dir")) {
+			conf.set(RecordCache.DISK_DIR, cliParser.getOptionValue("cache_dir"));
+		}
 		if (cliParser.hasOption("key")) {
 			unlockKey = cliParser.getOptionValue("key");
 		}
@@ -257,21 +936,50 @@ public class ArchiveSearcher {
 		conf.set("sar.in.path.local", Boolean.toString(inPathTypeLocal));
 		conf.set("sar.in.path", inPath);
 		conf.set("sar.search.filename", searchFilename);
+		conf.set("sar.search.prefix", searchPrefix);
 		conf.set("sar.search.keyword", searchKeyword);		
-		conf.set("sar.encrypt.key", unlockKey);		
+		conf.set(RestoreFilter.RESTORE_LIST, restoreList);
+		conf.set(RestoreFilter.RESTORE_GLOBS, restoreGlobs);
+		conf.set(RecordTracer.TRACE_ENABLED, Boolean.toString(cliParser.hasOption("trace")));
+		if (cliParser.hasOption("trace_threshold_ms")) {
+			conf.set(RecordTracer.TRACE_THRESHOLD_MS, cliParser.getOptionValue("trace_threshold_ms"));
+		}
 
 		return true;
 	}
 
 	public boolean run() throws IOException, InterruptedException, ClassNotFoundException {
 		LOG.info("Starting Client");	
+		if (rangeStart >= 0) {
+			return runRange();
+		}
+		List<Path> inputs = catalogPath.equals("") ? selectArchiveParts() : selectCatalogParts();
+		if (inputs.isEmpty()) {
+			LOG.info("No part of " + (catalogPath.equals("") ? inPath : "the archives of " + catalogPath)
+					+ " can hold the files searched for.");
+			return true;
+		}
+
 		Job job = new Job(conf);
+		ArchiveKeys.setJobKeys(job, keys);
 		job.setJarByClass(ArchiveSearcher.class);
 		job.setJobName("Archive Searcher");
-		FileInputFormat.setInputPaths(job, new Path(inPath));
+		FileInputFormat.setInputPaths(job, inputs.toArray(new Path[inputs.size()]));
 		//FileOutputFormat.setOutputPath(job, new Path(outPath));
-		job.setInputFormatClass(SequenceFileInputFormat.class);
-		job.setOutputFormatClass(NullOutputFormat.class);
+		job.setInputFormatClass(ResyncSequenceFileInputFormat.class);
+		if (!restoreList.equals("") || !restoreGlobs.equals("")) {
+			// Bulk restore: one pass over the archive, map-only, hits batched into containers.
+			Path output = new Path(outPath);
+			FileSystem outFs = outPathTypeLocal ? FileSystem.getLocal(conf) : output.getFileSystem(conf);
+			FileOutputFormat.setOutputPath(job, outFs.makeQualified(output));
+			job.setOutputFormatClass(ArchiveOutputFormat.class);
+			job.setOutputKeyClass(SarKey.class);
+			job.setOutputValueClass(BytesWritable.class);
+			job.setNumReduceTasks(0);
+		}
+		else {
+			job.setOutputFormatClass(NullOutputFormat.class);
+		}
 		/*SequenceFileOutputFormat.setCompressOutput(job, true);
 				SequenceFileOutputFormat.setOutputCompressionType(job, CompressionType.BLOCK);
 				SequenceFileOutputFormat.setOutputCompressorClass(job, GzipCodec.class);*/
@@ -280,9 +988,229 @@ public class ArchiveSearcher {
 		//job.setNumReduceTasks(0);
 		//job.setNumMapTasks(1);
 
-		return(job.waitForCompletion(true) ? true : false);
+		boolean success;
+		try {
+			success = job.waitForCompletion(true);
+		} finally {
+			ArchiveKeys.releaseJobKeys(job);
+		}
+		CounterSummary.log(job, LOG);
+		if (job.getCounters() != null) {
+			counters.incrAllCounters(job.getCounters());
+		}
+		return success;
+	}
+
+	/*
+	 * Pick the parts of the archive given by -in_path to search, and set up
+	 * the key and manifest of the job for it.
+	 */
+	private List<Path> selectArchiveParts() throws IOException {
+		// Only the part files hold archive records; side data such as the chunk store lives beside them.
+		Path archive = new Path(inPath);
+		Path parts = archive;
+		FileSystem fs = archive.getFileSystem(conf);
+		boolean singlePart = fs.isFile(archive);
+		if (singlePart) {
+			// One part file: the archive is its directory, or the archive of its generation.
+			archive = archive.getParent();
+			if (archive.getName().startsWith(ArchiveManifest.GENERATION_PREFIX)) {
+				archive = archive.getParent();
+			}
+		}
+		try {
+			ArchiveKeys.addJobKey(keys, ArchiveKeys.JOB_KEY, ArchiveKeys.unlock(fs, archive, unlockKey));
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Failed to unlock the key header of " + archive, e);
+		}
+		if (singlePart) {
+			conf.setBoolean("sar.manifest", ArchiveManifest.exists(fs, archive));
+			return new ArrayList<Path>(Collections.singletonList(new Path(inPath)));
+		}
+		if (ArchiveManifest.exists(fs, archive)) {
+			conf.setBoolean("sar.manifest", true);
+			parts = new Path(inPath, ArchiveManifest.GENERATION_PREFIX + "*");
+			if (!searchFilename.equals("")) {
+				// A file lives in exactly one generation; read only that one.
+				Integer generation = ArchiveManifest.load(fs, archive).resolveLatest().get(searchFilename);
+				if (generation == null || generation.intValue() < 0) {
+					LOG.info("File " + searchFilename + " is not in the latest version of " + inPath);
+					return new ArrayList<Path>();
+				}
+				parts = new Path(inPath, ArchiveManifest.getGenerationName(generation));
+			}
+		}
+		return selectParts(fs, archive, parts);
+	}
+
+	/*
+	 * Pick the parts of the cataloged archives that can hold the files
+	 * searched for: archives outside the time range are skipped, and parts
+	 * are pruned by the name summaries of the catalog. Every archive is
+	 * unlocked with the password; those it does not unlock are skipped.
+	 * An entry scanned at another manifest generation than the archive's
+	 * misses the parts written since, so the archive is rescanned.
+	 */
+	private List<Path> selectCatalogParts() throws IOException {
+		Path catalogDir = new Path(catalogPath);
+		List<CatalogEntry> entries = new ArchiveCatalog(catalogDir.getFileSystem(conf), catalogDir).load();
+		conf.setBoolean("sar.manifest", true);
+		List<Path> inputs = new ArrayList<Path>();
+		int archives = 0;
+		int outOfRange = 0;
+		int prunedParts = 0;
+		int rescanned = 0;
+		for (CatalogEntry cataloged : entries) {
+			CatalogEntry entry = cataloged;
+			Path archive = new Path(entry.archive);
+			FileSystem fs = archive.getFileSystem(conf);
+			if (!fs.exists(archive)) {
+				LOG.warn("Cataloged archive " + entry.archive + " is gone; remove its entry with ArchiveCataloger.");
+				continue;
+			}
+			int generation = ArchiveManifest.readGeneration(fs, archive);
+			if (generation != entry.generation) {
+				LOG.warn("Catalog entry of " + entry.archive + " was scanned at generation " + entry.generation
+						+ " but the archive is at " + generation + "; rescanning it. Refresh the entry with ArchiveCataloger.");
+				entry = ArchiveCatalog.scan(conf, archive);
+				rescanned++;
+			}
+			if (!entry.overlaps(fromTime, toTime)) {
+				outOfRange++;
+				continue;
+			}
+			List<Path> parts = new ArrayList<Path>();
+			for (CatalogEntry.PartSummary part : entry.parts) {
+				if ((!searchFilename.equals("") && !part.mightContain(searchFilename))
+						|| (!searchPrefix.equals("") && !part.mightContainPrefix(searchPrefix))
+						|| part.records == 0) {
+					prunedParts++;
+					continue;
+				}
+				Path path = new Path(part.path);
+				if (!fs.exists(path)) {
+					LOG.warn("Cataloged part " + path + " is gone; refresh the catalog entry of " + entry.archive);
+					continue;
+				}
+				parts.add(path);
+			}
+			if (parts.isEmpty()) {
+				continue;
+			}
+			try {
+				ArchiveKeys.addJobKey(keys, ARCHIVE_KEY_PREFIX + entry.archive, ArchiveKeys.unlock(fs, archive, unlockKey));
+			} catch (Exception e) {
+				LOG.error("Skipping archive " + entry.archive + ": " + e.getMessage());
+				continue;
+			}
+			archives++;
+			inputs.addAll(parts);
+		}
+		LOG.info("Searching " + inputs.size() + " parts of " + archives + " of " + entries.size()
+				+ " cataloged archives; " + outOfRange + " archives were out of the time range and "
+				+ prunedParts + " parts could not hold the files searched for; " + rescanned
+				+ " stale entries were rescanned.");
+		return inputs;
+	}
+
+	private static long parseDay(String day) {
+		try {
+			return new SimpleDateFormat("yyyy-MM-dd").parse(day).getTime();
+		} catch (java.text.ParseException e) {
+			throw new IllegalArgumentException("Day must be given as yyyy-MM-dd: " + day);
+		}
 	}
 
+	/*
+	 * Pick the part files under the parts directory, or directories glob, that
+	 * can hold the files searched for. Bucketed archives are pruned to the
+	 * buckets of a searched name, prefix or restore list; anything else reads
+	 * every part.
+	 */
+	private List<Path> selectParts(FileSystem fs, Path archive, Path parts) throws IOException {
+		List<Path> inputs = new ArrayList<Path>();
+		ArchiveDescriptor descriptor = ArchiveDescriptor.load(fs, archive);
+		Set<Integer> buckets = null;
+		if (descriptor != null) {
+			if (!searchFilename.equals("")) {
+				buckets = Collections.singleton(descriptor.getBucket(searchFilename));
+			}
+			else if (!searchPrefix.equals("") && descriptor.getPrefixBucket(searchPrefix) >= 0) {
+				buckets = Collections.singleton(descriptor.getPrefixBucket(searchPrefix));
+			}
+			else if (!restoreList.equals("") && restoreGlobs.equals("")) {
+				buckets = new TreeSet<Integer>();
+				Path list = new Path(restoreList);
+				BufferedReader reader = new BufferedReader(new InputStreamReader(
+						list.getFileSystem(conf).open(list), "utf-8"));
+				try {
+					String line;
+					while ((line = reader.readLine()) != null && buckets.size() < descriptor.getBuckets()) {
+						if (line.trim().length() > 0) {
+							buckets.add(descriptor.getBucket(line.trim()));
+						}
+					}
+				} finally {
+					reader.close();
+				}
+			}
+		}
+		if (buckets == null) {
+			inputs.add(new Path(parts, "part-*"));
+			return inputs;
+		}
+		LOG.info("Reading " + buckets.size() + " of " + descriptor.getBuckets() + " buckets of " + inPath);
+		for (int bucket : buckets) {
+			Path input = new Path(parts, ArchiveDescriptor.getPartName(bucket));
+			FileStatus[] matches = fs.globStatus(input);
+			if (matches != null && matches.length > 0) {
+				inputs.add(input);
+			}
+		}
+		return inputs;
+	}
+
+	/*
+	 * Read a byte range of one file straight from the archive parts.
+	 */
+	private boolean runRange() throws IOException {
+		byte[] contents;
+		try {
+			RangeReader reader = new RangeReader(conf, new Path(inPath), unlockKey);
+			try {
+				contents = reader.read(searchFilename, rangeStart, rangeEnd);
+			} finally {
+				reader.close();
+			}
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			throw new IOException("Failed to read " + searchFilename + " from " + inPath, e);
+		}
+		if (contents == null) {
+			LOG.info("File " + searchFilename + " is not in " + inPath);
+			return true;
+		}
+		FileSystem outFs = outPathTypeLocal ? FileSystem.getLocal(conf) : FileSystem.get(conf);
+		Path outFile = new Path(outPath, searchFilename);
+		FSDataOutputStream out = outFs.create(outFile, true);
+		try {
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+		LOG.info("Wrote " + contents.length + " bytes of " + searchFilename + " to " + outFile);
+		return true;
+	}
+
+	/**
+	 * @return the counters of the jobs run so far, summed.
+	 */
+	public Counters getCounters() {
+		return counters;
+	}
 
 	public static void main(String[] args) throws Exception {
 		boolean result = false;
@@ -0,0 +1,443 @@
+package com.aczire.sar;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+
+import com.aczire.sar.cache.RecordCache;
+import com.aczire.sar.io.RecordScanner;
+import com.aczire.sar.server.ArchiveIndex;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A long-running query server over one archive.
+ * 
+ * <p>The server indexes the archive once at startup, keeps a reader open on
+ * every part, and answers over HTTP without a MapReduce job:</p>
+ * <ul>
+ * <li><code>/file?name=&lt;name&gt;[&amp;start=&lt;s&gt;&amp;end=&lt;e&gt;]</code>
+ * returns a file, or a byte range of it.</li>
+ * <li><code>/list?prefix=&lt;prefix&gt;</code> lists the files and their stored sizes.</li>
+ * <li><code>/search?keyword=&lt;keyword&gt;[&amp;prefix=&lt;prefix&gt;]</code> lists the
+ * files containing the keyword. Searches over more stored bytes than
+ * <code>-scan_limit</code> are submitted as an archive searcher job
+ * instead, with its hits written under <code>-out_path</code>.</li>
+ * <li><code>/jobs</code> lists the submitted jobs and their state.</li>
+ * <li><code>/cache</code> reports the hits, misses and evictions of the
+ * record cache, see {@link RecordCache}.</li>
+ * </ul>
+ * 
+ * <p>The server reads the archive as it was at startup; restart it to pick up
+ * a later generation.</p>
+ * 
+ * <p>It listens on the loopback interface unless <code>-bind</code> says
+ * otherwise. With <code>-token</code>, every request has to carry the token
+ * in the <code>X-Archive-Token</code> header; serving decrypted files on
+ * another interface without one is logged as a warning.</p>
+ */
+public class ArchiveServer {
+	private static final Log LOG = LogFactory.getLog(ArchiveServer.class);
+
+	private String inPath = "";
+	private String outPath = "";
+	private String unlockKey = "KEY";
+	private String bind = "127.0.0.1";
+	private int port = 8520;
+	private String token = null; // Required of every request when set.
+	private int threads = 8;
+	private long scanLimit = 64L * 1024 * 1024; // Stored bytes a search may decode in-process.
+
+	private ArchiveIndex index;
+	private RangeReader reader;
+	private HttpServer server;
+	// Large searches run as jobs, one at a time.
+	private final ExecutorService jobRunner = Executors.newSingleThreadExecutor();
+	private final Map<String, String> jobs = new LinkedHashMap<String, String>();
+	private int jobCount = 0;
+
+	Configuration conf = new Configuration();
+
+	private void printUsage(Options opts) {
+		new HelpFormatter().printHelp("ArchiveServer", opts);
+	}
+
+	public boolean init(String[] args) throws ParseException {
+		LOG.info("Initializing archive server.");
+		Options opts = new Options();
+		opts.addOption("in_path", true, "Archive directory to serve.");
+		opts.addOption("out_path", true, "Directory the hits of searches submitted as jobs are written under.");
+		opts.addOption("key", true, "Password the archive was encrypted with.");
+		opts.addOption("bind", true, "Address to listen on, 0.0.0.0 for every interface. (default 127.0.0.1)");
+		opts.addOption("port", true, "Port to listen on. (default 8520)");
+		opts.addOption("token", true, "Token every request has to send in the X-Archive-Token header.");
+		opts.addOption("threads", true, "Number of requests served at once. (default 8)");
+		opts.addOption("scan_limit", true, "Stored bytes a search may decode in the server; larger searches run as jobs. (default 67108864)");
+		opts.addOption("cache_bytes", true, "Memory the cache of decoded records may use. (default 67108864, 0 for none)");
+		opts.addOption("cache_dir", true, "Local directory of a second cache tier, encrypted with the data key, that outlives the server.");
+		opts.addOption("help", false, "Print usage information.");
+
+		CommandLine cliParser = new GnuParser().parse(opts, args);
+
+		if (args.length == 0) {
+			printUsage(opts);
+			throw new IllegalArgumentException("No args specified for archive server to initialize");
+		}
+
+		if (cliParser.hasOption("help")) {
+			printUsage(opts);
+			return false;
+		}
+
+		if (!cliParser.hasOption("in_path")) {
+			throw new IllegalArgumentException("No input folder specified.");
+		}
+		inPath = cliParser.getOptionValue("in_path");
+		if (cliParser.hasOption("out_path")) {
+			outPath = cliParser.getOptionValue("out_path");
+		}
+		if (cliParser.hasOption("key")) {
+			unlockKey = cliParser.getOptionValue("key");
+		}
+		if (cliParser.hasOption("bind")) {
+			bind = cliParser.getOptionValue("bind");
+		}
+		if (cliParser.hasOption("port")) {
+			port = Integer.parseInt(cliParser.getOptionValue("port"));
+		}
+		if (cliParser.hasOption("token")) {
+			token = cliParser.getOptionValue("token");
+			if (token.equals("")) {
+				throw new IllegalArgumentException("Token must not be empty.");
+			}
+		}
+		if (cliParser.hasOption("threads")) {
+			threads = Integer.parseInt(cliParser.getOptionValue("threads"));
+		}
+		if (cliParser.hasOption("scan_limit")) {
+			scanLimit = Long.parseLong(cliParser.getOptionValue("scan_limit"));
+		}
+		if (cliParser.hasOption("cache_bytes")) {
+			conf.setLong(RecordCache.MEMORY_BYTES, Long.parseLong(cliParser.getOptionValue("cache_bytes")));
+		}
+		if (cliParser.hasOption("cache_dir")) {
+			conf.set(RecordCache.DISK_DIR, cliParser.getOptionValue("cache_dir"));
+		}
+		return true;
+	}
+
+	/**
+	 * Index the archive and start serving; returns once the server listens.
+	 */
+	public void start() throws Exception {
+		long begin = System.currentTimeMillis();
+		Path archive = new Path(inPath);
+		index = ArchiveIndex.load(conf, archive);
+		reader = new RangeReader(conf, archive, unlockKey);
+		LOG.info("Indexed " + index.size() + " files in " + index.getPartCount() + " parts of " + inPath
+				+ " in " + (System.currentTimeMillis() - begin) + " ms");
+		if (index.getDuplicateCount() > 0) {
+			LOG.warn(index.getDuplicateCount() + " records repeat a name stored in an earlier part; "
+					+ "/file serves the first, /list and /search show every one.");
+		}
+
+		InetSocketAddress address = new InetSocketAddress(bind, port);
+		if (token == null && !address.getAddress().isLoopbackAddress()) {
+			LOG.warn("Serving " + inPath + " on " + bind + " without a -token; anyone who can reach it can read the archive.");
+		}
+		server = HttpServer.create(address, 0);
+		server.createContext("/file", new Handler() {
+			void handle(HttpExchange exchange, Map<String, String> params) throws Exception {
+				serveFile(exchange, params);
+			}
+		});
+		server.createContext("/list", new Handler() {
+			void handle(HttpExchange exchange, Map<String, String> params) throws Exception {
+				serveList(exchange, params);
+			}
+		});
+		server.createContext("/search", new Handler() {
+			void handle(HttpExchange exchange, Map<String, String> params) throws Exception {
+				serveSearch(exchange, params);
+			}
+		});
+		server.createContext("/jobs", new Handler() {
+			void handle(HttpExchange exchange, Map<String, String> params) throws Exception {
+				serveJobs(exchange);
+			}
+		});
+		server.createContext("/cache", new Handler() {
+			void handle(HttpExchange exchange, Map<String, String> params) throws Exception {
+				send(exchange, 200, ((reader.getCache() == null) ? "Record cache is off." : reader.getCache().toString()) + "\n");
+			}
+		});
+		server.setExecutor(Executors.newFixedThreadPool(Math.max(1, threads)));
+		server.start();
+		LOG.info("Archive server listening on " + bind + " port " + server.getAddress().getPort());
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void stop() {
+		if (server != null) {
+			server.stop(0);
+			((ExecutorService) server.getExecutor()).shutdownNow();
+		}
+		jobRunner.shutdownNow();
+		if (reader != null) {
+			reader.close();
+		}
+		if (index != null) {
+			index.close();
+		}
+	}
+
+	/*
+	 * Read a range of a file, or all of it with a negative end.
+	 * @return the bytes, or null if the file is not in the archive.
+	 */
+	private byte[] read(String filename, long start, long end) throws Exception {
+		ArchiveIndex.Location location = index.get(filename);
+		if (location == null) {
+			return null;
+		}
+		return read(location, start, end);
+	}
+
+	private byte[] read(ArchiveIndex.Location location, long start, long end) throws Exception {
+		synchronized (index.lockFor(location)) {
+			RecordScanner scanner = index.open(location);
+			return reader.read(scanner, location.dir, start, end);
+		}
+	}
+
+	private void serveFile(HttpExchange exchange, Map<String, String> params) throws Exception {
+		String name = params.get("name");
+		if (name == null) {
+			send(exchange, 400, "Missing name.\n");
+			return;
+		}
+		long start = params.containsKey("start") ? Long.parseLong(params.get("start")) : 0;
+		long end = params.containsKey("end") ? Long.parseLong(params.get("end")) : -1;
+		byte[] contents = read(name, start, end);
+		if (contents == null) {
+			send(exchange, 404, "File " + name + " is not in the archive.\n");
+			return;
+		}
+		exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+		send(exchange, 200, contents);
+	}
+
+	private void serveList(HttpExchange exchange, Map<String, String> params) throws IOException {
+		String prefix = params.containsKey("prefix") ? params.get("prefix") : "";
+		StringBuilder body = new StringBuilder();
+		for (Map.Entry<String, List<ArchiveIndex.Location>> entry : index.list(prefix).entrySet()) {
+			for (ArchiveIndex.Location location : entry.getValue()) {
+				body.append(entry.getKey()).append('\t').append(location.storedLength).append('\n');
+			}
+		}
+		send(exchange, 200, body.toString());
+	}
+
+	private void serveSearch(HttpExchange exchange, Map<String, String> params) throws Exception {
+		String keyword = params.get("keyword");
+		if (keyword == null || keyword.equals("")) {
+			send(exchange, 400, "Missing keyword.\n");
+			return;
+		}
+		String prefix = params.containsKey("prefix") ? params.get("prefix") : "";
+		List<String> names = new ArrayList<String>();
+		List<ArchiveIndex.Location> candidates = new ArrayList<ArchiveIndex.Location>();
+		long stored = 0;
+		for (Map.Entry<String, List<ArchiveIndex.Location>> entry : index.list(prefix).entrySet()) {
+			for (ArchiveIndex.Location location : entry.getValue()) {
+				names.add(entry.getKey());
+				candidates.add(location);
+				stored += location.storedLength;
+			}
+		}
+
+		if (stored > scanLimit) {
+			if (outPath.equals("")) {
+				send(exchange, 413, "Search over " + stored + " stored bytes exceeds the scan limit, and no -out_path is set for jobs.\n");
+				return;
+			}
+			String output = submitSearch(keyword, prefix);
+			send(exchange, 202, "Search over " + stored + " stored bytes submitted as a job; hits go to " + output + "\n");
+			return;
+		}
+
+		StringBuilder body = new StringBuilder();
+		for (int i = 0; i < candidates.size(); i++) {
+			byte[] contents = read(candidates.get(i), 0, -1);
+			if (new String(contents).contains(keyword)) {
+				body.append(names.get(i)).append('\n');
+			}
+		}
+		send(exchange, 200, body.toString());
+	}
+
+	private String submitSearch(String keyword, String prefix) {
+		final String id;
+		synchronized (jobs) {
+			id = "search-" + (++jobCount);
+			jobs.put(id, "queued");
+		}
+		final String output = new Path(outPath, id).toString() + "/";
+		final List<String> args = new ArrayList<String>();
+		args.add("-in_path");
+		args.add(inPath);
+		args.add("-out_path");
+		args.add(output);
+		args.add("-key");
+		args.add(unlockKey);
+		args.add("-search_keyword");
+		args.add(keyword);
+		if (!prefix.equals("")) {
+			args.add("-search_prefix");
+			args.add(prefix);
+		}
+		jobRunner.execute(new Runnable() {
+			public void run() {
+				setJobState(id, "running");
+				try {
+					ArchiveSearcher searcher = new ArchiveSearcher();
+					searcher.conf = new Configuration(conf);
+					searcher.init(args.toArray(new String[args.size()]));
+					setJobState(id, searcher.run() ? "succeeded" : "failed");
+				} catch (Exception e) {
+					LOG.error("Search job " + id + " failed", e);
+					setJobState(id, "failed: " + e);
+				}
+			}
+		});
+		LOG.info("Submitted " + id + " for keyword search of " + inPath);
+		return output;
+	}
+
+	private void setJobState(String id, String state) {
+		synchronized (jobs) {
+			jobs.put(id, state);
+		}
+	}
+
+	private void serveJobs(HttpExchange exchange) throws IOException {
+		StringBuilder body = new StringBuilder();
+		synchronized (jobs) {
+			for (Map.Entry<String, String> job : jobs.entrySet()) {
+				body.append(job.getKey()).append('\t').append(job.getValue()).append('\n');
+			}
+		}
+		send(exchange, 200, body.toString());
+	}
+
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+		send(exchange, status, body.getBytes("utf-8"));
+	}
+
+	private static void send(HttpExchange exchange, int status, byte[] body) throws IOException {
+		exchange.sendResponseHeaders(status, (body.length == 0) ? -1 : body.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(body);
+		} finally {
+			out.close();
+		}
+	}
+
+	/*
+	 * Parses the query string and turns failures into error responses.
+	 */
+	private abstract class Handler implements HttpHandler {
+		abstract void handle(HttpExchange exchange, Map<String, String> params) throws Exception;
+
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!exchange.getRequestMethod().equals("GET")) {
+					send(exchange, 405, "Only GET is supported.\n");
+					return;
+				}
+				if (!authorized(exchange)) {
+					send(exchange, 401, "Missing or wrong X-Archive-Token.\n");
+					return;
+				}
+				handle(exchange, parseQuery(exchange.getRequestURI().getRawQuery()));
+			} catch (NumberFormatException e) {
+				send(exchange, 400, "Malformed number: " + e.getMessage() + "\n");
+			} catch (Exception e) {
+				LOG.error("Failed to serve " + exchange.getRequestURI(), e);
+				send(exchange, 500, e.toString() + "\n");
+			} finally {
+				exchange.close();
+			}
+		}
+
+		private boolean authorized(HttpExchange exchange) throws IOException {
+			if (token == null) {
+				return true;
+			}
+			String sent = exchange.getRequestHeaders().getFirst("X-Archive-Token");
+			// Compared in constant time, so the token cannot be guessed byte by byte.
+			return sent != null && MessageDigest.isEqual(sent.getBytes("utf-8"), token.getBytes("utf-8"));
+		}
+
+		private Map<String, String> parseQuery(String query) throws IOException {
+			Map<String, String> params = new HashMap<String, String>();
+			if (query == null) {
+				return params;
+			}
+			for (String pair : query.split("&")) {
+				int equals = pair.indexOf('=');
+				if (equals > 0) {
+					params.put(URLDecoder.decode(pair.substring(0, equals), "utf-8"),
+							URLDecoder.decode(pair.substring(equals + 1), "utf-8"));
+				}
+			}
+			return params;
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		final ArchiveServer archiveServer = new ArchiveServer();
+		try {
+			boolean doRun = archiveServer.init(args);
+			if (!doRun) {
+				System.exit(0);
+			}
+			archiveServer.start();
+		} catch (Throwable t) {
+			LOG.fatal("Error running archive server", t);
+			System.exit(1);
+		}
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+			@Override
+			public void run() {
+				LOG.info("Stopping archive server");
+				archiveServer.stop();
+			}
+		});
+	}
+}
@@ -0,0 +1,346 @@
+package com.aczire.sar;
+
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Checksum;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.GnuParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.LongWritable;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.Mapper;
+import org.apache.hadoop.mapreduce.lib.input.FileInputFormat;
+import org.apache.hadoop.mapreduce.lib.input.NLineInputFormat;
+import org.apache.hadoop.mapreduce.lib.output.FileOutputFormat;
+import org.apache.hadoop.mapreduce.lib.output.TextOutputFormat;
+import org.apache.hadoop.util.PureJavaCrc32C;
+
+import com.aczire.sar.dedup.ChunkStore;
+import com.aczire.sar.io.RecordScanner;
+import com.aczire.sar.manifest.ArchiveManifest;
+import com.aczire.sar.metrics.CounterSummary;
+import com.aczire.sar.metrics.SarCounter;
+
+/**
+ * Checks every record of an archive against the CRC32C stored in its key.
+ * 
+ * <p>Values are streamed through the checksum as stored, so nothing is
+ * decrypted or decompressed and the pass is bound by I/O. Part files are
+ * verified in parallel, by a pool of local threads or, with
+ * <code>-mapreduce</code>, by one map task per part. Every bad record is
+ * reported with its part file and byte offset; structurally corrupt stretches
+ * are skipped to the next sync point.</p>
+ */
+public class ArchiveVerifier {
+	private static final Log LOG = LogFactory.getLog(ArchiveVerifier.class);
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private String inPath = "";
+	private String outPath = "";
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private boolean mapreduce = false;
+
+	Configuration conf = new Configuration();
+
+	/**
+	 * Outcome of verifying one part file.
+	 */
+	static class PartReport {
+		long verified;
+		long unchecked;
+		long bytes;
+		List<String> problems = new ArrayList<String>();
+	}
+
+	/**
+	 * Verify every record of one part file.
+	 */
+	static PartReport verifyPart(Configuration conf, FileSystem fs, Path part) throws IOException {
+		PartReport report = new PartReport();
+		RecordScanner scanner;
+		try {
+			scanner = new RecordScanner(fs, part, conf);
+		} catch (IOException e) {
+			report.problems.add(part + "\t0\t-\tunreadable header: " + e.getMessage());
+			return report;
+		}
+		byte[] buffer = new byte[BUFFER_SIZE];
+		Checksum crc = new PureJavaCrc32C();
+		try {
+			while (true) {
+				long offset = scanner.getPosition();
+				try {
+					if (!scanner.next()) {
+						break;
+					}
+				} catch (IOException e) {
+					report.problems.add(part + "\t" + offset + "\t-\tcorrupt record structure: " + e.getMessage());
+					try {
+						if (!scanner.skipToSync(offset + 1)) {
+							break;
+						}
+					} catch (IOException syncFailure) {
+						report.problems.add(part + "\t" + offset + "\t-\trest of file unreadable: "
+								+ syncFailure.getMessage());
+						break;
+					}
+					continue;
+				}
+
+				SarKey key = scanner.getKey();
+				int length = scanner.getValueLength();
+				if (key.Checksum < 0) {
+					report.unchecked++;
+					continue;
+				}
+				crc.reset();
+				try {
+					for (int done = 0; done < length; ) {
+						int n = Math.min(buffer.length, length - done);
+						scanner.readValue(done, buffer, 0, n);
+						crc.update(buffer, 0, n);
+						done += n;
+					}
+				} catch (IOException e) {
+					// Includes checksum errors raised by the filesystem itself.
+					report.problems.add(part + "\t" + scanner.getRecordOffset() + "\t" + key.Filename
+							+ "\tunreadable value: " + e.getMessage());
+					continue;
+				}
+				report.bytes += length;
+				if (crc.getValue() != key.Checksum) {
+					report.problems.add(part + "\t" + scanner.getRecordOffset() + "\t" + key.Filename
+							+ "\tchecksum mismatch: stored " + Long.toHexString(key.Checksum)
+							+ ", computed " + Long.toHexString(crc.getValue()));
+				}
+				else {
+					report.verified++;
+				}
+			}
+		} finally {
+			scanner.close();
+		}
+		return report;
+	}
+
+	/**
+	 * List the files of an archive that hold records: the parts, the parts of
+	 * every generation and the data files of the chunk store.
+	 */
+	static List<Path> listParts(FileSystem fs, Path archive) throws IOException {
+		List<Path> dirs = new ArrayList<Path>();
+		dirs.add(archive);
+		FileStatus[] generations = fs.globStatus(new Path(archive, ArchiveManifest.GENERATION_PREFIX + "*"));
+		for (FileStatus generation : (generations == null) ? new FileStatus[0] : generations) {
+			dirs.add(generation.getPath());
+		}
+
+		List<Path> parts = new ArrayList<Path>();
+		for (Path dir : dirs) {
+			addFiles(fs, new Path(dir, "part-*"), parts);
+			if (fs.exists(new Path(dir, ChunkStore.CHUNK_DIR))) {
+				addFiles(fs, new Path(dir, ChunkStore.CHUNK_DIR + "/*/data"), parts);
+			}
+		}
+		return parts;
+	}
+
+	private static void addFiles(FileSystem fs, Path pattern, List<Path> files) throws IOException {
+		FileStatus[] matches = fs.globStatus(pattern);
+		for (FileStatus match : (matches == null) ? new FileStatus[0] : matches) {
+			if (!match.isDirectory()) {
+				files.add(match.getPath());
+			}
+		}
+	}
+
+	/**
+	 * Verifies the part file named on each input line and emits its problems.
+	 */
+	static class VerifyMapper extends Mapper<LongWritable, Text, Text, NullWritable> {
+		@Override
+		protected void map(LongWritable offset, Text line, Context context)
+				throws IOException, InterruptedException {
+			Path part = new Path(line.toString());
+			PartReport report = verifyPart(context.getConfiguration(),
+					part.getFileSystem(context.getConfiguration()), part);
+			context.getCounter(SarCounter.RECORDS_VERIFIED).increment(report.verified);
+			context.getCounter(SarCounter.RECORDS_UNCHECKED).increment(report.unchecked);
+			context.getCounter(SarCounter.RECORDS_CORRUPT).increment(report.problems.size());
+			context.getCounter(SarCounter.BYTES_VERIFIED).increment(report.bytes);
+			for (String problem : report.problems) {
+				context.write(new Text(problem), NullWritable.get());
+			}
+		}
+	}
+
+	private void printUsage(Options opts) {
+		new HelpFormatter().printHelp("ArchiveVerifier", opts);
+	}
+
+	public boolean init(String[] args) throws ParseException {
+		LOG.info("Initializing archive verifier.");
+		Options opts = new Options();
+		opts.addOption("in_path", true, "Archive directory to verify.");
+		opts.addOption("threads", true, "Number of part files verified at once. (default: number of cores)");
+		opts.addOption("mapreduce", false, "Verify with one map task per part file instead of local threads.");
+		opts.addOption("out_path", true, "Directory for the report of a -mapreduce run.");
+		opts.addOption("help", false, "Print usage information.");
+
+		CommandLine cliParser = new GnuParser().parse(opts, args);
+
+		if (args.length == 0) {
+			printUsage(opts);
+			throw new IllegalArgumentException("No args specified for archive verifier to initialize");
+		}
+
+		if (cliParser.hasOption("help")) {
+			printUsage(opts);
+			return false;
+		}
+
+		if (!cliParser.hasOption("in_path")) {
+			throw new IllegalArgumentException("No input folder specified.");
+		}
+		inPath = cliParser.getOptionValue("in_path");
+		if (cliParser.hasOption("threads")) {
+			threads = Integer.parseInt(cliParser.getOptionValue("threads"));
+		}
+		if (cliParser.hasOption("mapreduce")) {
+			if (!cliParser.hasOption("out_path")) {
+				throw new IllegalArgumentException("No output folder specified.");
+			}
+			mapreduce = true;
+			outPath = cliParser.getOptionValue("out_path");
+		}
+		return true;
+	}
+
+	/**
+	 * @return true if every record checked out.
+	 */
+	public boolean run() throws IOException, InterruptedException, ClassNotFoundException {
+		Path archive = new Path(inPath);
+		FileSystem fs = archive.getFileSystem(conf);
+		List<Path> parts = listParts(fs, archive);
+		LOG.info("Verifying " + parts.size() + " part files of " + inPath);
+		return mapreduce ? runJob(fs, parts) : runLocal(fs, parts);
+	}
+
+	private boolean runLocal(final FileSystem fs, List<Path> parts) throws IOException, InterruptedException {
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+		List<Future<PartReport>> reports = new ArrayList<Future<PartReport>>();
+		for (final Path part : parts) {
+			reports.add(pool.submit(new Callable<PartReport>() {
+				public PartReport call() throws IOException {
+					return verifyPart(conf, fs, part);
+				}
+			}));
+		}
+		pool.shutdown();
+
+		long verified = 0, unchecked = 0, corrupt = 0, bytes = 0;
+		for (Future<PartReport> future : reports) {
+			PartReport report;
+			try {
+				report = future.get();
+			} catch (ExecutionException e) {
+				throw new IOException("Verification failed", e.getCause());
+			}
+			verified += report.verified;
+			unchecked += report.unchecked;
+			bytes += report.bytes;
+			corrupt += report.problems.size();
+			for (String problem : report.problems) {
+				LOG.error("Corrupt record: " + problem);
+			}
+		}
+		LOG.info("Verified " + verified + " records, " + bytes + " bytes; " + unchecked
+				+ " records without checksum; " + corrupt + " corrupt.");
+		return corrupt == 0;
+	}
+
+	private boolean runJob(FileSystem fs, List<Path> parts) throws IOException, InterruptedException, ClassNotFoundException {
+		Path output = new Path(outPath);
+		FileSystem outFs = output.getFileSystem(conf);
+		if (outFs.exists(output)) {
+			outFs.delete(output, true);
+		}
+		// One line, and so one map task, per part file.
+		Path list = new Path(output.getParent(), output.getName() + ".parts");
+		FSDataOutputStream out = outFs.create(list, true);
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, "utf-8"));
+		try {
+			for (Path part : parts) {
+				writer.println(fs.makeQualified(part));
+			}
+		} finally {
+			writer.close();
+		}
+
+		Job job = new Job(conf);
+		job.setJarByClass(ArchiveVerifier.class);
+		job.setJobName("Archive Verifier");
+		FileInputFormat.setInputPaths(job, list);
+		job.setInputFormatClass(NLineInputFormat.class);
+		NLineInputFormat.setNumLinesPerSplit(job, 1);
+		FileOutputFormat.setOutputPath(job, output);
+		job.setOutputFormatClass(TextOutputFormat.class);
+		job.setOutputKeyClass(Text.class);
+		job.setOutputValueClass(NullWritable.class);
+		job.setMapperClass(VerifyMapper.class);
+		job.setNumReduceTasks(0);
+
+		boolean success = job.waitForCompletion(true);
+		outFs.delete(list, false);
+		CounterSummary.log(job, LOG);
+		Counters counters = job.getCounters();
+		long corrupt = counters.findCounter(SarCounter.RECORDS_CORRUPT).getValue();
+		if (corrupt > 0) {
+			LOG.error(corrupt + " corrupt records, listed under " + outPath);
+		}
+		return success && corrupt == 0;
+	}
+
+	public static void main(String[] args) throws Exception {
+		boolean result = false;
+		try {
+			ArchiveVerifier archiveVerifier = new ArchiveVerifier();
+			boolean doRun = archiveVerifier.init(args);
+			if (!doRun) {
+				System.exit(0);
+			}
+			result = archiveVerifier.run();
+		} catch (Throwable t) {
+			LOG.fatal("Error running Client", t);
+			System.exit(1);
+		}
+		if (result) {
+			LOG.info("Archive verified successfully");
+			System.exit(0);
+		}
+		LOG.error("Archive failed verification");
+		System.exit(2);
+	}
+}
@@ -0,0 +1,274 @@
+package com.aczire.sar;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.aczire.sar.cache.RecordCache;
+import com.aczire.sar.compression.ArchiveDictionary;
+import com.aczire.sar.compression.Codec;
+import com.aczire.sar.dedup.ChunkRecipe;
+import com.aczire.sar.dedup.ChunkStore;
+import com.aczire.sar.io.BlockedRecord;
+import com.aczire.sar.io.RecordScanner;
+import com.aczire.sar.manifest.ArchiveManifest;
+import com.aczire.sar.partition.ArchiveDescriptor;
+import com.aczire.sar.security.AESCrypter;
+import com.aczire.sar.security.ArchiveKeys;
+
+/**
+ * Reads a byte range of one archived file without a MapReduce job.
+ * 
+ * <p>The record is located by scanning the keys of its bucket's part file,
+ * or of every part of an archive without a descriptor; values are skipped. Of a blocked record (built with <code>-block_size</code>)
+ * only the seek table and the blocks covering the range are read and
+ * decoded, and of a deduplicated file only the chunks covering it. A record
+ * stored whole has to be decoded whole before it can be sliced.</p>
+ * 
+ * <p>Chunk stores stay open until {@link #close()}, so one reader can serve
+ * many reads, from several threads. Decoded records, blocks and chunks go
+ * through a {@link RecordCache}, so reading a file again skips its decode.</p>
+ */
+public class RangeReader {
+	private static final Log LOG = LogFactory.getLog(RangeReader.class);
+
+	private final Configuration conf;
+	private final Path archive;
+	private final FileSystem fs;
+	private final String password;
+	private final String keyDigest;
+	private byte[] dictionary;
+	private final Map<Path, ChunkStore> chunkStores = new HashMap<Path, ChunkStore>();
+	private final String archiveId;
+	private final RecordCache cache;
+
+	/**
+	 * @param archive the archive directory.
+	 * @param password the password the archive was encrypted with, which
+	 * unlocks its key header if it has one.
+	 */
+	public RangeReader(Configuration conf, Path archive, String password) throws Exception {
+		this.conf = conf;
+		this.archive = archive;
+		this.fs = archive.getFileSystem(conf);
+		this.password = ArchiveKeys.unlock(fs, archive, password);
+		this.keyDigest = AESCrypter.keyDigest(this.password);
+		this.archiveId = fs.makeQualified(archive).toString();
+		this.cache = RecordCache.create(conf, this.password);
+	}
+
+	/**
+	 * @return the cache of decoded contents, or null if caching is off.
+	 */
+	public RecordCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Read bytes <code>[start, end)</code> of an archived file. The range is
+	 * clipped to the file; a negative end reads to the end of the file.
+	 * @return the bytes, or null if the file is not in the archive.
+	 */
+	public byte[] read(String filename, long start, long end) throws Exception {
+		Path dir = archive;
+		if (ArchiveManifest.exists(fs, archive)) {
+			Integer generation = ArchiveManifest.load(fs, archive).resolveLatest().get(filename);
+			if (generation == null || generation.intValue() < 0) {
+				return null;
+			}
+			dir = new Path(archive, ArchiveManifest.getGenerationName(generation));
+		}
+
+		ArchiveDescriptor descriptor = ArchiveDescriptor.load(fs, archive);
+		String pattern = (descriptor == null) ? "part-*" : ArchiveDescriptor.getPartName(descriptor.getBucket(filename));
+		FileStatus[] parts = fs.globStatus(new Path(dir, pattern));
+		for (FileStatus part : (parts == null) ? new FileStatus[0] : parts) {
+			RecordScanner scanner = new RecordScanner(fs, part.getPath(), conf);
+			try {
+				while (scanner.next()) {
+					SarKey key = scanner.getKey();
+					if ((key.Type == SarKey.TYPE_FILE || key.Type == SarKey.TYPE_RECIPE)
+							&& key.Filename.equals(filename)) {
+						if (LOG.isDebugEnabled()) {
+							LOG.debug("Found " + filename + " at offset " + scanner.getRecordOffset() + " of " + part.getPath());
+						}
+						return read(scanner, dir, start, end);
+					}
+				}
+			} finally {
+				scanner.close();
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Read bytes <code>[start, end)</code> of the file whose record the
+	 * scanner is on, as {@link #read(String, long, long)} does.
+	 * @param dir the directory of the part, where its chunk store lives.
+	 */
+	public byte[] read(RecordScanner scanner, Path dir, long start, long end) throws Exception {
+		SarKey key = scanner.getKey();
+		if (key.Locked && !keyDigest.equals(key.Key)) {
+			throw new IOException("Incorrect password for " + key.Filename + ".");
+		}
+
+		if (key.BlockSize > 0) {
+			BlockedRecord.SeekTable table = BlockedRecord.readTable(scanner);
+			long length = table.getPlainLength();
+			end = (end < 0 || end > length) ? length : end;
+			if (start >= end) {
+				return new byte[0];
+			}
+			byte[] range = newRange(start, end);
+			String recordKey = recordKey(scanner);
+			for (int i = table.findBlock(start); i <= table.findBlock(end - 1); i++) {
+				String blockKey = RecordCache.key(recordKey, "block", Integer.toString(i));
+				byte[] block = (cache == null) ? null : cache.get(blockKey);
+				if (block == null) {
+					byte[] encoded = new byte[table.getEncodedLength(i)];
+					scanner.readValue(table.getOffset(i), encoded, 0, encoded.length);
+					block = decode(key, encoded);
+					if (cache != null) {
+						cache.put(blockKey, block);
+					}
+				}
+				copyOverlap(block, table.getPlainOffset(i), range, start);
+			}
+			return range;
+		}
+
+		String recordKey = recordKey(scanner);
+		byte[] plainText = (cache == null) ? null : cache.get(recordKey);
+		if (plainText == null) {
+			plainText = decode(key, scanner.readValue());
+			if (cache != null) {
+				cache.put(recordKey, plainText);
+			}
+		}
+		if (key.Type == SarKey.TYPE_RECIPE) {
+			return readChunks(ChunkRecipe.fromBytes(plainText), dir, start, end);
+		}
+		end = (end < 0 || end > plainText.length) ? plainText.length : end;
+		return (start >= end) ? new byte[0] : Arrays.copyOfRange(plainText, (int) start, (int) end);
+	}
+
+	/*
+	 * Fetch only the chunks of a deduplicated file that overlap the range.
+	 */
+	private byte[] readChunks(ChunkRecipe recipe, Path dir, long start, long end) throws Exception {
+		long length = recipe.getTotalLength();
+		end = (end < 0 || end > length) ? length : end;
+		if (start >= end) {
+			return new byte[0];
+		}
+		byte[] range = newRange(start, end);
+		ChunkStore chunkStore = getChunkStore(dir);
+		// MapFile readers keep a position; one read at a time per store.
+		synchronized (chunkStore) {
+			long offset = 0;
+			for (int i = 0; i < recipe.size() && offset < end; i++) {
+				if (offset + recipe.getLength(i) > start) {
+					copyOverlap(getChunk(chunkStore, recipe.getFingerprint(i)), offset, range, start);
+				}
+				offset += recipe.getLength(i);
+			}
+		}
+		return range;
+	}
+
+	/*
+	 * Chunks are named by the digest of their contents, so one key serves
+	 * every generation of the archive.
+	 */
+	private byte[] getChunk(ChunkStore chunkStore, byte[] fingerprint) throws Exception {
+		if (cache == null) {
+			return chunkStore.get(fingerprint);
+		}
+		String chunkKey = RecordCache.key(archiveId, "chunk", ChunkRecipe.toHex(fingerprint));
+		byte[] chunk = cache.get(chunkKey);
+		if (chunk == null) {
+			chunk = chunkStore.get(fingerprint);
+			cache.put(chunkKey, chunk);
+		}
+		return chunk;
+	}
+
+	/*
+	 * Cache key of the record the scanner is on: the file and its content
+	 * hash, or where the record is stored if the builder did not hash it.
+	 */
+	private String recordKey(RecordScanner scanner) {
+		SarKey key = scanner.getKey();
+		if (key.ContentHash != null && !key.ContentHash.equals("")) {
+			return RecordCache.key(archiveId, key.Filename, key.ContentHash);
+		}
+		return RecordCache.key(archiveId, key.Filename, scanner.getPath().toString(),
+				Long.toString(scanner.getRecordOffset()), Long.toString(key.Checksum));
+	}
+
+	private synchronized ChunkStore getChunkStore(Path dir) throws Exception {
+		ChunkStore chunkStore = chunkStores.get(dir);
+		if (chunkStore == null) {
+			chunkStore = new ChunkStore(conf, dir, password);
+			chunkStores.put(dir, chunkStore);
+		}
+		return chunkStore;
+	}
+
+	private synchronized byte[] getDictionary() throws Exception {
+		if (dictionary == null) {
+			dictionary = ArchiveDictionary.read(fs, ArchiveDictionary.getPath(archive), password);
+		}
+		return dictionary;
+	}
+
+	public synchronized void close() {
+		for (ChunkStore chunkStore : chunkStores.values()) {
+			chunkStore.close();
+		}
+		chunkStores.clear();
+		if (cache != null) {
+			LOG.info("Record cache: " + cache);
+		}
+	}
+
+	/*
+	 * The buffer of a range; ranges are read into one array, so they have to fit one.
+	 */
+	private static byte[] newRange(long start, long end) throws IOException {
+		if (end - start > Integer.MAX_VALUE) {
+			throw new IOException("Range of " + (end - start) + " bytes is too large to read at once; "
+					+ "read it in ranges of at most " + Integer.MAX_VALUE + " bytes.");
+		}
+		return new byte[(int) (end - start)];
+	}
+
+	/*
+	 * Copy the part of a piece starting at file offset pieceOffset that falls
+	 * into the range starting at file offset rangeOffset.
+	 */
+	private static void copyOverlap(byte[] piece, long pieceOffset, byte[] range, long rangeOffset) {
+		long from = Math.max(pieceOffset, rangeOffset);
+		long to = Math.min(pieceOffset + piece.length, rangeOffset + range.length);
+		if (from < to) {
+			System.arraycopy(piece, (int) (from - pieceOffset), range, (int) (from - rangeOffset), (int) (to - from));
+		}
+	}
+
+	private byte[] decode(SarKey key, byte[] encoded) throws Exception {
+		byte[] plainText = key.Locked ? AESCrypter.decrypt(encoded, password) : encoded;
+		if (!key.Compressed) {
+			return plainText;
+		}
+		return Codec.decompress(key.Codec, plainText, (key.Codec == Codec.DEFLATE_DICT) ? getDictionary() : null);
+	}
+}
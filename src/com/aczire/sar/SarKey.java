@@ -7,6 +7,27 @@ import java.io.IOException;
 import org.apache.hadoop.io.WritableComparable;
 
 public class SarKey implements WritableComparable<Object> {
+	// Record types.
+	public static final byte TYPE_FILE = 0; // A whole file.
+	public static final byte TYPE_RECIPE = 1; // A file stored as a list of chunk references.
+	public static final byte TYPE_CHUNK = 2; // A deduplicated chunk, keyed by its fingerprint.
+	public static final byte TYPE_TOMBSTONE = 3; // Marks a file deleted as of its generation.
+
+	/*
+	 * Keys written before the format was versioned start with the Locked
+	 * boolean, which is always 0 or 1 on disk. Versioned keys start with this
+	 * marker followed by the format version, so both can be read.
+	 */
+	private static final byte VERSION_MARKER = (byte) 0xA5;
+	private static final byte VERSION = 5;
+
+	/**
+	 * @return the key format version written by this build.
+	 */
+	public static int getCurrentVersion() {
+		return VERSION;
+	}
+
 	public boolean Locked;
 	public boolean Compressed;
 	public String Key;
@@ -14,6 +35,13 @@ public class SarKey implements WritableComparable<Object> {
 	public String Filename;
 	public double FileSize;
 	public String Id;
+	public byte Type;
+	public int Generation; // Incremental archive run that wrote the record, 0 if not incremental.
+	public String ContentHash; // Hex SHA-256 of the plaintext, keyed by HMAC with the data key if locked; empty if not computed.
+	public byte Codec; // Compression codec id, see com.aczire.sar.compression.Codec.
+	public int BlockSize; // Plaintext block size of a blocked record, 0 if stored whole.
+	public long Checksum; // CRC32C of the stored value, -1 if not recorded.
+	public transient int Version; // Format version the key was read in; not written.
 
 	public SarKey(boolean locked, boolean compressed) {
 		this.Locked = locked;
@@ -23,6 +51,13 @@ public class SarKey implements WritableComparable<Object> {
 		this.Filename = "";
 		this.FileSize = 0;
 		this.Id = "";
+		this.Type = TYPE_FILE;
+		this.Generation = 0;
+		this.ContentHash = "";
+		this.Codec = 0;
+		this.BlockSize = 0;
+		this.Checksum = -1;
+		this.Version = VERSION;
 	}
 
 	public SarKey() {
@@ -31,39 +66,65 @@ public class SarKey implements WritableComparable<Object> {
 
 	@Override
 	public void write(DataOutput out) throws IOException {
+		out.writeByte(VERSION_MARKER);
+		out.writeByte(VERSION);
 		out.writeBoolean(Locked);
 		out.writeBoolean(Compressed);
 		out.writeUTF(Key);
 		out.writeUTF(Salt);
 		out.writeUTF(Filename);
 		out.writeDouble(FileSize);
+		out.writeByte(Type);
+		out.writeInt(Generation);
+		out.writeUTF(ContentHash);
+		out.writeByte(Codec);
+		out.writeInt(BlockSize);
+		out.writeLong(Checksum);
 	}
 
 	@Override
 	public void readFields(DataInput in) throws IOException {
-		Locked = in.readBoolean();
+		byte first = in.readByte();
+		int version = 0;
+		if (first == VERSION_MARKER) {
+			version = in.readByte();
+			if (version > VERSION) {
+				throw new IOException("Unsupported archive key version " + version);
+			}
+			Locked = in.readBoolean();
+		}
+		else {
+			Locked = first != 0;
+		}
 		Compressed = in.readBoolean();
 		Key = in.readUTF();
 		Salt = in.readUTF();
 		Filename = in.readUTF();
 		FileSize = in.readDouble();
+		Type = (version >= 1) ? in.readByte() : TYPE_FILE;
+		Generation = (version >= 2) ? in.readInt() : 0;
+		ContentHash = (version >= 2) ? in.readUTF() : "";
+		Codec = (version >= 3) ? in.readByte() : 0;
+		BlockSize = (version >= 4) ? in.readInt() : 0;
+		Checksum = (version >= 5) ? in.readLong() : -1;
+		Version = version;
 	}
 
 	@Override
 	public String toString() {
 		return "Filename: " + Filename + ", Locked: "
 				+ Boolean.toString(Locked) + ", Compressed: "
-				+ Boolean.toString(Compressed);
+				+ Boolean.toString(Compressed) + ", Type: " + Type;
 	}
 
 	@Override
 	public boolean equals(Object o) {
-		SarKey other = (SarKey)o;
-		if (!(other instanceof SarKey)) {
+		if (!(o instanceof SarKey)) {
 			return false;
 		}
+		SarKey other = (SarKey)o;
 
-		return this.Filename.equals(other.Filename);
+		return this.Filename.equals(other.Filename) && this.Type == other.Type;
 	}
 
 	@Override
@@ -74,12 +135,12 @@ public class SarKey implements WritableComparable<Object> {
 	}
 
 	public int compareTo(SarKey other) {
-		return this.Filename.compareTo(other.Filename);
+		int cmp = this.Filename.compareTo(other.Filename);
+		return (cmp != 0) ? cmp : this.Type - other.Type;
 	}
 
 	@Override
 	public int compareTo(Object o) {
-		SarKey other = (SarKey)o;
-		return this.Filename.compareTo(other.Filename);
+		return compareTo((SarKey)o);
 	}
-}
\ No newline at end of file
+}
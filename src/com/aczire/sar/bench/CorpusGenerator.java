@@ -0,0 +1,249 @@
+package com.aczire.sar.bench;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Writes a synthetic corpus to archive, the same for the same settings and
+ * seed, so builds and searches can be compared without production data.
+ *
+ * <p>File sizes are fixed, uniform between the minimum and maximum, or
+ * lognormal around the mean size and clamped to the same bounds. Files are
+ * made of 1 KB segments, each either text drawn from a small vocabulary,
+ * which compresses well, or random bytes, which do not; the compressibility
+ * is the share of text segments. A share of the files are exact copies of
+ * earlier ones, for deduplication, and a share carry a keyword, so a search
+ * for it has a known number of hits.</p>
+ */
+public class CorpusGenerator {
+	public static final String FIXED = "fixed";
+	public static final String UNIFORM = "uniform";
+	public static final String LOGNORMAL = "lognormal";
+
+	private static final int SEGMENT_SIZE = 1024;
+	// Spread of the lognormal sizes; the mean stays the mean size.
+	private static final double SIGMA = 1.0;
+	private static final String[] WORDS = {
+		"archive", "record", "customer", "order", "invoice", "status", "shipped", "pending",
+		"account", "balance", "region", "north", "south", "east", "west", "total",
+		"quantity", "price", "item", "product", "warehouse", "delivery", "return", "refund",
+		"timestamp", "user", "session", "request", "response", "error", "warning", "info",
+		"the", "and", "of", "to", "in", "for", "with", "on",
+		"alpha", "beta", "gamma", "delta", "0", "1", "2", "3",
+		"4", "5", "6", "7", "8", "9", "{", "}",
+		"\"id\":", "\"name\":", "\"value\":", ",", ":", "\n", "\t", "-"
+	};
+
+	/**
+	 * What was generated.
+	 */
+	public static class Summary {
+		public int files;
+		public long bytes;
+		public int duplicates; // Files that copy an earlier one.
+		public int keywordFiles; // Files that hold the keyword, copies included.
+	}
+
+	private int files = 1000;
+	private String distribution = LOGNORMAL;
+	private long meanSize = 64 * 1024;
+	private long minSize = 0;
+	private long maxSize = 16 * 1024 * 1024;
+	private double compressibility = 0.5;
+	private double duplicates = 0.0;
+	private double keywordRate = 0.01;
+	private String keyword = "sar-needle";
+	private long seed = 1;
+
+	public void setFiles(int files) {
+		this.files = files;
+	}
+
+	public void setDistribution(String distribution) {
+		if (!distribution.equals(FIXED) && !distribution.equals(UNIFORM) && !distribution.equals(LOGNORMAL)) {
+			throw new IllegalArgumentException("Unknown size distribution " + distribution
+					+ "; expected fixed, uniform or lognormal.");
+		}
+		this.distribution = distribution;
+	}
+
+	public void setMeanSize(long meanSize) {
+		this.meanSize = meanSize;
+	}
+
+	public void setMinSize(long minSize) {
+		this.minSize = minSize;
+	}
+
+	public void setMaxSize(long maxSize) {
+		this.maxSize = maxSize;
+	}
+
+	public void setCompressibility(double compressibility) {
+		this.compressibility = checkShare("Compressibility", compressibility);
+	}
+
+	public void setDuplicates(double duplicates) {
+		this.duplicates = checkShare("Duplicate share", duplicates);
+	}
+
+	public void setKeywordRate(double keywordRate) {
+		this.keywordRate = checkShare("Keyword rate", keywordRate);
+	}
+
+	public void setKeyword(String keyword) {
+		this.keyword = keyword;
+	}
+
+	public String getKeyword() {
+		return keyword;
+	}
+
+	public void setSeed(long seed) {
+		this.seed = seed;
+	}
+
+	private static double checkShare(String what, double share) {
+		if (share < 0 || share > 1) {
+			throw new IllegalArgumentException(what + " must be between 0 and 1.");
+		}
+		return share;
+	}
+
+	/**
+	 * @return the settings by name, for reports.
+	 */
+	public Map<String, String> describe() {
+		Map<String, String> settings = new TreeMap<String, String>();
+		settings.put("files", Integer.toString(files));
+		settings.put("distribution", distribution);
+		settings.put("mean_size", Long.toString(meanSize));
+		settings.put("min_size", Long.toString(minSize));
+		settings.put("max_size", Long.toString(maxSize));
+		settings.put("compressibility", Double.toString(compressibility));
+		settings.put("duplicates", Double.toString(duplicates));
+		settings.put("keyword_rate", Double.toString(keywordRate));
+		settings.put("seed", Long.toString(seed));
+		return settings;
+	}
+
+	/**
+	 * Write the corpus into the directory, replacing it.
+	 */
+	public Summary generate(FileSystem fs, Path dir) throws IOException {
+		if (minSize > maxSize) {
+			throw new IllegalArgumentException("Minimum size " + minSize + " exceeds maximum size " + maxSize);
+		}
+		fs.delete(dir, true);
+		fs.mkdirs(dir);
+		Random random = new Random(seed);
+		byte[][] words = new byte[WORDS.length][];
+		for (int i = 0; i < WORDS.length; i++) {
+			words[i] = (WORDS[i] + " ").getBytes("utf-8");
+		}
+		byte[] needle = keyword.getBytes("utf-8");
+
+		Summary summary = new Summary();
+		List<Path> paths = new ArrayList<Path>();
+		List<Boolean> hasKeyword = new ArrayList<Boolean>();
+		byte[] segment = new byte[SEGMENT_SIZE];
+		for (int i = 0; i < files; i++) {
+			Path path = new Path(dir, String.format("file-%07d.dat", i));
+			if (i > 0 && random.nextDouble() < duplicates) {
+				int original = random.nextInt(i);
+				copy(fs, paths.get(original), path);
+				summary.duplicates++;
+				hasKeyword.add(hasKeyword.get(original));
+			}
+			else {
+				long size = nextSize(random);
+				boolean planted = size >= needle.length && random.nextDouble() < keywordRate;
+				long keywordAt = planted ? (long) (random.nextDouble() * (size - needle.length + 1)) : -1;
+				OutputStream out = fs.create(path, true);
+				try {
+					for (long written = 0; written < size; ) {
+						int n = (int) Math.min(SEGMENT_SIZE, size - written);
+						fill(random, segment, n, words);
+						if (planted && keywordAt < written + n && keywordAt + needle.length > written) {
+							// The keyword may straddle segments; write the part of it that falls in this one.
+							for (int k = 0; k < needle.length; k++) {
+								long at = keywordAt + k - written;
+								if (at >= 0 && at < n) {
+									segment[(int) at] = needle[k];
+								}
+							}
+						}
+						out.write(segment, 0, n);
+						written += n;
+					}
+				} finally {
+					out.close();
+				}
+				hasKeyword.add(planted);
+			}
+			paths.add(path);
+			summary.files++;
+			summary.bytes += fs.getFileStatus(path).getLen();
+			if (hasKeyword.get(i)) {
+				summary.keywordFiles++;
+			}
+		}
+		return summary;
+	}
+
+	private long nextSize(Random random) {
+		double size;
+		if (distribution.equals(FIXED)) {
+			size = meanSize;
+		}
+		else if (distribution.equals(UNIFORM)) {
+			size = minSize + random.nextDouble() * (maxSize - minSize);
+		}
+		else {
+			size = Math.exp(Math.log(Math.max(1, meanSize)) - SIGMA * SIGMA / 2 + SIGMA * random.nextGaussian());
+		}
+		return Math.max(minSize, Math.min(maxSize, (long) size));
+	}
+
+	/*
+	 * Fill a segment with text or random bytes. Random bytes that happen to
+	 * spell the keyword are too unlikely to matter.
+	 */
+	private void fill(Random random, byte[] segment, int length, byte[][] words) {
+		if (random.nextDouble() >= compressibility) {
+			random.nextBytes(segment);
+			return;
+		}
+		int position = 0;
+		while (position < length) {
+			byte[] word = words[random.nextInt(words.length)];
+			int n = Math.min(word.length, length - position);
+			System.arraycopy(word, 0, segment, position, n);
+			position += n;
+		}
+	}
+
+	private static void copy(FileSystem fs, Path from, Path to) throws IOException {
+		InputStream in = fs.open(from);
+		try {
+			OutputStream out = fs.create(to, true);
+			try {
+				IOUtils.copyBytes(in, out, 64 * 1024, false);
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+}
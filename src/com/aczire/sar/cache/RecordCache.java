@@ -0,0 +1,256 @@
+package com.aczire.sar.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+import com.aczire.sar.security.AESCrypter;
+
+/**
+ * Cache of decoded (decrypted and decompressed) record contents, so that
+ * repeated reads of the same file cost a memory or local disk read instead
+ * of a full decode.
+ * 
+ * <p>The memory tier is a least recently used map weighted by bytes. With
+ * <code>sar.cache.disk.dir</code> set, every entry is also written through
+ * to a disk tier, encrypted with the data key of the archive and bounded the
+ * same way, which outlives the process and survives changes of the password.
+ * Range reads and single file searches on the same node share it. Keys must name immutable contents: the
+ * archive, the file and its content hash, see {@link #key(String...)}.</p>
+ */
+public class RecordCache {
+	private static final Log LOG = LogFactory.getLog(RecordCache.class);
+
+	public static final String MEMORY_BYTES = "sar.cache.memory.bytes";
+	public static final String DISK_DIR = "sar.cache.disk.dir";
+	public static final String DISK_BYTES = "sar.cache.disk.bytes";
+
+	public static final long DEFAULT_MEMORY = 64L * 1024 * 1024;
+	public static final long DEFAULT_DISK = 1024L * 1024 * 1024;
+
+	private static final String ENTRY_SUFFIX = ".sarc";
+
+	private final long memoryCapacity;
+	private final long diskCapacity;
+	private final File diskDir;
+	private final String password;
+
+	// Both maps are in access order; the eldest entry is evicted first.
+	private final LinkedHashMap<String, byte[]> memory = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+	private final LinkedHashMap<String, Long> disk = new LinkedHashMap<String, Long>(16, 0.75f, true);
+	private long memoryBytes;
+	private long diskBytes;
+
+	private long memoryHits;
+	private long diskHits;
+	private long misses;
+	private long evictions;
+	private long diskEvictions;
+
+	RecordCache(long memoryCapacity, File diskDir, long diskCapacity, String password) {
+		this.memoryCapacity = memoryCapacity;
+		this.diskDir = diskDir;
+		this.diskCapacity = diskCapacity;
+		this.password = password;
+		if (diskDir != null) {
+			loadDisk();
+		}
+	}
+
+	/**
+	 * @param password the data key disk entries are encrypted with.
+	 * @return the cache configured for the job, or null if both tiers are off.
+	 */
+	public static RecordCache create(Configuration conf, String password) {
+		long memoryCapacity = conf.getLong(MEMORY_BYTES, DEFAULT_MEMORY);
+		String dir = conf.get(DISK_DIR, "");
+		if (memoryCapacity <= 0 && dir.equals("")) {
+			return null;
+		}
+		return new RecordCache(Math.max(0, memoryCapacity), dir.equals("") ? null : new File(dir),
+				conf.getLong(DISK_BYTES, DEFAULT_DISK), password);
+	}
+
+	/**
+	 * @return a cache key of the parts, e.g. archive, filename and content hash.
+	 */
+	public static String key(String... parts) {
+		StringBuilder key = new StringBuilder();
+		for (String part : parts) {
+			if (key.length() > 0) {
+				key.append('\u0000');
+			}
+			key.append(part);
+		}
+		return key.toString();
+	}
+
+	/**
+	 * @return the cached contents, or null on a miss. Callers must not modify them.
+	 */
+	public byte[] get(String key) {
+		synchronized (this) {
+			byte[] contents = memory.get(key);
+			if (contents != null) {
+				memoryHits++;
+				return contents;
+			}
+			if (diskDir == null || disk.get(entryName(key)) == null) {
+				misses++;
+				return null;
+			}
+		}
+
+		byte[] contents = readEntry(key);
+		synchronized (this) {
+			if (contents == null) {
+				misses++;
+				return null;
+			}
+			diskHits++;
+			putMemory(key, contents);
+		}
+		return contents;
+	}
+
+	/**
+	 * Cache the contents under the key. Callers must not modify them afterwards.
+	 */
+	public void put(String key, byte[] contents) {
+		synchronized (this) {
+			putMemory(key, contents);
+			if (diskDir == null || disk.containsKey(entryName(key)) || contents.length > diskCapacity) {
+				return;
+			}
+		}
+		writeEntry(key, contents);
+	}
+
+	private void putMemory(String key, byte[] contents) {
+		// An entry taking most of the tier would flush everything else for one file.
+		if (contents.length > memoryCapacity / 2) {
+			return;
+		}
+		byte[] previous = memory.put(key, contents);
+		memoryBytes += contents.length - ((previous == null) ? 0 : previous.length);
+		Iterator<byte[]> eldest = memory.values().iterator();
+		while (memoryBytes > memoryCapacity && eldest.hasNext()) {
+			memoryBytes -= eldest.next().length;
+			eldest.remove();
+			evictions++;
+		}
+	}
+
+	/*
+	 * Entries are files named by the digest of their key, so keys never
+	 * leak file names to the local disk.
+	 */
+	private static String entryName(String key) {
+		return DigestUtils.sha256Hex(key) + ENTRY_SUFFIX;
+	}
+
+	private byte[] readEntry(String key) {
+		File file = new File(diskDir, entryName(key));
+		try {
+			return AESCrypter.decrypt(FileUtils.readFileToByteArray(file), password);
+		} catch (Exception e) {
+			LOG.warn("Dropping unreadable cache entry " + file, e);
+			synchronized (this) {
+				Long length = disk.remove(file.getName());
+				if (length != null) {
+					diskBytes -= length.longValue();
+				}
+			}
+			file.delete();
+			return null;
+		}
+	}
+
+	private void writeEntry(String key, byte[] contents) {
+		String name = entryName(key);
+		File file = new File(diskDir, name);
+		File tmp = new File(diskDir, name + ".tmp");
+		try {
+			FileUtils.writeByteArrayToFile(tmp, AESCrypter.encrypt(contents, password));
+			if (!tmp.renameTo(file)) {
+				throw new IOException("Failed to rename " + tmp + " to " + file);
+			}
+		} catch (Exception e) {
+			LOG.warn("Failed to write cache entry " + file, e);
+			tmp.delete();
+			return;
+		}
+
+		synchronized (this) {
+			Long previous = disk.put(name, Long.valueOf(file.length()));
+			diskBytes += file.length() - ((previous == null) ? 0 : previous.longValue());
+			Iterator<Map.Entry<String, Long>> eldest = disk.entrySet().iterator();
+			while (diskBytes > diskCapacity && eldest.hasNext()) {
+				Map.Entry<String, Long> entry = eldest.next();
+				diskBytes -= entry.getValue().longValue();
+				eldest.remove();
+				new File(diskDir, entry.getKey()).delete();
+				diskEvictions++;
+			}
+		}
+	}
+
+	/*
+	 * Pick up the entries of earlier runs, oldest first.
+	 */
+	private void loadDisk() {
+		if (!diskDir.isDirectory() && !diskDir.mkdirs()) {
+			throw new IllegalArgumentException("Cannot create cache directory " + diskDir);
+		}
+		File[] files = diskDir.listFiles();
+		Arrays.sort(files, new Comparator<File>() {
+			public int compare(File a, File b) {
+				long diff = a.lastModified() - b.lastModified();
+				return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+			}
+		});
+		for (File file : files) {
+			if (file.getName().endsWith(ENTRY_SUFFIX)) {
+				disk.put(file.getName(), Long.valueOf(file.length()));
+				diskBytes += file.length();
+			} else if (file.getName().endsWith(".tmp")) {
+				file.delete();
+			}
+		}
+	}
+
+	public synchronized long getMemoryHits() {
+		return memoryHits;
+	}
+
+	public synchronized long getDiskHits() {
+		return diskHits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions + diskEvictions;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "memory hits=" + memoryHits + ", disk hits=" + diskHits + ", misses=" + misses
+				+ ", memory entries=" + memory.size() + " (" + memoryBytes + "/" + memoryCapacity + " bytes)"
+				+ ", memory evictions=" + evictions
+				+ ((diskDir == null) ? "" : ", disk entries=" + disk.size() + " (" + diskBytes + "/" + diskCapacity + " bytes)"
+						+ ", disk evictions=" + diskEvictions);
+	}
+}
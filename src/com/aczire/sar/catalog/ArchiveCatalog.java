@@ -0,0 +1,203 @@
+package com.aczire.sar.catalog;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+import com.aczire.sar.SarKey;
+import com.aczire.sar.io.FileSwap;
+import com.aczire.sar.io.RecordScanner;
+import com.aczire.sar.manifest.ArchiveManifest;
+import com.aczire.sar.security.ArchiveKeys;
+
+/**
+ * A catalog of many archives, kept as a directory with one entry file per
+ * archive, so archives are added and dropped without rewriting the others.
+ * 
+ * <p>Entries are built by {@link #scan(Configuration, Path)} from one pass
+ * over the keys of every part; values are skipped. The time range of an
+ * incremental archive is that of the modification times of its files in the
+ * manifest; other archives do not record those, and get the time their
+ * parts were written. Tools that rewrite the parts of an archive without
+ * changing its files keep the range it was cataloged with, see
+ * <code>ArchiveCataloger.refresh</code>.</p>
+ */
+public class ArchiveCatalog {
+	private static final Log LOG = LogFactory.getLog(ArchiveCatalog.class);
+
+	private static final String ENTRY_SUFFIX = ".entry";
+
+	private final FileSystem fs;
+	private final Path dir;
+
+	public ArchiveCatalog(FileSystem fs, Path dir) {
+		this.fs = fs;
+		this.dir = dir;
+	}
+
+	/*
+	 * Entry files are named by the digest of the archive path, so
+	 * re-cataloging an archive replaces its entry.
+	 */
+	private Path getEntryPath(String archive) {
+		return new Path(dir, DigestUtils.sha256Hex(archive) + ENTRY_SUFFIX);
+	}
+
+	/**
+	 * Add or replace the entry of an archive. The entry is written beside
+	 * the old one and renamed over it in one step, so readers see the old
+	 * entry or the new one, never half of one or none.
+	 */
+	public void put(CatalogEntry entry) throws IOException {
+		Path path = getEntryPath(entry.archive);
+		Path tmp = new Path(dir, path.getName() + ".tmp");
+		FSDataOutputStream out = fs.create(tmp, true);
+		try {
+			entry.write(out);
+		} finally {
+			out.close();
+		}
+		FileSwap.replace(fs, tmp, path);
+	}
+
+	/**
+	 * @return the entry of the qualified archive path, or null if it has none.
+	 */
+	public CatalogEntry get(String archive) throws IOException {
+		Path path = getEntryPath(archive);
+		if (!fs.exists(path)) {
+			return null;
+		}
+		CatalogEntry entry = new CatalogEntry();
+		FSDataInputStream in = fs.open(path);
+		try {
+			entry.readFields(in);
+		} finally {
+			IOUtils.closeStream(in);
+		}
+		return entry;
+	}
+
+	/**
+	 * @return whether the archive had an entry.
+	 */
+	public boolean remove(String archive) throws IOException {
+		return fs.delete(getEntryPath(archive), false);
+	}
+
+	/**
+	 * @return every entry, in archive path order.
+	 */
+	public List<CatalogEntry> load() throws IOException {
+		List<CatalogEntry> entries = new ArrayList<CatalogEntry>();
+		FileStatus[] files = fs.globStatus(new Path(dir, "*" + ENTRY_SUFFIX));
+		for (FileStatus file : (files == null) ? new FileStatus[0] : files) {
+			CatalogEntry entry = new CatalogEntry();
+			FSDataInputStream in = fs.open(file.getPath());
+			try {
+				entry.readFields(in);
+			} finally {
+				IOUtils.closeStream(in);
+			}
+			entries.add(entry);
+		}
+		Collections.sort(entries, new Comparator<CatalogEntry>() {
+			public int compare(CatalogEntry a, CatalogEntry b) {
+				return a.archive.compareTo(b.archive);
+			}
+		});
+		return entries;
+	}
+
+	/**
+	 * Summarize an archive for the catalog.
+	 */
+	public static CatalogEntry scan(Configuration conf, Path archive) throws IOException {
+		FileSystem fs = archive.getFileSystem(conf);
+		archive = fs.makeQualified(archive);
+		CatalogEntry entry = new CatalogEntry();
+		entry.archive = archive.toString();
+		entry.keyHeader = ArchiveKeys.exists(fs, archive);
+		entry.minTime = Long.MAX_VALUE;
+		entry.maxTime = Long.MIN_VALUE;
+		entry.minFormatVersion = Integer.MAX_VALUE;
+		entry.maxFormatVersion = 0;
+
+		Path parts = archive;
+		if (ArchiveManifest.exists(fs, archive)) {
+			ArchiveManifest manifest = ArchiveManifest.load(fs, archive);
+			entry.generation = manifest.getGeneration();
+			for (ArchiveManifest.Entry file : manifest.getEntries()) {
+				entry.minTime = Math.min(entry.minTime, file.mtime);
+				entry.maxTime = Math.max(entry.maxTime, file.mtime);
+			}
+			parts = new Path(archive, ArchiveManifest.GENERATION_PREFIX + "*");
+		}
+		FileStatus[] partFiles = fs.globStatus(new Path(parts, "part-*"));
+		for (FileStatus part : (partFiles == null) ? new FileStatus[0] : partFiles) {
+			if (!ArchiveManifest.exists(fs, archive)) {
+				entry.minTime = Math.min(entry.minTime, part.getModificationTime());
+				entry.maxTime = Math.max(entry.maxTime, part.getModificationTime());
+			}
+			entry.parts.add(scanPart(fs, conf, part.getPath(), entry));
+		}
+		if (entry.minTime > entry.maxTime) {
+			entry.minTime = entry.maxTime = 0;
+		}
+		if (entry.minFormatVersion > entry.maxFormatVersion) {
+			entry.minFormatVersion = entry.maxFormatVersion = 0;
+		}
+		entry.cataloged = System.currentTimeMillis();
+		return entry;
+	}
+
+	private static CatalogEntry.PartSummary scanPart(FileSystem fs, Configuration conf, Path part,
+			CatalogEntry entry) throws IOException {
+		List<String> names = new ArrayList<String>();
+		long records = 0;
+		long stored = 0;
+		RecordScanner scanner = new RecordScanner(fs, part, conf);
+		try {
+			while (true) {
+				long position = scanner.getPosition();
+				try {
+					if (!scanner.next()) {
+						break;
+					}
+				} catch (IOException e) {
+					LOG.error("Skipping corrupt stretch of " + part + " at offset " + position + ": " + e);
+					if (!scanner.skipToSync(position + 1)) {
+						break;
+					}
+					continue;
+				}
+				SarKey key = scanner.getKey();
+				records++;
+				stored += scanner.getValueLength();
+				entry.minFormatVersion = Math.min(entry.minFormatVersion, key.Version);
+				entry.maxFormatVersion = Math.max(entry.maxFormatVersion, key.Version);
+				if (key.Type == SarKey.TYPE_FILE || key.Type == SarKey.TYPE_RECIPE) {
+					names.add(key.Filename);
+					entry.files++;
+				}
+			}
+		} finally {
+			scanner.close();
+		}
+		entry.storedBytes += stored;
+		return new CatalogEntry.PartSummary(part.toString(), names, records, stored);
+	}
+}
@@ -0,0 +1,164 @@
+package com.aczire.sar.catalog;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.util.bloom.BloomFilter;
+import org.apache.hadoop.util.bloom.Key;
+import org.apache.hadoop.util.hash.Hash;
+
+/**
+ * What the catalog knows about one archive: its time range, sizes and
+ * format version, and a summary of the file names of every part to prune
+ * name and prefix searches with.
+ */
+public class CatalogEntry implements Writable {
+	private static final byte VERSION = 2;
+
+	/**
+	 * Summary of the names in one part file: the first and last name, for
+	 * prefix searches, and a Bloom filter, for file name searches.
+	 */
+	public static class PartSummary implements Writable {
+		private static final double FALSE_POSITIVE_RATE = 0.01;
+		private static final int HASH_COUNT = 7;
+
+		public String path = "";
+		public long records;
+		public long storedBytes;
+		public String firstName = "";
+		public String lastName = "";
+		private BloomFilter names = new BloomFilter();
+
+		public PartSummary() {
+		}
+
+		/**
+		 * @param names every file name in the part, in any order.
+		 */
+		public PartSummary(String path, List<String> names, long records, long storedBytes) throws IOException {
+			this.path = path;
+			this.records = records;
+			this.storedBytes = storedBytes;
+			// Bits for the false positive rate at the optimal number of hashes.
+			int bits = (int) Math.ceil(-Math.max(1, names.size()) * Math.log(FALSE_POSITIVE_RATE) / (Math.log(2) * Math.log(2)));
+			this.names = new BloomFilter(Math.max(64, bits), HASH_COUNT, Hash.MURMUR_HASH);
+			for (String name : names) {
+				if (firstName.equals("") || name.compareTo(firstName) < 0) {
+					firstName = name;
+				}
+				if (name.compareTo(lastName) > 0) {
+					lastName = name;
+				}
+				this.names.add(new Key(name.getBytes("utf-8")));
+			}
+		}
+
+		/**
+		 * @return false if the part certainly holds no file of this name.
+		 */
+		public boolean mightContain(String name) throws IOException {
+			if (records == 0 || name.compareTo(firstName) < 0 || name.compareTo(lastName) > 0) {
+				return false;
+			}
+			return names.membershipTest(new Key(name.getBytes("utf-8")));
+		}
+
+		/**
+		 * @return false if the part certainly holds no file with a name starting with the prefix.
+		 */
+		public boolean mightContainPrefix(String prefix) {
+			if (records == 0) {
+				return false;
+			}
+			// Names with the prefix sort from the prefix up to the next prefix.
+			return lastName.compareTo(prefix) >= 0
+					&& (firstName.compareTo(prefix) <= 0 || firstName.startsWith(prefix));
+		}
+
+		public void write(DataOutput out) throws IOException {
+			out.writeUTF(path);
+			out.writeLong(records);
+			out.writeLong(storedBytes);
+			out.writeUTF(firstName);
+			out.writeUTF(lastName);
+			names.write(out);
+		}
+
+		public void readFields(DataInput in) throws IOException {
+			path = in.readUTF();
+			records = in.readLong();
+			storedBytes = in.readLong();
+			firstName = in.readUTF();
+			lastName = in.readUTF();
+			names = new BloomFilter();
+			names.readFields(in);
+		}
+	}
+
+	public String archive = ""; // Qualified archive directory.
+	public long minTime; // Time range of the archived files, milliseconds since the epoch.
+	public long maxTime;
+	public long files;
+	public long storedBytes;
+	public int minFormatVersion; // Oldest and newest key format versions of its records.
+	public int maxFormatVersion;
+	public boolean keyHeader; // Whether the archive is encrypted with a wrapped data key.
+	public long cataloged; // When the entry was written.
+	// Manifest generation the parts were scanned at; -1 without a manifest, or in entries that predate the field.
+	public int generation = -1;
+	public List<PartSummary> parts = new ArrayList<PartSummary>();
+
+	/**
+	 * @return whether the archive may hold files from the time range.
+	 */
+	public boolean overlaps(long from, long to) {
+		return minTime <= to && maxTime >= from;
+	}
+
+	public void write(DataOutput out) throws IOException {
+		out.writeByte(VERSION);
+		out.writeUTF(archive);
+		out.writeLong(minTime);
+		out.writeLong(maxTime);
+		out.writeLong(files);
+		out.writeLong(storedBytes);
+		out.writeInt(minFormatVersion);
+		out.writeInt(maxFormatVersion);
+		out.writeBoolean(keyHeader);
+		out.writeLong(cataloged);
+		out.writeInt(generation);
+		out.writeInt(parts.size());
+		for (PartSummary part : parts) {
+			part.write(out);
+		}
+	}
+
+	public void readFields(DataInput in) throws IOException {
+		byte version = in.readByte();
+		if (version > VERSION) {
+			throw new IOException("Unsupported catalog entry version " + version);
+		}
+		archive = in.readUTF();
+		minTime = in.readLong();
+		maxTime = in.readLong();
+		files = in.readLong();
+		storedBytes = in.readLong();
+		minFormatVersion = in.readInt();
+		maxFormatVersion = in.readInt();
+		keyHeader = in.readBoolean();
+		cataloged = in.readLong();
+		generation = (version >= 2) ? in.readInt() : -1;
+		int count = in.readInt();
+		parts = new ArrayList<PartSummary>(count);
+		for (int i = 0; i < count; i++) {
+			PartSummary part = new PartSummary();
+			part.readFields(in);
+			parts.add(part);
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package com.aczire.sar.compression;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+import com.aczire.sar.security.AESCrypter;
+
+/**
+ * The preset compression dictionary of an archive, kept in
+ * <code>&lt;archive&gt;/_dictionary</code>. The dictionary is made of sample
+ * content, so it is encrypted with the archive password whenever the
+ * archive records are.
+ * 
+ * <p>File layout: one byte, 1 if encrypted, followed by the dictionary or
+ * its cipher text.</p>
+ */
+public class ArchiveDictionary {
+	public static final String DICTIONARY_FILE = "_dictionary";
+
+	public static Path getPath(Path archive) {
+		return new Path(archive, DICTIONARY_FILE);
+	}
+
+	/**
+	 * @param password the password to encrypt with, or null to store it in the clear.
+	 */
+	public static void write(FileSystem fs, Path path, byte[] dictionary, String password) throws Exception {
+		byte[] stored = (password != null) ? AESCrypter.encrypt(dictionary, password) : dictionary;
+		FSDataOutputStream out = fs.create(path, true);
+		try {
+			out.writeByte((password != null) ? 1 : 0);
+			out.write(stored);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static byte[] read(FileSystem fs, Path path, String password) throws Exception {
+		int length = (int) fs.getFileStatus(path).getLen();
+		FSDataInputStream in = fs.open(path);
+		byte[] stored = new byte[length - 1];
+		boolean encrypted;
+		try {
+			encrypted = in.readByte() != 0;
+			in.readFully(stored);
+		} finally {
+			IOUtils.closeStream(in);
+		}
+		return encrypted ? AESCrypter.decrypt(stored, password) : stored;
+	}
+
+	/**
+	 * Train a dictionary from the head of up to <code>maxFiles</code> files,
+	 * picked evenly across <code>files</code>.
+	 */
+	public static byte[] train(FileSystem fs, List<FileStatus> files, int maxFiles, int bytesPerFile)
+			throws IOException {
+		List<byte[]> samples = new ArrayList<byte[]>();
+		int step = Math.max(1, files.size() / Math.max(1, maxFiles));
+		for (int i = 0; i < files.size() && samples.size() < maxFiles; i += step) {
+			FileStatus file = files.get(i);
+			byte[] sample = new byte[(int) Math.min(bytesPerFile, file.getLen())];
+			FSDataInputStream in = fs.open(file.getPath());
+			try {
+				in.readFully(sample);
+			} finally {
+				IOUtils.closeStream(in);
+			}
+			samples.add(sample);
+		}
+		return DictionaryLib.train(samples, DictionaryLib.MAX_DICTIONARY_SIZE);
+	}
+}
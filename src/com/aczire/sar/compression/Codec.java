@@ -0,0 +1,170 @@
+package com.aczire.sar.compression;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Codec ids stored in <code>SarKey.Codec</code> for compressed records, and
+ * dispatch to the matching compression library.
+ * 
+ * <p>The deflate codecs trade speed for ratio: {@link #DEFLATE_FAST} suits
+ * ingest under a deadline, and {@link #DEFLATE_MAX} or {@link #DEFLATE_DICT}
+ * records recompressed later, see <code>ArchiveRecompressor</code>. Both
+ * write zlib streams, so they share one decoder.</p>
+ */
+public final class Codec {
+	public static final byte GZIP = 0; // GZipLib, the default.
+	public static final byte DEFLATE_DICT = 1; // Zlib against the archive's preset dictionary.
+	public static final byte DEFLATE_FAST = 2; // Zlib at the fastest level.
+	public static final byte DEFLATE_MAX = 3; // Zlib at the best compression level.
+
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	private Codec() {
+	}
+
+	public static String name(byte codec) {
+		switch (codec) {
+		case GZIP:
+			return "gzip";
+		case DEFLATE_DICT:
+			return "deflate-dict";
+		case DEFLATE_FAST:
+			return "deflate-fast";
+		case DEFLATE_MAX:
+			return "deflate-max";
+		default:
+			return "codec-" + codec;
+		}
+	}
+
+	/**
+	 * @return the id of the codec named as by {@link #name(byte)}.
+	 */
+	public static byte forName(String name) {
+		for (byte codec = GZIP; codec <= DEFLATE_MAX; codec++) {
+			if (name(codec).equals(name)) {
+				return codec;
+			}
+		}
+		throw new IllegalArgumentException("Unknown codec " + name + "; use gzip, deflate-dict, deflate-fast or deflate-max.");
+	}
+
+	private static int level(byte codec) {
+		return (codec == DEFLATE_FAST) ? Deflater.BEST_SPEED : Deflater.BEST_COMPRESSION;
+	}
+
+	/**
+	 * @param dictionary the preset dictionary, needed by {@link #DEFLATE_DICT} only.
+	 */
+	public static byte[] compress(byte codec, byte[] message, byte[] dictionary) throws IOException {
+		switch (codec) {
+		case GZIP:
+			return GZipLib.compress(message);
+		case DEFLATE_DICT:
+			return DictionaryLib.compress(message, dictionary);
+		case DEFLATE_FAST:
+		case DEFLATE_MAX:
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, message.length / 2));
+			OutputStream deflate = compressingStream(codec, out, null);
+			deflate.write(message);
+			deflate.close();
+			return out.toByteArray();
+		default:
+			throw new IOException("Unknown codec " + codec);
+		}
+	}
+
+	/**
+	 * @return a stream compressing what is written to it into <code>out</code>.
+	 * Closing it finishes the compressed record.
+	 */
+	public static OutputStream compressingStream(byte codec, OutputStream out, byte[] dictionary) throws IOException {
+		switch (codec) {
+		case GZIP:
+			return new GZIPOutputStream(out, BUFFER_SIZE);
+		case DEFLATE_DICT:
+			return DictionaryLib.compressingStream(out, dictionary);
+		case DEFLATE_FAST:
+		case DEFLATE_MAX:
+			final Deflater deflater = new Deflater(level(codec));
+			return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						deflater.end();
+					}
+				}
+			};
+		default:
+			throw new IOException("Unknown codec " + codec);
+		}
+	}
+
+	public static InputStream decompressingStream(byte codec, InputStream in, byte[] dictionary) throws IOException {
+		switch (codec) {
+		case GZIP:
+			return GZipLib.decompressingStream(in);
+		case DEFLATE_DICT:
+			if (dictionary == null) {
+				throw new IOException("Record needs the archive dictionary, but none was found.");
+			}
+			return DictionaryLib.decompressingStream(in, dictionary);
+		case DEFLATE_FAST:
+		case DEFLATE_MAX:
+			final Inflater inflater = new Inflater();
+			return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+				@Override
+				public void close() throws IOException {
+					try {
+						super.close();
+					} finally {
+						inflater.end();
+					}
+				}
+			};
+		default:
+			throw new IOException("Unknown codec " + codec);
+		}
+	}
+
+	/**
+	 * @param dictionary the preset dictionary, needed by {@link #DEFLATE_DICT} only.
+	 */
+	public static byte[] decompress(byte codec, byte[] message, byte[] dictionary) throws IOException {
+		switch (codec) {
+		case GZIP:
+			return GZipLib.decompress(message);
+		case DEFLATE_DICT:
+			if (dictionary == null) {
+				throw new IOException("Record needs the archive dictionary, but none was found.");
+			}
+			return DictionaryLib.decompress(message, dictionary);
+		case DEFLATE_FAST:
+		case DEFLATE_MAX:
+			InputStream in = decompressingStream(codec, new ByteArrayInputStream(message), null);
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					(int) Math.max(64, Math.min(Integer.MAX_VALUE - 8, 2L * message.length)));
+			try {
+				IOUtils.copyBytes(in, out, BUFFER_SIZE, false);
+			} finally {
+				in.close();
+			}
+			return out.toByteArray();
+		default:
+			throw new IOException("Unknown codec " + codec);
+		}
+	}
+}
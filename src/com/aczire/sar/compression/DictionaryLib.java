@@ -0,0 +1,243 @@
+package com.aczire.sar.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Zlib compression against a shared preset dictionary.
+ * 
+ * <p>Small, similar records compress poorly on their own because every
+ * stream starts with an empty window. Priming the window with a dictionary
+ * of content common to the archive lets even the first bytes of a record
+ * be coded as back references.</p>
+ */
+public class DictionaryLib {
+	// Deflate cannot reference further back than its 32 KB window.
+	public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+	private static final int SHINGLE = 8;
+	private static final int SEGMENT = 64;
+	private static final int BUCKETS = 1 << 20;
+
+	public static byte[] compress(byte[] message, byte[] dictionary) throws IOException {
+		Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		try {
+			deflater.setDictionary(dictionary);
+			deflater.setInput(message);
+			deflater.finish();
+			ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, message.length / 2));
+			byte[] buffer = new byte[8192];
+			while (!deflater.finished()) {
+				int n = deflater.deflate(buffer);
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @return a stream that compresses what is written to it into <code>out</code>
+	 * against the dictionary, in the format of {@link #compress(byte[], byte[])}.
+	 */
+	public static OutputStream compressingStream(OutputStream out, byte[] dictionary) {
+		final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+		deflater.setDictionary(dictionary);
+		return new DeflaterOutputStream(out, deflater, 8192) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return a stream that decompresses a record made against the dictionary.
+	 */
+	public static InputStream decompressingStream(InputStream in, byte[] dictionary) throws IOException {
+		// A zlib stream with a preset dictionary opens with a two byte header and the dictionary id.
+		byte[] header = new byte[6];
+		IOUtils.readFully(in, header, 0, header.length);
+		final Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(header);
+			if (inflater.inflate(new byte[1]) != 0 || !inflater.needsDictionary()) {
+				throw new IOException("Record was not compressed against a dictionary.");
+			}
+			inflater.setDictionary(dictionary);
+		} catch (DataFormatException e) {
+			inflater.end();
+			throw new IOException("Corrupt compressed record.", e);
+		} catch (IllegalArgumentException e) {
+			inflater.end();
+			throw new IOException("Record was compressed with a different dictionary.", e);
+		}
+		return new InflaterInputStream(in, inflater, 8192) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					inflater.end();
+				}
+			}
+		};
+	}
+
+	public static byte[] decompress(byte[] message, byte[] dictionary) throws IOException {
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(message);
+			// Sized for a typical ratio, in long arithmetic so large messages do not overflow.
+			ByteArrayOutputStream out = new ByteArrayOutputStream(
+					(int) Math.min(Integer.MAX_VALUE - 8, 4L * message.length));
+			byte[] buffer = new byte[8192];
+			boolean primed = false;
+			while (!inflater.finished()) {
+				int n = inflater.inflate(buffer);
+				if (n == 0) {
+					if (inflater.needsDictionary() && !primed) {
+						inflater.setDictionary(dictionary);
+						primed = true;
+					} else if (inflater.needsInput() || inflater.needsDictionary()) {
+						// The whole record was given; asking for more means it was cut short.
+						throw new IOException("Truncated compressed record.");
+					}
+				}
+				out.write(buffer, 0, n);
+			}
+			return out.toByteArray();
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed record.", e);
+		} catch (IllegalArgumentException e) {
+			// Raised by setDictionary when the record was made with another dictionary.
+			throw new IOException("Record was compressed with a different dictionary.", e);
+		} finally {
+			inflater.end();
+		}
+	}
+
+	/**
+	 * Build a dictionary from sample records.
+	 * 
+	 * <p>Samples are cut into 64 byte segments, and each segment is scored
+	 * by how many samples share its 8 byte shingles. The best scoring
+	 * distinct segments are kept, with the best ones last so that they sit
+	 * closest to the data, where deflate codes references most cheaply.</p>
+	 * 
+	 * @param samples sample record contents.
+	 * @param maxSize maximum dictionary size, at most {@link #MAX_DICTIONARY_SIZE}.
+	 */
+	public static byte[] train(List<byte[]> samples, int maxSize) {
+		maxSize = Math.min(maxSize, MAX_DICTIONARY_SIZE);
+
+		// Approximate number of samples containing each shingle.
+		int[] frequency = new int[BUCKETS];
+		int[] lastSample = new int[BUCKETS];
+		for (int s = 0; s < samples.size(); s++) {
+			byte[] sample = samples.get(s);
+			for (int i = 0; i + SHINGLE <= sample.length; i++) {
+				int bucket = bucket(sample, i);
+				if (lastSample[bucket] != s + 1) {
+					lastSample[bucket] = s + 1;
+					frequency[bucket]++;
+				}
+			}
+		}
+
+		final class Segment {
+			final byte[] sample;
+			final int offset;
+			final long score;
+
+			Segment(byte[] sample, int offset, long score) {
+				this.sample = sample;
+				this.offset = offset;
+				this.score = score;
+			}
+		}
+		Comparator<Segment> byScore = new Comparator<Segment>() {
+			public int compare(Segment a, Segment b) {
+				return (a.score < b.score) ? -1 : ((a.score == b.score) ? 0 : 1);
+			}
+		};
+
+		// Keep twice as many segments as fit, to leave room for duplicates.
+		int keep = 2 * maxSize / SEGMENT;
+		PriorityQueue<Segment> best = new PriorityQueue<Segment>(keep + 1, byScore);
+		for (byte[] sample : samples) {
+			for (int offset = 0; offset + SEGMENT <= sample.length; offset += SEGMENT) {
+				long score = 0;
+				for (int i = offset; i + SHINGLE <= offset + SEGMENT; i++) {
+					int f = frequency[bucket(sample, i)];
+					if (f > 1) {
+						score += f;
+					}
+				}
+				if (score == 0) {
+					continue;
+				}
+				best.add(new Segment(sample, offset, score));
+				if (best.size() > keep) {
+					best.poll();
+				}
+			}
+		}
+
+		List<Segment> chosen = new ArrayList<Segment>(best);
+		Collections.sort(chosen, Collections.reverseOrder(byScore));
+		List<Segment> distinct = new ArrayList<Segment>();
+		Set<ByteBuffer> seen = new HashSet<ByteBuffer>();
+		int size = 0;
+		for (Segment segment : chosen) {
+			if (size + SEGMENT > maxSize) {
+				break;
+			}
+			if (seen.add(ByteBuffer.wrap(segment.sample, segment.offset, SEGMENT))) {
+				distinct.add(segment);
+				size += SEGMENT;
+			}
+		}
+
+		// Lowest score first, best last.
+		byte[] dictionary = new byte[size];
+		int at = 0;
+		for (int i = distinct.size() - 1; i >= 0; i--) {
+			Segment segment = distinct.get(i);
+			System.arraycopy(segment.sample, segment.offset, dictionary, at, SEGMENT);
+			at += SEGMENT;
+		}
+		return dictionary;
+	}
+
+	private static int bucket(byte[] data, int offset) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = offset; i < offset + SHINGLE; i++) {
+			h ^= data[i] & 0xff;
+			h *= 0x100000001b3L;
+		}
+		return (int) (h ^ (h >>> 32)) & (BUCKETS - 1);
+	}
+}
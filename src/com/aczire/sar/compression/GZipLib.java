@@ -2,10 +2,18 @@ package com.aczire.sar.compression;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
 import java.util.zip.*;
 
 public class GZipLib{
+	private static final int FHCRC = 2;
+	private static final int FEXTRA = 4;
+	private static final int FNAME = 8;
+	private static final int FCOMMENT = 16;
+
 	public static byte[] compress(byte[] message) throws IOException{
 		ByteArrayOutputStream out = new ByteArrayOutputStream();
 		GZIPOutputStream gzip = new GZIPOutputStream(out);
@@ -14,19 +22,194 @@ public class GZipLib{
 		return out.toByteArray();
 	}
 
+	/**
+	 * Compress blocks of the message on the threads of the pool, into one
+	 * gzip member each. See {@link ParallelGZipOutputStream}.
+	 */
+	public static byte[] compress(byte[] message, ExecutorService pool, int threads, int blockSize) throws IOException{
+		ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64, message.length / 2));
+		ParallelGZipOutputStream gzip = new ParallelGZipOutputStream(out, pool, threads, blockSize);
+		gzip.write(message, 0, message.length);
+		gzip.close();
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decompress a gzip stream of one or more members, as
+	 * {@link #decompressingStream(InputStream)} reads it.
+	 */
 	public static byte[] decompress(byte[] message) throws IOException{
-		ByteArrayInputStream in = new ByteArrayInputStream(message);
-		ByteArrayOutputStream outStream = new ByteArrayOutputStream();
-		GZIPInputStream gzip = new GZIPInputStream(in);
+		// Sized for a typical ratio, in long arithmetic so messages over 1 GB do not overflow.
+		ByteArrayOutputStream outStream = new ByteArrayOutputStream(
+				(int) Math.min(Integer.MAX_VALUE - 8, 2L * message.length));
+		InputStream in = decompressingStream(new ByteArrayInputStream(message));
+		try {
+			byte[] buffer = new byte[64 * 1024];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				outStream.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return outStream.toByteArray();
+	}
+
+	/**
+	 * @return a stream of the decompressed contents of every member of a gzip
+	 * stream. Members are walked here rather than left to
+	 * <code>GZIPInputStream</code>, which on Java 6 stops after the first
+	 * member, so records made by {@link ParallelGZipOutputStream} read back
+	 * whole whether they are streamed or decoded in memory.
+	 */
+	public static InputStream decompressingStream(InputStream in) {
+		return new MemberInputStream(in);
+	}
 
-		byte[] buffer = new byte[1024];
-		int bytesRead;
+	private static class MemberInputStream extends InputStream {
+		private final InputStream in;
+		private final Inflater inflater = new Inflater(true);
+		private final CRC32 crc = new CRC32();
+		private final byte[] buffer = new byte[64 * 1024];
+		private int position = 0; // Next byte of the buffer not handed to the inflater.
+		private int limit = 0;
+		private boolean inMember = false;
+		private boolean first = true;
+		private boolean eof = false;
+		private long size;
 
-		while ((bytesRead = gzip.read(buffer)) != -1)
-		{
-			outStream.write(buffer, 0, bytesRead);
+		MemberInputStream(InputStream in) {
+			this.in = in;
 		}
 
-		return outStream.toByteArray();
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			int n;
+			while ((n = read(b, 0, 1)) == 0) {
+			}
+			return (n < 0) ? -1 : (b[0] & 0xff);
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			try {
+				while (!eof) {
+					if (!inMember) {
+						if (!startMember()) {
+							eof = true;
+							break;
+						}
+					}
+					int n = inflater.inflate(b, off, len);
+					if (n > 0) {
+						crc.update(b, off, n);
+						size += n;
+						return n;
+					}
+					if (inflater.finished()) {
+						// The inflater was handed the whole buffer; take back what follows the member.
+						position = limit - inflater.getRemaining();
+						finishMember();
+					}
+					else if (inflater.needsDictionary()) {
+						throw new ZipException("Corrupt gzip member");
+					}
+					else if (inflater.needsInput()) {
+						position = limit;
+						if (!fill()) {
+							throw new EOFException("Unexpected end of gzip member");
+						}
+						inflater.setInput(buffer, position, limit - position);
+					}
+				}
+			} catch (DataFormatException e) {
+				throw new ZipException(e.getMessage());
+			}
+			return -1;
+		}
+
+		/*
+		 * Read the header of the next member.
+		 * @return false at the end of the stream, between members.
+		 */
+		private boolean startMember() throws IOException {
+			if (position == limit && !fill()) {
+				if (first) {
+					throw new EOFException("Empty gzip stream");
+				}
+				return false;
+			}
+			first = false;
+			if (readByte() != 0x1f || readByte() != 0x8b || readByte() != 8) {
+				throw new ZipException("Not in GZIP format");
+			}
+			int flags = readByte();
+			skip(6); // Modification time, extra flags and operating system.
+			if ((flags & FEXTRA) != 0) {
+				skip(readByte() | readByte() << 8);
+			}
+			if ((flags & FNAME) != 0) {
+				while (readByte() != 0) {
+				}
+			}
+			if ((flags & FCOMMENT) != 0) {
+				while (readByte() != 0) {
+				}
+			}
+			if ((flags & FHCRC) != 0) {
+				skip(2);
+			}
+			inflater.reset();
+			crc.reset();
+			size = 0;
+			inflater.setInput(buffer, position, limit - position);
+			inMember = true;
+			return true;
+		}
+
+		private void finishMember() throws IOException {
+			int expectedCrc = readByte() | readByte() << 8 | readByte() << 16 | readByte() << 24;
+			int expectedSize = readByte() | readByte() << 8 | readByte() << 16 | readByte() << 24;
+			if (expectedCrc != (int) crc.getValue() || expectedSize != (int) size) {
+				throw new ZipException("Corrupt gzip trailer");
+			}
+			inMember = false;
+		}
+
+		private boolean fill() throws IOException {
+			int n = in.read(buffer, 0, buffer.length);
+			while (n == 0) {
+				n = in.read(buffer, 0, buffer.length);
+			}
+			position = 0;
+			limit = Math.max(n, 0);
+			return n > 0;
+		}
+
+		/*
+		 * A header or trailer byte; running out of input here means the stream was cut short.
+		 */
+		private int readByte() throws IOException {
+			if (position == limit && !fill()) {
+				throw new EOFException("Truncated gzip header or trailer");
+			}
+			return buffer[position++] & 0xff;
+		}
+
+		private void skip(int n) throws IOException {
+			for (int i = 0; i < n; i++) {
+				readByte();
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			inflater.end();
+			in.close();
+		}
 	}
-}
\ No newline at end of file
+}
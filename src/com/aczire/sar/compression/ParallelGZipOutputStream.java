@@ -0,0 +1,130 @@
+package com.aczire.sar.compression;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Gzip compression spread over a thread pool, in the manner of pigz.
+ * 
+ * <p>The input is cut into fixed-size blocks, each compressed on its own
+ * into a complete gzip member, and the members are written out in input
+ * order. A sequence of members is itself a valid gzip stream, so the
+ * output reads back with {@link GZipLib#decompress(byte[])}, with
+ * <code>GZIPInputStream</code> and with the gzip tools.</p>
+ * 
+ * <p>Unlike pigz, blocks are not primed with the tail of the previous block:
+ * that needs a sync flush to end a block on a byte boundary mid-stream,
+ * which <code>Deflater</code> does not offer before Java 7. The cost is a
+ * little ratio at each block boundary, small for blocks of a megabyte.</p>
+ */
+public class ParallelGZipOutputStream extends OutputStream {
+	public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+	private final OutputStream out;
+	private final ExecutorService pool;
+	private final int blockSize;
+	private final int maxPending;
+	private final LinkedList<Future<byte[]>> pending = new LinkedList<Future<byte[]>>();
+
+	private byte[] block;
+	private int count = 0;
+	private boolean empty = true;
+	private boolean closed = false;
+
+	/**
+	 * @param threads the number of threads of the pool; up to twice as many
+	 * blocks are held in memory at once.
+	 */
+	public ParallelGZipOutputStream(OutputStream out, ExecutorService pool, int threads, int blockSize) {
+		this.out = out;
+		this.pool = pool;
+		this.blockSize = blockSize;
+		this.maxPending = 2 * Math.max(1, threads);
+		this.block = new byte[blockSize];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, blockSize - count);
+			System.arraycopy(b, off, block, count, n);
+			count += n;
+			off += n;
+			len -= n;
+			if (count == blockSize) {
+				submit();
+			}
+		}
+	}
+
+	private void submit() throws IOException {
+		final byte[] input = block;
+		final int length = count;
+		pending.add(pool.submit(new Callable<byte[]>() {
+			public byte[] call() throws IOException {
+				ByteArrayOutputStream member = new ByteArrayOutputStream(Math.max(64, length / 2));
+				GZIPOutputStream gzip = new GZIPOutputStream(member);
+				gzip.write(input, 0, length);
+				gzip.close();
+				return member.toByteArray();
+			}
+		}));
+		empty = false;
+		block = new byte[blockSize];
+		count = 0;
+		while (pending.size() > maxPending) {
+			writeNext();
+		}
+	}
+
+	private void writeNext() throws IOException {
+		try {
+			out.write(pending.removeFirst().get());
+		} catch (InterruptedException e) {
+			throw new IOException("Interrupted while compressing", e);
+		} catch (ExecutionException e) {
+			throw new IOException("Failed to compress block", e.getCause());
+		}
+	}
+
+	/**
+	 * Write out every block so far; a partial block is compressed as is.
+	 */
+	public void finish() throws IOException {
+		if (count > 0 || empty) {
+			// Even an empty input needs one member to be a gzip stream.
+			submit();
+		}
+		while (!pending.isEmpty()) {
+			writeNext();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			finish();
+		} finally {
+			for (Future<byte[]> future : pending) {
+				future.cancel(true);
+			}
+			out.close();
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package com.aczire.sar.dedup;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Writable;
+
+/**
+ * The ordered list of chunks a deduplicated file is rebuilt from.
+ */
+public class ChunkRecipe implements Writable {
+	public static final int FINGERPRINT_LENGTH = 32; // SHA-256, or HMAC-SHA256 when encrypted
+
+	private final List<byte[]> fingerprints = new ArrayList<byte[]>();
+	private final List<Integer> lengths = new ArrayList<Integer>();
+
+	public void add(byte[] fingerprint, int length) {
+		fingerprints.add(fingerprint);
+		lengths.add(length);
+	}
+
+	public int size() {
+		return fingerprints.size();
+	}
+
+	public byte[] getFingerprint(int i) {
+		return fingerprints.get(i);
+	}
+
+	public int getLength(int i) {
+		return lengths.get(i);
+	}
+
+	/**
+	 * @return the length of the rebuilt file.
+	 */
+	public long getTotalLength() {
+		long total = 0;
+		for (int length : lengths) {
+			total += length;
+		}
+		return total;
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		out.writeInt(fingerprints.size());
+		for (int i = 0; i < fingerprints.size(); i++) {
+			out.write(fingerprints.get(i));
+			out.writeInt(lengths.get(i));
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		fingerprints.clear();
+		lengths.clear();
+		int count = in.readInt();
+		for (int i = 0; i < count; i++) {
+			byte[] fingerprint = new byte[FINGERPRINT_LENGTH];
+			in.readFully(fingerprint);
+			add(fingerprint, in.readInt());
+		}
+	}
+
+	public byte[] toBytes() throws IOException {
+		DataOutputBuffer out = new DataOutputBuffer();
+		write(out);
+		byte[] bytes = new byte[out.getLength()];
+		System.arraycopy(out.getData(), 0, bytes, 0, out.getLength());
+		return bytes;
+	}
+
+	public static ChunkRecipe fromBytes(byte[] bytes) throws IOException {
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(bytes, bytes.length);
+		ChunkRecipe recipe = new ChunkRecipe();
+		recipe.readFields(in);
+		return recipe;
+	}
+
+	/**
+	 * @return the chunk store key name of a fingerprint.
+	 */
+	public static String toHex(byte[] fingerprint) {
+		StringBuilder sb = new StringBuilder(fingerprint.length * 2);
+		for (byte b : fingerprint) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+			sb.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * @return the HMAC-SHA256 under the data key that fingerprints the chunks
+	 * of an encrypted archive. A plain hash would let anyone holding the
+	 * archive confirm a guessed chunk from its name alone.
+	 */
+	public static Mac fingerprintMac(String dataKey) throws GeneralSecurityException {
+		Mac mac = Mac.getInstance("HmacSHA256");
+		try {
+			mac.init(new SecretKeySpec(dataKey.getBytes("utf-8"), "HmacSHA256"));
+		} catch (UnsupportedEncodingException e) {
+			throw new GeneralSecurityException(e);
+		}
+		return mac;
+	}
+}
@@ -0,0 +1,83 @@
+package com.aczire.sar.dedup;
+
+import java.util.Random;
+
+/**
+ * Content-defined chunking with a gear rolling hash.
+ * 
+ * <p>A boundary is declared after a byte when the top bits of the rolling
+ * hash are all zero, so boundaries depend only on the last 64 bytes of
+ * content and survive insertions and deletions elsewhere in the file.
+ * Chunks are never shorter than <code>minSize</code> nor longer than
+ * <code>maxSize</code>; the average length is close to <code>avgSize</code>.</p>
+ */
+public class ChunkSplitter {
+	public static final int DEFAULT_AVG_SIZE = 8 * 1024;
+
+	// Gear table. Seeded so that every task cuts identical content identically.
+	private static final long[] GEAR = new long[256];
+	static {
+		Random random = new Random(0x5ec0a2c41fe5L);
+		for (int i = 0; i < GEAR.length; i++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	private final int minSize;
+	private final int maxSize;
+	private final long mask;
+
+	/**
+	 * @param avgSize the target average chunk size, rounded down to a power of two.
+	 */
+	public ChunkSplitter(int avgSize) {
+		if (avgSize < 256) {
+			throw new IllegalArgumentException("Average chunk size must be at least 256 bytes.");
+		}
+		int bits = 31 - Integer.numberOfLeadingZeros(avgSize);
+		this.minSize = (1 << bits) / 4;
+		this.maxSize = (1 << bits) * 8;
+		this.mask = ((1L << bits) - 1) << (64 - bits);
+	}
+
+	/**
+	 * Find the chunk boundaries of <code>data</code>.
+	 * @return the exclusive end offset of every chunk, in order. The last
+	 * entry is always <code>length</code>.
+	 */
+	public int[] split(byte[] data, int offset, int length) {
+		int[] ends = new int[Math.max(4, length / (minSize * 4))];
+		int count = 0;
+		int end = offset + length;
+		int start = offset;
+		while (start < end) {
+			int cut = nextBoundary(data, start, end);
+			if (count == ends.length) {
+				int[] grown = new int[ends.length * 2];
+				System.arraycopy(ends, 0, grown, 0, count);
+				ends = grown;
+			}
+			ends[count++] = cut - offset;
+			start = cut;
+		}
+		int[] result = new int[count];
+		System.arraycopy(ends, 0, result, 0, count);
+		return result;
+	}
+
+	private int nextBoundary(byte[] data, int start, int end) {
+		int limit = Math.min(end, start + maxSize);
+		int i = start + minSize;
+		if (i >= limit) {
+			return limit;
+		}
+		long hash = 0;
+		for (; i < limit; i++) {
+			hash = (hash << 1) + GEAR[data[i] & 0xff];
+			if ((hash & mask) == 0) {
+				return i + 1;
+			}
+		}
+		return limit;
+	}
+}
@@ -0,0 +1,88 @@
+package com.aczire.sar.dedup;
+
+import java.io.IOException;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.MapFile;
+import org.apache.hadoop.mapreduce.lib.output.MapFileOutputFormat;
+
+import com.aczire.sar.SarKey;
+import com.aczire.sar.compression.Codec;
+import com.aczire.sar.security.AESCrypter;
+
+/**
+ * Read side of the chunk store of a deduplicated archive.
+ * 
+ * <p>The builder writes every unique chunk once, compressed and encrypted,
+ * into MapFiles under <code>&lt;archive&gt;/chunks</code>, keyed by the hex
+ * SHA-256 of the plaintext chunk, or its HMAC-SHA256 under the data key when
+ * the archive is encrypted. Files are stored as {@link ChunkRecipe}s that
+ * reference those chunks.</p>
+ */
+public class ChunkStore {
+	public static final String CHUNK_DIR = "chunks";
+	public static final String NAMED_OUTPUT = "chunks";
+
+	private final MapFile.Reader[] readers;
+	private final String password;
+	private final String keyDigest;
+
+	private final BytesWritable value = new BytesWritable();
+
+	/**
+	 * @param archive the archive directory.
+	 * @param password the password the chunks were encrypted with.
+	 */
+	public ChunkStore(Configuration conf, Path archive, String password) throws Exception {
+		Path dir = new Path(archive, CHUNK_DIR);
+		FileSystem fs = dir.getFileSystem(conf);
+		this.readers = fs.exists(dir) ? MapFileOutputFormat.getReaders(dir, conf) : new MapFile.Reader[0];
+		this.password = password;
+		this.keyDigest = AESCrypter.keyDigest(password);
+	}
+
+	public static boolean exists(Configuration conf, Path archive) throws IOException {
+		Path dir = new Path(archive, CHUNK_DIR);
+		return dir.getFileSystem(conf).exists(dir);
+	}
+
+	/**
+	 * Fetch and decode one chunk.
+	 * @return the plaintext chunk.
+	 * @throws IOException if the chunk is missing or cannot be decoded.
+	 */
+	public byte[] get(byte[] fingerprint) throws Exception {
+		SarKey search = new SarKey();
+		search.Type = SarKey.TYPE_CHUNK;
+		search.Filename = ChunkRecipe.toHex(fingerprint);
+
+		for (MapFile.Reader reader : readers) {
+			SarKey found = (SarKey) reader.getClosest(search, value);
+			if (found != null && found.compareTo(search) == 0) {
+				return decode(found, value.copyBytes());
+			}
+		}
+		throw new IOException("Chunk " + search.Filename + " is missing from the chunk store.");
+	}
+
+	private byte[] decode(SarKey key, byte[] stored) throws Exception {
+		byte[] plain = stored;
+		if (key.Locked) {
+			if (!keyDigest.equals(key.Key)) {
+				throw new IOException("Incorrect password for chunk " + key.Filename + ".");
+			}
+			plain = AESCrypter.decrypt(plain, password);
+		}
+		return key.Compressed ? Codec.decompress(key.Codec, plain, null) : plain;
+	}
+
+	public void close() {
+		for (MapFile.Reader reader : readers) {
+			IOUtils.closeStream(reader);
+		}
+	}
+}
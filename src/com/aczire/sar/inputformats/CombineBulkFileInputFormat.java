@@ -0,0 +1,35 @@
+package com.aczire.sar.inputformats;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileInputFormat;
+
+import com.aczire.sar.SarKey;
+import com.aczire.sar.recordreaders.PrefetchingBulkFileRecordReader;
+
+/**
+ * Reads each file as a whole bulk, packing many files into one split so a
+ * task reads several of them.
+ * 
+ * <p>Splits are filled up to <code>mapreduce.input.fileinputformat.split.maxsize</code>
+ * bytes, keeping files of the same node and rack together.</p>
+ */
+public class CombineBulkFileInputFormat extends CombineFileInputFormat<SarKey, BytesWritable> {
+
+	@Override
+	protected boolean isSplitable(JobContext context, Path filename) {
+		return false;
+	}
+
+	@Override
+	public RecordReader<SarKey, BytesWritable> createRecordReader(
+			InputSplit split, TaskAttemptContext context) throws IOException {
+		return new PrefetchingBulkFileRecordReader();
+	}
+}
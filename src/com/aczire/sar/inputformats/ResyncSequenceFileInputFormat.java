@@ -0,0 +1,23 @@
+package com.aczire.sar.inputformats;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.SequenceFileInputFormat;
+
+import com.aczire.sar.SarKey;
+import com.aczire.sar.recordreaders.*;
+
+/**
+ * Reads archive parts, skipping past corrupt records to the next sync
+ * point instead of failing the rest of the split.
+ */
+public class ResyncSequenceFileInputFormat extends SequenceFileInputFormat<SarKey, BytesWritable> {
+
+	@Override
+	public RecordReader<SarKey, BytesWritable> createRecordReader(
+			InputSplit split, TaskAttemptContext context) {
+		return new ResyncSequenceFileRecordReader();
+	}
+}
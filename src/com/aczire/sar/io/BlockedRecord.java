@@ -0,0 +1,176 @@
+package com.aczire.sar.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.DataInputBuffer;
+
+/**
+ * Layout of a record stored as independently decodable blocks.
+ * 
+ * <p>The plaintext is cut into fixed size blocks and every block is
+ * compressed and encrypted on its own. The record value starts with a seek
+ * table, so a reader can decode just the blocks covering a byte range:</p>
+ * <pre>
+ * int   magic ("SARB")
+ * int   blockSize
+ * long  plainLength
+ * int   blockCount
+ * int[] encodedLength, one per block
+ * byte[] encoded blocks, in order
+ * </pre>
+ */
+public class BlockedRecord {
+	public static final int MAGIC = 0x53415242;
+	private static final int HEADER_LENGTH = 20;
+
+	/**
+	 * Collects the encoded blocks of a record.
+	 */
+	public static class Writer {
+		private final long plainLength;
+		private final int blockSize;
+		private final List<byte[]> blocks = new ArrayList<byte[]>();
+
+		public Writer(long plainLength, int blockSize) {
+			this.plainLength = plainLength;
+			this.blockSize = blockSize;
+		}
+
+		public void add(byte[] encodedBlock) {
+			blocks.add(encodedBlock);
+		}
+
+		public byte[] toByteArray() throws IOException {
+			int size = HEADER_LENGTH + 4 * blocks.size();
+			for (byte[] block : blocks) {
+				size += block.length;
+			}
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(size);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(MAGIC);
+			out.writeInt(blockSize);
+			out.writeLong(plainLength);
+			out.writeInt(blocks.size());
+			for (byte[] block : blocks) {
+				out.writeInt(block.length);
+			}
+			for (byte[] block : blocks) {
+				out.write(block);
+			}
+			out.close();
+			return bytes.toByteArray();
+		}
+	}
+
+	/**
+	 * The seek table of a blocked record.
+	 */
+	public static class SeekTable {
+		private final int blockSize;
+		private final long plainLength;
+		private final long[] offsets; // Offset of each block within the value; one extra entry for the end.
+
+		SeekTable(int blockSize, long plainLength, int[] lengths) {
+			this.blockSize = blockSize;
+			this.plainLength = plainLength;
+			this.offsets = new long[lengths.length + 1];
+			offsets[0] = HEADER_LENGTH + 4L * lengths.length;
+			for (int i = 0; i < lengths.length; i++) {
+				offsets[i + 1] = offsets[i] + lengths[i];
+			}
+		}
+
+		public int getBlockSize() {
+			return blockSize;
+		}
+
+		public long getPlainLength() {
+			return plainLength;
+		}
+
+		public int getBlockCount() {
+			return offsets.length - 1;
+		}
+
+		/**
+		 * @return the offset of the encoded block within the record value.
+		 */
+		public long getOffset(int block) {
+			return offsets[block];
+		}
+
+		public int getEncodedLength(int block) {
+			return (int) (offsets[block + 1] - offsets[block]);
+		}
+
+		/**
+		 * @return the plaintext offset the block starts at.
+		 */
+		public long getPlainOffset(int block) {
+			return (long) block * blockSize;
+		}
+
+		/**
+		 * @return the block holding the plaintext byte at <code>position</code>.
+		 */
+		public int findBlock(long position) {
+			return (int) (position / blockSize);
+		}
+	}
+
+	/**
+	 * Read the seek table at the start of an in-memory record value.
+	 */
+	public static SeekTable readTable(byte[] value) throws IOException {
+		DataInputBuffer in = new DataInputBuffer();
+		in.reset(value, value.length);
+		return readTable(in);
+	}
+
+	/**
+	 * Read the seek table of a record value through a scanner, touching only
+	 * the table itself.
+	 */
+	public static SeekTable readTable(RecordScanner scanner) throws IOException {
+		byte[] header = new byte[HEADER_LENGTH];
+		scanner.readValue(0, header, 0, HEADER_LENGTH);
+		int blockCount = ((header[16] & 0xff) << 24) | ((header[17] & 0xff) << 16)
+				| ((header[18] & 0xff) << 8) | (header[19] & 0xff);
+		checkBlockCount(blockCount, scanner.getValueLength());
+		byte[] table = new byte[HEADER_LENGTH + 4 * blockCount];
+		System.arraycopy(header, 0, table, 0, HEADER_LENGTH);
+		scanner.readValue(HEADER_LENGTH, table, HEADER_LENGTH, 4 * blockCount);
+		return readTable(table);
+	}
+
+	private static SeekTable readTable(DataInputBuffer in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Record is not stored in blocks.");
+		}
+		int blockSize = in.readInt();
+		long plainLength = in.readLong();
+		int blockCount = in.readInt();
+		checkBlockCount(blockCount, in.getLength());
+		int[] lengths = new int[blockCount];
+		for (int i = 0; i < blockCount; i++) {
+			lengths[i] = in.readInt();
+		}
+		return new SeekTable(blockSize, plainLength, lengths);
+	}
+
+	/*
+	 * Check a block count read from disk against the value holding its
+	 * table, so a corrupt header fails as a bad record rather than as a
+	 * negative or huge allocation.
+	 */
+	private static void checkBlockCount(int blockCount, long valueLength) throws IOException {
+		if (blockCount < 0 || HEADER_LENGTH + 4L * blockCount > valueLength) {
+			throw new IOException("Corrupt blocked record: " + blockCount + " blocks in a value of "
+					+ valueLength + " bytes.");
+		}
+	}
+}
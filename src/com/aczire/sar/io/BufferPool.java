@@ -0,0 +1,111 @@
+package com.aczire.sar.io;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.LocalDirAllocator;
+
+/**
+ * Task-wide pool of fixed size buffer segments under a memory budget.
+ * 
+ * <p>Records larger than the streaming threshold are not held as one array
+ * per stage. The reader, codec and cipher stages stream them through
+ * {@link SpillableBuffer}s built from segments of this pool, and a buffer
+ * that cannot get another segment within the budget spills the rest of its
+ * record to a file in the task's local directories. Segments are recycled,
+ * so a task settles at a fixed footprint whatever the size of its records.</p>
+ */
+public class BufferPool {
+	public static final String BUDGET_BYTES = "sar.buffer.budget.bytes";
+	public static final String SEGMENT_BYTES = "sar.buffer.segment.bytes";
+	public static final String DIRECT = "sar.buffer.direct";
+	public static final String STREAM_THRESHOLD_BYTES = "sar.buffer.stream.threshold.bytes";
+
+	public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+	public static final int DEFAULT_SEGMENT = 1024 * 1024;
+	public static final long DEFAULT_STREAM_THRESHOLD = 8L * 1024 * 1024;
+
+	private static final String LOCAL_DIRS = "mapreduce.cluster.local.dir";
+
+	private static BufferPool instance;
+
+	private final Configuration conf;
+	private final String settings;
+	private final long budget;
+	private final int segmentSize;
+	private final boolean direct;
+	private final long streamThreshold;
+	private final List<ByteBuffer> free = new ArrayList<ByteBuffer>();
+	private long allocated;
+
+	BufferPool(Configuration conf) {
+		this.conf = conf;
+		this.budget = conf.getLong(BUDGET_BYTES, DEFAULT_BUDGET);
+		this.segmentSize = conf.getInt(SEGMENT_BYTES, DEFAULT_SEGMENT);
+		this.direct = conf.getBoolean(DIRECT, false);
+		this.streamThreshold = conf.getLong(STREAM_THRESHOLD_BYTES, DEFAULT_STREAM_THRESHOLD);
+		this.settings = settings(conf);
+	}
+
+	/**
+	 * @return the pool of this task. A JVM that runs several jobs, as the
+	 * local runner does, gets a new pool once the settings change; segments
+	 * still out go back to the pool they came from.
+	 */
+	public static synchronized BufferPool get(Configuration conf) {
+		if (instance == null || !instance.settings.equals(settings(conf))) {
+			instance = new BufferPool(conf);
+		}
+		return instance;
+	}
+
+	private static String settings(Configuration conf) {
+		return conf.getLong(BUDGET_BYTES, DEFAULT_BUDGET) + "," + conf.getInt(SEGMENT_BYTES, DEFAULT_SEGMENT)
+				+ "," + conf.getBoolean(DIRECT, false) + "," + conf.getLong(STREAM_THRESHOLD_BYTES, DEFAULT_STREAM_THRESHOLD)
+				+ "," + conf.get(LOCAL_DIRS);
+	}
+
+	/**
+	 * @return whether a record of this size should be streamed instead of held in one array.
+	 */
+	public boolean shouldStream(long length) {
+		return length > streamThreshold;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	/**
+	 * @return a cleared segment, or null if the budget is used up.
+	 */
+	public synchronized ByteBuffer acquire() {
+		if (!free.isEmpty()) {
+			return free.remove(free.size() - 1);
+		}
+		if (allocated + segmentSize > budget) {
+			return null;
+		}
+		allocated += segmentSize;
+		return direct ? ByteBuffer.allocateDirect(segmentSize) : ByteBuffer.allocate(segmentSize);
+	}
+
+	public synchronized void release(ByteBuffer segment) {
+		segment.clear();
+		free.add(segment);
+	}
+
+	/**
+	 * @return a new file in the task's local directories to spill a record to.
+	 */
+	public File createSpillFile() throws IOException {
+		if (conf.get(LOCAL_DIRS) == null) {
+			return File.createTempFile("sar-spill", ".tmp");
+		}
+		return new LocalDirAllocator(LOCAL_DIRS).createTmpFileForWrite("sar-spill", LocalDirAllocator.SIZE_UNKNOWN, conf);
+	}
+}
@@ -0,0 +1,52 @@
+package com.aczire.sar.io;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.ChecksumFileSystem;
+import org.apache.hadoop.fs.FileContext;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Options;
+import org.apache.hadoop.fs.Path;
+
+/**
+ * Replaces a file with one written beside it in a single rename.
+ *
+ * <p><code>FileSystem.rename</code> refuses to overwrite, so replacing a
+ * file with it means deleting the old one first, and a failure in between
+ * leaves neither in place. <code>FileContext.rename</code> with
+ * <code>OVERWRITE</code> swaps the file atomically: readers see the old
+ * file or the new one, never none.</p>
+ *
+ * <p>The checksummed local filesystem overwrites the file but not its
+ * checksum, so there the file is renamed on the raw filesystem, which
+ * overwrites atomically, and the checksum follows. The old checksum goes
+ * first: a file briefly without one is read unverified, while one with a
+ * stale checksum fails every read.</p>
+ */
+public class FileSwap {
+	/**
+	 * Rename <code>tmp</code> over <code>path</code>, which may not exist yet.
+	 */
+	public static void replace(FileSystem fs, Path tmp, Path path) throws IOException {
+		if (fs instanceof ChecksumFileSystem) {
+			ChecksumFileSystem checked = (ChecksumFileSystem) fs;
+			FileSystem raw = checked.getRawFileSystem();
+			Path checksum = checked.getChecksumFile(path);
+			Path tmpChecksum = checked.getChecksumFile(tmp);
+			raw.delete(checksum, false);
+			if (!raw.rename(tmp, path)) {
+				throw new IOException("Failed to replace " + path + " with " + tmp);
+			}
+			if (raw.exists(tmpChecksum) && !raw.rename(tmpChecksum, checksum)) {
+				throw new IOException("Failed to move the checksum of " + tmp + " to " + path);
+			}
+			return;
+		}
+		FileContext fc = FileContext.getFileContext(fs.getUri(), fs.getConf());
+		try {
+			fc.rename(fs.makeQualified(tmp), fs.makeQualified(path), Options.Rename.OVERWRITE);
+		} catch (IOException e) {
+			throw new IOException("Failed to replace " + path + " with " + tmp, e);
+		}
+	}
+}
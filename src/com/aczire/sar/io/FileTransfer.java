@@ -0,0 +1,86 @@
+package com.aczire.sar.io;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.LocalFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.util.PureJavaCrc32C;
+
+/**
+ * Copies a stretch of one local file into another with
+ * <code>FileChannel.transferTo</code>, so the bytes move between the files
+ * in the kernel without passing through the heap.
+ *
+ * <p>Records stored neither compressed nor encrypted are the file itself;
+ * extracting one to the local filesystem is then a transfer out of the
+ * archive part, bound by disk bandwidth.</p>
+ */
+public class FileTransfer {
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * @return the local file behind the path, or null if the path is not on
+	 * the local filesystem.
+	 */
+	public static File toLocalFile(Path path, Configuration conf) throws IOException {
+		FileSystem fs = path.getFileSystem(conf);
+		if (!(fs instanceof LocalFileSystem)) {
+			return null;
+		}
+		return ((LocalFileSystem) fs).pathToFile(path);
+	}
+
+	/**
+	 * Replace the target with <code>length</code> bytes of the source from
+	 * <code>offset</code>.
+	 */
+	public static void transfer(File source, long offset, long length, File target) throws IOException {
+		FileInputStream in = new FileInputStream(source);
+		try {
+			FileOutputStream out = new FileOutputStream(target);
+			try {
+				FileChannel from = in.getChannel();
+				FileChannel to = out.getChannel();
+				long done = 0;
+				while (done < length) {
+					// May move fewer bytes than asked, whatever the platform limit is.
+					long n = from.transferTo(offset + done, length - done, to);
+					if (n <= 0) {
+						throw new IOException("Transfer of " + source + " stopped at " + (offset + done)
+								+ ", expected " + length + " bytes from " + offset);
+					}
+					done += n;
+				}
+			} finally {
+				out.close();
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * @return the CRC32C of the whole file, as {@link RecordChecksum} computes it.
+	 */
+	public static long checksum(File file) throws IOException {
+		PureJavaCrc32C crc = new PureJavaCrc32C();
+		byte[] buffer = new byte[BUFFER_SIZE];
+		InputStream in = new FileInputStream(file);
+		try {
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				crc.update(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return crc.getValue();
+	}
+}
@@ -0,0 +1,22 @@
+package com.aczire.sar.io;
+
+import java.util.zip.Checksum;
+
+import org.apache.hadoop.util.PureJavaCrc32C;
+
+/**
+ * CRC32C of stored record values. The checksum covers the value exactly as
+ * written to the archive, after compression and encryption, so an archive can
+ * be verified without the password and without decoding anything.
+ */
+public class RecordChecksum {
+	public static long compute(byte[] value, int offset, int length) {
+		Checksum crc = new PureJavaCrc32C();
+		crc.update(value, offset, length);
+		return crc.getValue();
+	}
+
+	public static long compute(byte[] value) {
+		return compute(value, 0, value.length);
+	}
+}
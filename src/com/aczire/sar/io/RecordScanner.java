@@ -0,0 +1,235 @@
+package com.aczire.sar.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.SequenceFile;
+
+import com.aczire.sar.SarKey;
+
+/**
+ * Walks the records of an archive part file without reading their values.
+ * 
+ * <p>Archive parts are uncompressed SequenceFiles of <code>SarKey</code> to
+ * <code>BytesWritable</code>. Each record is laid out as
+ * <code>recordLength keyLength key valueLength value</code>, optionally
+ * preceded by a sync escape (-1) and a 16 byte sync marker. The scanner reads
+ * the lengths and the key, then seeks over the value, so callers learn where
+ * every value lives in the file and can read as little of it as they need.</p>
+ */
+public class RecordScanner implements Closeable {
+	private static final int SYNC_ESCAPE = -1;
+	private static final int SYNC_HASH_SIZE = 16;
+
+	private final FileSystem fs;
+	private final Configuration conf;
+	private final Path path;
+	private final FSDataInputStream in;
+	private final long end;
+	private final long firstRecord;
+	private long position;
+
+	private final SarKey key = new SarKey();
+	private final DataInputBuffer keyBuffer = new DataInputBuffer();
+	private byte[] keyBytes = new byte[256];
+	private long recordOffset;
+	private boolean syncSeen;
+	private long valueOffset;
+	private int valueLength;
+
+	public RecordScanner(FileSystem fs, Path path, Configuration conf) throws IOException {
+		SequenceFile.Reader reader = new SequenceFile.Reader(fs, path, conf);
+		try {
+			if (reader.isCompressed()) {
+				throw new IOException(path + " is a compressed SequenceFile, raw access is not supported.");
+			}
+			if (!SarKey.class.equals(reader.getKeyClass())
+					|| !BytesWritable.class.isAssignableFrom(reader.getValueClass())) {
+				throw new IOException(path + " is not an archive part.");
+			}
+			firstRecord = reader.getPosition();
+		} finally {
+			reader.close();
+		}
+		this.fs = fs;
+		this.conf = conf;
+		this.path = path;
+		this.in = fs.open(path);
+		this.end = fs.getFileStatus(path).getLen();
+		this.position = firstRecord;
+	}
+
+	public Path getPath() {
+		return path;
+	}
+
+	/**
+	 * @return the length of the part file.
+	 */
+	public long getLength() {
+		return end;
+	}
+
+	/**
+	 * @return the file offset the next record is read from.
+	 */
+	public long getPosition() {
+		return position;
+	}
+
+	/**
+	 * Continue scanning at <code>offset</code>, which must be a record boundary.
+	 */
+	public void seek(long offset) {
+		position = offset;
+	}
+
+	/**
+	 * Continue scanning at the first sync point after <code>offset</code>, to
+	 * get past a corrupt stretch of the file.
+	 * @return false if there is no sync point left.
+	 */
+	public boolean skipToSync(long offset) throws IOException {
+		SequenceFile.Reader reader = new SequenceFile.Reader(fs, path, conf);
+		try {
+			reader.sync(offset);
+			position = reader.getPosition();
+		} finally {
+			reader.close();
+		}
+		return position < end;
+	}
+
+	/**
+	 * Move to the next record.
+	 * @return false at the end of the file.
+	 */
+	public boolean next() throws IOException {
+		if (position >= end) {
+			return false;
+		}
+		in.seek(position);
+		int recordLength = in.readInt();
+		syncSeen = (recordLength == SYNC_ESCAPE);
+		if (syncSeen) {
+			in.seek(position + 4 + SYNC_HASH_SIZE);
+			recordLength = in.readInt();
+		}
+		recordOffset = in.getPos() - 4;
+		int keyLength = in.readInt();
+		if (recordLength < keyLength + 4 || keyLength < 0) {
+			throw new IOException("Corrupt record at offset " + recordOffset + " of " + path);
+		}
+		if (keyBytes.length < keyLength) {
+			keyBytes = new byte[keyLength];
+		}
+		in.readFully(keyBytes, 0, keyLength);
+		keyBuffer.reset(keyBytes, keyLength);
+		key.readFields(keyBuffer);
+
+		valueLength = in.readInt();
+		valueOffset = in.getPos();
+		if (valueLength != recordLength - keyLength - 4) {
+			throw new IOException("Corrupt record at offset " + recordOffset + " of " + path);
+		}
+		position = valueOffset + valueLength;
+		return true;
+	}
+
+	/**
+	 * @return the key of the current record. The object is reused by {@link #next()}.
+	 */
+	public SarKey getKey() {
+		return key;
+	}
+
+	/**
+	 * @return whether a sync marker preceded the current record.
+	 */
+	public boolean syncSeen() {
+		return syncSeen;
+	}
+
+	/**
+	 * @return the file offset of the current record, after any sync marker.
+	 */
+	public long getRecordOffset() {
+		return recordOffset;
+	}
+
+	/**
+	 * @return the file offset of the first byte of the current value.
+	 */
+	public long getValueOffset() {
+		return valueOffset;
+	}
+
+	public int getValueLength() {
+		return valueLength;
+	}
+
+	/**
+	 * Read part of the current value with a positional read.
+	 */
+	public void readValue(long offset, byte[] buffer, int bufferOffset, int length) throws IOException {
+		if (offset < 0 || offset + length > valueLength) {
+			throw new IOException("Read outside of the record value at offset " + recordOffset + " of " + path);
+		}
+		in.readFully(valueOffset + offset, buffer, bufferOffset, length);
+	}
+
+	public byte[] readValue() throws IOException {
+		byte[] value = new byte[valueLength];
+		readValue(0, value, 0, valueLength);
+		return value;
+	}
+
+	/**
+	 * @return a stream over the current value made of positional reads, so it
+	 * stays valid while the scanner moves on.
+	 */
+	public InputStream openValue() {
+		return openValue(valueOffset, valueLength);
+	}
+
+	/**
+	 * @return a stream over <code>length</code> bytes at <code>offset</code>
+	 * made of positional reads, safe to use from other threads.
+	 */
+	public InputStream openValue(final long offset, final long length) {
+		return new InputStream() {
+			private long position = 0;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (position >= length) {
+					return -1;
+				}
+				int n = in.read(offset + position, b, off, (int) Math.min(len, length - position));
+				if (n > 0) {
+					position += n;
+				}
+				return n;
+			}
+		};
+	}
+
+	@Override
+	public void close() {
+		IOUtils.closeStream(in);
+	}
+}
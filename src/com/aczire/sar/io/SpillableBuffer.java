@@ -0,0 +1,156 @@
+package com.aczire.sar.io;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * A write-once, read-many byte buffer built from {@link BufferPool} segments
+ * that spills to a local file once the pool is out of budget.
+ * 
+ * <p>Closing the stream only finishes writing; the contents stay readable
+ * until {@link #release()}, which hands the segments back to the pool and
+ * deletes any spill file, leaving the buffer empty and ready for reuse.</p>
+ */
+public class SpillableBuffer extends OutputStream implements StreamingBytesWritable.Source {
+	private static final int SPILL_BUFFER_SIZE = 64 * 1024;
+
+	private final BufferPool pool;
+	private final List<ByteBuffer> segments = new ArrayList<ByteBuffer>();
+	private long length;
+	private File spillFile;
+	private OutputStream spillOut;
+	private final byte[] single = new byte[1];
+
+	public SpillableBuffer(BufferPool pool) {
+		this.pool = pool;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		single[0] = (byte) b;
+		write(single, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0 && spillFile == null) {
+			ByteBuffer current = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+			if (current == null || !current.hasRemaining()) {
+				current = pool.acquire();
+				if (current == null) {
+					spillFile = pool.createSpillFile();
+					spillOut = new BufferedOutputStream(new FileOutputStream(spillFile), SPILL_BUFFER_SIZE);
+					break;
+				}
+				segments.add(current);
+			}
+			int n = Math.min(len, current.remaining());
+			current.put(b, off, n);
+			off += n;
+			len -= n;
+			length += n;
+		}
+		if (len > 0) {
+			spillOut.write(b, off, len);
+			length += len;
+		}
+	}
+
+	/**
+	 * Finish writing. The contents stay readable until {@link #release()}.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (spillOut != null) {
+			spillOut.close();
+			spillOut = null;
+		}
+	}
+
+	@Override
+	public long length() {
+		return length;
+	}
+
+	/**
+	 * @return whether part of the contents went to disk.
+	 */
+	public boolean isSpilled() {
+		return spillFile != null;
+	}
+
+	@Override
+	public InputStream open() throws IOException {
+		if (spillOut != null) {
+			spillOut.flush();
+		}
+		return new InputStream() {
+			private int segment = 0;
+			private int position = 0;
+			private InputStream spill;
+
+			@Override
+			public int read() throws IOException {
+				byte[] b = new byte[1];
+				return (read(b, 0, 1) < 0) ? -1 : (b[0] & 0xff);
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				while (segment < segments.size()) {
+					ByteBuffer current = segments.get(segment);
+					if (position < current.position()) {
+						int n = Math.min(len, current.position() - position);
+						ByteBuffer view = current.duplicate();
+						view.position(position);
+						view.get(b, off, n);
+						position += n;
+						return n;
+					}
+					segment++;
+					position = 0;
+				}
+				if (spillFile == null) {
+					return -1;
+				}
+				if (spill == null) {
+					spill = new BufferedInputStream(new FileInputStream(spillFile), SPILL_BUFFER_SIZE);
+				}
+				return spill.read(b, off, len);
+			}
+
+			@Override
+			public void close() {
+				IOUtils.closeStream(spill);
+			}
+		};
+	}
+
+	/**
+	 * Return the segments to the pool and drop any spill file.
+	 */
+	public void release() {
+		for (ByteBuffer segment : segments) {
+			pool.release(segment);
+		}
+		segments.clear();
+		IOUtils.closeStream(spillOut);
+		spillOut = null;
+		if (spillFile != null) {
+			spillFile.delete();
+			spillFile = null;
+		}
+		length = 0;
+	}
+}
@@ -0,0 +1,218 @@
+package com.aczire.sar.io;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * A <code>BytesWritable</code> whose contents can live outside the heap
+ * array: in a {@link SpillableBuffer}, or in any other {@link Source} such as
+ * the archived file or the record in an archive part.
+ * 
+ * <p>The serialized form is exactly that of <code>BytesWritable</code>. A
+ * streamed value is written out straight from its source, and a large value
+ * read back in goes into a spillable buffer instead of one array. Anything
+ * asking for the bytes as an array, <code>getBytes()</code> or
+ * <code>copyBytes()</code>, pulls a streamed value into the heap.</p>
+ */
+public class StreamingBytesWritable extends BytesWritable implements Configurable {
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+	/**
+	 * Where the bytes of a streamed value come from.
+	 */
+	public interface Source {
+		long length();
+
+		/**
+		 * @return a new stream over the whole value; may be called more than once.
+		 */
+		InputStream open() throws IOException;
+	}
+
+	/**
+	 * A source that is a stretch of a file, which callers may copy from the
+	 * file directly rather than through a stream.
+	 */
+	public interface FileRegion extends Source {
+		Path getPath();
+
+		long getOffset();
+	}
+
+	private Configuration conf;
+	private Source source;
+	private SpillableBuffer spill; // Owned buffer that large values are read into.
+
+	public StreamingBytesWritable() {
+		super();
+	}
+
+	@Override
+	public void setConf(Configuration conf) {
+		this.conf = conf;
+	}
+
+	@Override
+	public Configuration getConf() {
+		return conf;
+	}
+
+	private BufferPool getPool() {
+		return BufferPool.get((conf != null) ? conf : new Configuration());
+	}
+
+	/**
+	 * Stream the value from the source from now on.
+	 */
+	public void setSource(Source source) {
+		super.setSize(0);
+		this.source = source;
+	}
+
+	/**
+	 * @return the source of a streamed value, or null.
+	 */
+	public Source getSource() {
+		return source;
+	}
+
+	/**
+	 * @return whether the value is streamed rather than held in the array.
+	 */
+	public boolean isStreaming() {
+		return source != null;
+	}
+
+	public InputStream getInputStream() throws IOException {
+		if (source != null) {
+			return source.open();
+		}
+		return new ByteArrayInputStream(super.getBytes(), 0, super.getLength());
+	}
+
+	/**
+	 * Hand any buffer segments back to the pool.
+	 */
+	public void release() {
+		if (spill != null) {
+			if (source == spill) {
+				source = null;
+			}
+			spill.release();
+		}
+	}
+
+	private void materialize() {
+		if (source == null) {
+			return;
+		}
+		Source streamed = source;
+		source = null;
+		super.setSize(0);
+		super.setSize((int) streamed.length());
+		InputStream in = null;
+		try {
+			in = streamed.open();
+			IOUtils.readFully(in, super.getBytes(), 0, super.getLength());
+		} catch (IOException e) {
+			throw new IllegalStateException("Failed to read streamed value", e);
+		} finally {
+			IOUtils.closeStream(in);
+		}
+	}
+
+	@Override
+	public int getLength() {
+		return (source != null) ? (int) source.length() : super.getLength();
+	}
+
+	@Override
+	public byte[] getBytes() {
+		materialize();
+		return super.getBytes();
+	}
+
+	@Override
+	public byte[] copyBytes() {
+		materialize();
+		return super.copyBytes();
+	}
+
+	@Override
+	public void setSize(int size) {
+		materialize();
+		super.setSize(size);
+	}
+
+	@Override
+	public void setCapacity(int capacity) {
+		materialize();
+		super.setCapacity(capacity);
+	}
+
+	@Override
+	public void set(byte[] newData, int offset, int length) {
+		source = null;
+		super.setSize(0);
+		super.set(newData, offset, length);
+	}
+
+	@Override
+	public void set(BytesWritable newData) {
+		set(newData.getBytes(), 0, newData.getLength());
+	}
+
+	@Override
+	public void write(DataOutput out) throws IOException {
+		if (source == null) {
+			super.write(out);
+			return;
+		}
+		out.writeInt(getLength());
+		InputStream in = source.open();
+		try {
+			byte[] buffer = new byte[COPY_BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				out.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	@Override
+	public void readFields(DataInput in) throws IOException {
+		release();
+		source = null;
+		int length = in.readInt();
+		BufferPool pool = getPool();
+		if (!pool.shouldStream(length)) {
+			super.setSize(0);
+			super.setSize(length);
+			in.readFully(super.getBytes(), 0, length);
+			return;
+		}
+		if (spill == null) {
+			spill = new SpillableBuffer(pool);
+		}
+		byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		for (int remaining = length; remaining > 0; ) {
+			int n = Math.min(buffer.length, remaining);
+			in.readFully(buffer, 0, n);
+			spill.write(buffer, 0, n);
+			remaining -= n;
+		}
+		spill.close();
+		setSource(spill);
+	}
+}
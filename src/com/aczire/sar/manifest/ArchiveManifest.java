@@ -0,0 +1,286 @@
+package com.aczire.sar.manifest;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.PathFilter;
+import org.apache.hadoop.io.IOUtils;
+
+import com.aczire.sar.io.FileSwap;
+
+/**
+ * The manifest of an incremental archive.
+ * 
+ * <p>An incremental archive keeps each run in its own generation directory,
+ * <code>&lt;archive&gt;/gen-NNNNN</code>, and records every archived input
+ * file in <code>&lt;archive&gt;/_manifest</code> by its path relative to the
+ * input directory, the name it is archived under, with its size, modification
+ * time, content hash and the generation that holds its latest version.
+ * Deleted paths stay in the manifest as tombstones so the searcher can tell
+ * a deleted file from one that was never archived.</p>
+ * 
+ * <p>The manifest is a text file with one tab separated entry per line:
+ * <code>path size mtime hash generation deleted</code>. The hash is the
+ * content hash of the record keys, keyed with the data key in encrypted
+ * archives so it gives nothing away about the files.</p>
+ */
+public class ArchiveManifest {
+	public static final String MANIFEST_FILE = "_manifest";
+	public static final String GENERATION_PREFIX = "gen-";
+	// The input directory of the build, which archived names are relative to.
+	public static final String INPUT_ROOT = "sar.in.path";
+
+	private static final String HEADER = "# generation ";
+
+	public static class Entry {
+		public String path;
+		public long size;
+		public long mtime;
+		public String hash;
+		public int generation;
+		public boolean deleted;
+
+		/**
+		 * @return the name the file is archived under.
+		 */
+		public String getName() {
+			Path p = new Path(path);
+			// Manifests written before names were relative hold full paths, archived by file name.
+			return p.isAbsolute() || p.toUri().getScheme() != null ? p.getName() : path;
+		}
+	}
+
+	private final Map<String, Entry> entries = new TreeMap<String, Entry>();
+	private int generation = 0;
+
+	/**
+	 * @return the generation of the last completed run, 0 for a new archive.
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+
+	public void setGeneration(int generation) {
+		this.generation = generation;
+	}
+
+	public Entry get(String path) {
+		return entries.get(path);
+	}
+
+	public void put(Entry entry) {
+		entries.put(entry.path, entry);
+	}
+
+	public Collection<Entry> getEntries() {
+		return entries.values();
+	}
+
+	public static Path getManifestPath(Path archive) {
+		return new Path(archive, MANIFEST_FILE);
+	}
+
+	public static String getGenerationName(int generation) {
+		return String.format(GENERATION_PREFIX + "%05d", generation);
+	}
+
+	public static boolean exists(FileSystem fs, Path archive) throws IOException {
+		return fs.exists(getManifestPath(archive));
+	}
+
+	/**
+	 * @return the generation of the manifest of an archive, read from its
+	 * header line alone, or -1 if the archive has no manifest.
+	 */
+	public static int readGeneration(FileSystem fs, Path archive) throws IOException {
+		Path path = getManifestPath(archive);
+		if (!fs.exists(path)) {
+			return -1;
+		}
+		FSDataInputStream in = fs.open(path);
+		try {
+			String line = new BufferedReader(new InputStreamReader(in, "utf-8")).readLine();
+			if (line == null || !line.startsWith(HEADER)) {
+				throw new IOException("Manifest " + path + " does not start with its generation.");
+			}
+			return Integer.parseInt(line.substring(HEADER.length()).trim());
+		} finally {
+			IOUtils.closeStream(in);
+		}
+	}
+
+	/**
+	 * Load the manifest of an archive; an archive without one yields an empty manifest.
+	 */
+	public static ArchiveManifest load(FileSystem fs, Path archive) throws IOException {
+		ArchiveManifest manifest = new ArchiveManifest();
+		Path path = getManifestPath(archive);
+		if (!fs.exists(path)) {
+			return manifest;
+		}
+		FSDataInputStream in = fs.open(path);
+		try {
+			BufferedReader reader = new BufferedReader(new InputStreamReader(in, "utf-8"));
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith(HEADER)) {
+					manifest.generation = Integer.parseInt(line.substring(HEADER.length()).trim());
+					continue;
+				}
+				String[] fields = line.split("\t");
+				if (fields.length != 6) {
+					throw new IOException("Malformed manifest line in " + path + ": " + line);
+				}
+				Entry entry = new Entry();
+				entry.path = fields[0];
+				entry.size = Long.parseLong(fields[1]);
+				entry.mtime = Long.parseLong(fields[2]);
+				entry.hash = fields[3];
+				entry.generation = Integer.parseInt(fields[4]);
+				entry.deleted = Boolean.parseBoolean(fields[5]);
+				manifest.put(entry);
+			}
+		} finally {
+			IOUtils.closeStream(in);
+		}
+		return manifest;
+	}
+
+	/**
+	 * Replace the manifest of an archive. The new manifest is written beside
+	 * the old one and renamed over it, so a failure leaves the old one intact.
+	 */
+	public void save(FileSystem fs, Path archive) throws IOException {
+		Path path = getManifestPath(archive);
+		Path tmp = new Path(archive, MANIFEST_FILE + ".tmp");
+		FSDataOutputStream out = fs.create(tmp, true);
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, "utf-8"));
+		try {
+			writer.println(HEADER + generation);
+			for (Entry entry : entries.values()) {
+				writer.println(entry.path + "\t" + entry.size + "\t" + entry.mtime + "\t"
+						+ entry.hash + "\t" + entry.generation + "\t" + entry.deleted);
+			}
+		} finally {
+			writer.close();
+		}
+		FileSwap.replace(fs, tmp, path);
+	}
+
+	/**
+	 * @return the name a file is archived under: its path relative to the
+	 * input directory of the build, so files of the same name in different
+	 * subdirectories stay apart. Files outside it keep their own name.
+	 */
+	public static String getArchivedName(Configuration conf, Path file) throws IOException {
+		String input = conf.get(INPUT_ROOT);
+		if (input == null) {
+			return file.getName();
+		}
+		String root = file.getFileSystem(conf).makeQualified(new Path(input)).toUri().getPath();
+		String path = file.toUri().getPath();
+		if (!root.endsWith(Path.SEPARATOR)) {
+			root += Path.SEPARATOR;
+		}
+		return path.startsWith(root) ? path.substring(root.length()) : file.getName();
+	}
+
+	/**
+	 * Rename entries recorded by full path, by older builds, to their path
+	 * relative to the input directory.
+	 */
+	public void relativize(Configuration conf) throws IOException {
+		List<Entry> absolute = new ArrayList<Entry>();
+		for (Entry entry : entries.values()) {
+			if (!entry.getName().equals(entry.path)) {
+				absolute.add(entry);
+			}
+		}
+		for (Entry entry : absolute) {
+			entries.remove(entry.path);
+			entry.path = getArchivedName(conf, new Path(entry.path));
+			put(entry);
+		}
+	}
+
+	/**
+	 * @return whether the file differs from what the manifest recorded for it.
+	 * @param name the name the file is archived under.
+	 */
+	public boolean isChanged(String name, FileStatus status) {
+		Entry entry = entries.get(name);
+		return entry == null || entry.deleted
+				|| entry.size != status.getLen()
+				|| entry.mtime != status.getModificationTime();
+	}
+
+	/**
+	 * @return the live entries whose names are not in <code>present</code>.
+	 */
+	public List<Entry> findDeleted(Collection<String> present) {
+		List<Entry> deleted = new ArrayList<Entry>();
+		for (Entry entry : entries.values()) {
+			if (!entry.deleted && !present.contains(entry.path)) {
+				deleted.add(entry);
+			}
+		}
+		return deleted;
+	}
+
+	/**
+	 * Resolve every archived name to the generation holding its latest version.
+	 * @return name to generation; negative generations mark deleted names.
+	 */
+	public Map<String, Integer> resolveLatest() {
+		Map<String, Integer> latest = new HashMap<String, Integer>();
+		for (Entry entry : entries.values()) {
+			String name = entry.getName();
+			Integer current = latest.get(name);
+			if (current == null || entry.generation >= Math.abs(current)) {
+				latest.put(name, entry.deleted ? -entry.generation : entry.generation);
+			}
+		}
+		return latest;
+	}
+
+	/**
+	 * List the input files the way the input formats do: the files in the
+	 * input directory and in its immediate subdirectories, skipping hidden ones.
+	 */
+	public static List<FileStatus> listInputs(FileSystem fs, Path dir) throws IOException {
+		PathFilter visible = new PathFilter() {
+			public boolean accept(Path p) {
+				String name = p.getName();
+				return !name.startsWith("_") && !name.startsWith(".");
+			}
+		};
+		List<FileStatus> result = new ArrayList<FileStatus>();
+		for (FileStatus status : fs.listStatus(dir, visible)) {
+			if (status.isDirectory()) {
+				for (FileStatus child : fs.listStatus(status.getPath(), visible)) {
+					if (!child.isDirectory()) {
+						result.add(child);
+					}
+				}
+			} else {
+				result.add(status);
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,122 @@
+package com.aczire.sar.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Progress of a record reader in bytes rather than records.
+ *
+ * <p>A record counts half done once the reader has read it, and done once
+ * the mapper asks for the next one. A record streamed to the mapper is read
+ * as the mapper compresses and encrypts it, so its bytes count as they are
+ * pulled through {@link #track(InputStream, String)}. While they flow the
+ * task reports itself alive and puts the bytes processed in its status;
+ * the framework samples <code>getProgress()</code> only between records, so
+ * without this a task busy on one large file looks stuck.</p>
+ */
+public class ByteProgress {
+	// Bytes between two status updates of a streamed record.
+	private static final long STATUS_INTERVAL = 64L * 1024 * 1024;
+
+	private final TaskAttemptContext context;
+	private final long total;
+	private volatile long done = 0; // Bytes of the records finished.
+	private volatile long current = 0; // Bytes of the current record counted so far.
+	private long currentLength = 0;
+	private volatile boolean finished = false;
+
+	public ByteProgress(TaskAttemptContext context, long total) {
+		this.context = context;
+		this.total = total;
+	}
+
+	/**
+	 * Finish the current record and start one of <code>length</code> bytes.
+	 */
+	public void next(long length) {
+		done += currentLength;
+		current = 0;
+		currentLength = length;
+	}
+
+	/**
+	 * The current record was read whole by the reader.
+	 */
+	public void read() {
+		current = currentLength / 2;
+	}
+
+	/**
+	 * Count bytes passed over without a record, such as a corrupt stretch.
+	 */
+	public void skip(long bytes) {
+		done += bytes;
+	}
+
+	/**
+	 * Finish the current record; nothing follows.
+	 */
+	public void finish() {
+		next(0);
+		finished = true;
+	}
+
+	/**
+	 * @return a stream over the current record that counts the bytes read.
+	 */
+	public InputStream track(InputStream in, final String filename) {
+		return new FilterInputStream(in) {
+			private long count = 0;
+			private long reported = 0;
+
+			@Override
+			public int read() throws IOException {
+				int b = super.read();
+				if (b >= 0) {
+					advance(1);
+				}
+				return b;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				int n = super.read(b, off, len);
+				if (n > 0) {
+					advance(n);
+				}
+				return n;
+			}
+
+			@Override
+			public long skip(long n) throws IOException {
+				long skipped = super.skip(n);
+				advance(skipped);
+				return skipped;
+			}
+
+			private void advance(long n) {
+				count += n;
+				// Streams reopened over the same record count it once.
+				current = Math.min(currentLength, Math.max(current, count));
+				context.progress();
+				if (count - reported >= STATUS_INTERVAL) {
+					reported = count;
+					context.setStatus(filename + ": " + count + " of " + currentLength + " bytes");
+				}
+			}
+		};
+	}
+
+	public float get() {
+		if (finished) {
+			return 1.0f;
+		}
+		if (total <= 0) {
+			return 0.0f;
+		}
+		return Math.min(1.0f, (done + current) / (float) total);
+	}
+}
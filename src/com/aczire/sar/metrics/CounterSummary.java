@@ -0,0 +1,46 @@
+package com.aczire.sar.metrics;
+
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.CounterGroup;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.Job;
+
+/**
+ * Prints the archive counters of a finished job on the client.
+ */
+public class CounterSummary {
+
+	public static void log(Job job, Log log) throws IOException, InterruptedException {
+		Counters counters = job.getCounters();
+		if (counters == null) {
+			return;
+		}
+
+		CounterGroup group = counters.getGroup(SarCounter.class.getName());
+		log.info(group.getDisplayName() + ":");
+		for (Counter counter : group) {
+			if (counter.getValue() != 0) {
+				log.info("    " + counter.getDisplayName() + "=" + counter.getValue());
+			}
+		}
+
+		CounterGroup stages = counters.getGroup(Stage.class.getName());
+		long total = 0;
+		for (Counter counter : stages) {
+			total += counter.getValue();
+		}
+		if (total == 0) {
+			return;
+		}
+		log.info("Stage time (all tasks):");
+		for (Counter counter : stages) {
+			if (counter.getValue() != 0) {
+				log.info(String.format("    %-10s %10d ms  %5.1f%%", counter.getDisplayName(),
+						counter.getValue() / 1000000L, 100.0 * counter.getValue() / total));
+			}
+		}
+	}
+}
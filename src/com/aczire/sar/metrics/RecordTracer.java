@@ -0,0 +1,57 @@
+package com.aczire.sar.metrics;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+
+/**
+ * Emits one trace event per record stage that takes longer than the
+ * configured threshold, so pathological inputs can be found in the task
+ * logs without paying for per-record logging on every file.
+ * 
+ * <p>Events go to the <code>com.aczire.sar.trace</code> logger, one line per
+ * event, as tab separated <code>name=value</code> pairs. Route that logger to
+ * its own appender to record them. Tracing is off unless
+ * <code>sar.trace.enabled</code> is set for the job; when off the only cost is
+ * a boolean test.</p>
+ */
+public class RecordTracer {
+	public static final String TRACE_ENABLED = "sar.trace.enabled";
+	public static final String TRACE_THRESHOLD_MS = "sar.trace.threshold.ms";
+
+	private static final Log TRACE = LogFactory.getLog("com.aczire.sar.trace");
+
+	private final boolean enabled;
+	private final long thresholdNanos;
+
+	public RecordTracer(Configuration conf) {
+		this.enabled = conf.getBoolean(TRACE_ENABLED, false) && TRACE.isInfoEnabled();
+		this.thresholdNanos = conf.getLong(TRACE_THRESHOLD_MS, 0) * 1000000L;
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Record one stage of one record if it crossed the threshold.
+	 * @param stage the stage that ran.
+	 * @param filename the archived file name.
+	 * @param inBytes bytes handed to the stage.
+	 * @param outBytes bytes produced by the stage.
+	 * @param codec the codec or cipher used by the stage, may be null.
+	 * @param elapsedNanos time spent in the stage.
+	 */
+	public void trace(Stage stage, String filename, long inBytes, long outBytes,
+			String codec, long elapsedNanos) {
+		if (!enabled || elapsedNanos < thresholdNanos) {
+			return;
+		}
+		TRACE.info("stage=" + stage
+				+ "\tfile=" + filename
+				+ "\tin=" + inBytes
+				+ "\tout=" + outBytes
+				+ "\tcodec=" + (codec == null ? "-" : codec)
+				+ "\tus=" + (elapsedNanos / 1000L));
+	}
+}
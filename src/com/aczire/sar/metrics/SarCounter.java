@@ -0,0 +1,37 @@
+package com.aczire.sar.metrics;
+
+/**
+ * Job counters published by the archive builder and searcher tasks.
+ * Display names live in <code>SarCounter.properties</code>.
+ */
+public enum SarCounter {
+	FILES_READ,
+	BYTES_READ,
+	FILES_ARCHIVED,
+	FILES_SKIPPED,
+	FILES_FAILED,
+	BYTES_COMPRESSED,
+	BYTES_ENCRYPTED,
+	CHUNKS_EMITTED,
+	CHUNKS_STORED,
+	CHUNKS_DEDUPLICATED,
+	BYTES_DEDUPLICATED,
+	RECORDS_SCANNED,
+	RECORDS_SUPERSEDED,
+	BYTES_DECRYPTED,
+	BYTES_DECOMPRESSED,
+	WRONG_PASSWORD,
+	SEARCH_HITS,
+	SEARCH_MISSES,
+	FILES_WRITTEN,
+	BYTES_WRITTEN,
+	RECORDS_VERIFIED,
+	RECORDS_UNCHECKED,
+	RECORDS_CORRUPT,
+	CORRUPT_BYTES_SKIPPED,
+	BYTES_VERIFIED,
+	RECORDS_STREAMED,
+	RECORDS_SPILLED,
+	RECORDS_TRANSFERRED,
+	RECORDS_CACHED
+}
@@ -0,0 +1,15 @@
+package com.aczire.sar.metrics;
+
+/**
+ * Per-record processing stages. Each stage is published as a job counter
+ * holding the cumulative wall time spent in it, in nanoseconds.
+ */
+public enum Stage {
+	READ,
+	COMPRESS,
+	ENCRYPT,
+	DECRYPT,
+	DECOMPRESS,
+	MATCH,
+	WRITE
+}
@@ -0,0 +1,50 @@
+package com.aczire.sar.metrics;
+
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+
+/**
+ * Accumulates the time spent in each {@link Stage} into the task counters,
+ * and hands slow stages to the job's {@link RecordTracer}.
+ * The counters are looked up once per task so the per-record cost is a
+ * pair of <code>System.nanoTime()</code> calls.
+ */
+public class StageTimer {
+	private final Counter[] counters;
+	private final RecordTracer tracer;
+
+	public StageTimer(TaskAttemptContext context) {
+		tracer = new RecordTracer(context.getConfiguration());
+		Stage[] stages = Stage.values();
+		counters = new Counter[stages.length];
+		for (Stage stage : stages) {
+			counters[stage.ordinal()] = context.getCounter(stage);
+		}
+	}
+
+	public long start() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * Charge the time elapsed since <code>start</code> to the given stage.
+	 * @return the elapsed time in nanoseconds.
+	 */
+	public long stop(Stage stage, long start) {
+		long elapsed = System.nanoTime() - start;
+		counters[stage.ordinal()].increment(elapsed);
+		return elapsed;
+	}
+
+	/**
+	 * Charge the time elapsed since <code>start</code> to the given stage and
+	 * trace the record if the stage was slow.
+	 * @return the elapsed time in nanoseconds.
+	 */
+	public long stop(Stage stage, long start, String filename, long inBytes,
+			long outBytes, String codec) {
+		long elapsed = stop(stage, start);
+		tracer.trace(stage, filename, inBytes, outBytes, codec, elapsed);
+		return elapsed;
+	}
+}
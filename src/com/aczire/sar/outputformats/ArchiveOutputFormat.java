@@ -0,0 +1,66 @@
+package com.aczire.sar.outputformats;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.mapreduce.RecordWriter;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.output.SequenceFileOutputFormat;
+
+import com.aczire.sar.SarKey;
+
+/**
+ * Writes archive parts as SequenceFiles of <code>SarKey</code> to
+ * <code>BytesWritable</code>, whatever <code>BytesWritable</code> subclass
+ * the records arrive as.
+ * 
+ * <p>The stock writer serializes every record into one in-memory buffer
+ * before writing it. Values of any other class than
+ * <code>BytesWritable</code> itself, such as streamed
+ * {@link com.aczire.sar.io.StreamingBytesWritable}s, are appended raw
+ * instead, so they are copied to the file straight from their source.</p>
+ */
+public class ArchiveOutputFormat extends SequenceFileOutputFormat<SarKey, BytesWritable> {
+
+	@Override
+	public RecordWriter<SarKey, BytesWritable> getRecordWriter(TaskAttemptContext context)
+			throws IOException, InterruptedException {
+		final SequenceFile.Writer out = getSequenceWriter(context, SarKey.class, BytesWritable.class);
+		final boolean raw = out.getCompressionCodec() == null;
+
+		return new RecordWriter<SarKey, BytesWritable>() {
+			private final DataOutputBuffer keyBuffer = new DataOutputBuffer();
+
+			@Override
+			public void write(SarKey key, final BytesWritable value) throws IOException {
+				if (!raw || value.getClass() == BytesWritable.class) {
+					out.append(key, (value.getClass() == BytesWritable.class) ? value : new BytesWritable(value.copyBytes()));
+					return;
+				}
+				keyBuffer.reset();
+				key.write(keyBuffer);
+				out.appendRaw(keyBuffer.getData(), 0, keyBuffer.getLength(), new SequenceFile.ValueBytes() {
+					public void writeUncompressedBytes(DataOutputStream outStream) throws IOException {
+						value.write(outStream);
+					}
+
+					public void writeCompressedBytes(DataOutputStream outStream) {
+						throw new IllegalArgumentException("Archive values are written uncompressed.");
+					}
+
+					public int getSize() {
+						return 4 + value.getLength();
+					}
+				});
+			}
+
+			@Override
+			public void close(TaskAttemptContext context) throws IOException {
+				out.close();
+			}
+		};
+	}
+}
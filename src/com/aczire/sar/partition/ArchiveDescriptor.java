@@ -0,0 +1,95 @@
+package com.aczire.sar.partition;
+
+import java.io.IOException;
+import java.util.Properties;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Records the bucket layout of an archive in <code>&lt;archive&gt;/_descriptor</code>,
+ * a properties file naming the partitioner, the number of buckets and the
+ * hashed prefix length. Archives without one predate the layout and have to
+ * be read in full.
+ */
+public class ArchiveDescriptor {
+	public static final String DESCRIPTOR_FILE = "_descriptor";
+
+	private final int buckets;
+	private final int prefixLength;
+
+	public ArchiveDescriptor(int buckets, int prefixLength) {
+		this.buckets = buckets;
+		this.prefixLength = prefixLength;
+	}
+
+	public int getBuckets() {
+		return buckets;
+	}
+
+	public int getPrefixLength() {
+		return prefixLength;
+	}
+
+	public static Path getPath(Path archive) {
+		return new Path(archive, DESCRIPTOR_FILE);
+	}
+
+	/**
+	 * @return the descriptor of the archive, or null if it has none.
+	 */
+	public static ArchiveDescriptor load(FileSystem fs, Path archive) throws IOException {
+		Path path = getPath(archive);
+		if (!fs.exists(path)) {
+			return null;
+		}
+		Properties properties = new Properties();
+		FSDataInputStream in = fs.open(path);
+		try {
+			properties.load(in);
+		} finally {
+			IOUtils.closeStream(in);
+		}
+		String partitioner = properties.getProperty("partitioner");
+		if (!FilenamePartitioner.NAME.equals(partitioner)) {
+			throw new IOException("Unknown partitioner " + partitioner + " in " + path);
+		}
+		return new ArchiveDescriptor(Integer.parseInt(properties.getProperty("buckets")),
+				Integer.parseInt(properties.getProperty("prefix.length", "0")));
+	}
+
+	public void save(FileSystem fs, Path archive) throws IOException {
+		Properties properties = new Properties();
+		properties.setProperty("partitioner", FilenamePartitioner.NAME);
+		properties.setProperty("buckets", Integer.toString(buckets));
+		properties.setProperty("prefix.length", Integer.toString(prefixLength));
+		FSDataOutputStream out = fs.create(getPath(archive), true);
+		try {
+			properties.store(out, "Secure archive layout");
+		} finally {
+			out.close();
+		}
+	}
+
+	public int getBucket(String filename) {
+		return FilenamePartitioner.getBucket(filename, prefixLength, buckets);
+	}
+
+	/**
+	 * @return the one bucket holding every name that starts with the prefix,
+	 * or -1 if such names can be in any bucket.
+	 */
+	public int getPrefixBucket(String prefix) {
+		if (prefixLength == 0 || prefix.length() < prefixLength) {
+			return -1;
+		}
+		return getBucket(prefix);
+	}
+
+	public static String getPartName(int bucket) {
+		return String.format("part-r-%05d", bucket);
+	}
+}
@@ -0,0 +1,71 @@
+package com.aczire.sar.partition;
+
+import java.io.UnsupportedEncodingException;
+
+import org.apache.hadoop.conf.Configurable;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.mapreduce.Partitioner;
+
+import com.aczire.sar.SarKey;
+
+/**
+ * Assigns archive records to buckets by file name, so a reader can work out
+ * which <code>part-r-NNNNN</code> file holds a name without scanning the others.
+ * 
+ * <p>The bucket of a name is the 32-bit FNV-1a hash of its UTF-8 bytes,
+ * taken as unsigned, modulo the number of buckets. With a prefix length set,
+ * only the first that many characters are hashed, so all names sharing a
+ * prefix of at least that length land in the same bucket.</p>
+ */
+public class FilenamePartitioner extends Partitioner<SarKey, BytesWritable> implements Configurable {
+	public static final String PREFIX_LENGTH = "sar.partition.prefix.length";
+	public static final String NAME = "filename-fnv1a";
+
+	private static final int FNV_OFFSET_BASIS = 0x811c9dc5;
+	private static final int FNV_PRIME = 0x01000193;
+
+	private Configuration conf;
+	private int prefixLength;
+
+	@Override
+	public void setConf(Configuration conf) {
+		this.conf = conf;
+		this.prefixLength = conf.getInt(PREFIX_LENGTH, 0);
+	}
+
+	@Override
+	public Configuration getConf() {
+		return conf;
+	}
+
+	@Override
+	public int getPartition(SarKey key, BytesWritable value, int numPartitions) {
+		return getBucket(key.Filename, prefixLength, numPartitions);
+	}
+
+	/**
+	 * @param prefixLength number of leading characters hashed, 0 for the whole name.
+	 */
+	public static int getBucket(String filename, int prefixLength, int buckets) {
+		if (prefixLength > 0 && filename.length() > prefixLength) {
+			filename = filename.substring(0, prefixLength);
+		}
+		return (int) ((hash(filename) & 0xffffffffL) % buckets);
+	}
+
+	public static int hash(String filename) {
+		byte[] bytes;
+		try {
+			bytes = filename.getBytes("utf-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		int hash = FNV_OFFSET_BASIS;
+		for (byte b : bytes) {
+			hash ^= (b & 0xff);
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+}
@@ -3,6 +3,7 @@ package com.aczire.sar.recordreaders;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -19,6 +20,13 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IOUtils;
 
 import com.aczire.sar.SarKey;
+import com.aczire.sar.io.BufferPool;
+import com.aczire.sar.io.StreamingBytesWritable;
+import com.aczire.sar.manifest.ArchiveManifest;
+import com.aczire.sar.metrics.ByteProgress;
+import com.aczire.sar.metrics.SarCounter;
+import com.aczire.sar.metrics.Stage;
+import com.aczire.sar.metrics.StageTimer;
 
 
 public class BulkFileRecordReader extends RecordReader<SarKey, BytesWritable> {
@@ -26,19 +34,50 @@ public class BulkFileRecordReader extends RecordReader<SarKey, BytesWritable> {
 	private static final Log LOG = LogFactory.getLog(BulkFileRecordReader.class);
 
 	private FileSplit fileSplit;
+	private TaskAttemptContext context;
+	private StageTimer timer;
 	private Configuration conf;
 	private boolean processed = false;
+	private ByteProgress progress;
 
 	private SarKey key = new SarKey(); 
-	private BytesWritable value = new BytesWritable();
+	private StreamingBytesWritable value = new StreamingBytesWritable();
 
 	public void initialize(InputSplit inputSplit, TaskAttemptContext taskAttemptContext) throws IOException, InterruptedException {
 		this.fileSplit = (FileSplit) inputSplit;
+		this.context = taskAttemptContext;
+		this.timer = new StageTimer(taskAttemptContext);
+		this.value.setConf(taskAttemptContext.getConfiguration());
 		this.conf = taskAttemptContext.getConfiguration();
+		this.progress = new ByteProgress(taskAttemptContext, fileSplit.getLength());
 	}
 
 	public boolean nextKeyValue() throws IOException {
+		if (!processed && BufferPool.get(conf).shouldStream(fileSplit.getLength())) {
+			// Too large to hold; the mapper streams it from the file instead.
+			final Path file = fileSplit.getPath();
+			final FileSystem fs = file.getFileSystem(conf);
+			final long length = fileSplit.getLength();
+			key.Filename = ArchiveManifest.getArchivedName(conf, file);
+			key.FileSize = length;
+			progress.next(length);
+			value.setSource(new StreamingBytesWritable.Source() {
+				public long length() {
+					return length;
+				}
+
+				public InputStream open() throws IOException {
+					return progress.track(fs.open(file), file.getName());
+				}
+			});
+			context.getCounter(SarCounter.FILES_READ).increment(1);
+			context.getCounter(SarCounter.BYTES_READ).increment(length);
+			processed = true;
+			return true;
+		}
 		if (!processed) {
+			long start = timer.start();
+			progress.next(fileSplit.getLength());
 			byte[] contents = new byte[(int) fileSplit.getLength()];
 
 			Path file = fileSplit.getPath();
@@ -54,9 +93,11 @@ public class BulkFileRecordReader extends RecordReader<SarKey, BytesWritable> {
 				fos.write(contents);
 				fos.close();
 
-				LOG.info("File " + file.getName() + " read. Length: " + contents.length);
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("File " + file.getName() + " read. Length: " + contents.length);
+				}
 
-				key.Filename = file.getName();
+				key.Filename = ArchiveManifest.getArchivedName(conf, file);
 				key.FileSize = contents.length;
 				//value = new BytesWritable(contents, contents.length);
 				value.setSize(contents.length);
@@ -64,9 +105,14 @@ public class BulkFileRecordReader extends RecordReader<SarKey, BytesWritable> {
 			} finally {
 				IOUtils.closeStream(in);
 			}
+			timer.stop(Stage.READ, start, file.getName(), contents.length, contents.length, null);
+			progress.read();
+			context.getCounter(SarCounter.FILES_READ).increment(1);
+			context.getCounter(SarCounter.BYTES_READ).increment(contents.length);
 			processed = true;
 			return true;
 		}
+		progress.finish();
 		return false;
 	}
 
@@ -82,7 +128,7 @@ public class BulkFileRecordReader extends RecordReader<SarKey, BytesWritable> {
 
 	@Override
 	public float getProgress() throws IOException, InterruptedException  {
-		return processed ? 1.0f : 0.0f;
+		return progress.get();
 	}
 
 	@Override
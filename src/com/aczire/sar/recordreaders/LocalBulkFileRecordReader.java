@@ -15,6 +15,13 @@ import org.apache.hadoop.fs.Path;
 import org.apache.hadoop.io.IOUtils;
 
 import com.aczire.sar.SarKey;
+import com.aczire.sar.io.BufferPool;
+import com.aczire.sar.io.StreamingBytesWritable;
+import com.aczire.sar.manifest.ArchiveManifest;
+import com.aczire.sar.metrics.ByteProgress;
+import com.aczire.sar.metrics.SarCounter;
+import com.aczire.sar.metrics.Stage;
+import com.aczire.sar.metrics.StageTimer;
 
 
 public class LocalBulkFileRecordReader extends RecordReader<SarKey, BytesWritable> {
@@ -22,17 +29,48 @@ public class LocalBulkFileRecordReader extends RecordReader<SarKey, BytesWritabl
 	private static final Log LOG = LogFactory.getLog(LocalBulkFileRecordReader.class);
 
 	private FileSplit fileSplit;
+	private TaskAttemptContext context;
+	private StageTimer timer;
 	private boolean processed = false;
+	private ByteProgress progress;
 
 	private SarKey key = new SarKey(); 
-	private BytesWritable value = new BytesWritable();
+	private StreamingBytesWritable value = new StreamingBytesWritable();
 
 	public void initialize(InputSplit inputSplit, TaskAttemptContext taskAttemptContext) throws IOException, InterruptedException {
 		this.fileSplit = (FileSplit) inputSplit;
+		this.context = taskAttemptContext;
+		this.timer = new StageTimer(taskAttemptContext);
+		this.value.setConf(taskAttemptContext.getConfiguration());
+		this.progress = new ByteProgress(taskAttemptContext, fileSplit.getLength());
 	}
 
 	public boolean nextKeyValue() throws IOException {
+		if (!processed && BufferPool.get(context.getConfiguration()).shouldStream(fileSplit.getLength())) {
+			// Too large to hold; the mapper streams it from the file instead.
+			final URL url = new URL(fileSplit.getPath().toUri().toString());
+			final long length = fileSplit.getLength();
+			final String name = ArchiveManifest.getArchivedName(context.getConfiguration(), fileSplit.getPath());
+			key.Filename = name;
+			key.FileSize = length;
+			progress.next(length);
+			value.setSource(new StreamingBytesWritable.Source() {
+				public long length() {
+					return length;
+				}
+
+				public InputStream open() throws IOException {
+					return progress.track(url.openStream(), name);
+				}
+			});
+			context.getCounter(SarCounter.FILES_READ).increment(1);
+			context.getCounter(SarCounter.BYTES_READ).increment(length);
+			processed = true;
+			return true;
+		}
 		if (!processed) {
+			long start = timer.start();
+			progress.next(fileSplit.getLength());
 			byte[] contents = new byte[(int) fileSplit.getLength()];
 
 			Path file = fileSplit.getPath();
@@ -43,9 +81,11 @@ public class LocalBulkFileRecordReader extends RecordReader<SarKey, BytesWritabl
 				in = url.openStream ();
 				IOUtils.readFully(in, contents, 0, contents.length);
 
-				LOG.info("File " + file.getName() + " read. Length: " + contents.length);
+				if (LOG.isDebugEnabled()) {
+					LOG.debug("File " + file.getName() + " read. Length: " + contents.length);
+				}
 
-				key.Filename = file.getName();
+				key.Filename = ArchiveManifest.getArchivedName(context.getConfiguration(), file);
 				key.FileSize = contents.length;
 				//value = new BytesWritable(contents, contents.length);
 				value.setSize(contents.length);
@@ -54,9 +94,14 @@ public class LocalBulkFileRecordReader extends RecordReader<SarKey, BytesWritabl
 				//IOUtils.closeStream(in);
 				in.close();
 			}
+			timer.stop(Stage.READ, start, file.getName(), contents.length, contents.length, null);
+			progress.read();
+			context.getCounter(SarCounter.FILES_READ).increment(1);
+			context.getCounter(SarCounter.BYTES_READ).increment(contents.length);
 			processed = true;
 			return true;
 		}
+		progress.finish();
 		return false;
 	}
 
@@ -72,7 +117,7 @@ public class LocalBulkFileRecordReader extends RecordReader<SarKey, BytesWritabl
 
 	@Override
 	public float getProgress() throws IOException, InterruptedException  {
-		return processed ? 1.0f : 0.0f;
+		return progress.get();
 	}
 
 	@Override
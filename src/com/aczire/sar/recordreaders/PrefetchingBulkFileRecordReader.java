@@ -0,0 +1,246 @@
+package com.aczire.sar.recordreaders;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.MRJobConfig;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+
+import com.aczire.sar.SarKey;
+import com.aczire.sar.io.BufferPool;
+import com.aczire.sar.io.StreamingBytesWritable;
+import com.aczire.sar.manifest.ArchiveManifest;
+import com.aczire.sar.metrics.ByteProgress;
+import com.aczire.sar.metrics.SarCounter;
+import com.aczire.sar.metrics.Stage;
+import com.aczire.sar.metrics.StageTimer;
+
+/**
+ * Reads the files of a combined split as whole bulks, one record per file,
+ * prefetching the next files on a background thread.
+ * 
+ * <p>While the mapper compresses and encrypts one file, the I/O thread reads
+ * the following ones into a bounded queue, so the disk and the cipher work
+ * at the same time. The queue holds at most <code>sar.readahead.depth</code>
+ * files and <code>sar.readahead.budget.bytes</code> bytes; a single file
+ * larger than the budget is still read, but only once the queue is empty.
+ * Files above the streaming threshold of the {@link BufferPool} are not
+ * prefetched but streamed by the mapper, as in {@link BulkFileRecordReader}.</p>
+ * 
+ * <p>The path of the current file is published under
+ * <code>mapreduce.map.input.file</code>, as the stock combined reader does.</p>
+ */
+public class PrefetchingBulkFileRecordReader extends RecordReader<SarKey, BytesWritable> {
+
+	private static final Log LOG = LogFactory.getLog(PrefetchingBulkFileRecordReader.class);
+
+	public static final String DEPTH = "sar.readahead.depth";
+	public static final String BUDGET_BYTES = "sar.readahead.budget.bytes";
+	public static final int DEFAULT_DEPTH = 4;
+	public static final long DEFAULT_BUDGET = 64L * 1024 * 1024;
+
+	/*
+	 * One file handed from the I/O thread to the mapper. Streamed files carry
+	 * no contents; a failed read carries the error instead.
+	 */
+	private static class Prefetched {
+		Path path;
+		long length;
+		byte[] contents;
+		long readNanos;
+		Throwable error;
+	}
+
+	// Queued after the last file of the split.
+	private static final Prefetched END = new Prefetched();
+
+	private CombineFileSplit split;
+	private TaskAttemptContext context;
+	private Configuration conf;
+	private StageTimer timer;
+	private BufferPool pool;
+
+	private BlockingQueue<Prefetched> queue;
+	private long budget;
+	private long queuedBytes = 0;
+	private Thread prefetcher;
+	private volatile boolean closed = false;
+	private ByteProgress progress;
+	private boolean done = false;
+
+	private SarKey key = new SarKey();
+	private StreamingBytesWritable value = new StreamingBytesWritable();
+
+	@Override
+	public void initialize(InputSplit inputSplit, TaskAttemptContext taskAttemptContext) throws IOException, InterruptedException {
+		this.split = (CombineFileSplit) inputSplit;
+		this.context = taskAttemptContext;
+		this.conf = taskAttemptContext.getConfiguration();
+		this.timer = new StageTimer(taskAttemptContext);
+		this.pool = BufferPool.get(conf);
+		this.value.setConf(conf);
+		this.queue = new ArrayBlockingQueue<Prefetched>(Math.max(1, conf.getInt(DEPTH, DEFAULT_DEPTH)));
+		this.budget = conf.getLong(BUDGET_BYTES, DEFAULT_BUDGET);
+		this.progress = new ByteProgress(taskAttemptContext, split.getLength());
+
+		prefetcher = new Thread(new Runnable() {
+			public void run() {
+				prefetch();
+			}
+		}, "sar-readahead");
+		prefetcher.setDaemon(true);
+		prefetcher.start();
+	}
+
+	/*
+	 * Body of the I/O thread: read every file of the split in order, waiting
+	 * for room in the queue and in the byte budget. Whatever fails is queued
+	 * for the mapper to throw; a thread that died silently would leave it
+	 * waiting on the queue forever.
+	 */
+	private void prefetch() {
+		try {
+			for (int i = 0; i < split.getNumPaths() && !closed; i++) {
+				Prefetched file = new Prefetched();
+				file.length = split.getLength(i);
+				try {
+					// Combined splits drop the scheme of their paths; put it back.
+					file.path = split.getPath(i).getFileSystem(conf).makeQualified(split.getPath(i));
+					if (!pool.shouldStream(file.length)) {
+						reserve(file.length);
+						long start = System.nanoTime();
+						file.contents = read(file.path, file.length);
+						file.readNanos = System.nanoTime() - start;
+					}
+				} catch (InterruptedException e) {
+					throw e;
+				} catch (Throwable t) {
+					file.error = t;
+				}
+				queue.put(file);
+				if (file.error != null) {
+					break;
+				}
+			}
+			queue.put(END);
+		} catch (InterruptedException e) {
+			// Closed by the mapper.
+		}
+	}
+
+	private byte[] read(Path path, long length) throws IOException {
+		byte[] contents = new byte[(int) length];
+		FileSystem fs = path.getFileSystem(conf);
+		FSDataInputStream in = fs.open(path);
+		try {
+			IOUtils.readFully(in, contents, 0, contents.length);
+		} finally {
+			IOUtils.closeStream(in);
+		}
+		return contents;
+	}
+
+	private synchronized void reserve(long length) throws InterruptedException {
+		while (queuedBytes > 0 && queuedBytes + length > budget) {
+			wait();
+		}
+		queuedBytes += length;
+	}
+
+	private synchronized void unreserve(long length) {
+		queuedBytes -= length;
+		notifyAll();
+	}
+
+	@Override
+	public boolean nextKeyValue() throws IOException, InterruptedException {
+		if (done) {
+			return false;
+		}
+		Prefetched file = queue.take();
+		if (file == END) {
+			done = true;
+			progress.finish();
+			return false;
+		}
+		if (file.error != null) {
+			if (file.error instanceof IOException) {
+				throw (IOException) file.error;
+			}
+			if (file.error instanceof Error) {
+				throw (Error) file.error;
+			}
+			throw new IOException("Failed to read ahead " + file.path, file.error);
+		}
+		progress.next(file.length);
+		conf.set(MRJobConfig.MAP_INPUT_FILE, file.path.toString());
+		key.Filename = ArchiveManifest.getArchivedName(conf, file.path);
+		key.FileSize = file.length;
+
+		if (file.contents == null) {
+			// Too large to hold; the mapper streams it from the file instead.
+			final Path path = file.path;
+			final FileSystem fs = path.getFileSystem(conf);
+			final long length = file.length;
+			value.setSource(new StreamingBytesWritable.Source() {
+				public long length() {
+					return length;
+				}
+
+				public InputStream open() throws IOException {
+					return progress.track(fs.open(path), path.getName());
+				}
+			});
+		}
+		else {
+			value.set(file.contents, 0, file.contents.length);
+			unreserve(file.length);
+			progress.read();
+			// Charge the read, done earlier on the I/O thread, to this record.
+			timer.stop(Stage.READ, System.nanoTime() - file.readNanos, key.Filename, file.length, file.length, null);
+			if (LOG.isDebugEnabled()) {
+				LOG.debug("File " + key.Filename + " read ahead. Length: " + file.length);
+			}
+		}
+		context.getCounter(SarCounter.FILES_READ).increment(1);
+		context.getCounter(SarCounter.BYTES_READ).increment(file.length);
+		return true;
+	}
+
+	@Override
+	public SarKey getCurrentKey() throws IOException, InterruptedException {
+		return key;
+	}
+
+	@Override
+	public BytesWritable getCurrentValue() throws IOException, InterruptedException {
+		return value;
+	}
+
+	@Override
+	public float getProgress() throws IOException, InterruptedException {
+		return progress.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		closed = true;
+		if (prefetcher != null) {
+			prefetcher.interrupt();
+		}
+		queue.clear();
+	}
+}
@@ -0,0 +1,180 @@
+package com.aczire.sar.recordreaders;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.mapreduce.InputSplit;
+import org.apache.hadoop.mapreduce.RecordReader;
+import org.apache.hadoop.mapreduce.TaskAttemptContext;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+
+import com.aczire.sar.SarKey;
+import com.aczire.sar.io.BufferPool;
+import com.aczire.sar.io.RecordScanner;
+import com.aczire.sar.io.StreamingBytesWritable;
+import com.aczire.sar.metrics.ByteProgress;
+import com.aczire.sar.metrics.SarCounter;
+
+/**
+ * A record reader for archive parts that survives corruption.
+ * 
+ * <p>When a record fails to read, the reader seeks to the first sync point
+ * after the start of that record and carries on from there, counting the
+ * corrupt record and the bytes skipped. Sync points fall every couple of
+ * thousand bytes, so one bad block costs the records around it rather than
+ * the rest of the split. Split boundaries follow the same sync point rule
+ * as the stock SequenceFile reader.</p>
+ * 
+ * <p>Values above the streaming threshold of the {@link BufferPool} are not
+ * read here; they are handed on as streams over the part file. These read
+ * by position, so they stay valid after the reader moves on, until it is
+ * closed, and tell where in the part the value lies.</p>
+ */
+public class ResyncSequenceFileRecordReader extends RecordReader<SarKey, BytesWritable> {
+
+	private static final Log LOG = LogFactory.getLog(ResyncSequenceFileRecordReader.class);
+	// How far to move on when even the search for a sync point hits unreadable data.
+	private static final int RESYNC_STEP = 4096;
+
+	private RecordScanner scanner;
+	private BufferPool pool;
+	private TaskAttemptContext context;
+	private Path path;
+	private long start;
+	private long end;
+	private boolean more = true;
+	private ByteProgress progress;
+
+	private StreamingBytesWritable value = new StreamingBytesWritable();
+
+	@Override
+	public void initialize(InputSplit inputSplit, TaskAttemptContext taskAttemptContext) throws IOException, InterruptedException {
+		FileSplit fileSplit = (FileSplit) inputSplit;
+		Configuration conf = taskAttemptContext.getConfiguration();
+		this.context = taskAttemptContext;
+		this.path = fileSplit.getPath();
+		this.pool = BufferPool.get(conf);
+		this.value.setConf(conf);
+		FileSystem fs = path.getFileSystem(conf);
+		this.scanner = new RecordScanner(fs, path, conf);
+		this.start = fileSplit.getStart();
+		this.end = fileSplit.getStart() + fileSplit.getLength();
+
+		if (start > scanner.getPosition()) {
+			resync(start);
+		}
+		this.start = scanner.getPosition();
+		more = more && start < end;
+		this.progress = new ByteProgress(taskAttemptContext, end - start);
+	}
+
+	@Override
+	public boolean nextKeyValue() throws IOException, InterruptedException {
+		while (more) {
+			long position = scanner.getPosition();
+			try {
+				more = scanner.next() && !(position >= end && scanner.syncSeen());
+				if (more) {
+					progress.next(scanner.getPosition() - position);
+					readValue();
+				}
+				else {
+					progress.finish();
+				}
+				return more;
+			} catch (IOException e) {
+				skipCorrupt(position, e);
+			} catch (RuntimeException e) {
+				// Garbage lengths can surface as negative array sizes and the like.
+				skipCorrupt(position, e);
+			}
+		}
+		progress.finish();
+		return false;
+	}
+
+	private void readValue() throws IOException {
+		final int length = scanner.getValueLength();
+		if (pool.shouldStream(length)) {
+			final RecordScanner records = scanner;
+			final long offset = scanner.getValueOffset();
+			value.setSource(new StreamingBytesWritable.FileRegion() {
+				public long length() {
+					return length;
+				}
+
+				public Path getPath() {
+					return path;
+				}
+
+				public long getOffset() {
+					return offset;
+				}
+
+				public InputStream open() {
+					return progress.track(records.openValue(offset, length), path.getName());
+				}
+			});
+		}
+		else {
+			value.setSource(null);
+			value.setSize(length);
+			scanner.readValue(0, value.getBytes(), 0, length);
+			progress.read();
+		}
+	}
+
+	private void skipCorrupt(long position, Exception cause) throws IOException {
+		context.getCounter(SarCounter.RECORDS_CORRUPT).increment(1);
+		resync(position + 1);
+		long skipped = (more ? scanner.getPosition() : end) - position;
+		context.getCounter(SarCounter.CORRUPT_BYTES_SKIPPED).increment(skipped);
+		progress.skip(skipped);
+		LOG.error("Corrupt record at offset " + position + " of " + path + ", skipped " + skipped
+				+ " bytes: " + cause);
+	}
+
+	/*
+	 * Move to the first sync point at or after the offset, stepping past
+	 * stretches that cannot even be scanned. Clears more if none is left in
+	 * the split.
+	 */
+	private void resync(long offset) {
+		while (offset < end) {
+			try {
+				scanner.skipToSync(offset);
+				more = scanner.getPosition() < end;
+				return;
+			} catch (IOException e) {
+				offset += RESYNC_STEP;
+			}
+		}
+		more = false;
+	}
+
+	@Override
+	public SarKey getCurrentKey() {
+		return scanner.getKey();
+	}
+
+	@Override
+	public BytesWritable getCurrentValue() {
+		return value;
+	}
+
+	@Override
+	public float getProgress() {
+		return progress.get();
+	}
+
+	@Override
+	public void close() throws IOException {
+		scanner.close();
+	}
+}
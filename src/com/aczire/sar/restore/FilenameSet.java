@@ -0,0 +1,125 @@
+package com.aczire.sar.restore;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * A compact set of file names for bulk restores.
+ * 
+ * <p>Names are kept as 64-bit hashes in an open-addressing <code>long[]</code>,
+ * about 16 bytes per name, instead of as strings in a <code>HashSet</code>.
+ * Two different names share a hash with probability around 2^-64, so a
+ * lookup can in theory restore a file that was not asked for, but it never
+ * misses one that was.</p>
+ */
+public class FilenameSet {
+	private long[] slots;
+	private int size;
+	private boolean containsZero; // 0 marks an empty slot, so the name hashing to 0 is kept aside.
+
+	public FilenameSet(int expected) {
+		int capacity = Integer.highestOneBit(Math.max(16, expected * 2 - 1)) << 1;
+		slots = new long[capacity];
+	}
+
+	public FilenameSet() {
+		this(1024);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void add(String name) {
+		long h = hash(name);
+		if (h == 0) {
+			if (!containsZero) {
+				containsZero = true;
+				size++;
+			}
+			return;
+		}
+		if ((size + 1) * 2 > slots.length) {
+			grow();
+		}
+		if (insert(slots, h)) {
+			size++;
+		}
+	}
+
+	public boolean contains(String name) {
+		long h = hash(name);
+		if (h == 0) {
+			return containsZero;
+		}
+		int mask = slots.length - 1;
+		for (int i = (int) h & mask; ; i = (i + 1) & mask) {
+			long slot = slots[i];
+			if (slot == h) {
+				return true;
+			}
+			if (slot == 0) {
+				return false;
+			}
+		}
+	}
+
+	private static boolean insert(long[] table, long h) {
+		int mask = table.length - 1;
+		for (int i = (int) h & mask; ; i = (i + 1) & mask) {
+			if (table[i] == h) {
+				return false;
+			}
+			if (table[i] == 0) {
+				table[i] = h;
+				return true;
+			}
+		}
+	}
+
+	private void grow() {
+		long[] grown = new long[slots.length * 2];
+		for (long h : slots) {
+			if (h != 0) {
+				insert(grown, h);
+			}
+		}
+		slots = grown;
+	}
+
+	/*
+	 * FNV-1a over the UTF-16 code units, finished with the MurmurHash3 mixer
+	 * so that the low bits used for the slot index are well spread.
+	 */
+	static long hash(String name) {
+		long h = 0xcbf29ce484222325L;
+		for (int i = 0; i < name.length(); i++) {
+			h ^= name.charAt(i);
+			h *= 0x100000001b3L;
+		}
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	/**
+	 * Read a name list, one name per line. Blank lines are ignored.
+	 */
+	public static FilenameSet read(InputStream in) throws IOException {
+		FilenameSet set = new FilenameSet();
+		BufferedReader reader = new BufferedReader(new InputStreamReader(in, "utf-8"));
+		String line;
+		while ((line = reader.readLine()) != null) {
+			line = line.trim();
+			if (line.length() > 0) {
+				set.add(line);
+			}
+		}
+		return set;
+	}
+}
@@ -0,0 +1,77 @@
+package com.aczire.sar.restore;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.regex.Pattern;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.GlobPattern;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+
+/**
+ * Selects the archived files of a bulk restore: the names in a restore list,
+ * plus the names matching any of the restore globs.
+ * 
+ * <p>All globs are compiled into a single alternation so each name is
+ * matched once, whatever the number of patterns.</p>
+ */
+public class RestoreFilter {
+	public static final String RESTORE_LIST = "sar.restore.list";
+	public static final String RESTORE_GLOBS = "sar.restore.globs";
+
+	private final FilenameSet names;
+	private final Pattern globs;
+
+	public RestoreFilter(FilenameSet names, Pattern globs) {
+		this.names = names;
+		this.globs = globs;
+	}
+
+	/**
+	 * @return the filter of the job, or null if the job is not a bulk restore.
+	 */
+	public static RestoreFilter get(Configuration conf) throws IOException {
+		String list = conf.get(RESTORE_LIST, "");
+		String globList = conf.get(RESTORE_GLOBS, "");
+		if (list.equals("") && globList.equals("")) {
+			return null;
+		}
+
+		FilenameSet names = null;
+		if (!list.equals("")) {
+			Path path = new Path(list);
+			FileSystem fs = path.getFileSystem(conf);
+			InputStream in = fs.open(path);
+			try {
+				names = FilenameSet.read(in);
+			} finally {
+				IOUtils.closeStream(in);
+			}
+		}
+		return new RestoreFilter(names, compile(conf.getStrings(RESTORE_GLOBS)));
+	}
+
+	/**
+	 * @return one pattern matching any of the globs, or null if there are none.
+	 */
+	public static Pattern compile(String[] patterns) {
+		if (patterns == null || patterns.length == 0) {
+			return null;
+		}
+		StringBuilder regex = new StringBuilder();
+		for (String glob : patterns) {
+			if (regex.length() > 0) {
+				regex.append('|');
+			}
+			regex.append("(?:").append(GlobPattern.compile(glob.trim()).pattern()).append(')');
+		}
+		return Pattern.compile(regex.toString());
+	}
+
+	public boolean accept(String filename) {
+		return (names != null && names.contains(filename))
+				|| (globs != null && globs.matcher(filename).matches());
+	}
+}
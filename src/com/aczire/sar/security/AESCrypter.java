@@ -1,36 +1,67 @@
 package com.aczire.sar.security;
 
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.security.MessageDigest;
 import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
 
 import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.codec.binary.Base64InputStream;
+import org.apache.commons.codec.binary.Base64OutputStream;
 
 public class AESCrypter{
 
-	public static byte[] encrypt(byte[] plainTextBytes, String password) throws Exception {
+	/**
+	 * The password check value stored in <code>SarKey.Key</code>.
+	 */
+	public static String keyDigest(String password) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("sha-256");
+		byte[] digestOfPassword = md.digest(password.getBytes("utf-8"));
+		return new String(digestOfPassword);
+	}
+
+	private static Cipher getCipher(int mode, String password) throws Exception {
 		MessageDigest md = MessageDigest.getInstance("md5");
 		byte[] digestOfPassword = md.digest(password.getBytes("utf-8"));
 
 		SecretKey key = new SecretKeySpec(digestOfPassword, "AES");
 		IvParameterSpec iv = new IvParameterSpec(new byte[16]);
 		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-		cipher.init(Cipher.ENCRYPT_MODE, key, iv);
+		cipher.init(mode, key, iv);
+		return cipher;
+	}
+
+	/**
+	 * @return a stream that encrypts what is written to it into <code>out</code>,
+	 * producing the same bytes as {@link #encrypt(byte[], String)}. Closing it
+	 * writes the final block.
+	 */
+	public static OutputStream encryptingStream(OutputStream out, String password) throws Exception {
+		return new CipherOutputStream(new Base64OutputStream(out, true, 0, new byte[0]),
+				getCipher(Cipher.ENCRYPT_MODE, password));
+	}
+
+	/**
+	 * @return a stream that decrypts what {@link #encrypt(byte[], String)} produced.
+	 */
+	public static InputStream decryptingStream(InputStream in, String password) throws Exception {
+		return new CipherInputStream(new Base64InputStream(in), getCipher(Cipher.DECRYPT_MODE, password));
+	}
+
+	public static byte[] encrypt(byte[] plainTextBytes, String password) throws Exception {
+		Cipher cipher = getCipher(Cipher.ENCRYPT_MODE, password);
 
 		byte[] cipherText = Base64.encodeBase64(cipher.doFinal(plainTextBytes));
 		return cipherText;
 	}
 
 	public static byte[] decrypt(byte[] message, String password) throws Exception {
-		MessageDigest md = MessageDigest.getInstance("md5");
-		byte[] digestOfPassword = md.digest(password.getBytes("utf-8"));
-
-		SecretKey key = new SecretKeySpec(digestOfPassword, "AES");
-		IvParameterSpec iv = new IvParameterSpec(new byte[16]);
-		Cipher decipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-		decipher.init(Cipher.DECRYPT_MODE, key, iv);
+		Cipher decipher = getCipher(Cipher.DECRYPT_MODE, password);
 
 		byte[] plainText = decipher.doFinal(Base64.decodeBase64(message));
 		return plainText;
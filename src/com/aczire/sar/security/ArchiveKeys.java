@@ -0,0 +1,250 @@
+package com.aczire.sar.security;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.IOUtils;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.mapreduce.Job;
+import org.apache.hadoop.mapreduce.JobContext;
+import org.apache.hadoop.security.Credentials;
+
+import com.aczire.sar.io.FileSwap;
+
+/**
+ * The key header of an archive, kept in <code>&lt;archive&gt;/_keys</code>.
+ * 
+ * <p>The records, chunks and dictionary of an archive are encrypted with a
+ * random data key, not with the password given on the command line. The
+ * header holds the data key wrapped by that password, so changing the
+ * password only rewrites the header, see {@link #rewrap}. Archives built
+ * before the header existed have none and are encrypted with the password
+ * itself.</p>
+ * 
+ * <p>File layout: a version byte, the hex salt, the PBKDF2 iteration count,
+ * the hex password check, the hex IV, then the length and cipher text of the
+ * data key. PBKDF2WithHmacSHA1 stretches the password and salt into two
+ * halves: the first is the check, the second the AES key wrapping the data
+ * key. Version 1 headers, checked with SHA-256 of salt and password and
+ * wrapped by {@link AESCrypter}, are still read; rewrapping one writes the
+ * current version.</p>
+ * 
+ * <p>Tasks get the data key through the credentials of their job, see
+ * {@link #addJobKey}, not its configuration, which is written out where
+ * anyone who can see the job can read it.</p>
+ */
+public class ArchiveKeys {
+	public static final String KEYS_FILE = "_keys";
+
+	// Alias of the data key in the credentials of a job.
+	public static final String JOB_KEY = "sar.encrypt.key";
+	// Local job runner: names the keys of the job in localJobKeys. Not a secret.
+	private static final String LOCAL_JOB_KEYS = "sar.local.job.keys";
+
+	private static final byte VERSION = 2;
+	private static final int DATA_KEY_BYTES = 32;
+	private static final int SALT_BYTES = 16;
+	private static final int ITERATIONS = 65536;
+	private static final int WRAP_KEY_BYTES = 16; // AES-128, within the default JCE policy.
+
+	private static final SecureRandom random = new SecureRandom();
+
+	/*
+	 * The local job runner starts a job before it attaches the credentials,
+	 * so its tasks, which run in this JVM, may find none. They look here.
+	 */
+	private static final Map<String, Credentials> localJobKeys = new ConcurrentHashMap<String, Credentials>();
+
+	public static Path getPath(Path archive) {
+		return new Path(archive, KEYS_FILE);
+	}
+
+	public static boolean exists(FileSystem fs, Path archive) throws IOException {
+		return fs.exists(getPath(archive));
+	}
+
+	/**
+	 * @return the key the records of the archive are encrypted with: the
+	 * unwrapped data key, or the password itself for an archive without a
+	 * key header.
+	 * @throws IOException if the password does not unlock the header.
+	 */
+	public static String unlock(FileSystem fs, Path archive, String password) throws Exception {
+		return exists(fs, archive) ? unwrap(fs, getPath(archive), password) : password;
+	}
+
+	/**
+	 * Write a header with a new random data key to <code>path</code>.
+	 * @return the data key.
+	 */
+	public static String create(FileSystem fs, Path path, String password) throws Exception {
+		byte[] dataKey = new byte[DATA_KEY_BYTES];
+		random.nextBytes(dataKey);
+		String key = new String(Hex.encodeHex(dataKey));
+		write(fs, path, key, password);
+		return key;
+	}
+
+	/**
+	 * @return the data key of the header at <code>path</code>.
+	 * @throws IOException if the password is wrong.
+	 */
+	public static String unwrap(FileSystem fs, Path path, String password) throws Exception {
+		byte version;
+		String salt;
+		int iterations = 0;
+		String check;
+		String iv = null;
+		byte[] wrapped;
+		FSDataInputStream in = fs.open(path);
+		try {
+			version = in.readByte();
+			if (version > VERSION) {
+				throw new IOException("Key header " + path + " has unsupported version " + version + ".");
+			}
+			salt = in.readUTF();
+			if (version >= 2) {
+				iterations = in.readInt();
+			}
+			check = in.readUTF();
+			if (version >= 2) {
+				iv = in.readUTF();
+			}
+			wrapped = new byte[in.readInt()];
+			in.readFully(wrapped);
+		} finally {
+			IOUtils.closeStream(in);
+		}
+
+		if (version < 2) {
+			if (!MessageDigest.isEqual(check.getBytes("utf-8"), legacyCheck(salt, password).getBytes("utf-8"))) {
+				throw new IOException("Incorrect password for the key header " + path + ".");
+			}
+			return new String(AESCrypter.decrypt(wrapped, salt + password), "utf-8");
+		}
+		byte[] derived = derive(password, Hex.decodeHex(salt.toCharArray()), iterations);
+		if (!MessageDigest.isEqual(Hex.decodeHex(check.toCharArray()), Arrays.copyOf(derived, WRAP_KEY_BYTES))) {
+			throw new IOException("Incorrect password for the key header " + path + ".");
+		}
+		Cipher cipher = wrapCipher(Cipher.DECRYPT_MODE, derived, Hex.decodeHex(iv.toCharArray()));
+		return new String(cipher.doFinal(wrapped), "utf-8");
+	}
+
+	/**
+	 * Add a key to be handed to the tasks of a job, see {@link #setJobKeys}.
+	 */
+	public static void addJobKey(Credentials keys, String alias, String key) throws IOException {
+		keys.addSecretKey(new Text(alias), key.getBytes("utf-8"));
+	}
+
+	/**
+	 * Hand the keys to the tasks of the job through its credentials, which
+	 * are shipped to the tasks but, unlike its configuration, not written to
+	 * the job history. Call {@link #releaseJobKeys} once the job is done.
+	 */
+	public static void setJobKeys(Job job, Credentials keys) {
+		job.getCredentials().addAll(keys);
+		if (job.getConfiguration().get("mapreduce.framework.name", "local").equals("local")) {
+			String id = UUID.randomUUID().toString();
+			Credentials copy = new Credentials();
+			copy.addAll(keys);
+			localJobKeys.put(id, copy);
+			job.getConfiguration().set(LOCAL_JOB_KEYS, id);
+		}
+	}
+
+	public static void releaseJobKeys(Job job) {
+		String id = job.getConfiguration().get(LOCAL_JOB_KEYS);
+		if (id != null) {
+			localJobKeys.remove(id);
+		}
+	}
+
+	/**
+	 * @return the key handed to the tasks of the job, or null if there is none.
+	 */
+	public static String getJobKey(JobContext context, String alias) throws IOException {
+		byte[] key = context.getCredentials().getSecretKey(new Text(alias));
+		if (key == null) {
+			Credentials local = localJobKeys.get(context.getConfiguration().get(LOCAL_JOB_KEYS, ""));
+			key = (local == null) ? null : local.getSecretKey(new Text(alias));
+		}
+		return (key == null) ? null : new String(key, "utf-8");
+	}
+
+	/**
+	 * Wrap the data key of the archive with a new password. Only the header
+	 * is rewritten; the new one is written beside the old one and renamed
+	 * over it in one step, so a failure leaves the old one intact.
+	 */
+	public static void rewrap(FileSystem fs, Path archive, String oldPassword, String newPassword) throws Exception {
+		Path path = getPath(archive);
+		String dataKey = unwrap(fs, path, oldPassword);
+		Path tmp = new Path(archive, KEYS_FILE + ".tmp");
+		write(fs, tmp, dataKey, newPassword);
+		if (!unwrap(fs, tmp, newPassword).equals(dataKey)) {
+			fs.delete(tmp, false);
+			throw new IOException("Failed to verify the new key header " + tmp + ".");
+		}
+		FileSwap.replace(fs, tmp, path);
+	}
+
+	private static void write(FileSystem fs, Path path, String dataKey, String password) throws Exception {
+		byte[] salt = new byte[SALT_BYTES];
+		random.nextBytes(salt);
+		byte[] iv = new byte[16];
+		random.nextBytes(iv);
+		byte[] derived = derive(password, salt, ITERATIONS);
+		byte[] wrapped = wrapCipher(Cipher.ENCRYPT_MODE, derived, iv).doFinal(dataKey.getBytes("utf-8"));
+
+		FSDataOutputStream out = fs.create(path, true);
+		try {
+			out.writeByte(VERSION);
+			out.writeUTF(new String(Hex.encodeHex(salt)));
+			out.writeInt(ITERATIONS);
+			out.writeUTF(new String(Hex.encodeHex(Arrays.copyOf(derived, WRAP_KEY_BYTES))));
+			out.writeUTF(new String(Hex.encodeHex(iv)));
+			out.writeInt(wrapped.length);
+			out.write(wrapped);
+		} finally {
+			out.close();
+		}
+	}
+
+	/*
+	 * The password check, then the wrap key.
+	 */
+	private static byte[] derive(String password, byte[] salt, int iterations) throws GeneralSecurityException {
+		SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
+		return factory.generateSecret(new PBEKeySpec(password.toCharArray(), salt, iterations, 2 * WRAP_KEY_BYTES * 8))
+				.getEncoded();
+	}
+
+	private static Cipher wrapCipher(int mode, byte[] derived, byte[] iv) throws GeneralSecurityException {
+		Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+		cipher.init(mode, new SecretKeySpec(derived, WRAP_KEY_BYTES, WRAP_KEY_BYTES, "AES"), new IvParameterSpec(iv));
+		return cipher;
+	}
+
+	private static String legacyCheck(String salt, String password) throws Exception {
+		MessageDigest md = MessageDigest.getInstance("sha-256");
+		return new String(Hex.encodeHex(md.digest((salt + password).getBytes("utf-8"))));
+	}
+}
@@ -0,0 +1,192 @@
+package com.aczire.sar.server;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.aczire.sar.SarKey;
+import com.aczire.sar.io.RecordScanner;
+import com.aczire.sar.manifest.ArchiveManifest;
+
+/**
+ * In-memory index of the files of an archive: where the record of the latest
+ * version of every file lives, with a scanner held open on every part.
+ * 
+ * <p>The index is built with one pass over the keys of every part; values
+ * are skipped. Names are kept sorted, so prefix queries are a range of the
+ * map. A name stored more than once, in several parts, keeps every record,
+ * in part order; the first is the one served. Scanners are stateful:
+ * callers position and read one under its lock, see {@link #open(Location)}.</p>
+ */
+public class ArchiveIndex {
+	private static final Log LOG = LogFactory.getLog(ArchiveIndex.class);
+
+	/**
+	 * Where a record lives.
+	 */
+	public static class Location {
+		public final Path part;
+		public final Path dir; // Directory of the part, where its chunk store lives.
+		public final long offset;
+		public final int storedLength;
+
+		Location(Path part, Path dir, long offset, int storedLength) {
+			this.part = part;
+			this.dir = dir;
+			this.offset = offset;
+			this.storedLength = storedLength;
+		}
+	}
+
+	private final SortedMap<String, List<Location>> files = new TreeMap<String, List<Location>>();
+	private int duplicates = 0;
+	private final Map<Path, RecordScanner> scanners = new HashMap<Path, RecordScanner>();
+
+	/**
+	 * Index every part of an archive, or of its generations.
+	 */
+	public static ArchiveIndex load(Configuration conf, Path archive) throws IOException {
+		FileSystem fs = archive.getFileSystem(conf);
+		Map<String, Integer> latest = null;
+		List<Path> dirs = new ArrayList<Path>();
+		if (ArchiveManifest.exists(fs, archive)) {
+			latest = ArchiveManifest.load(fs, archive).resolveLatest();
+			FileStatus[] generations = fs.globStatus(new Path(archive, ArchiveManifest.GENERATION_PREFIX + "*"));
+			for (FileStatus generation : (generations == null) ? new FileStatus[0] : generations) {
+				dirs.add(generation.getPath());
+			}
+		}
+		else {
+			dirs.add(archive);
+		}
+
+		ArchiveIndex index = new ArchiveIndex();
+		try {
+			for (Path dir : dirs) {
+				FileStatus[] parts = fs.globStatus(new Path(dir, "part-*"));
+				for (FileStatus part : (parts == null) ? new FileStatus[0] : parts) {
+					index.addPart(fs, conf, part.getPath(), dir, latest);
+				}
+			}
+		} catch (IOException e) {
+			index.close();
+			throw e;
+		}
+		return index;
+	}
+
+	private void addPart(FileSystem fs, Configuration conf, Path part, Path dir,
+			Map<String, Integer> latest) throws IOException {
+		RecordScanner scanner = new RecordScanner(fs, part, conf);
+		scanners.put(part, scanner);
+		while (true) {
+			long position = scanner.getPosition();
+			try {
+				if (!scanner.next()) {
+					break;
+				}
+			} catch (IOException e) {
+				LOG.error("Skipping corrupt stretch of " + part + " at offset " + position + ": " + e);
+				if (!scanner.skipToSync(position + 1)) {
+					break;
+				}
+				continue;
+			}
+			SarKey key = scanner.getKey();
+			if (key.Type != SarKey.TYPE_FILE && key.Type != SarKey.TYPE_RECIPE) {
+				continue;
+			}
+			if (latest != null) {
+				Integer generation = latest.get(key.Filename);
+				if (generation == null || generation.intValue() != key.Generation) {
+					continue;
+				}
+			}
+			List<Location> locations = files.get(key.Filename);
+			if (locations == null) {
+				locations = new ArrayList<Location>(1);
+				files.put(key.Filename, locations);
+			}
+			else {
+				duplicates++;
+				LOG.warn("File " + key.Filename + " is stored again in " + part + "; serving the record in "
+						+ locations.get(0).part);
+			}
+			locations.add(new Location(part, dir, scanner.getRecordOffset(), scanner.getValueLength()));
+		}
+	}
+
+	public int size() {
+		return files.size();
+	}
+
+	/**
+	 * @return the number of records of names already stored in an earlier part.
+	 */
+	public int getDuplicateCount() {
+		return duplicates;
+	}
+
+	public int getPartCount() {
+		return scanners.size();
+	}
+
+	/**
+	 * @return where the file lives, its first record if it is stored more
+	 * than once, or null if it is not in the archive.
+	 */
+	public Location get(String filename) {
+		List<Location> locations = files.get(filename);
+		return (locations == null) ? null : locations.get(0);
+	}
+
+	/**
+	 * @return the files whose names start with the prefix, in name order,
+	 * each with every record stored under its name.
+	 */
+	public SortedMap<String, List<Location>> list(String prefix) {
+		if (prefix.equals("")) {
+			return Collections.unmodifiableSortedMap(files);
+		}
+		return Collections.unmodifiableSortedMap(files.subMap(prefix, prefix + Character.MAX_VALUE));
+	}
+
+	/**
+	 * Position the scanner of the part on the record. Callers must hold the
+	 * lock of the returned scanner from this call until done reading.
+	 */
+	public RecordScanner open(Location location) throws IOException {
+		RecordScanner scanner = scanners.get(location.part);
+		scanner.seek(location.offset);
+		if (!scanner.next()) {
+			throw new IOException("No record at offset " + location.offset + " of " + location.part);
+		}
+		return scanner;
+	}
+
+	/**
+	 * @return the scanner to lock before {@link #open(Location)}.
+	 */
+	public Object lockFor(Location location) {
+		return scanners.get(location.part);
+	}
+
+	public void close() {
+		for (RecordScanner scanner : scanners.values()) {
+			scanner.close();
+		}
+		scanners.clear();
+	}
+}
@@ -0,0 +1,72 @@
+package com.aczire.sar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArchiveBenchmarkTest {
+	private File dir;
+
+	@Before
+	public void setUp() {
+		dir = TestArchives.createTempDir("benchmark");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		TestArchives.delete(dir);
+	}
+
+	private boolean bench(String... options) throws Exception {
+		List<String> args = new ArrayList<String>(Arrays.asList("-work_dir", dir.getPath(), "-files", "30",
+				"-size_distribution", "uniform", "-min_size", "512", "-max_size", "8192", "-keyword_rate", "0.3",
+				"-duplicates", "0.2", "-build_args", "-compress"));
+		args.addAll(Arrays.asList(options));
+		ArchiveBenchmark benchmark = new ArchiveBenchmark();
+		assertTrue(benchmark.init(args.toArray(new String[args.size()])));
+		return benchmark.run();
+	}
+
+	private Properties report() throws IOException {
+		Properties report = new Properties();
+		InputStream in = new FileInputStream(new File(dir, "report.txt"));
+		try {
+			report.load(in);
+		} finally {
+			in.close();
+		}
+		return report;
+	}
+
+	@Test
+	public void testReportsExpectedHits() throws Exception {
+		assertTrue(bench());
+		Properties report = report();
+		assertFalse("0".equals(report.getProperty("corpus.keyword_files")));
+		assertEquals(report.getProperty("corpus.keyword_files"), report.getProperty("search.expected_hits"));
+		assertEquals(report.getProperty("search.expected_hits"), report.getProperty("search.actual_hits"));
+		assertEquals("true", report.getProperty("search.hits_match"));
+		assertEquals(Integer.parseInt(report.getProperty("search.actual_hits")), new File(dir, "search").list().length);
+	}
+
+	@Test
+	public void testFailsOnHitMismatch() throws Exception {
+		assertFalse(bench("-expected_hits", "1000"));
+		Properties report = report();
+		assertEquals("1000", report.getProperty("search.expected_hits"));
+		assertEquals("false", report.getProperty("search.hits_match"));
+	}
+}
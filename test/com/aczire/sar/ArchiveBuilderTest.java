@@ -0,0 +1,186 @@
+package com.aczire.sar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.SequenceFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aczire.sar.dedup.ChunkRecipe;
+import com.aczire.sar.io.BufferPool;
+import com.aczire.sar.manifest.ArchiveManifest;
+import com.aczire.sar.metrics.SarCounter;
+
+public class ArchiveBuilderTest {
+	private static final int FILES = 40;
+
+	private File dir;
+	private File input;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TestArchives.createTempDir("builder");
+		input = new File(dir, "in");
+		FileUtils.forceMkdir(input);
+		Random random = new Random(1);
+		byte[][] shared = new byte[4][];
+		for (int i = 0; i < shared.length; i++) {
+			shared[i] = text(random, 8 * 1024);
+		}
+		for (int i = 0; i < FILES; i++) {
+			// Small files sharing content, for deduplication, and every tenth one past the streaming threshold.
+			int size = (i % 10 == 9) ? 48 * 1024 : 1024 + random.nextInt(6 * 1024);
+			byte[] contents = text(random, size);
+			byte[] common = shared[i % shared.length];
+			System.arraycopy(common, 0, contents, 0, Math.min(common.length, contents.length / 2));
+			FileUtils.writeByteArrayToFile(new File(input, String.format("file-%03d.txt", i)), contents);
+		}
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		TestArchives.delete(dir);
+	}
+
+	private static byte[] text(Random random, int size) {
+		byte[] text = new byte[size];
+		for (int i = 0; i < size; i++) {
+			text[i] = (byte) ((random.nextInt(8) == 0) ? ' ' : 'a' + random.nextInt(26));
+		}
+		return text;
+	}
+
+	private ArchiveBuilder build(String name, String... options) throws Exception {
+		List<String> args = new ArrayList<String>(Arrays.asList("-compress"));
+		args.addAll(Arrays.asList(options));
+		ArchiveBuilder builder = TestArchives.newBuilder();
+		builder.conf.setLong(BufferPool.STREAM_THRESHOLD_BYTES, 32 * 1024);
+		return TestArchives.build(builder, input, new File(dir, name), args.toArray(new String[args.size()]));
+	}
+
+	/*
+	 * Every record of the archive, key and value serialized, in file order.
+	 * Sync markers differ from run to run, so the part files cannot be compared whole.
+	 */
+	private List<String> records(String name) throws IOException {
+		Configuration conf = new Configuration();
+		FileSystem fs = FileSystem.getLocal(conf);
+		Path archive = new Path(new File(dir, name).toURI());
+		List<FileStatus> parts = new ArrayList<FileStatus>(Arrays.asList(fs.globStatus(new Path(archive, "part-*"))));
+		if (fs.exists(new Path(archive, "chunks"))) {
+			parts.addAll(Arrays.asList(fs.globStatus(new Path(archive, "chunks/part-*/data"))));
+		}
+		List<String> records = new ArrayList<String>();
+		DataOutputBuffer buffer = new DataOutputBuffer();
+		for (FileStatus part : parts) {
+			SequenceFile.Reader reader = new SequenceFile.Reader(fs, part.getPath(), conf);
+			try {
+				SarKey key = new SarKey();
+				BytesWritable value = new BytesWritable();
+				while (reader.next(key, value)) {
+					buffer.reset();
+					key.write(buffer);
+					value.write(buffer);
+					records.add(part.getPath().getName() + " " + key.Filename + " "
+							+ new String(Hex.encodeHex(Arrays.copyOf(buffer.getData(), buffer.getLength()))));
+				}
+			} finally {
+				reader.close();
+			}
+		}
+		return records;
+	}
+
+	private static long filesArchived(ArchiveBuilder builder) {
+		return builder.getCounters().findCounter(SarCounter.FILES_ARCHIVED).getValue();
+	}
+
+	@Test
+	public void testPipelineMatchesSerial() throws Exception {
+		ArchiveBuilder serial = build("serial", "-compress_threads", "2", "-compress_block_size", "4096",
+				"-combine_size", "1048576");
+		ArchiveBuilder pipelined = build("pipelined", "-compress_threads", "2", "-compress_block_size", "4096",
+				"-combine_size", "1048576", "-threads", "4");
+		List<String> expected = records("serial");
+		assertEquals(FILES, expected.size());
+		assertEquals(expected, records("pipelined"));
+		assertEquals(FILES, filesArchived(serial));
+		assertEquals(FILES, filesArchived(pipelined));
+	}
+
+	@Test
+	public void testDedupPipelineMatchesSerial() throws Exception {
+		ArchiveBuilder serial = build("serial", "-dedup", "-chunk_size", "1024", "-combine_size", "1048576");
+		ArchiveBuilder pipelined = build("pipelined", "-dedup", "-chunk_size", "1024", "-combine_size", "1048576",
+				"-threads", "4");
+		List<String> expected = records("serial");
+		assertTrue(expected.size() > FILES);
+		assertEquals(expected, records("pipelined"));
+		assertEquals(FILES, filesArchived(serial));
+		assertEquals(FILES, filesArchived(pipelined));
+	}
+
+	@Test
+	public void testResumeKeepsUncommittedGenerations() throws Exception {
+		build("resumed", "-checkpoint_size", "65536");
+		File archive = new File(dir, "resumed");
+		File generation = new File(archive, ArchiveManifest.getGenerationName(1));
+		assertTrue(generation.isDirectory());
+		// A first checkpoint archived but never committed.
+		assertTrue(new File(archive, ArchiveManifest.MANIFEST_FILE).delete());
+		new File(archive, "." + ArchiveManifest.MANIFEST_FILE + ".crc").delete();
+
+		ArchiveBuilder builder = TestArchives.newBuilder();
+		try {
+			builder.init(new String[] { "-in_path", input.getPath(), "-out_path", archive.getPath(), "-resume" });
+			fail("Resumed an archive without a manifest");
+		} catch (IllegalArgumentException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("no manifest"));
+		}
+		assertTrue(generation.isDirectory());
+	}
+
+	/*
+	 * @return how many manifest hashes of the archive are the plain SHA-256 of their file.
+	 */
+	private int plainHashes(String name) throws Exception {
+		ArchiveManifest manifest = ArchiveManifest.load(FileSystem.getLocal(new Configuration()),
+				new Path(new File(dir, name).toURI()));
+		assertEquals(FILES, manifest.getEntries().size());
+		int plain = 0;
+		for (ArchiveManifest.Entry entry : manifest.getEntries()) {
+			byte[] contents = FileUtils.readFileToByteArray(new File(input, entry.path));
+			if (entry.hash.equals(ChunkRecipe.toHex(MessageDigest.getInstance("sha-256").digest(contents)))) {
+				plain++;
+			}
+		}
+		return plain;
+	}
+
+	@Test
+	public void testEncryptedContentHashIsKeyed() throws Exception {
+		build("plain", "-incremental");
+		assertEquals(FILES, plainHashes("plain"));
+		build("encrypted", "-incremental", "-encrypt", "-key", "pw", "-threads", "2");
+		assertEquals(0, plainHashes("encrypted"));
+	}
+}
@@ -0,0 +1,162 @@
+package com.aczire.sar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aczire.sar.io.RecordScanner;
+
+public class ArchiveCompactorTest {
+	private File dir;
+	private File input;
+	private File archive;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = TestArchives.createTempDir("compactor");
+		input = new File(dir, "in");
+		archive = new File(dir, "archive");
+		FileUtils.writeStringToFile(new File(input, "a.txt"), "alpha needle one", "utf-8");
+		FileUtils.writeStringToFile(new File(input, "b.txt"), "beta haystack", "utf-8");
+		FileUtils.writeStringToFile(new File(input, "c.txt"), "gamma needle", "utf-8");
+		build();
+		// A second generation supersedes a.txt and deletes c.txt.
+		FileUtils.writeStringToFile(new File(input, "a.txt"), "alpha needle two, longer", "utf-8");
+		assertTrue(new File(input, "c.txt").delete());
+		build();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		TestArchives.delete(dir);
+	}
+
+	private void build() throws Exception {
+		TestArchives.build(input, archive, "-incremental", "-compress", "-encrypt", "-key", "pw");
+	}
+
+	private void compact(String... options) throws Exception {
+		List<String> args = new ArrayList<String>();
+		Collections.addAll(args, "-in_path", archive.getPath());
+		Collections.addAll(args, options);
+		ArchiveCompactor compactor = new ArchiveCompactor();
+		compactor.conf.set("fs.defaultFS", "file:///");
+		assertTrue(compactor.init(args.toArray(new String[args.size()])));
+		assertTrue(compactor.run());
+	}
+
+	/*
+	 * @return the files a keyword search of the archive finds, by name.
+	 */
+	private Map<String, String> search(String out) throws Exception {
+		File output = new File(dir, out);
+		ArchiveSearcher searcher = new ArchiveSearcher();
+		searcher.conf.set("fs.defaultFS", "file:///");
+		searcher.conf.set("mapreduce.framework.name", "local");
+		assertTrue(searcher.init(new String[] { "-in_path", archive.getPath(), "-out_path", output.getPath() + "/",
+				"-out_path_local", "-search_keyword", "needle", "-key", "pw" }));
+		assertTrue(searcher.run());
+		Map<String, String> found = new TreeMap<String, String>();
+		for (File file : output.listFiles()) {
+			if (!file.getName().startsWith(".") && !file.getName().startsWith("_")) {
+				found.put(file.getName(), FileUtils.readFileToString(file, "utf-8"));
+			}
+		}
+		return found;
+	}
+
+	/*
+	 * @return the type and name of every record in the parts of the archive, sorted.
+	 */
+	private List<String> records() throws IOException {
+		Configuration conf = new Configuration();
+		FileSystem fs = FileSystem.getLocal(conf);
+		List<String> records = new ArrayList<String>();
+		for (File generation : archive.listFiles()) {
+			if (!generation.isDirectory()) {
+				continue;
+			}
+			for (File part : generation.listFiles()) {
+				if (!part.getName().startsWith("part-")) {
+					continue;
+				}
+				RecordScanner scanner = new RecordScanner(fs, new Path(part.toURI()), conf);
+				try {
+					while (scanner.next()) {
+						records.add(scanner.getKey().Type + " " + scanner.getKey().Filename);
+					}
+				} finally {
+					scanner.close();
+				}
+			}
+		}
+		Collections.sort(records);
+		return records;
+	}
+
+	private void assertNoLeftovers() {
+		assertFalse(new File(dir, "archive.compacting").exists());
+		assertFalse(new File(dir, "archive.precompact").exists());
+	}
+
+	@Test
+	public void testDropsSupersededAndDeletedRecords() throws Exception {
+		Map<String, String> before = search("before");
+		assertEquals("alpha needle two, longer", before.get("a.txt"));
+		assertEquals(1, before.size());
+		assertTrue(records().size() > 2);
+
+		compact();
+		assertNoLeftovers();
+		assertEquals(1, archive.list(new FilenameFilter() {
+			public boolean accept(File parent, String name) {
+				return name.startsWith("gen-");
+			}
+		}).length);
+		String file = Byte.toString(SarKey.TYPE_FILE);
+		assertEquals(Arrays.asList(file + " a.txt", file + " b.txt"), records());
+		assertEquals(before, search("after"));
+	}
+
+	@Test
+	public void testFinishesInterruptedSwap() throws Exception {
+		Map<String, String> before = search("before");
+		// Cut short between the renames: the compacted copy is complete and the original is aside.
+		compact("-out_path", new File(dir, "archive.compacting").getPath());
+		assertTrue(archive.renameTo(new File(dir, "archive.precompact")));
+
+		compact();
+		assertNoLeftovers();
+		assertEquals(2, records().size());
+		assertEquals(before, search("after"));
+	}
+
+	@Test
+	public void testRestoresOriginalWithoutCompactedCopy() throws Exception {
+		Map<String, String> before = search("before");
+		assertTrue(archive.renameTo(new File(dir, "archive.precompact")));
+
+		compact();
+		assertNoLeftovers();
+		assertEquals(2, records().size());
+		assertEquals(before, search("after"));
+	}
+}
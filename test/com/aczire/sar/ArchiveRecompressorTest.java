@@ -0,0 +1,143 @@
+package com.aczire.sar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aczire.sar.catalog.ArchiveCatalog;
+import com.aczire.sar.catalog.CatalogEntry;
+
+public class ArchiveRecompressorTest {
+	private static final int FILES = 10;
+
+	private File dir;
+	private File input;
+	private File archive;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = TestArchives.createTempDir("recompressor");
+		input = new File(dir, "in");
+		Random random = new Random(1);
+		for (int i = 0; i < FILES; i++) {
+			StringBuilder text = new StringBuilder();
+			while (text.length() < 16 * 1024) {
+				text.append("line ").append(random.nextInt(1000)).append(" of file ").append(i % 3).append('\n');
+			}
+			FileUtils.writeStringToFile(new File(input, "file-" + i + ".txt"), text.toString(), "utf-8");
+		}
+		archive = new File(dir, "archive");
+		TestArchives.build(input, archive, "-compress", "-encrypt", "-key", "pw", "-dedup", "-chunk_size", "1024");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		TestArchives.delete(dir);
+	}
+
+	private void recompress() throws Exception {
+		recompress("-in_path", archive.getPath());
+	}
+
+	private void recompress(String source, String path) throws Exception {
+		ArchiveRecompressor recompressor = new ArchiveRecompressor();
+		recompressor.conf.set("fs.defaultFS", "file:///");
+		assertTrue(recompressor.init(new String[] { source, path, "-key", "pw" }));
+		assertTrue(recompressor.run());
+	}
+
+	private void assertReadable() throws Exception {
+		Configuration conf = new Configuration();
+		conf.set("fs.defaultFS", "file:///");
+		RangeReader reader = new RangeReader(conf, new Path(archive.toURI()), "pw");
+		try {
+			for (int i = 0; i < FILES; i++) {
+				String name = "file-" + i + ".txt";
+				assertEquals(name, FileUtils.readFileToString(new File(input, name), "utf-8"),
+						new String(reader.read(name, 0, -1), "utf-8"));
+			}
+		} finally {
+			reader.close();
+		}
+	}
+
+	@Test
+	public void testRecompresses() throws Exception {
+		recompress();
+		assertReadable();
+		for (String name : archive.list()) {
+			assertFalse(name, name.contains(".recompress"));
+		}
+	}
+
+	@Test
+	public void testRecoversInterruptedSwaps() throws Exception {
+		// A part deleted before its rewrite was renamed over it.
+		File part = new File(archive, "part-r-00000");
+		assertTrue(part.renameTo(new File(archive, ".part-r-00000.recompress")));
+		new File(archive, ".part-r-00000.crc").delete();
+		// A chunk store moved aside before its rewrite was renamed in.
+		File chunks = new File(archive, "chunks/part-r-00000");
+		assertTrue(chunks.renameTo(new File(archive, "chunks/.part-r-00000.recompress.old")));
+
+		recompress();
+		assertReadable();
+		assertTrue(part.isFile());
+		assertTrue(chunks.isDirectory());
+		assertFalse(new File(archive, ".part-r-00000.recompress").exists());
+		assertFalse(new File(archive, "chunks/.part-r-00000.recompress.old").exists());
+	}
+
+	@Test
+	public void testDropsUnfinishedRewrites() throws Exception {
+		// Rewrites cut short beside their originals.
+		FileUtils.writeStringToFile(new File(archive, ".part-r-00000.recompress"), "partial", "utf-8");
+		FileUtils.forceMkdir(new File(archive, "chunks/.part-r-00000.recompress"));
+
+		recompress();
+		assertReadable();
+		assertFalse(new File(archive, ".part-r-00000.recompress").exists());
+		assertFalse(new File(archive, "chunks/.part-r-00000.recompress").exists());
+	}
+
+	@Test
+	public void testCatalogKeepsTimeRange() throws Exception {
+		// Parts of deduplicated archives hold recipes, which are not recompressed; these hold the files.
+		archive = new File(dir, "whole");
+		TestArchives.build(input, archive, "-compress", "-encrypt", "-key", "pw");
+		// Parts written long ago date an archive without a manifest.
+		long written = System.currentTimeMillis() - 400L * 24 * 60 * 60 * 1000;
+		written -= written % 1000;
+		for (File file : archive.listFiles()) {
+			if (file.getName().startsWith("part-")) {
+				assertTrue(file.setLastModified(written));
+			}
+		}
+		Configuration conf = new Configuration();
+		Path catalogDir = new Path(new File(dir, "catalog").toURI());
+		ArchiveCatalog catalog = new ArchiveCatalog(catalogDir.getFileSystem(conf), catalogDir);
+		ArchiveCataloger.add(conf, catalog, new Path(archive.getPath()));
+		CatalogEntry before = catalog.load().get(0);
+		assertEquals(written, before.maxTime);
+
+		recompress("-catalog", catalogDir.toString());
+		assertReadable();
+		assertTrue(new File(archive, "part-r-00000").lastModified() > written);
+		assertEquals(1, catalog.load().size());
+		CatalogEntry after = catalog.load().get(0);
+		assertEquals(before.minTime, after.minTime);
+		assertEquals(before.maxTime, after.maxTime);
+		assertTrue(after.cataloged >= before.cataloged);
+	}
+}
@@ -0,0 +1,97 @@
+package com.aczire.sar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aczire.sar.metrics.SarCounter;
+import com.aczire.sar.security.ArchiveKeys;
+
+public class ArchiveSearcherTest {
+	private File dir;
+	private File archive;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = TestArchives.createTempDir("searcher");
+		File input = new File(dir, "in");
+		FileUtils.writeStringToFile(new File(input, "a.txt"), "alpha needle one", "utf-8");
+		FileUtils.writeStringToFile(new File(input, "b.txt"), "beta haystack", "utf-8");
+		archive = new File(dir, "archive");
+		build(input, archive);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		TestArchives.delete(dir);
+	}
+
+	private static void build(File input, File output, String... options) throws Exception {
+		List<String> args = new ArrayList<String>(Arrays.asList("-compress", "-encrypt", "-key", "pw"));
+		args.addAll(Arrays.asList(options));
+		TestArchives.build(input, output, args.toArray(new String[args.size()]));
+	}
+
+	private ArchiveSearcher search(String out, String... options) throws Exception {
+		return searchFrom(out, "-in_path", archive.getPath(), options);
+	}
+
+	private ArchiveSearcher searchFrom(String out, String source, String path, String... options) throws Exception {
+		List<String> args = new ArrayList<String>(Arrays.asList(
+				source, path, "-out_path", new File(dir, out).getPath() + "/", "-out_path_local"));
+		args.addAll(Arrays.asList(options));
+		ArchiveSearcher searcher = new ArchiveSearcher();
+		searcher.conf.set("fs.defaultFS", "file:///");
+		searcher.conf.set("mapreduce.framework.name", "local");
+		assertTrue(searcher.init(args.toArray(new String[args.size()])));
+		assertTrue(searcher.run());
+		return searcher;
+	}
+
+	private static long cached(ArchiveSearcher searcher) {
+		return searcher.getCounters().findCounter(SarCounter.RECORDS_CACHED).getValue();
+	}
+
+	@Test
+	public void testSearchFileUsesCache() throws Exception {
+		String cacheDir = new File(dir, "cache").getPath();
+		ArchiveSearcher first = search("out1", "-search_file", "a.txt", "-key", "pw", "-cache_dir", cacheDir);
+		assertEquals(0, cached(first));
+		assertEquals("alpha needle one", FileUtils.readFileToString(new File(dir, "out1/a.txt"), "utf-8"));
+
+		// Disk entries are encrypted with the data key, so a new password still reads them.
+		FileSystem fs = FileSystem.getLocal(new Configuration());
+		ArchiveKeys.rewrap(fs, new Path(archive.toURI()), "pw", "pw2");
+		ArchiveSearcher second = search("out2", "-search_file", "a.txt", "-key", "pw2", "-cache_dir", cacheDir);
+		assertEquals(1, cached(second));
+		assertEquals("alpha needle one", FileUtils.readFileToString(new File(dir, "out2/a.txt"), "utf-8"));
+	}
+
+	@Test
+	public void testStaleCatalogEntryIsRescanned() throws Exception {
+		File input = new File(dir, "in");
+		File incremental = new File(dir, "incremental");
+		String catalog = new File(dir, "catalog").getPath();
+		build(input, incremental, "-incremental", "-catalog", catalog);
+
+		// A later generation the catalog has not seen.
+		FileUtils.writeStringToFile(new File(input, "c.txt"), "gamma needle two", "utf-8");
+		build(input, incremental, "-incremental");
+
+		searchFrom("out", "-catalog", catalog, "-search_file", "c.txt", "-key", "pw");
+		assertEquals("gamma needle two", FileUtils.readFileToString(new File(dir, "out/c.txt"), "utf-8"));
+	}
+}
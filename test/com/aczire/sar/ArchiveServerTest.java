@@ -0,0 +1,106 @@
+package com.aczire.sar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ArchiveServerTest {
+	private File dir;
+	private ArchiveServer server;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = TestArchives.createTempDir("server");
+		File input = new File(dir, "in");
+		FileUtils.writeStringToFile(new File(input, "a.txt"), "alpha needle one", "utf-8");
+		FileUtils.writeStringToFile(new File(input, "b.txt"), "beta haystack", "utf-8");
+		FileUtils.writeStringToFile(new File(input, "c.txt"), "gamma needle two", "utf-8");
+		TestArchives.build(input, new File(dir, "archive"), "-compress", "-encrypt", "-key", "pw");
+
+		// A second archive holding another a.txt, its part copied in as a later part of the first.
+		// It is only compressed, as it cannot share the data key of the first.
+		File other = new File(dir, "other");
+		FileUtils.writeStringToFile(new File(other, "a.txt"), "second copy needle", "utf-8");
+		TestArchives.build(other, new File(dir, "archive2"), "-compress");
+		FileUtils.copyFile(new File(dir, "archive2/part-r-00000"), new File(dir, "archive/part-r-00001"));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		if (server != null) {
+			server.stop();
+		}
+		TestArchives.delete(dir);
+	}
+
+	private void start(String... options) throws Exception {
+		List<String> args = new ArrayList<String>(Arrays.asList(
+				"-in_path", new File(dir, "archive").getPath(), "-key", "pw", "-port", "0", "-cache_bytes", "0"));
+		args.addAll(Arrays.asList(options));
+		server = new ArchiveServer();
+		server.conf.set("fs.defaultFS", "file:///");
+		assertTrue(server.init(args.toArray(new String[args.size()])));
+		server.start();
+	}
+
+	/*
+	 * @return the status and body of a GET, joined by a newline.
+	 */
+	private String get(String request, String token) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(
+				"http://127.0.0.1:" + server.getPort() + request).openConnection();
+		if (token != null) {
+			connection.setRequestProperty("X-Archive-Token", token);
+		}
+		int status = connection.getResponseCode();
+		InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		try {
+			IOUtils.copy(in, body);
+		} finally {
+			in.close();
+		}
+		return status + "\n" + body.toString("utf-8");
+	}
+
+	@Test
+	public void testServesFilesListsAndSearches() throws Exception {
+		start();
+		assertEquals("200\nalpha needle one", get("/file?name=a.txt", null));
+		assertEquals("200\nneedle", get("/file?name=c.txt&start=6&end=12", null));
+		assertEquals("404\n", get("/file?name=missing.txt", null).substring(0, 4));
+
+		String list = get("/list", null);
+		assertTrue(list, list.startsWith("200\n"));
+		// Both copies of a.txt are listed.
+		assertEquals(5, list.split("\n").length);
+		assertEquals(2, list.split("a\\.txt\t").length - 1);
+
+		assertEquals("200\nc.txt\n", get("/list?prefix=c", null).replaceAll("\t\\d+", ""));
+		assertEquals("200\na.txt\na.txt\nc.txt\n", get("/search?keyword=needle", null));
+		assertEquals("200\na.txt\n", get("/search?keyword=second", null));
+	}
+
+	@Test
+	public void testTokenIsRequired() throws Exception {
+		start("-token", "secret");
+		assertEquals("401", get("/file?name=a.txt", null).substring(0, 3));
+		assertEquals("401", get("/file?name=a.txt", "wrong").substring(0, 3));
+		assertEquals("200\nalpha needle one", get("/file?name=a.txt", "secret"));
+	}
+}
@@ -0,0 +1,78 @@
+package com.aczire.sar;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aczire.sar.TestArchives.RecordLayout;
+
+public class ArchiveVerifierTest {
+	private static final int RECORDS = 40;
+
+	private File dir;
+	private File part;
+	private List<RecordLayout> layout;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TestArchives.createTempDir("verifier");
+		FileUtils.forceMkdir(dir);
+		part = new File(dir, "part-r-00000");
+		layout = TestArchives.writePart(part, RECORDS, 300);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		TestArchives.delete(dir);
+	}
+
+	private ArchiveVerifier.PartReport verify() throws IOException {
+		Configuration conf = new Configuration();
+		return ArchiveVerifier.verifyPart(conf, FileSystem.getLocal(conf).getRaw(), new Path(part.toURI()));
+	}
+
+	@Test
+	public void testVerifiesIntactPart() throws IOException {
+		ArchiveVerifier.PartReport report = verify();
+		assertEquals(RECORDS, report.verified);
+		assertEquals(0, report.problems.size());
+	}
+
+	@Test
+	public void testReportsChecksumMismatchAtRecordOffset() throws IOException {
+		RecordLayout bad = layout.get(5);
+		TestArchives.overwrite(part, bad.valueOffset + 8, 0x01020304);
+
+		ArchiveVerifier.PartReport report = verify();
+		assertEquals(RECORDS - 1, report.verified);
+		assertEquals(1, report.problems.size());
+		String problem = report.problems.get(0);
+		assertTrue(problem, problem.contains("\t" + bad.recordOffset + "\t" + bad.name + "\tchecksum mismatch"));
+	}
+
+	@Test
+	public void testSkipsCorruptStructureToNextSync() throws IOException {
+		int bad = TestArchives.findRecordBeforeSync(layout, 10);
+		int next = TestArchives.findNextSync(layout, bad);
+		// A negative key length.
+		TestArchives.overwrite(part, layout.get(bad).recordOffset + 4, -1);
+
+		ArchiveVerifier.PartReport report = verify();
+		assertEquals(1, report.problems.size());
+		String problem = report.problems.get(0);
+		assertTrue(problem, problem.contains("\t" + layout.get(bad).start + "\t-\tcorrupt record structure"));
+		// The records from the corrupt one to the next sync point are lost, the rest verify.
+		assertEquals(RECORDS - (next - bad), report.verified);
+	}
+}
@@ -0,0 +1,167 @@
+package com.aczire.sar;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.BytesWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.util.PureJavaCrc32C;
+
+import com.aczire.sar.io.RecordScanner;
+
+/**
+ * Scratch directories and archives built in process, on the local job
+ * runner and the local filesystem, for tests.
+ */
+public class TestArchives {
+	/**
+	 * Where a record of a part written by {@link #writePart} lies.
+	 */
+	public static class RecordLayout {
+		public String name;
+		public long start; // Where scanning the record starts, at its sync marker if it has one.
+		public long recordOffset; // The record itself, after any sync marker.
+		public long valueOffset;
+		public boolean afterSync;
+	}
+
+	/**
+	 * @return a scratch directory of its own for a test, not yet created.
+	 */
+	public static File createTempDir(String name) {
+		return new File(System.getProperty("java.io.tmpdir"), "sar-" + name + "-test-" + System.nanoTime());
+	}
+
+	/**
+	 * Delete a scratch directory and everything in it.
+	 */
+	public static void delete(File dir) throws IOException {
+		FileUtils.deleteDirectory(dir);
+	}
+
+	/**
+	 * @return a builder running locally, for tests that tune its configuration.
+	 */
+	public static ArchiveBuilder newBuilder() {
+		ArchiveBuilder builder = new ArchiveBuilder();
+		builder.conf.set("fs.defaultFS", "file:///");
+		builder.conf.set("mapreduce.framework.name", "local");
+		return builder;
+	}
+
+	/**
+	 * Archive the input directory into the output with the builder options.
+	 * @return the builder, for its counters.
+	 */
+	public static ArchiveBuilder build(File input, File output, String... options) throws Exception {
+		return build(newBuilder(), input, output, options);
+	}
+
+	public static ArchiveBuilder build(ArchiveBuilder builder, File input, File output, String... options)
+			throws Exception {
+		List<String> args = new ArrayList<String>(Arrays.asList(
+				"-in_path", input.getPath(), "-out_path", output.getPath()));
+		args.addAll(Arrays.asList(options));
+		assertTrue(builder.init(args.toArray(new String[args.size()])));
+		assertTrue(builder.run());
+		return builder;
+	}
+
+	/**
+	 * Write a part of <code>records</code> records named
+	 * <code>file-NNN</code>, each with a checksummed value of
+	 * <code>valueSize</code> bytes, to a raw local path, which keeps no
+	 * checksum file to get in the way of corrupting it.
+	 * @return the layout of every record, in order.
+	 */
+	public static List<RecordLayout> writePart(File part, int records, int valueSize) throws IOException {
+		Configuration conf = new Configuration();
+		FileSystem fs = FileSystem.getLocal(conf).getRaw();
+		Path path = new Path(part.toURI());
+		SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, path, SarKey.class, BytesWritable.class,
+				SequenceFile.CompressionType.NONE);
+		try {
+			for (int i = 0; i < records; i++) {
+				byte[] value = new byte[valueSize];
+				for (int j = 0; j < valueSize; j++) {
+					value[j] = (byte) ('a' + (i + j) % 26);
+				}
+				PureJavaCrc32C crc = new PureJavaCrc32C();
+				crc.update(value, 0, value.length);
+				SarKey key = new SarKey();
+				key.Filename = String.format("file-%03d", i);
+				key.Checksum = crc.getValue();
+				writer.append(key, new BytesWritable(value));
+			}
+		} finally {
+			writer.close();
+		}
+
+		List<RecordLayout> layout = new ArrayList<RecordLayout>();
+		RecordScanner scanner = new RecordScanner(fs, path, conf);
+		try {
+			long start = scanner.getPosition();
+			while (scanner.next()) {
+				RecordLayout record = new RecordLayout();
+				record.name = scanner.getKey().Filename;
+				record.start = start;
+				record.recordOffset = scanner.getRecordOffset();
+				record.valueOffset = scanner.getValueOffset();
+				record.afterSync = scanner.syncSeen();
+				layout.add(record);
+				start = scanner.getPosition();
+			}
+		} finally {
+			scanner.close();
+		}
+		return layout;
+	}
+
+	/**
+	 * Overwrite four bytes of a file with an int.
+	 */
+	public static void overwrite(File file, long offset, int value) throws IOException {
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try {
+			out.seek(offset);
+			out.writeInt(value);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * @return the index of the first record at or after <code>from</code>
+	 * that directly follows another, with a sync marker somewhere after it.
+	 */
+	public static int findRecordBeforeSync(List<RecordLayout> layout, int from) {
+		for (int i = from; i < layout.size(); i++) {
+			if (!layout.get(i).afterSync && findNextSync(layout, i) < layout.size()) {
+				return i;
+			}
+		}
+		throw new IllegalStateException("No record before a sync marker");
+	}
+
+	/**
+	 * @return the index of the first record after <code>record</code> that a
+	 * sync marker precedes, or the number of records if there is none.
+	 */
+	public static int findNextSync(List<RecordLayout> layout, int record) {
+		int next = record + 1;
+		while (next < layout.size() && !layout.get(next).afterSync) {
+			next++;
+		}
+		return next;
+	}
+}
@@ -0,0 +1,97 @@
+package com.aczire.sar.bench;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aczire.sar.TestArchives;
+
+public class CorpusGeneratorTest {
+	private File dir;
+	private FileSystem fs;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TestArchives.createTempDir("corpus");
+		fs = FileSystem.getLocal(new Configuration()).getRaw();
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		TestArchives.delete(dir);
+	}
+
+	private static CorpusGenerator generator(long seed) {
+		CorpusGenerator generator = new CorpusGenerator();
+		generator.setFiles(50);
+		generator.setDistribution(CorpusGenerator.LOGNORMAL);
+		generator.setMeanSize(4096);
+		generator.setMaxSize(32 * 1024);
+		generator.setDuplicates(0.2);
+		generator.setKeywordRate(0.3);
+		generator.setSeed(seed);
+		return generator;
+	}
+
+	private CorpusGenerator.Summary generate(CorpusGenerator generator, String name) throws IOException {
+		return generator.generate(fs, new Path(new File(dir, name).toURI()));
+	}
+
+	private File[] files(String name) {
+		File[] files = new File(dir, name).listFiles();
+		Arrays.sort(files);
+		return files;
+	}
+
+	@Test
+	public void testSameSeedSameCorpus() throws IOException {
+		CorpusGenerator.Summary first = generate(generator(7), "first");
+		CorpusGenerator.Summary second = generate(generator(7), "second");
+		assertEquals(first.bytes, second.bytes);
+		assertEquals(first.duplicates, second.duplicates);
+		assertEquals(first.keywordFiles, second.keywordFiles);
+
+		File[] a = files("first");
+		File[] b = files("second");
+		assertEquals(50, a.length);
+		assertEquals(a.length, b.length);
+		for (int i = 0; i < a.length; i++) {
+			assertEquals(a[i].getName(), b[i].getName());
+			assertArrayEquals(a[i].getName(), FileUtils.readFileToByteArray(a[i]), FileUtils.readFileToByteArray(b[i]));
+		}
+
+		CorpusGenerator.Summary other = generate(generator(8), "other");
+		assertFalse(first.bytes == other.bytes && first.keywordFiles == other.keywordFiles);
+	}
+
+	@Test
+	public void testSummaryCountsKeywordFiles() throws IOException {
+		CorpusGenerator generator = generator(7);
+		CorpusGenerator.Summary summary = generate(generator, "corpus");
+		assertTrue(summary.keywordFiles > 0);
+		assertTrue(summary.duplicates > 0);
+		int found = 0;
+		long bytes = 0;
+		for (File file : files("corpus")) {
+			if (FileUtils.readFileToString(file, "iso-8859-1").contains(generator.getKeyword())) {
+				found++;
+			}
+			bytes += file.length();
+		}
+		assertEquals(summary.keywordFiles, found);
+		assertEquals(summary.bytes, bytes);
+	}
+}
@@ -0,0 +1,64 @@
+package com.aczire.sar.catalog;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aczire.sar.TestArchives;
+
+public class ArchiveCatalogTest {
+	private File dir;
+	private ArchiveCatalog catalog;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TestArchives.createTempDir("catalog");
+		FileUtils.forceMkdir(dir);
+		catalog = new ArchiveCatalog(FileSystem.getLocal(new Configuration()), new Path(dir.toURI().toString()));
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		TestArchives.delete(dir);
+	}
+
+	private static CatalogEntry entry(String archive, int generation, String... names) throws IOException {
+		CatalogEntry entry = new CatalogEntry();
+		entry.archive = archive;
+		entry.generation = generation;
+		entry.files = names.length;
+		entry.parts.add(new CatalogEntry.PartSummary(archive + "/part-r-00000", Arrays.asList(names), names.length, 100));
+		return entry;
+	}
+
+	@Test
+	public void testPutReplacesEntry() throws IOException {
+		catalog.put(entry("file:/archives/a", 0, "x.log"));
+		catalog.put(entry("file:/archives/b", -1, "y.log"));
+		catalog.put(entry("file:/archives/a", 1, "x.log", "z.log"));
+
+		List<CatalogEntry> entries = catalog.load();
+		assertEquals(2, entries.size());
+		CatalogEntry a = entries.get(0);
+		assertEquals("file:/archives/a", a.archive);
+		assertEquals(1, a.generation);
+		assertEquals(2, a.files);
+		assertEquals(true, a.parts.get(0).mightContain("z.log"));
+		assertEquals(-1, entries.get(1).generation);
+		for (File file : dir.listFiles()) {
+			assertFalse(file.getName(), file.getName().endsWith(".tmp"));
+		}
+	}
+}
@@ -0,0 +1,91 @@
+package com.aczire.sar.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class DictionaryLibTest {
+	private static final String[] STATUS = { "pending", "shipped", "delivered", "returned" };
+	private static final String[] REGION = { "north", "south", "east", "west" };
+
+	/*
+	 * Small JSON documents of one shape, as the dictionary mode is meant for.
+	 */
+	private static List<byte[]> documents(long seed, int count) throws IOException {
+		Random random = new Random(seed);
+		List<byte[]> documents = new ArrayList<byte[]>();
+		for (int i = 0; i < count; i++) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"id\": ").append(random.nextInt(1000000))
+					.append(", \"customer\": {\"name\": \"Customer ").append(random.nextInt(100))
+					.append("\", \"region\": \"").append(REGION[random.nextInt(REGION.length)])
+					.append("\", \"account\": \"ACC-").append(random.nextInt(100000)).append("\"}")
+					.append(", \"status\": \"").append(STATUS[random.nextInt(STATUS.length)])
+					.append("\", \"items\": [");
+			int items = 1 + random.nextInt(4);
+			for (int j = 0; j < items; j++) {
+				sb.append(j > 0 ? ", " : "").append("{\"sku\": \"SKU-").append(random.nextInt(10000))
+						.append("\", \"quantity\": ").append(1 + random.nextInt(9))
+						.append(", \"price\": ").append(random.nextInt(10000) / 100.0).append("}");
+			}
+			sb.append("], \"created\": \"2026-01-").append(10 + random.nextInt(18)).append("T12:00:00Z\"}\n");
+			documents.add(sb.toString().getBytes("utf-8"));
+		}
+		return documents;
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		List<byte[]> samples = documents(1, 100);
+		byte[] dictionary = DictionaryLib.train(samples, DictionaryLib.MAX_DICTIONARY_SIZE);
+		for (byte[] document : documents(2, 20)) {
+			assertArrayEquals(document, DictionaryLib.decompress(DictionaryLib.compress(document, dictionary), dictionary));
+		}
+	}
+
+	/*
+	 * Documents the dictionary was not trained on compress to less than half
+	 * of what gzip makes of them one by one.
+	 */
+	@Test
+	public void testDictionaryBeatsGzipOnSmallDocuments() throws Exception {
+		byte[] dictionary = DictionaryLib.train(documents(3, 200), DictionaryLib.MAX_DICTIONARY_SIZE);
+		long gzip = 0;
+		long withDictionary = 0;
+		for (byte[] document : documents(4, 200)) {
+			gzip += GZipLib.compress(document).length;
+			withDictionary += DictionaryLib.compress(document, dictionary).length;
+		}
+		assertTrue("gzip " + gzip + " bytes, dictionary " + withDictionary + " bytes",
+				withDictionary * 2 < gzip);
+	}
+
+	@Test(timeout = 10000)
+	public void testTruncatedRecordFails() throws Exception {
+		byte[] dictionary = DictionaryLib.train(documents(5, 100), DictionaryLib.MAX_DICTIONARY_SIZE);
+		byte[] compressed = DictionaryLib.compress(documents(6, 1).get(0), dictionary);
+		for (int length : new int[] { 2, 6, compressed.length / 2, compressed.length - 1 }) {
+			try {
+				DictionaryLib.decompress(Arrays.copyOf(compressed, length), dictionary);
+				fail("Decompressed a record cut to " + length + " of " + compressed.length + " bytes");
+			} catch (IOException e) {
+				// Expected.
+			}
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testWrongDictionaryFails() throws Exception {
+		byte[] dictionary = DictionaryLib.train(documents(7, 100), DictionaryLib.MAX_DICTIONARY_SIZE);
+		byte[] other = DictionaryLib.train(documents(8, 50), DictionaryLib.MAX_DICTIONARY_SIZE / 2);
+		DictionaryLib.decompress(DictionaryLib.compress(documents(9, 1).get(0), dictionary), other);
+	}
+}
@@ -0,0 +1,131 @@
+package com.aczire.sar.compression;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.hadoop.io.IOUtils;
+import org.junit.Test;
+
+public class GZipLibTest {
+	private static byte[] sample(int length) {
+		Random random = new Random(length);
+		byte[] data = new byte[length];
+		for (int i = 0; i < length; i++) {
+			data[i] = (byte) ('a' + random.nextInt(random.nextBoolean() ? 4 : 26));
+		}
+		return data;
+	}
+
+	private static byte[] readStream(byte[] compressed) throws IOException {
+		InputStream in = Codec.decompressingStream(Codec.GZIP, new ByteArrayInputStream(compressed), null);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try {
+			IOUtils.copyBytes(in, out, 4096, false);
+		} finally {
+			in.close();
+		}
+		return out.toByteArray();
+	}
+
+	private static void assertFails(byte[] compressed) {
+		try {
+			GZipLib.decompress(compressed);
+			fail("Decoded a corrupt record in memory");
+		} catch (IOException e) {
+			// Expected.
+		}
+		try {
+			readStream(compressed);
+			fail("Decoded a corrupt record streamed");
+		} catch (IOException e) {
+			// Expected.
+		}
+	}
+
+	@Test
+	public void testMultiMemberRoundTrip() throws Exception {
+		byte[] data = sample(300 * 1024);
+		ExecutorService pool = Executors.newFixedThreadPool(3);
+		try {
+			byte[] compressed = GZipLib.compress(data, pool, 3, 64 * 1024);
+			assertArrayEquals(data, GZipLib.decompress(compressed));
+			assertArrayEquals(data, readStream(compressed));
+
+			// A member boundary that falls across the reads of the stream.
+			ByteArrayOutputStream twice = new ByteArrayOutputStream();
+			twice.write(compressed);
+			twice.write(compressed);
+			byte[] doubled = new byte[data.length * 2];
+			System.arraycopy(data, 0, doubled, 0, data.length);
+			System.arraycopy(data, 0, doubled, data.length, data.length);
+			assertArrayEquals(doubled, readStream(twice.toByteArray()));
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testSingleMemberAndEmpty() throws Exception {
+		for (byte[] data : new byte[][] { sample(10000), new byte[0] }) {
+			byte[] compressed = GZipLib.compress(data);
+			assertArrayEquals(data, GZipLib.decompress(compressed));
+			assertArrayEquals(data, readStream(compressed));
+		}
+	}
+
+	@Test
+	public void testOptionalHeaderFields() throws Exception {
+		byte[] data = sample(5000);
+		byte[] stock = GZipLib.compress(data);
+		// Rebuild the header with an extra field, a name and a comment.
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(new byte[] { 0x1f, (byte) 0x8b, 8, 4 | 8 | 16, 0, 0, 0, 0, 0, 0 });
+		out.write(new byte[] { 3, 0, 'x', 'y', 'z' });
+		out.write("name.txt\0comment\0".getBytes("utf-8"));
+		out.write(stock, 10, stock.length - 10);
+		byte[] withFields = out.toByteArray();
+		assertArrayEquals(data, GZipLib.decompress(withFields));
+		assertArrayEquals(data, readStream(withFields));
+	}
+
+	@Test
+	public void testExtraFieldPastTheEnd() throws Exception {
+		// FEXTRA claims 65535 bytes that are not there.
+		assertFails(new byte[] { 0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, 0, (byte) 0xff, (byte) 0xff, 1, 2 });
+		// FEXTRA set, but the header ends before its length.
+		assertFails(new byte[] { 0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, 0, 5 });
+	}
+
+	@Test
+	public void testTruncatedAndCorrupt() throws Exception {
+		byte[] compressed = GZipLib.compress(sample(20000));
+		assertFails(Arrays.copyOf(compressed, compressed.length / 2));
+		assertFails(Arrays.copyOf(compressed, compressed.length - 3));
+		byte[] badCrc = compressed.clone();
+		badCrc[badCrc.length - 8] ^= 1;
+		assertFails(badCrc);
+		assertFails(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11 });
+		assertFails(new byte[0]);
+	}
+
+	@Test
+	public void testMatchesStockGzip() throws Exception {
+		byte[] data = sample(70000);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GZIPOutputStream gzip = new GZIPOutputStream(out);
+		gzip.write(data);
+		gzip.close();
+		assertTrue(Arrays.equals(data, GZipLib.decompress(out.toByteArray())));
+	}
+}
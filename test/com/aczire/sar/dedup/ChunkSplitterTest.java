@@ -0,0 +1,113 @@
+package com.aczire.sar.dedup;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+public class ChunkSplitterTest {
+	private static final int AVG_SIZE = 4096;
+	private static final int LENGTH = 1024 * 1024;
+
+	private static byte[] randomBytes(long seed, int length) {
+		byte[] data = new byte[length];
+		new Random(seed).nextBytes(data);
+		return data;
+	}
+
+	/*
+	 * Boundaries at or past the offset, shifted by the delta.
+	 */
+	private static Set<Integer> boundariesFrom(int[] ends, int from, int delta) {
+		Set<Integer> boundaries = new TreeSet<Integer>();
+		for (int end : ends) {
+			if (end >= from) {
+				boundaries.add(end + delta);
+			}
+		}
+		return boundaries;
+	}
+
+	@Test
+	public void testSameContentSameBoundaries() {
+		byte[] data = randomBytes(1, LENGTH);
+		assertArrayEquals(new ChunkSplitter(AVG_SIZE).split(data, 0, data.length),
+				new ChunkSplitter(AVG_SIZE).split(data, 0, data.length));
+	}
+
+	@Test
+	public void testChunkSizeBounds() {
+		byte[] data = randomBytes(2, LENGTH);
+		int[] ends = new ChunkSplitter(AVG_SIZE).split(data, 0, data.length);
+		assertEquals(data.length, ends[ends.length - 1]);
+		int start = 0;
+		for (int i = 0; i < ends.length; i++) {
+			int size = ends[i] - start;
+			assertTrue("chunk " + i + " of " + size + " bytes", size <= AVG_SIZE * 8);
+			if (i < ends.length - 1) {
+				assertTrue("chunk " + i + " of " + size + " bytes", size >= AVG_SIZE / 4);
+			}
+			start = ends[i];
+		}
+		// Random content should average close to the target size.
+		int average = data.length / ends.length;
+		assertTrue("average " + average, average > AVG_SIZE / 2 && average < AVG_SIZE * 2);
+	}
+
+	@Test
+	public void testOffsetIsRelative() {
+		byte[] data = randomBytes(3, LENGTH);
+		byte[] padded = new byte[data.length + 100];
+		System.arraycopy(data, 0, padded, 100, data.length);
+		assertArrayEquals(new ChunkSplitter(AVG_SIZE).split(data, 0, data.length),
+				new ChunkSplitter(AVG_SIZE).split(padded, 100, data.length));
+	}
+
+	@Test
+	public void testInsertionMovesOnlyNearbyBoundaries() {
+		byte[] data = randomBytes(4, LENGTH);
+		int at = LENGTH / 2;
+		byte[] insert = randomBytes(5, 777);
+		byte[] edited = new byte[data.length + insert.length];
+		System.arraycopy(data, 0, edited, 0, at);
+		System.arraycopy(insert, 0, edited, at, insert.length);
+		System.arraycopy(data, at, edited, at + insert.length, data.length - at);
+
+		ChunkSplitter splitter = new ChunkSplitter(AVG_SIZE);
+		int[] before = splitter.split(data, 0, data.length);
+		int[] after = splitter.split(edited, 0, edited.length);
+
+		// Boundaries ahead of the insertion do not move.
+		Set<Integer> head = new TreeSet<Integer>();
+		for (int end : before) {
+			if (end <= at) {
+				head.add(end);
+			}
+		}
+		for (int end : after) {
+			if (end <= at) {
+				assertTrue("boundary " + end + " before the insertion moved", head.contains(end));
+			}
+		}
+
+		// Past a few chunks after it, boundaries are the old ones shifted by the insertion.
+		int resync = at + 4 * AVG_SIZE * 8;
+		assertEquals(boundariesFrom(before, resync, insert.length),
+				boundariesFrom(after, resync + insert.length, 0));
+
+		// And nearly every chunk is shared.
+		Set<Integer> shifted = boundariesFrom(before, at, insert.length);
+		int moved = 0;
+		for (int end : after) {
+			if (end > at && !shifted.contains(end)) {
+				moved++;
+			}
+		}
+		assertTrue(moved + " boundaries moved", moved <= 3);
+	}
+}
@@ -0,0 +1,49 @@
+package com.aczire.sar.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class BlockedRecordTest {
+	private static byte[] record() throws IOException {
+		BlockedRecord.Writer writer = new BlockedRecord.Writer(10, 4);
+		writer.add(new byte[] { 1, 2, 3 });
+		writer.add(new byte[] { 4, 5 });
+		writer.add(new byte[] { 6 });
+		return writer.toByteArray();
+	}
+
+	private static void assertCorrupt(int blockCount) throws IOException {
+		byte[] value = record();
+		ByteBuffer.wrap(value).putInt(16, blockCount);
+		try {
+			BlockedRecord.readTable(value);
+			fail("Read a table of " + blockCount + " blocks");
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Corrupt blocked record"));
+		}
+	}
+
+	@Test
+	public void testReadsTable() throws IOException {
+		BlockedRecord.SeekTable table = BlockedRecord.readTable(record());
+		assertEquals(3, table.getBlockCount());
+		assertEquals(10, table.getPlainLength());
+		assertEquals(32, table.getOffset(0));
+		assertEquals(2, table.getEncodedLength(1));
+		assertEquals(2, table.findBlock(9));
+	}
+
+	@Test
+	public void testRejectsCorruptBlockCount() throws IOException {
+		assertCorrupt(-1);
+		assertCorrupt(Integer.MAX_VALUE);
+		// One more entry than the value has room for.
+		assertCorrupt(5);
+	}
+}
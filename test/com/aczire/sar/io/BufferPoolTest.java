@@ -0,0 +1,49 @@
+package com.aczire.sar.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.apache.hadoop.conf.Configuration;
+import org.junit.Test;
+
+public class BufferPoolTest {
+	private static Configuration conf(long budget, int segment, long threshold) {
+		Configuration conf = new Configuration(false);
+		conf.setLong(BufferPool.BUDGET_BYTES, budget);
+		conf.setInt(BufferPool.SEGMENT_BYTES, segment);
+		conf.setLong(BufferPool.STREAM_THRESHOLD_BYTES, threshold);
+		return conf;
+	}
+
+	@Test
+	public void testSameSettingsShareThePool() {
+		BufferPool pool = BufferPool.get(conf(4096, 1024, 100));
+		assertSame(pool, BufferPool.get(conf(4096, 1024, 100)));
+	}
+
+	@Test
+	public void testNewSettingsTakeEffect() {
+		BufferPool small = BufferPool.get(conf(1024, 1024, 100));
+		assertTrue(small.shouldStream(101));
+		ByteBuffer segment = small.acquire();
+		assertNotNull(segment);
+		assertNull(small.acquire());
+
+		BufferPool large = BufferPool.get(conf(8192, 2048, 1000));
+		assertNotSame(small, large);
+		assertFalse(large.shouldStream(101));
+		assertEquals(2048, large.getSegmentSize());
+		assertNotNull(large.acquire());
+
+		// A segment handed out by the old pool goes back to it.
+		small.release(segment);
+		assertNotNull(small.acquire());
+	}
+}
@@ -0,0 +1,72 @@
+package com.aczire.sar.io;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aczire.sar.TestArchives;
+
+public class FileSwapTest {
+	private File dir;
+	private FileSystem fs;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TestArchives.createTempDir("swap");
+		FileUtils.forceMkdir(dir);
+		fs = FileSystem.getLocal(new Configuration());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		TestArchives.delete(dir);
+	}
+
+	private void write(Path path, String contents) throws IOException {
+		FSDataOutputStream out = fs.create(path, true);
+		try {
+			out.write(contents.getBytes("utf-8"));
+		} finally {
+			out.close();
+		}
+	}
+
+	private String read(Path path) throws IOException {
+		return FileUtils.readFileToString(new File(path.toUri().getPath()), "utf-8");
+	}
+
+	@Test
+	public void testReplacesExistingFile() throws IOException {
+		Path path = new Path(dir.toURI().toString(), "file");
+		Path tmp = new Path(dir.toURI().toString(), "file.tmp");
+		write(path, "old");
+		write(tmp, "new");
+		FileSwap.replace(fs, tmp, path);
+		assertEquals("new", read(path));
+		assertFalse(fs.exists(tmp));
+		// The checksum moved with the file, so it still reads through the filesystem.
+		byte[] contents = new byte[3];
+		fs.open(path).readFully(contents);
+		assertEquals("new", new String(contents, "utf-8"));
+	}
+
+	@Test
+	public void testCreatesMissingFile() throws IOException {
+		Path path = new Path(dir.toURI().toString(), "file");
+		Path tmp = new Path(dir.toURI().toString(), "file.tmp");
+		write(tmp, "new");
+		FileSwap.replace(fs, tmp, path);
+		assertEquals("new", read(path));
+	}
+}
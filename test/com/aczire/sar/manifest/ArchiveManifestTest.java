@@ -0,0 +1,93 @@
+package com.aczire.sar.manifest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.Test;
+
+import com.aczire.sar.TestArchives;
+
+public class ArchiveManifestTest {
+	private static Configuration localConf(String root) {
+		Configuration conf = new Configuration();
+		conf.set("fs.defaultFS", "file:///");
+		conf.set(ArchiveManifest.INPUT_ROOT, root);
+		return conf;
+	}
+
+	private static ArchiveManifest.Entry entry(String path, int generation, boolean deleted) {
+		ArchiveManifest.Entry entry = new ArchiveManifest.Entry();
+		entry.path = path;
+		entry.hash = "h";
+		entry.generation = generation;
+		entry.deleted = deleted;
+		return entry;
+	}
+
+	@Test
+	public void testArchivedNameIsRelativeToInput() throws Exception {
+		Configuration conf = localConf("/data/in");
+		assertEquals("x.log", ArchiveManifest.getArchivedName(conf, new Path("file:/data/in/x.log")));
+		assertEquals("a/x.log", ArchiveManifest.getArchivedName(conf, new Path("file:/data/in/a/x.log")));
+		// A sibling directory sharing the prefix is outside the input.
+		assertEquals("x.log", ArchiveManifest.getArchivedName(conf, new Path("file:/data/input/x.log")));
+	}
+
+	@Test
+	public void testSameNameInDifferentDirectories() {
+		ArchiveManifest manifest = new ArchiveManifest();
+		manifest.put(entry("a/x.log", 1, false));
+		manifest.put(entry("b/x.log", 1, false));
+		manifest.put(entry("a/x.log", 2, true));
+
+		Map<String, Integer> latest = manifest.resolveLatest();
+		assertEquals(Integer.valueOf(-2), latest.get("a/x.log"));
+		assertEquals(Integer.valueOf(1), latest.get("b/x.log"));
+		assertNull(latest.get("x.log"));
+	}
+
+	@Test
+	public void testRelativizeOldEntries() throws Exception {
+		ArchiveManifest manifest = new ArchiveManifest();
+		manifest.put(entry("file:/data/in/a/x.log", 1, false));
+		manifest.put(entry("b/x.log", 1, false));
+		assertEquals("x.log", manifest.get("file:/data/in/a/x.log").getName());
+
+		manifest.relativize(localConf("/data/in"));
+		assertNull(manifest.get("file:/data/in/a/x.log"));
+		assertEquals("a/x.log", manifest.get("a/x.log").getName());
+		assertEquals("b/x.log", manifest.get("b/x.log").getName());
+	}
+
+	@Test
+	public void testSaveReplacesManifest() throws Exception {
+		File dir = TestArchives.createTempDir("manifest");
+		try {
+			FileSystem fs = FileSystem.getLocal(new Configuration());
+			Path archive = new Path(dir.toURI().toString());
+			ArchiveManifest manifest = new ArchiveManifest();
+			manifest.setGeneration(1);
+			manifest.put(entry("a/x.log", 1, false));
+			manifest.save(fs, archive);
+
+			manifest.setGeneration(2);
+			manifest.put(entry("b/x.log", 2, false));
+			manifest.save(fs, archive);
+
+			ArchiveManifest loaded = ArchiveManifest.load(fs, archive);
+			assertEquals(2, loaded.getGeneration());
+			assertEquals(2, loaded.getEntries().size());
+			assertEquals(2, ArchiveManifest.readGeneration(fs, archive));
+			assertFalse(new File(dir, ArchiveManifest.MANIFEST_FILE + ".tmp").exists());
+		} finally {
+			TestArchives.delete(dir);
+		}
+	}
+}
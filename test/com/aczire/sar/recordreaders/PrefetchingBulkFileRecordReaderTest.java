@@ -0,0 +1,101 @@
+package com.aczire.sar.recordreaders;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.CombineFileSplit;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aczire.sar.TestArchives;
+
+public class PrefetchingBulkFileRecordReaderTest {
+	private File dir;
+	private Configuration conf;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TestArchives.createTempDir("prefetch");
+		FileUtils.forceMkdir(dir);
+		conf = new Configuration();
+		conf.set("fs.defaultFS", "file:///");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		TestArchives.delete(dir);
+	}
+
+	private Path write(String name, String contents) throws IOException {
+		File file = new File(dir, name);
+		FileUtils.writeStringToFile(file, contents, "utf-8");
+		return new Path(file.toURI());
+	}
+
+	private PrefetchingBulkFileRecordReader open(CombineFileSplit split) throws Exception {
+		PrefetchingBulkFileRecordReader reader = new PrefetchingBulkFileRecordReader();
+		reader.initialize(split, new TaskAttemptContextImpl(conf, new TaskAttemptID()));
+		return reader;
+	}
+
+	@Test(timeout = 10000)
+	public void testReadsEveryFileInOrder() throws Exception {
+		Path a = write("a.txt", "first");
+		Path b = write("b.txt", "second file");
+		PrefetchingBulkFileRecordReader reader = open(new CombineFileSplit(new Path[] { a, b }, new long[] { 5, 11 }));
+		try {
+			assertTrue(reader.nextKeyValue());
+			assertEquals("a.txt", reader.getCurrentKey().Filename);
+			assertArrayEquals("first".getBytes("utf-8"), reader.getCurrentValue().copyBytes());
+			assertTrue(reader.nextKeyValue());
+			assertEquals("b.txt", reader.getCurrentKey().Filename);
+			assertFalse(reader.nextKeyValue());
+			assertEquals(1.0f, reader.getProgress(), 0.0f);
+		} finally {
+			reader.close();
+		}
+	}
+
+	/*
+	 * A failure that is not an IOException reaches the mapper instead of
+	 * killing the read-ahead thread and leaving the mapper waiting.
+	 */
+	@Test(timeout = 10000)
+	public void testUncheckedFailureReachesTheMapper() throws Exception {
+		Path a = write("a.txt", "first");
+		Path b = write("b.txt", "second");
+		CombineFileSplit split = new CombineFileSplit(new Path[] { a, b }, new long[] { 5, 6 }) {
+			@Override
+			public Path getPath(int i) {
+				if (i == 1) {
+					throw new IllegalStateException("broken split");
+				}
+				return super.getPath(i);
+			}
+		};
+		PrefetchingBulkFileRecordReader reader = open(split);
+		try {
+			assertTrue(reader.nextKeyValue());
+			try {
+				reader.nextKeyValue();
+				fail("The read-ahead failure was not raised");
+			} catch (IOException e) {
+				assertTrue(e.getCause() instanceof IllegalStateException);
+			}
+		} finally {
+			reader.close();
+		}
+	}
+}
@@ -0,0 +1,138 @@
+package com.aczire.sar.recordreaders;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapreduce.Counter;
+import org.apache.hadoop.mapreduce.Counters;
+import org.apache.hadoop.mapreduce.StatusReporter;
+import org.apache.hadoop.mapreduce.TaskAttemptID;
+import org.apache.hadoop.mapreduce.lib.input.FileSplit;
+import org.apache.hadoop.mapreduce.task.TaskAttemptContextImpl;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aczire.sar.TestArchives;
+import com.aczire.sar.TestArchives.RecordLayout;
+import com.aczire.sar.metrics.SarCounter;
+
+public class ResyncSequenceFileRecordReaderTest {
+	private static final int RECORDS = 40;
+
+	private File dir;
+	private File part;
+	private List<RecordLayout> layout;
+	private Configuration conf;
+
+	/*
+	 * Keeps the counters a task would report.
+	 */
+	private static class CountingReporter extends StatusReporter {
+		final Counters counters = new Counters();
+
+		@Override
+		public Counter getCounter(Enum<?> name) {
+			return counters.findCounter(name);
+		}
+
+		@Override
+		public Counter getCounter(String group, String name) {
+			return counters.findCounter(group, name);
+		}
+
+		@Override
+		public void progress() {
+		}
+
+		@Override
+		public float getProgress() {
+			return 0;
+		}
+
+		@Override
+		public void setStatus(String status) {
+		}
+	}
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TestArchives.createTempDir("resync");
+		FileUtils.forceMkdir(dir);
+		part = new File(dir, "part-r-00000");
+		layout = TestArchives.writePart(part, RECORDS, 300);
+		conf = new Configuration();
+		conf.set("fs.defaultFS", "file:///");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		TestArchives.delete(dir);
+	}
+
+	/*
+	 * @return the names of the records of the split, in order.
+	 */
+	private List<String> read(long start, long end, CountingReporter reporter) throws Exception {
+		ResyncSequenceFileRecordReader reader = new ResyncSequenceFileRecordReader();
+		reader.initialize(new FileSplit(new Path(part.toURI()), start, end - start, null),
+				new TaskAttemptContextImpl(conf, new TaskAttemptID(), reporter));
+		List<String> names = new ArrayList<String>();
+		try {
+			while (reader.nextKeyValue()) {
+				names.add(reader.getCurrentKey().Filename);
+			}
+		} finally {
+			reader.close();
+		}
+		return names;
+	}
+
+	private List<String> namesExcept(int first, int last) {
+		List<String> names = new ArrayList<String>();
+		for (int i = 0; i < layout.size(); i++) {
+			if (i < first || i >= last) {
+				names.add(layout.get(i).name);
+			}
+		}
+		return names;
+	}
+
+	@Test
+	public void testResyncsPastCorruptRecord() throws Exception {
+		int bad = TestArchives.findRecordBeforeSync(layout, 10);
+		int next = TestArchives.findNextSync(layout, bad);
+		TestArchives.overwrite(part, layout.get(bad).recordOffset + 4, -1);
+
+		CountingReporter reporter = new CountingReporter();
+		assertEquals(namesExcept(bad, next), read(0, part.length(), reporter));
+		assertEquals(1, reporter.getCounter(SarCounter.RECORDS_CORRUPT).getValue());
+		assertEquals(layout.get(next).start - layout.get(bad).start,
+				reporter.getCounter(SarCounter.CORRUPT_BYTES_SKIPPED).getValue());
+	}
+
+	@Test
+	public void testSplitBoundaryInsideCorruptStretch() throws Exception {
+		int bad = TestArchives.findRecordBeforeSync(layout, 10);
+		int next = TestArchives.findNextSync(layout, bad);
+		TestArchives.overwrite(part, layout.get(bad).recordOffset + 4, -1);
+		long boundary = layout.get(bad).recordOffset + 16;
+
+		CountingReporter first = new CountingReporter();
+		CountingReporter second = new CountingReporter();
+		List<String> names = read(0, boundary, first);
+		names.addAll(read(boundary, part.length(), second));
+		// Every intact record is read once, by one split or the other.
+		assertEquals(namesExcept(bad, next), names);
+		assertEquals(1, first.getCounter(SarCounter.RECORDS_CORRUPT).getValue());
+		assertEquals(boundary - layout.get(bad).start, first.getCounter(SarCounter.CORRUPT_BYTES_SKIPPED).getValue());
+		assertEquals(0, second.getCounter(SarCounter.RECORDS_CORRUPT).getValue());
+	}
+}
@@ -0,0 +1,93 @@
+package com.aczire.sar.security;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.aczire.sar.TestArchives;
+
+public class ArchiveKeysTest {
+	private File dir;
+	private FileSystem fs;
+	private Path archive;
+
+	@Before
+	public void setUp() throws IOException {
+		dir = TestArchives.createTempDir("keys");
+		FileUtils.forceMkdir(dir);
+		fs = FileSystem.getLocal(new Configuration());
+		archive = new Path(dir.toURI().toString());
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		TestArchives.delete(dir);
+	}
+
+	private void assertWrongPassword(String password) throws Exception {
+		try {
+			ArchiveKeys.unlock(fs, archive, password);
+			fail("Unlocked with the wrong password " + password);
+		} catch (IOException e) {
+			assertTrue(e.getMessage(), e.getMessage().startsWith("Incorrect password"));
+		}
+	}
+
+	@Test
+	public void testCreateAndUnlock() throws Exception {
+		String dataKey = ArchiveKeys.create(fs, ArchiveKeys.getPath(archive), "pw");
+		assertEquals(64, dataKey.length());
+		assertEquals(dataKey, ArchiveKeys.unlock(fs, archive, "pw"));
+		assertWrongPassword("pw2");
+	}
+
+	@Test
+	public void testRewrapKeepsDataKey() throws Exception {
+		String dataKey = ArchiveKeys.create(fs, ArchiveKeys.getPath(archive), "pw");
+		ArchiveKeys.rewrap(fs, archive, "pw", "pw2");
+		assertEquals(dataKey, ArchiveKeys.unlock(fs, archive, "pw2"));
+		assertWrongPassword("pw");
+		assertFalse(fs.exists(new Path(archive, ArchiveKeys.KEYS_FILE + ".tmp")));
+	}
+
+	@Test
+	public void testReadsVersionOneHeaders() throws Exception {
+		// Checked with SHA-256 of salt and password, wrapped by AESCrypter with them.
+		String salt = "00112233445566778899aabbccddeeff";
+		String dataKey = "0123456789abcdef0123456789abcdef0123456789abcdef0123456789abcdef";
+		byte[] wrapped = AESCrypter.encrypt(dataKey.getBytes("utf-8"), salt + "pw");
+		FSDataOutputStream out = fs.create(ArchiveKeys.getPath(archive), true);
+		try {
+			out.writeByte(1);
+			out.writeUTF(salt);
+			out.writeUTF(new String(Hex.encodeHex(
+					MessageDigest.getInstance("sha-256").digest((salt + "pw").getBytes("utf-8")))));
+			out.writeInt(wrapped.length);
+			out.write(wrapped);
+		} finally {
+			out.close();
+		}
+		assertEquals(dataKey, ArchiveKeys.unlock(fs, archive, "pw"));
+		assertWrongPassword("pw2");
+
+		// Rewrapping writes the current version.
+		ArchiveKeys.rewrap(fs, archive, "pw", "pw2");
+		assertEquals(dataKey, ArchiveKeys.unlock(fs, archive, "pw2"));
+		assertEquals(2, FileUtils.readFileToByteArray(new File(dir, ArchiveKeys.KEYS_FILE))[0]);
+	}
+}